@@ -1,6 +1,17 @@
+import java.io.File;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
 
+import models.ChatDispatchers;
+import models.ChatRoom;
 import models.ChatRoomManager;
+import models.ChatRoomMailbox;
+import models.GlobalSearchIndex;
+import models.RoomShards;
+import models.RoomStats;
+import utils.MailOutbox;
+import utils.Metrics;
 
 
 import play.Application;
@@ -16,11 +27,54 @@ public class Global extends GlobalSettings{
 	public void onStart(Application app){
 		// Start the periodic probing process when the application starts.
 		ChatRoomManager.init();
+		// Share the chat rooms with the other nodes, if configured.
+		RoomShards.init();
+		// Start sending queued invitation mails.
+		MailOutbox.getInstance().start();
+		// Index the chat history of all persisted chat rooms in the background, reading the logs is blocking I/O.
+		ChatDispatchers.blockingIo().execute(new Runnable() {
+			@Override
+			public void run() {
+				GlobalSearchIndex.getInstance().indexPersistedRooms(new File("."));
+			}
+		});
+		// Take the room stats of the admin console periodically.
+		RoomStats.init();
+		registerGauges();
 		Logger.info("Application has started ..........");
 	}
 	
+	/**
+	 * Gauges of /metrics, read when the metrics are scraped.
+	 */
+	private static void registerGauges(){
+		Metrics.gauge("chat_rooms_live", "Chat rooms in memory on this node.", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return controllers.Application.getChatRooms().size();
+			}
+		});
+		Metrics.gauges("chat_room_members", "Members of each chat room in memory on this node.", "room", new Metrics.GaugeFamily() {
+			@Override
+			public Map<String, Integer> values() {
+				Map<String, Integer> members = new HashMap<String, Integer>();
+				for(ChatRoom room: controllers.Application.getChatRooms().rooms()){
+					members.put(String.valueOf(room.getRoomId()), room.getMemberCount());
+				}
+				return members;
+			}
+		});
+		Metrics.gauge("chat_mailbox_messages", "Messages waiting in the chat room actors' mailboxes.", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return ChatRoomMailbox.getWaitingMessages();
+			}
+		});
+	}
+	
 	@Override
 	public void onStop(Application app){
+		MailOutbox.getInstance().stop();
 		Logger.info("Application has shutdown!!!!!!!!!!");
 	}
 	
@@ -1,12 +1,33 @@
 package controllers;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import models.ChatRoom;
+import models.ChatRoom.ChatRecord;
+import models.ClosedRoomCache;
+import models.GlobalSearchIndex;
+import models.GlobalSearchIndex.Hit;
+import models.MemberOutbox;
+import models.RoomShards;
+import models.RoomStats;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
 import play.Logger;
+import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Result;
+import utils.MailOutbox;
+import utils.MailOutbox.DeadLetter;
+import utils.Metrics;
 
 /**
  * This controller class handles all the administration related requests.
@@ -15,25 +36,243 @@ import play.mvc.Result;
  */
 public class Admin extends Controller{
 	public static final int ROOMS_PER_PAGE = 6;
+	public static final int MAX_ROOMS_PAGE_SIZE = 100;
+	public static final int SEARCH_PAGE_SIZE = 20;
+	public static final int MAX_SEARCH_PAGE_SIZE = 100;
 	/**
-	 * This method returns <i>ROOMS_PER_PAGE</i> chat room details (by default 6)
-	 * corresponding to the page number <i>pageLong</i>
-	 * @param pageInt Page number.
+	 * This method returns one page of chat room stats (by default <i>ROOMS_PER_PAGE</i>),
+	 * read from the latest snapshot, see {@link RoomStats}.
+	 * @param sort id, name, members, messages, activity or size.
+	 * @param order asc or desc.
+	 * @param after Cursor of the previous page. (null for the first page)
+	 * @param size Number of rooms per page. (At most MAX_ROOMS_PAGE_SIZE)
 	 * @return
 	 */
-	public static Result index(int pageLong){
-		ArrayList<ChatRoom> retList = new ArrayList<ChatRoom>();
-		List<ChatRoom> members = Application.getChatRooms();
-		if(members.size() < 6){
-			for(ChatRoom room: members){
-				retList.add(room);
+	public static Result index(String sort, String order, String after, int size){
+		RoomStats.Sort roomSort = RoomStats.Sort.parse(sort);
+		if(roomSort == null){
+			return badRequest("Unknown sort: " + sort);
+		}
+		try{
+			RoomStats.Page page = roomsPage(roomSort, order, after, size);
+			return ok(views.html.admin.render(page, roomSort.name().toLowerCase(), isDescending(order) ? "desc" : "asc", size));
+		}catch(IllegalArgumentException e){
+			return badRequest(e.getMessage());
+		}
+	}
+	
+	/**
+	 * One page of chat room stats as JSON, read from the latest snapshot:
+	 * {"takenAt", "total", "next", "rooms": [{"roomId", "name", "members", "messages", "lastActivity", "persistedBytes"}]}
+	 * <i>next</i> is the cursor of the following page (<i>after</i>), null on the last page.
+	 * @param sort id, name, members, messages, activity or size.
+	 * @param order asc or desc.
+	 * @param after Cursor of the previous page. (null for the first page)
+	 * @param size Number of rooms per page. (At most MAX_ROOMS_PAGE_SIZE)
+	 * @return
+	 */
+	public static Result rooms(String sort, String order, String after, int size){
+		RoomStats.Sort roomSort = RoomStats.Sort.parse(sort);
+		if(roomSort == null){
+			return badRequest("Unknown sort: " + sort);
+		}
+		RoomStats.Page page;
+		try{
+			page = roomsPage(roomSort, order, after, size);
+		}catch(IllegalArgumentException e){
+			return badRequest(e.getMessage());
+		}
+		ObjectNode result = Json.newObject();
+		result.put("takenAt", page.getTakenAt());
+		result.put("total", page.getTotal());
+		result.put("next", page.getNext());
+		ArrayNode rooms = result.putArray("rooms");
+		for(RoomStats.Entry entry: page.getEntries()){
+			ObjectNode node = rooms.addObject();
+			node.put("roomId", String.valueOf(entry.getRoomId()));
+			node.put("name", entry.getName());
+			node.put("members", entry.getMembers());
+			node.put("messages", entry.getMessages());
+			node.put("lastActivity", entry.getLastActivity());
+			node.put("persistedBytes", entry.getPersistedBytes());
+		}
+		return ok(result);
+	}
+	
+	private static RoomStats.Page roomsPage(RoomStats.Sort sort, String order, String after, int size){
+		int pageSize = Math.max(1, Math.min(size, MAX_ROOMS_PAGE_SIZE));
+		return RoomStats.getCurrent().page(sort, isDescending(order), after, pageSize);
+	}
+	
+	private static boolean isDescending(String order){
+		return !"asc".equalsIgnoreCase(order);
+	}
+	
+	/**
+	 * Search the chat history of all chat rooms, live and persisted.
+	 * Returns one page of the most recent matches as JSON:
+	 * {"query", "page", "size", "total", "results": [{"roomId", "seq", "username", "time", "text"}]}
+	 * @param q Search text: terms, <i>"a phrase"</i> or <i>prefix*</i>.
+	 * @param username Only records of this chat member are matched. (null for all members)
+	 * @param page Page number, starting from 0.
+	 * @param size Number of results per page. (At most MAX_SEARCH_PAGE_SIZE)
+	 * @return
+	 */
+	public static Result search(String q, String username, int page, int size){
+		if(q == null || q.trim().isEmpty()){
+			return badRequest("Search text is missing.");
+		}
+		int pageNo = Math.max(page, 0);
+		int pageSize = Math.max(1, Math.min(size, MAX_SEARCH_PAGE_SIZE));
+		GlobalSearchIndex.Page hits = GlobalSearchIndex.getInstance().search(q, username, pageNo, pageSize);
+		
+		// Read the matching records, one read per chat room.
+		Map<Long, List<Hit>> roomHits = new LinkedHashMap<Long, List<Hit>>();
+		for(Hit hit: hits.getHits()){
+			List<Hit> list = roomHits.get(hit.getRoomId());
+			if(list == null){
+				list = new ArrayList<Hit>();
+				roomHits.put(hit.getRoomId(), list);
+			}
+			list.add(hit);
+		}
+		Map<String, ChatRecord> records = new HashMap<String, ChatRecord>();
+		for(Map.Entry<Long, List<Hit>> entry: roomHits.entrySet()){
+			long[] seqs = new long[entry.getValue().size()];
+			for(int i = 0; i < seqs.length; i ++){
+				seqs[i] = entry.getValue().get(i).getSeq();
+			}
+			try{
+				ChatRoom room = Application.getChatRooms().get(entry.getKey());
+				List<ChatRecord> roomRecords = room != null ? room.getChatRecords(seqs) : ChatRoom.readPersistedChatRecords(entry.getKey(), seqs);
+				for(ChatRecord record: roomRecords){
+					records.put(entry.getKey() + ":" + record.getSeq(), record);
+				}
+			}catch(IOException e){
+				Logger.of(Admin.class).info("Reading search results of chat room(" + entry.getKey() + ") FAILed: " + e.getMessage());
 			}
-		}else{
-			for(int i = pageLong * ROOMS_PER_PAGE; i < pageLong * ROOMS_PER_PAGE + ROOMS_PER_PAGE; i ++){
-				retList.add(members.get(i));
+		}
+		
+		ObjectNode result = Json.newObject();
+		result.put("query", q);
+		result.put("page", pageNo);
+		result.put("size", pageSize);
+		result.put("total", hits.getTotal());
+		ArrayNode results = result.putArray("results");
+		for(Hit hit: hits.getHits()){
+			ChatRecord record = records.get(hit.getRoomId() + ":" + hit.getSeq());
+			if(record == null){
+				continue;
 			}
+			ObjectNode recordNode = results.addObject();
+			recordNode.put("roomId", String.valueOf(hit.getRoomId()));
+			recordNode.put("seq", record.getSeq());
+			recordNode.put("username", record.getUsername());
+			recordNode.put("time", record.getTimeTag());
+			recordNode.put("text", record.getText());
 		}
-		Logger.of(Admin.class).info("Admin room size: " + retList.size() + " live chat room list size: " + Application.getChatRooms().size());
-		return ok(views.html.admin.render(retList));
+		return ok(result);
+	}
+	
+	/**
+	 * State of the invitation mail outbox as JSON, with the dead letters:
+	 * {"queued", "sentRequests", "sentMails", "failedMails", "deadLetters": [{"key", "to", "attempts", "reason"}]}
+	 * @return
+	 */
+	public static Result outbox(){
+		MailOutbox outbox = MailOutbox.getInstance();
+		ObjectNode result = Json.newObject();
+		result.put("queued", outbox.getQueueSize());
+		result.put("sentRequests", outbox.getSentRequests());
+		result.put("sentMails", outbox.getSentMails());
+		result.put("failedMails", outbox.getFailedMails());
+		ArrayNode deadLetters = result.putArray("deadLetters");
+		for(DeadLetter deadLetter: outbox.getDeadLetters()){
+			ObjectNode node = deadLetters.addObject();
+			node.put("key", deadLetter.getEntry().getKey());
+			node.put("to", deadLetter.getEntry().getInvitation().getTo());
+			node.put("attempts", deadLetter.getEntry().getAttempts());
+			node.put("reason", deadLetter.getReason());
+		}
+		return ok(result);
+	}
+	
+	/**
+	 * State of the closed chat room cache as JSON:
+	 * {"rooms", "bytes", "maxRooms", "maxBytes", "hits", "misses", "evictions"}
+	 * @return
+	 */
+	public static Result closedRooms(){
+		ClosedRoomCache cache = ClosedRoomCache.getInstance();
+		ObjectNode result = Json.newObject();
+		result.put("rooms", cache.size());
+		result.put("bytes", cache.getBytes());
+		result.put("maxRooms", cache.getMaxRooms());
+		result.put("maxBytes", cache.getMaxBytes());
+		result.put("hits", cache.getHits());
+		result.put("misses", cache.getMisses());
+		result.put("evictions", cache.getEvictions());
+		return ok(result);
+	}
+	
+	/**
+	 * Outbound buffers of the chat members of the live chat rooms as JSON, deepest first:
+	 * {"droppedFrames", "disconnects", "members": [{"roomId", "username", "depth", "inFlight", "dropped"}]}
+	 * @return
+	 */
+	public static Result outbound(){
+		List<ObjectNode> members = new ArrayList<ObjectNode>();
+		for(ChatRoom chatRoom: Application.getChatRooms().rooms()){
+			for(Map.Entry<String, MemberOutbox> member: chatRoom.getMemberOutboxes().entrySet()){
+				ObjectNode node = Json.newObject();
+				node.put("roomId", chatRoom.getRoomId());
+				node.put("username", member.getKey());
+				node.put("depth", member.getValue().getDepth());
+				node.put("inFlight", member.getValue().getInFlight());
+				node.put("dropped", member.getValue().getDropped());
+				members.add(node);
+			}
+		}
+		Collections.sort(members, new Comparator<ObjectNode>() {
+			@Override
+			public int compare(ObjectNode o1, ObjectNode o2) {
+				return o2.get("depth").asInt() - o1.get("depth").asInt();
+			}
+		});
+		ObjectNode result = Json.newObject();
+		result.put("droppedFrames", MemberOutbox.getDroppedFrames());
+		result.put("disconnects", MemberOutbox.getDisconnects());
+		ArrayNode memberArray = result.putArray("members");
+		for(ObjectNode member: members){
+			memberArray.add(member);
+		}
+		return ok(result);
+	}
+	
+	/**
+	 * Nodes sharing the chat rooms as this node sees them, as JSON:
+	 * {"enabled", "self", "nodes": [...], "liveRooms"}
+	 * @return
+	 */
+	public static Result shards(){
+		ObjectNode result = Json.newObject();
+		result.put("enabled", RoomShards.isEnabled());
+		result.put("self", RoomShards.getSelfAddress());
+		ArrayNode nodes = result.putArray("nodes");
+		if(RoomShards.isEnabled()){
+			for(String node: RoomShards.getRing().getNodes()){
+				nodes.add(node);
+			}
+		}
+		result.put("liveRooms", Application.getChatRooms().size());
+		return ok(result);
+	}
+	
+	/**
+	 * Runtime metrics of this node in the Prometheus text format, see {@link Metrics}.
+	 * @return
+	 */
+	public static Result metrics(){
+		return ok(Metrics.scrape()).as("text/plain; version=0.0.4; charset=utf-8");
 	}
 }
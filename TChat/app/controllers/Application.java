@@ -5,19 +5,25 @@ import static play.data.Form.form;
 import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import models.ChatRoom;
-import org.codehaus.jackson.JsonNode;
+import models.ChatRoomManager;
+import models.RoomRegistry;
+import models.RoomShards;
+
+import org.codehaus.jackson.node.ObjectNode;
 
 import play.Logger;
 import play.Logger.ALogger;
 import play.data.DynamicForm;
+import play.libs.Akka;
+import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Result;
 import play.mvc.WebSocket;
-import utils.MailUtil;
+import utils.MailOutbox;
+import utils.MailOutbox.Invitation;
 import views.html.index;
 
 public class Application extends Controller {
@@ -26,9 +32,9 @@ public class Application extends Controller {
 	private static final ALogger LOG = Logger.of(Application.class);
 	
 	// Contains all alive chat rooms.
-	private static List<ChatRoom> chatRooms = Collections.synchronizedList(new ArrayList<ChatRoom>());
+	private static final RoomRegistry chatRooms = new RoomRegistry();
 	
-	public static synchronized List<ChatRoom> getChatRooms(){return chatRooms;}
+	public static RoomRegistry getChatRooms(){return chatRooms;}
 	
 	// -- Actions
 	
@@ -81,22 +87,40 @@ public class Application extends Controller {
 			
 			// Create a new chat room
 			ChatRoom newChatRoom = new ChatRoom(chatRoomName, newRoomId, tos);
+			// Broadcast batching is off unless the initiator turns it on for this chat room.
+			newChatRoom.setBatching("true".equals(dyForm.get("batching")));
 			
-			// Add newly created chat room to chat room list
-			chatRooms.add(newChatRoom);
-			LOG.info("new room added!!!!!!" + chatRooms.get(0).getRoomName());
+			// With sharding, save the new chat room right away: any node can then read its name (see joinChat),
+			// and its owner can read it in if it belongs to another node. A single node saves it on close or on request.
+			if(RoomShards.isEnabled()){
+				try{
+					newChatRoom.persistChatRoom(String.valueOf(newRoomId));
+				}catch(IOException e){
+					Akka.system().stop(newChatRoom.getRoomActorRef());
+					newChatRoom.releaseWriterLock();
+					return internalServerError("The chat room could not be created. Please try again.");
+				}
+			}
+			// The chat room belongs to another node: its owner reads it in.
+			if(!RoomShards.isLocal(newRoomId)){
+				Akka.system().stop(newChatRoom.getRoomActorRef());
+				newChatRoom.releaseWriterLock();
+				LOG.info("new room saved for node " + RoomShards.ownerOf(newRoomId) + ": " + newChatRoom.getRoomName());
+			}else{
+				// Add newly created chat room to chat room list
+				chatRooms.putIfAbsent(newChatRoom);
+				ChatRoomManager.watch(newChatRoom);
+				LOG.info("new room added!!!!!!" + newChatRoom.getRoomName());
+			}
 			
 			String subject = "[TChat]" + chatRoomName + " invites you to join their conversation.";
-			String body = "Click on the following link to join the room. http://localhost:9000/joinchat?roomId=" + newRoomId + "&username=";
-			try{
-				for(int i = 0; i < tos.length; i ++){
-					// Send chat invitation email to all recipients.
-					MailUtil.sendSimpleMail(from, new String[]{tos[i]}, subject, body + tos[i]);
-				}
-				LOG.debug("email sent successfully.");
-			}catch(Exception e){
-				LOG.debug(e.getMessage());
+			String body = "Click on the following link to join the room. http://localhost:9000/joinchat?roomId=" + newRoomId + "&username=" + MailOutbox.RECIPIENT;
+			// Queue chat invitation emails to all recipients, they are sent in the background.
+			List<Invitation> invitations = new ArrayList<Invitation>();
+			for(int i = 0; i < tos.length; i ++){
+				invitations.add(new Invitation(newRoomId, from, tos[i], subject, body));
 			}
+			MailOutbox.getInstance().enqueueAll(invitations);
 			flash("buddyList", userEmailList);
 			flash("initiator", initiatorMail);
     		return ok(views.html.chatRoom.render(chatRoomName,initiatorMail, String.valueOf(newRoomId)));
@@ -110,56 +134,75 @@ public class Application extends Controller {
      * @param roomId The room id.
      * @return
      */
-    public static Result joinChat(String username, String roomId){
-    	// Get the chat room corresponding to the room id in the live chat room list.
-    	ChatRoom targetChatRoom = null;
-    	for(int i = 0; i < chatRooms.size(); i ++){
-    		if(chatRooms.get(i).getRoomId() == Long.parseLong(roomId)){
-    			targetChatRoom = chatRooms.get(i);
-    			Logger.of(Application.class).info("joinChat chat room is alive.");
-    			break;
-    		}
-    	}
-
-    	/* Target chat room is not on the live chat room list.
-    	 * Check the persisted chat room list.
-    	 */
-    	if(targetChatRoom == null){
-    		// A folder dedicated to this chat room(room id) exists.
-    		if(ChatRoom.hasSavedBefore(roomId)){
-    			try {
-					targetChatRoom = ChatRoom.readPersistedChatRoom(roomId);
-					Logger.of(Application.class).info("joinChat chat room is read from disk[persisted read].");
-				} catch (IOException e) {
-					e.printStackTrace();
-					Logger.of(Application.class).info("Read in chat room(" + roomId + ") FAILed -  reading failed.");
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
-					Logger.of(Application.class).info("Read in chat room(" + roomId + ") FAILed - reading failed");
-				}
-    		}
-    		// A folder dedicated to this chat room(room id) dose not exist.
-    		else{
-    			Logger.of(Application.class).info("Read in chat room(" + roomId + ") FAILed - folder does not exist");
+    public static Result joinChat(String username, final String roomId){
+    	String roomName = null;
+    	// The chat room lives on another node: only its name is needed here, the socket is routed there.
+    	// With sharding every chat room is saved when it is created, so its name is on disk even if it has never been saved since.
+    	if(!RoomShards.isLocal(Long.parseLong(roomId))){
+    		try{
+    			roomName = ChatRoom.readPersistedRoomName(roomId);
+    		}catch(Exception e){
+    			Logger.of(Application.class).info("Read in chat room(" + roomId + ") name FAILed - " + e.getMessage());
     		}
     	}else{
-    		Logger.of(Application.class).info("A chat member TRIES to join in a live chat room.");
+    		ChatRoom targetChatRoom = openChatRoom(Long.parseLong(roomId));
+    		roomName = targetChatRoom == null ? null : targetChatRoom.getRoomName();
     	}
     	
-    	
-    	if(targetChatRoom == null){
+    	if(roomName == null){
     		return badRequest("The chat room you want to join does not exist. :(");
     	}else{
-    		// Add this persisted chat room to Appication's chat room list.
-    		if(!chatRooms.contains(targetChatRoom)){
-    			chatRooms.add(targetChatRoom);
-    			Logger.of(Application.class).info("joinChat persisted chat room is made alive by being added to Application.chatRooms.");
-    		}
-    		String roomName = targetChatRoom.getRoomName();
+    		Logger.of(Application.class).info("A chat member TRIES to join in a live chat room.");
     		return ok(views.html.chatRoom.render(roomName, username, roomId));
     	}
     }
     
+    /**
+     * Get the chat room corresponding to the room id in the live chat room list.
+     * Target chat room is not on the live chat room list: check the persisted chat room list
+     * and add the persisted chat room to Appication's chat room list.
+     * @param id The room id.
+     * @return the live chat room; null if it does not exist or cannot be read in.
+     */
+    public static ChatRoom openChatRoom(long id){
+    	final String roomId = String.valueOf(id);
+    	ChatRoom targetChatRoom = null;
+    	try {
+			targetChatRoom = chatRooms.getOrCreate(id, new RoomRegistry.RoomFactory() {
+				@Override
+				public ChatRoom create(long id) throws Exception {
+					// This chat room has been closed recently and is still in memory.
+					ChatRoom cachedRoom = ChatRoom.reopenClosedChatRoom(id);
+					if(cachedRoom != null){
+						ChatRoomManager.watch(cachedRoom);
+						Logger.of(Application.class).info("joinChat chat room is taken from the closed chat room cache.");
+						return cachedRoom;
+					}
+					// A folder dedicated to this chat room(room id) exists.
+					if(ChatRoom.hasSavedBefore(roomId)){
+						ChatRoom persistedRoom = ChatRoom.readPersistedChatRoom(roomId);
+						ChatRoomManager.watch(persistedRoom);
+						Logger.of(Application.class).info("joinChat chat room is read from disk[persisted read].");
+						return persistedRoom;
+					}
+					// A folder dedicated to this chat room(room id) dose not exist.
+					Logger.of(Application.class).info("Read in chat room(" + roomId + ") FAILed - folder does not exist");
+					return null;
+				}
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+			Logger.of(Application.class).info("Read in chat room(" + roomId + ") FAILed -  reading failed.");
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+			Logger.of(Application.class).info("Read in chat room(" + roomId + ") FAILed - reading failed");
+		} catch (Exception e) {
+			e.printStackTrace();
+			Logger.of(Application.class).info("Read in chat room(" + roomId + ") FAILed - " + e.getMessage());
+		}
+    	return targetChatRoom;
+    }
+    
     /**
      * Generate a new chat room id.
      * @return new chat room id.
@@ -178,12 +221,7 @@ public class Application extends Controller {
      * @return true to indicate an already present chat room id; false otherwise.
      */
     private static boolean isIdPresent(long id){
-    	for(int i = 0; i < chatRooms.size(); i ++){
-    		if(chatRooms.get(i).getRoomId() == id){
-    			return true;
-    		}
-    	}
-    	return false;
+    	return chatRooms.contains(id);
     }
     
     /**
@@ -192,21 +230,29 @@ public class Application extends Controller {
      * @param username Chat member's username(email address in this case)
      * @return WebSocket to link the chat member with the chat room.
      */
-    public static WebSocket<JsonNode> chat(final String username, final String roomId){
+    public static WebSocket<String> chat(final String username, final String roomId){
     	LOG.info("Incoming joining member: " + username);
-    	return new WebSocket<JsonNode>(){
+    	return new WebSocket<String>(){
 
     		// Called when WebSocket handshake is done.
 			@Override
-			public void onReady(play.mvc.WebSocket.In<JsonNode> in, play.mvc.WebSocket.Out<JsonNode> out) {
-				for(int i = 0; i < chatRooms.size(); i ++){
-					if(chatRooms.get(i).getRoomId() == Long.parseLong(roomId)){
-						try {
-							LOG.info(chatRooms.get(i).join(username, in, out));
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-					}
+			public void onReady(play.mvc.WebSocket.In<String> in, play.mvc.WebSocket.Out<String> out) {
+				long id = Long.parseLong(roomId);
+				// The chat room lives on another node.
+				if(!RoomShards.isLocal(id)){
+					RoomShards.join(id, username, in, out);
+					return;
+				}
+				// With several nodes the page may have been served by another node, which did not read in the chat room.
+				ChatRoom room = RoomShards.isEnabled() ? openChatRoom(id) : chatRooms.get(id);
+				// The join result is written to the socket by the chat room, nothing waits for it here.
+				if(room != null){
+					room.join(username, in, out);
+				}else{
+					ObjectNode event = Json.newObject();
+					event.put("error", "The chat room you want to join does not exist. :(");
+					out.write(Json.stringify(event));
+					out.close();
 				}
 			}
     	};
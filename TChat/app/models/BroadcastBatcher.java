@@ -0,0 +1,130 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import play.Play;
+import play.libs.Json;
+
+/**
+ * Collects the broadcast events of a busy chat room for a short while and sends them
+ * as one frame, {"key": "batch", "events": [...]}, oldest first.
+ * <p>A chat member then gets one frame, and one wake-up of the client, per batch rather than per
+ * message. A batch is sent at most <i>window</i> milliseconds after its first event, or as soon
+ * as it holds <i>maxEvents</i> events. Chat rooms with fewer than <i>minMembers</i> members
+ * broadcast every event at once.</p>
+ * <p>Owned by the chat room actor; not thread safe.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class BroadcastBatcher {
+
+	// Default batching window, 0 for no batching. (chat.batch.window, ms)
+	public static final long DEFAULT_WINDOW = 0;
+	// Default maximum number of events in a batch. (chat.batch.maxEvents)
+	public static final int DEFAULT_MAX_EVENTS = 32;
+	// Default number of chat members from which a chat room batches. (chat.batch.minMembers)
+	public static final int DEFAULT_MIN_MEMBERS = 10;
+
+	// Number of batch frames encoded since start.
+	private static final AtomicLong batches = new AtomicLong();
+	// Number of events sent in batch frames since start.
+	private static final AtomicLong batchedEvents = new AtomicLong();
+
+	private final long window;
+	private final int maxEvents;
+	private final int minMembers;
+	private final List<ObjectNode> events = new ArrayList<ObjectNode>();
+	// Incremented on every drain, so that a timer of a batch which has been sent already is recognized.
+	private long generation = 0;
+
+	/**
+	 * @param windowMillis Maximum time an event waits in a batch, 0 for no batching. (ms)
+	 * @param maxBatchEvents Maximum number of events in a batch.
+	 * @param minBatchMembers Number of chat members from which a chat room batches.
+	 */
+	public BroadcastBatcher(long windowMillis, int maxBatchEvents, int minBatchMembers){
+		window = Math.max(0, windowMillis);
+		maxEvents = Math.max(1, maxBatchEvents);
+		minMembers = minBatchMembers;
+	}
+
+	/**
+	 * @return a batcher configured by <i>chat.batch.window</i>, <i>chat.batch.maxEvents</i> and <i>chat.batch.minMembers</i>.
+	 */
+	public static BroadcastBatcher create(){
+		Long windowMillis = Play.application().configuration().getMilliseconds("chat.batch.window");
+		Integer maxBatchEvents = Play.application().configuration().getInt("chat.batch.maxEvents");
+		Integer minBatchMembers = Play.application().configuration().getInt("chat.batch.minMembers");
+		return new BroadcastBatcher(windowMillis == null ? DEFAULT_WINDOW : windowMillis,
+				maxBatchEvents == null ? DEFAULT_MAX_EVENTS : maxBatchEvents,
+				minBatchMembers == null ? DEFAULT_MIN_MEMBERS : minBatchMembers);
+	}
+
+	/**
+	 * @param memberCount Number of chat members of the chat room.
+	 * @return true if events to <i>memberCount</i> chat members are batched.
+	 */
+	public boolean isActive(int memberCount){
+		return window > 0 && memberCount >= minMembers;
+	}
+
+	/**
+	 * Add an event to the batch.
+	 * @param event Broadcast event.
+	 * @return true if it is the first event of the batch, i.e. the batch is to be sent within <i>window</i>.
+	 */
+	public boolean add(ObjectNode event){
+		events.add(event);
+		return events.size() == 1;
+	}
+
+	/**
+	 * @return true if the batch is to be sent now.
+	 */
+	public boolean isFull(){return events.size() >= maxEvents;}
+
+	public boolean isEmpty(){return events.isEmpty();}
+
+	/**
+	 * Take the events of the batch as one frame. A single event is sent as it is.
+	 * @return the frame; null if the batch is empty.
+	 */
+	public BroadcastFrame drain(){
+		if(events.isEmpty()){
+			return null;
+		}
+		generation ++;
+		if(events.size() == 1){
+			BroadcastFrame frame = BroadcastFrame.encode(events.get(0));
+			events.clear();
+			return frame;
+		}
+		ObjectNode batch = Json.newObject();
+		batch.put("key", "batch");
+		ArrayNode array = batch.putArray("events");
+		for(ObjectNode event: events){
+			array.add(event);
+		}
+		batches.incrementAndGet();
+		batchedEvents.addAndGet(events.size());
+		events.clear();
+		return BroadcastFrame.encode(batch);
+	}
+
+	/**
+	 * @return number of the current batch, see {@link #drain()}.
+	 */
+	public long getGeneration(){return generation;}
+
+	public long getWindow(){return window;}
+	public int getMaxEvents(){return maxEvents;}
+	public int getMinMembers(){return minMembers;}
+
+	public static long getBatches(){return batches.get();}
+	public static long getBatchedEvents(){return batchedEvents.get();}
+}
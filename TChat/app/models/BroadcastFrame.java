@@ -0,0 +1,79 @@
+package models;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+
+import play.libs.Json;
+import play.mvc.WebSocket;
+
+/**
+ * An immutable, already serialized WebSocket frame.
+ * A broadcast event is built and serialized exactly once and the very same frame is
+ * handed to every member's <i>WebSocket.Out</i>, so the cost of encoding a message does
+ * not grow with the number of chat members.
+ * <p>The counters record how many frames have been encoded and delivered, i.e. the encoding
+ * work per broadcast message stays constant while the deliveries grow with the room.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public final class BroadcastFrame {
+
+	// Number of frames serialized since start.
+	private static final AtomicLong encodedFrames = new AtomicLong();
+	// Number of frames written to WebSocket out channels since start.
+	private static final AtomicLong deliveredFrames = new AtomicLong();
+
+	private final String text;
+
+	private BroadcastFrame(String frameText){
+		text = frameText;
+	}
+
+	/**
+	 * Serialize an event into a frame.
+	 * @param event Event to be sent.
+	 * @return the frame.
+	 */
+	public static BroadcastFrame encode(JsonNode event){
+		encodedFrames.incrementAndGet();
+		return new BroadcastFrame(Json.stringify(event));
+	}
+
+	/**
+	 * @param frameText A frame serialized elsewhere, e.g. by a chat room on another node.
+	 * @return the frame.
+	 */
+	public static BroadcastFrame wrap(String frameText){
+		return new BroadcastFrame(frameText);
+	}
+
+	/**
+	 * Write this frame to one chat member.
+	 * @param out Chat member's out channel.
+	 */
+	public void writeTo(WebSocket.Out<String> out){
+		deliveredFrames.incrementAndGet();
+		out.write(text);
+	}
+
+	/**
+	 * Write this frame to a group of chat members.
+	 * @param outs Chat members' out channels.
+	 */
+	public void writeTo(Collection<WebSocket.Out<String>> outs){
+		for(WebSocket.Out<String> out: outs){
+			out.write(text);
+		}
+		deliveredFrames.addAndGet(outs.size());
+	}
+
+	/**
+	 * @return serialized frame text.
+	 */
+	public String getText(){return text;}
+
+	public static long getEncodedFrames(){return encodedFrames.get();}
+	public static long getDeliveredFrames(){return deliveredFrames.get();}
+}
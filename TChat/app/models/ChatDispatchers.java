@@ -0,0 +1,44 @@
+package models;
+
+import play.libs.Akka;
+import scala.concurrent.ExecutionContext;
+import akka.actor.Props;
+import akka.actor.UntypedActorFactory;
+
+/**
+ * Dispatchers of the chat rooms, configured in application.conf:
+ * <ul>
+ * 	<li><i>chat.room-dispatcher</i>        - runs the chat room actors, with a bounded mailbox ({@link ChatRoomMailbox}),
+ * 	so that busy chat rooms do not take the threads of Play and of the chat room manager.</li>
+ * 	<li><i>chat.blocking-io-dispatcher</i> - runs the disk I/O of the chat rooms (saving), so that a chat room
+ * 	waiting for the disk does not hold a thread the other chat rooms need.</li>
+ * </ul>
+ * A dispatcher which is not configured falls back to the default dispatcher.
+ * @author shichaodong
+ * @version 1.0
+ */
+public class ChatDispatchers {
+
+	public static final String ROOM = "chat.room-dispatcher";
+	public static final String BLOCKING_IO = "chat.blocking-io-dispatcher";
+
+	/**
+	 * @param creator Chat room actor creator.
+	 * @return props of a chat room actor, on the chat room dispatcher.
+	 */
+	public static Props roomProps(UntypedActorFactory creator){
+		Props props = new Props().withCreator(creator);
+		return isConfigured(ROOM) ? props.withDispatcher(ROOM) : props;
+	}
+
+	/**
+	 * @return the dispatcher running the blocking disk I/O of the chat rooms.
+	 */
+	public static ExecutionContext blockingIo(){
+		return isConfigured(BLOCKING_IO) ? Akka.system().dispatchers().lookup(BLOCKING_IO) : Akka.system().dispatcher();
+	}
+
+	private static boolean isConfigured(String dispatcherId){
+		return Akka.system().settings().config().hasPath(dispatcherId);
+	}
+}
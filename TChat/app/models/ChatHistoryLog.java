@@ -0,0 +1,503 @@
+package models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import models.ChatRoom.ChatRecord;
+import play.Logger;
+import play.Logger.ALogger;
+
+/**
+ * Append-only, segmented log of one chat room's chat records.
+ * <ul>Log folder structure:
+ * 	<li>[roomId]/history                  - log folder of the chat room.</li>
+ * 	<ul><li>00000000000000000000.log      - one segment, named after the sequence number of its first record.</li>
+ * 	<li>00000000000000001234.log</li></ul>
+ * </ul>
+ * Each record is framed as <i>[payload length][CRC32 of payload][payload]</i>, so that a record torn by
+ * a crash is detected and cut off the end of the log. A new segment is started once the current one
+ * has grown beyond the segment size threshold.
+ * <p>Note: Instances are not shared between chat rooms; all methods are synchronized anyway so that
+ * readers (history viewing) and the writer (chat saving) of one chat room do not interfere.</p>
+ * <p>Only the holder of the chat room's {@link RoomWriterLock} may open the log for writing; everyone else
+ * opens it with {@link #openReadOnly(File)}, which never changes the files.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class ChatHistoryLog {
+	private static final ALogger LOG = Logger.of(ChatHistoryLog.class);
+
+	public static final String SEGMENT_SUFFIX = ".log";
+	// Default segment size threshold. (1 MB)
+	public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+	// Frames larger than this are considered corrupted.
+	private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+	// Frame header: payload length + CRC32.
+	private static final int FRAME_HEADER_BYTES = 8;
+
+	private final File dir;
+	private final long maxSegmentBytes;
+	private final boolean readOnly;
+
+	// First sequence number of the segment -> segment file.
+	private TreeMap<Long, File> segments;
+	// Size of the last (current) segment in bytes.
+	private long currentSegmentBytes;
+	// Sequence number of the last record in the log. (-1 for empty log)
+	private long lastSeq = -1;
+
+	public ChatHistoryLog(File logDir){
+		this(logDir, DEFAULT_SEGMENT_BYTES);
+	}
+
+	public ChatHistoryLog(File logDir, long maxSegBytes){
+		this(logDir, maxSegBytes, false);
+	}
+
+	private ChatHistoryLog(File logDir, long maxSegBytes, boolean readOnlyLog){
+		dir = logDir;
+		maxSegmentBytes = maxSegBytes;
+		readOnly = readOnlyLog;
+	}
+
+	/**
+	 * Open the log of a chat room this node may not write to, e.g. to index or show it.
+	 * A torn tail is skipped instead of cut off, and appending fails.
+	 * The log folder is scanned when first read, records appended after that are not seen.
+	 * @param logDir Log folder.
+	 * @return the log.
+	 */
+	public static ChatHistoryLog openReadOnly(File logDir){
+		return new ChatHistoryLog(logDir, DEFAULT_SEGMENT_BYTES, true);
+	}
+
+	/**
+	 * @return sequence number of the last record in the log; -1 if the log is empty.
+	 * @throws IOException
+	 */
+	public synchronized long getLastSeq() throws IOException{
+		open();
+		return lastSeq;
+	}
+
+	/**
+	 * @return end of the log as this instance has read or written it.
+	 * @throws IOException
+	 */
+	public synchronized Position getPosition() throws IOException{
+		open();
+		if(segments.isEmpty()){
+			return Position.EMPTY;
+		}
+		return new Position(segments.lastEntry().getValue().getName(), currentSegmentBytes);
+	}
+
+	/**
+	 * Find the end of a log on disk without reading it: only the log folder is listed and nothing is
+	 * changed, so it may be called by a node which does not hold the chat room's writer lock.
+	 * @param logDir Log folder.
+	 * @return end of the log; {@link Position#EMPTY} if it has no segment.
+	 */
+	public static Position probe(File logDir){
+		File last = null;
+		long lastFirstSeq = -1;
+		File[] files = logDir.listFiles();
+		if(files != null){
+			for(File f: files){
+				Long firstSeq = segmentSeq(f);
+				if(firstSeq != null && firstSeq > lastFirstSeq){
+					last = f;
+					lastFirstSeq = firstSeq;
+				}
+			}
+		}
+		return last == null ? Position.EMPTY : new Position(last.getName(), last.length());
+	}
+
+	/**
+	 * Append chat records to the end of the log. Records are expected in ascending sequence number order.
+	 * @param records Chat records to be appended.
+	 * @throws IOException
+	 */
+	public synchronized void append(Collection<ChatRecord> records) throws IOException{
+		if(records.isEmpty()){
+			return;
+		}
+		if(readOnly){
+			throw new IOException("History log " + dir.getPath() + " is opened read-only.");
+		}
+		open();
+		dir.mkdirs();
+
+		FileOutputStream fos = null;
+		DataOutputStream dos = null;
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		DataOutputStream payloadOut = new DataOutputStream(payload);
+		CRC32 crc = new CRC32();
+		try{
+			for(ChatRecord record: records){
+				// Roll to a new segment named after this record.
+				if(dos == null || currentSegmentBytes >= maxSegmentBytes){
+					if(dos != null){
+						sync(fos, dos);
+					}
+					if(segments.isEmpty() || currentSegmentBytes >= maxSegmentBytes){
+						File segment = new File(dir, segmentName(record.getSeq()));
+						segments.put(record.getSeq(), segment);
+						currentSegmentBytes = 0;
+					}
+					fos = new FileOutputStream(segments.lastEntry().getValue(), true);
+					dos = new DataOutputStream(new BufferedOutputStream(fos));
+				}
+
+				payload.reset();
+				writeRecord(payloadOut, record);
+				payloadOut.flush();
+				crc.reset();
+				crc.update(payload.toByteArray(), 0, payload.size());
+
+				dos.writeInt(payload.size());
+				dos.writeInt((int)crc.getValue());
+				payload.writeTo(dos);
+				currentSegmentBytes += FRAME_HEADER_BYTES + payload.size();
+				lastSeq = record.getSeq();
+			}
+			sync(fos, dos);
+			dos = null;
+		}finally{
+			if(dos != null){
+				dos.close();
+				// Appending failed half way, scan the log folder again before next use.
+				segments = null;
+				lastSeq = -1;
+			}
+		}
+	}
+
+	/**
+	 * Read in all chat records of the log.
+	 * @return chat records in sequence number order.
+	 * @throws IOException
+	 */
+	public synchronized List<ChatRecord> readAll() throws IOException{
+		return readFrom(0);
+	}
+
+	/**
+	 * Read in chat records whose sequence number is not less than <i>fromSeq</i>.
+	 * Only the segments which may contain such records are read.
+	 * @param fromSeq The smallest sequence number to be returned.
+	 * @return chat records in sequence number order.
+	 * @throws IOException
+	 */
+	public synchronized List<ChatRecord> readFrom(long fromSeq) throws IOException{
+		return readRange(fromSeq, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Read in the last <i>count</i> chat records of the log.
+	 * Segments are read from the newest one backwards until enough records are found.
+	 * @param count Maximum number of records.
+	 * @return chat records in sequence number order.
+	 * @throws IOException
+	 */
+	public synchronized List<ChatRecord> readTail(int count) throws IOException{
+		open();
+		List<ChatRecord> records = new ArrayList<ChatRecord>();
+		for(File segment: segments.descendingMap().values()){
+			if(records.size() >= count){
+				break;
+			}
+			List<ChatRecord> segmentRecords = new ArrayList<ChatRecord>();
+			readSegment(segment, 0, Long.MAX_VALUE, segmentRecords);
+			segmentRecords.addAll(records);
+			records = segmentRecords;
+		}
+		if(records.size() > count){
+			records = new ArrayList<ChatRecord>(records.subList(records.size() - count, records.size()));
+		}
+		return records;
+	}
+
+	/**
+	 * Read in chat records whose sequence number lies in [<i>fromSeq</i>, <i>toSeq</i>).
+	 * Only the segments which may contain such records are read, and reading stops at <i>toSeq</i>.
+	 * @param fromSeq The smallest sequence number to be returned.
+	 * @param toSeq The sequence number following the last one to be returned.
+	 * @return chat records in sequence number order.
+	 * @throws IOException
+	 */
+	public synchronized List<ChatRecord> readRange(long fromSeq, long toSeq) throws IOException{
+		open();
+		List<ChatRecord> records = new ArrayList<ChatRecord>();
+		if(segments.isEmpty() || fromSeq >= toSeq){
+			return records;
+		}
+		Long firstSegment = segments.floorKey(fromSeq);
+		if(firstSegment == null){
+			firstSegment = segments.firstKey();
+		}
+		if(firstSegment >= toSeq){
+			return records;
+		}
+		for(File segment: segments.subMap(firstSegment, true, toSeq, false).values()){
+			readSegment(segment, fromSeq, toSeq, records);
+		}
+		return records;
+	}
+
+	/**
+	 * Read in the chat records with the given sequence numbers.
+	 * Each segment holding at least one of them is read once, up to the last wanted record.
+	 * @param seqs Sequence numbers, in any order.
+	 * @return chat records found, in sequence number order.
+	 * @throws IOException
+	 */
+	public synchronized List<ChatRecord> readSeqs(long[] seqs) throws IOException{
+		open();
+		List<ChatRecord> records = new ArrayList<ChatRecord>();
+		if(seqs.length == 0 || segments.isEmpty()){
+			return records;
+		}
+		long[] sorted = Arrays.copyOf(seqs, seqs.length);
+		Arrays.sort(sorted);
+		int i = 0;
+		while(i < sorted.length){
+			Long segmentSeq = segments.floorKey(sorted[i]);
+			if(segmentSeq == null){
+				i ++;
+				continue;
+			}
+			Long nextSegmentSeq = segments.higherKey(segmentSeq);
+			// Wanted records of this segment are sorted[i, j).
+			int j = i;
+			while(j < sorted.length && (nextSegmentSeq == null || sorted[j] < nextSegmentSeq)){
+				j ++;
+			}
+			List<ChatRecord> segmentRecords = new ArrayList<ChatRecord>();
+			readSegment(segments.get(segmentSeq), sorted[i], sorted[j - 1] + 1, segmentRecords);
+			for(ChatRecord record: segmentRecords){
+				if(Arrays.binarySearch(sorted, i, j, record.getSeq()) >= 0){
+					records.add(record);
+				}
+			}
+			i = j;
+		}
+		return records;
+	}
+
+	/**
+	 * Scan the log folder once: collect the segments, and cut off a record torn at the
+	 * end of the last segment unless the log is opened read-only.
+	 * @throws IOException
+	 */
+	private void open() throws IOException{
+		if(segments != null){
+			return;
+		}
+		segments = new TreeMap<Long, File>();
+		File[] files = dir.listFiles();
+		if(files != null){
+			for(File f: files){
+				Long firstSeq = segmentSeq(f);
+				if(firstSeq != null){
+					segments.put(firstSeq, f);
+				}else if(f.getName().endsWith(SEGMENT_SUFFIX)){
+					LOG.info("Ignoring unknown file in history log: " + f.getPath());
+				}
+			}
+		}
+		if(segments.isEmpty()){
+			return;
+		}
+		Map.Entry<Long, File> last = segments.lastEntry();
+		List<ChatRecord> tail = new ArrayList<ChatRecord>();
+		long validBytes = readSegment(last.getValue(), 0, Long.MAX_VALUE, tail);
+		if(validBytes < last.getValue().length() && !readOnly){
+			LOG.info("History log segment " + last.getValue().getPath() + " has a torn tail, truncated to " + validBytes + " bytes.");
+			RandomAccessFile raf = new RandomAccessFile(last.getValue(), "rw");
+			try{
+				raf.setLength(validBytes);
+			}finally{
+				raf.close();
+			}
+		}
+		currentSegmentBytes = validBytes;
+		if(!tail.isEmpty()){
+			lastSeq = tail.get(tail.size() - 1).getSeq();
+		}else{
+			lastSeq = last.getKey() - 1;
+		}
+	}
+
+	/**
+	 * Read the valid records of one segment.
+	 * @param segment Segment file.
+	 * @param fromSeq The smallest sequence number to be collected.
+	 * @param toSeq Reading stops at the first record with this or a larger sequence number.
+	 * @param records Collected records.
+	 * @return number of bytes of the segment which hold valid frames (up to where reading stopped).
+	 * @throws IOException
+	 */
+	private static long readSegment(File segment, long fromSeq, long toSeq, List<ChatRecord> records) throws IOException{
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+		long validBytes = 0;
+		CRC32 crc = new CRC32();
+		try{
+			while(true){
+				int length;
+				try{
+					length = dis.readInt();
+				}catch(EOFException e){
+					break;
+				}
+				if(length < 0 || length > MAX_RECORD_BYTES){
+					break;
+				}
+				byte[] payload = new byte[length];
+				int checksum;
+				try{
+					checksum = dis.readInt();
+					dis.readFully(payload);
+				}catch(EOFException e){
+					break;
+				}
+				crc.reset();
+				crc.update(payload, 0, length);
+				if((int)crc.getValue() != checksum){
+					break;
+				}
+				validBytes += FRAME_HEADER_BYTES + length;
+				ChatRecord record = readRecord(new DataInputStream(new ByteArrayInputStream(payload)));
+				if(record.getSeq() >= toSeq){
+					break;
+				}
+				if(record.getSeq() >= fromSeq){
+					records.add(record);
+				}
+			}
+		}finally{
+			dis.close();
+		}
+		return validBytes;
+	}
+
+	private static void sync(FileOutputStream fos, DataOutputStream dos) throws IOException{
+		dos.flush();
+		fos.getFD().sync();
+		dos.close();
+	}
+
+	private static String segmentName(long firstSeq){
+		return String.format("%020d", firstSeq) + SEGMENT_SUFFIX;
+	}
+
+	// Sequence number of the first record of a segment file; null if the file is not a segment.
+	private static Long segmentSeq(File file){
+		String name = file.getName();
+		if(!name.endsWith(SEGMENT_SUFFIX)){
+			return null;
+		}
+		try{
+			return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+		}catch(NumberFormatException e){
+			return null;
+		}
+	}
+
+	// -- record payload
+
+	// The formatted time is no longer logged, its place holds a null string so that older logs stay readable.
+	static void writeRecord(DataOutputStream out, ChatRecord record) throws IOException{
+		out.writeLong(record.getSeq());
+		out.writeLong(record.getTimestamp());
+		writeString(out, null);
+		writeString(out, record.getUsername());
+		writeString(out, record.getText());
+	}
+
+	static ChatRecord readRecord(DataInputStream in) throws IOException{
+		long seq = in.readLong();
+		long timestamp = in.readLong();
+		// Formatted time, written by older versions.
+		int timeTagLength = in.readInt();
+		if(timeTagLength > 0){
+			in.skipBytes(timeTagLength);
+		}
+		String username = readString(in);
+		String text = readString(in);
+		return new ChatRecord(seq, timestamp, username, text);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException{
+		if(str == null){
+			out.writeInt(-1);
+		}else{
+			byte[] bytes = str.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		if(length < 0){
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * End of a log: name and length of its last segment. It moves whenever records are appended or a torn
+	 * tail is cut off, so two positions of a log differ if it has been written in between.
+	 */
+	public static class Position{
+		public static final Position EMPTY = new Position(null, 0);
+
+		private final String segment;
+		private final long length;
+
+		Position(String segmentName, long segmentLength){
+			segment = segmentName;
+			length = segmentLength;
+		}
+
+		@Override
+		public boolean equals(Object obj){
+			if(!(obj instanceof Position)){
+				return false;
+			}
+			Position other = (Position) obj;
+			return length == other.length && (segment == null ? other.segment == null : segment.equals(other.segment));
+		}
+
+		@Override
+		public int hashCode(){
+			return 31 * (segment == null ? 0 : segment.hashCode()) + (int) (length ^ (length >>> 32));
+		}
+
+		@Override
+		public String toString(){
+			return segment + ":" + length;
+		}
+	}
+}
@@ -1,24 +1,28 @@
 package models;
 
-import static akka.pattern.Patterns.ask;
-import static java.util.concurrent.TimeUnit.SECONDS;
-
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.node.ArrayNode;
@@ -26,22 +30,23 @@ import org.codehaus.jackson.node.ObjectNode;
 
 import play.Logger;
 import play.Logger.ALogger;
+import play.Play;
 import play.libs.Akka;
 import play.libs.F.Callback;
 import play.libs.F.Callback0;
 import play.libs.Json;
 import play.mvc.WebSocket;
-import scala.concurrent.Await;
 import scala.concurrent.duration.Duration;
+import utils.FileUtil;
+import utils.Metrics;
 import utils.SearchUtil;
 import akka.actor.Actor;
 import akka.actor.ActorRef;
-import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.actor.UntypedActorFactory;
 import controllers.Application;
 
-public class ChatRoom implements Serializable{
+public class ChatRoom implements Serializable, IdleTimingWheel.Tracked{
 	
 	/**
 	 * 
@@ -50,6 +55,22 @@ public class ChatRoom implements Serializable{
 
 	private static final ALogger LOG = Logger.of(ChatRoom.class);
 	
+	// Default number of chat records kept in memory per chat room. (chat.history.window)
+	public static final int DEFAULT_HISTORY_WINDOW = 200;
+	// Maximum number of chat records returned by a chat history search.
+	public static final int MAX_SEARCH_RESULTS = 200;
+	// Default and maximum number of chat records per chat history page.
+	public static final int HISTORY_PAGE_SIZE = 50;
+	public static final int MAX_HISTORY_PAGE_SIZE = 200;
+	
+	// -- Metrics, see utils.Metrics
+	private static final Metrics.Counter MESSAGES = Metrics.counter("chat_messages_total", "Chat messages sent in all chat rooms.");
+	private static final Metrics.Histogram BROADCAST_TIME = Metrics.histogram("chat_broadcast_seconds",
+			"Time to hand a broadcast event to all members of a chat room.");
+	private static final Metrics.Histogram PERSIST_TIME = Metrics.histogram("chat_persist_seconds", "Time to persist a chat room.");
+	private static final Metrics.Histogram READ_TIME = Metrics.histogram("chat_read_persisted_seconds", "Time to read in a persisted chat room.");
+	private static final Metrics.Histogram SEARCH_TIME = Metrics.histogram("chat_room_search_seconds", "Time to search the chat history of a chat room.");
+	
 	// The literal room name.
 	private String chatRoomName;
 	// The unique identifier of the chat room.
@@ -58,24 +79,79 @@ public class ChatRoom implements Serializable{
 	private String[] membersList;
 	// An ActorRef pointing to an Actor instance which coordinates the chat information.
 	private transient ActorRef chatRoomActorRef;
-	// Recored chat history 
-	private Queue<ChatRecord> chatHistory;
+	/* The most recent chat records (Recored chat history). Older records are
+	 * read from the history log on demand.
+	 */
+	private transient HistoryWindow chatHistory;
+	// Chat records which have not been appended to the history log yet.
+	private transient Queue<ChatRecord> unpersistedRecords;
+	private transient int unpersistedCount;
+	// A flush of the history log has been handed to the blocking I/O dispatcher and not finished yet.
+	private transient volatile boolean flushScheduled;
+	// Append-only log holding the persisted chat history.
+	private transient ChatHistoryLog historyLog;
+	// End of the history log when this chat room last read or wrote it; null if it has not seen the log.
+	private transient ChatHistoryLog.Position logPosition;
+	// Inverted index over the whole chat history.
+	private transient SegmentedHistoryIndex historyIndex;
+	// Held from the first write of this chat room until it is closed; null meanwhile.
+	private transient RoomWriterLock writerLock;
+	// Outbound buffers of the chat members, published by the chat room actor on every membership change.
+	private transient volatile Map<String, MemberOutbox> memberOutboxes;
+	// Number of chat members, on this node and on others, published by the chat room actor.
+	private transient volatile int memberTotal;
+	// Sequence number of the next chat record, i.e. the number of chat records ever written; read by RoomStats.
+	private volatile long nextSeq = 0;
 	// Indicate if chat room is saved or not(false for not saved, true for saved).
-	private boolean isSaved = false;
+	private volatile boolean isSaved = false;
 	/* After a chat room is saved, this flag to indicate if updates have been made
 	 * since last save.(false for no update, true for new updates have been made)
 	 */
-	private boolean isUpdated = false;
+	private volatile boolean isUpdated = false;
+	// Whether this chat room sends its broadcast events in batches, see BroadcastBatcher. Off unless asked for.
+	private volatile boolean batching = false;
 	
-	private long timeTagVal;
+	private volatile long timeTagVal;
+	
+	/* Fields of chatRoom.data, which is only read to migrate chat rooms saved before the
+	 * snapshot file (see ChatRoomSnapshot) was introduced. "chatHistory" is only read from
+	 * chat rooms persisted before the history log was introduced.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("chatRoomName", String.class),
+		new ObjectStreamField("chatRoomId", Long.TYPE),
+		new ObjectStreamField("membersList", String[].class),
+		new ObjectStreamField("chatHistory", Queue.class),
+		new ObjectStreamField("isSaved", Boolean.TYPE),
+		new ObjectStreamField("isUpdated", Boolean.TYPE),
+		new ObjectStreamField("timeTagVal", Long.TYPE),
+		new ObjectStreamField("nextSeq", Long.TYPE)
+	};
 	
 	public long getRoomId(){return chatRoomId;}
 	public String getRoomName(){return chatRoomName;}
+	public boolean isBatching(){return batching;}
+	/**
+	 * @param on true to send the broadcast events of this chat room in batches, see {@link BroadcastBatcher}.
+	 */
+	public void setBatching(boolean on){batching = on;}
 	public ActorRef getRoomActorRef(){return chatRoomActorRef;}
-	public Queue<ChatRecord> getChatHistoryMap(){return chatHistory;}
+	public HistoryWindow getChatHistoryMap(){return chatHistory;}
 	public void setRoomActorRef(ActorRef actorRef){chatRoomActorRef = actorRef;}
+	
+	/**
+	 * @return chat members' outbound buffers (username -> buffer), e.g. to see how far behind each chat member is.
+	 */
+	public Map<String, MemberOutbox> getMemberOutboxes(){
+		Map<String, MemberOutbox> outboxes = memberOutboxes;
+		return outboxes == null ? Collections.<String, MemberOutbox>emptyMap() : outboxes;
+	}
+	public int getMemberCount(){return memberTotal;}
+	public long getMessageCount(){return nextSeq;}
 	public long getTimeTag(){return timeTagVal;}
 	public void setTimeTag(long tag){timeTagVal = tag;}
+	@Override
+	public long getLastActiveTime(){return timeTagVal;}
 	
 	// For returned chat members
 	public ChatRoom(long roomId){chatRoomId = roomId;}
@@ -86,86 +162,409 @@ public class ChatRoom implements Serializable{
 		membersList = memberList;
 		Arrays.sort(membersList);
 		// The access to chat history is thread-safe.
-		chatHistory = new ConcurrentLinkedQueue<ChatRecord>();
+		chatHistory = new HistoryWindow(historyWindowSize());
+		unpersistedRecords = new ConcurrentLinkedQueue<ChatRecord>();
+		historyIndex = new SegmentedHistoryIndex(indexDir(roomId), SegmentedHistoryIndex.DEFAULT_SEGMENT_RECORDS);
 		
 		for(int i = 0; i < memberList.length; i ++){
 			LOG.info("Room member: " + memberList[i]);
 		}
-		chatRoomActorRef = Akka.system().actorOf(new Props().withCreator(new UntypedActorCreator()));
+		chatRoomActorRef = Akka.system().actorOf(ChatDispatchers.roomProps(new UntypedActorCreator()));
 	}
 	
 	
 	/**
 	 * New member joins the chat channel.
+	 * Nothing waits here: the <i>Join</i> message is sent to the chat room actor, which decides
+	 * whether the member may join and writes the result to <i>out</i>. A member who may not join
+	 * gets an error event and the socket is closed.
+	 * <p>The socket callbacks are registered right after the <i>Join</i> message is sent, so every
+	 * message of this member reaches the chat room actor after the <i>Join</i> message.</p>
 	 * @param username A new chat member's username (email address in this case).
-	 * @return join action result.
-	 * @throws Exception 
-	 */
-	public String join(final String username, WebSocket.In<JsonNode> in, final WebSocket.Out<JsonNode> out) throws Exception{
-		String result = (String)Await.result(ask(chatRoomActorRef, new Join(username, out), 1000), Duration.create(1, SECONDS));
-		if(result.equals("BLOCK")){
-			return "Unfortunatelly you are not invited to join this chat room." + 
-			" But you are welcome to create a new chat room and invite your friends. Enjoy!";
-		}else if(result.equals("DISALLOW")){
-			return "You have already joinned this chat room and cannot join in without logout.";
-		}else if(result.equals("OK")){
-			// For each received event on the socket.
-			in.onMessage(new Callback<JsonNode>(){
+	 * @param in Chat member's in channel.
+	 * @param out Chat member's out channel.
+	 */
+	public void join(final String username, WebSocket.In<String> in, final WebSocket.Out<String> out){
+		final Connection connection = connect(username, out);
+		if(connection == null){
+			return;
+		}
+		
+		// For each received event on the socket.
+		in.onMessage(new Callback<String>(){
+			@Override
+			public void invoke(String frame) throws Throwable {
+				connection.receive(frame);
+			}
+		});
+		//When the socket is closed.
+		in.onClose(new Callback0(){
+			@Override
+			public void invoke() throws Throwable {
+				connection.close();
+			}
+		});
+	}
+	
+	/**
+	 * New member joins the chat channel; members connected to another node join through {@link RoomShards}.
+	 * The <i>Join</i> message is sent to the chat room actor as in {@link #join(String, WebSocket.In, WebSocket.Out)};
+	 * the frames received on the socket are handed to the returned connection.
+	 * @param username A new chat member's username (email address in this case).
+	 * @param out Chat member's out channel.
+	 * @return the member's connection to this chat room; null if the chat room has just been closed (the member is told so).
+	 */
+	public Connection connect(String username, WebSocket.Out<String> out){
+		// The socket keeps talking to this actor even if the chat room is closed meanwhile.
+		ActorRef roomActorRef = chatRoomActorRef;
+		Join joinRequest = new Join(username, out);
+		if(roomActorRef == null){
+			joinRequest.reject("This chat room has just been closed. Please join it again.");
+			return null;
+		}
+		roomActorRef.tell(joinRequest, null);
+		return new Connection(username, joinRequest, roomActorRef);
+	}
+	
+	/**
+	 * A chat member's socket, joined to this chat room.
+	 */
+	public class Connection{
+		private final String username;
+		private final Join joinRequest;
+		private final ActorRef roomActorRef;
+		
+		Connection(String name, Join request, ActorRef actorRef){
+			username = name;
+			joinRequest = request;
+			roomActorRef = actorRef;
+		}
+		
+		/**
+		 * Handle an event received on the socket.
+		 * @param frame Event as JSON text.
+		 */
+		public void receive(String frame){
+			// The member has not been allowed to join. Frames which get past this check before the
+			// rejection lands are dropped by the chat room actor, which checks the sender's membership.
+			if(joinRequest.isRejected()){
+				return;
+			}
+			JsonNode event;
+			try{
+				event = Json.parse(frame);
+			}catch(RuntimeException e){
+				LOG.info("Malformed frame from " + username + " dropped: " + e.getMessage());
+				return;
+			}
+			// A chat member acknowledges the frames received so far, see MemberOutbox.
+			if(event.path("kind").asText().equals("ack")){
+				// A malformed ack without a count acknowledges nothing.
+				joinRequest.getOutbox().ack(event.path("count").asLong(0));
+				return;
+			}
+			Object message = parseFrame(username, chatRoomId, event);
+			if(message != null){
+				roomActorRef.tell(message, roomActorRef);
+			}
+		}
+		
+		/**
+		 * The socket has been closed.
+		 */
+		public void close(){
+			roomActorRef.tell(new Quit(username, String.valueOf(chatRoomId), joinRequest.getOutChannel()), roomActorRef);
+		}
+		
+		public String getUsername(){return username;}
+	}
+	
+	/**
+	 * Turn an event received on a chat member's socket into the message for the chat room actor.
+	 * Acknowledgements are handled where the member's outbound buffer is, see {@link MemberOutbox}.
+	 * @param username Chat member's email address.
+	 * @param roomId Chat room id.
+	 * @param event Event received on the socket.
+	 * Missing fields read as empty, so a malformed event never throws.
+	 * @return the message; null if the event is unknown.
+	 */
+	static Object parseFrame(String username, long roomId, JsonNode event){
+		String kind = event.path("kind").asText();
+		// A chat member sends a text message which needs to be broadcast to all other members.
+		if(kind.equals("text")){
+			return new Talk(username, event.path("text").asText());
+		}
+		// A chat member send a request for viewing one page of the chat history.
+		else if(kind.equals("viewhistory")){
+			long before = event.has("before") ? event.get("before").asLong(-1) : -1;
+			int pageSize = event.has("size") ? event.get("size").asInt(HISTORY_PAGE_SIZE) : HISTORY_PAGE_SIZE;
+			return new History(username, before, pageSize);
+		}
+		// A chat member send a requst to search the chat history for certain text.
+		else if(kind.equals("searchchathistory")){
+			String searchTxt = event.path("text").asText().trim();
+			String memberFilter = event.has("username") ? event.get("username").asText() : null;
+			long fromTime = event.has("from") ? event.get("from").asLong(Long.MIN_VALUE) : Long.MIN_VALUE;
+			long toTime = event.has("to") ? event.get("to").asLong(Long.MAX_VALUE) : Long.MAX_VALUE;
+			return new SearchHistory(username, searchTxt, memberFilter, fromTime, toTime);
+		}
+		/* A chat member issue the chat save command.
+		 * A chat room would be saved when:
+		 * 	(1) updates(new messages have been sent by chat members) have been made.
+		 *  (2) this is the first time to be saved.
+		 */
+		else if(kind.equals("savechat")){
+			return new SaveChat(username, String.valueOf(roomId));
+		}
+		// A chat member missed a membership change and asks for the full member list.
+		else if(kind.equals("resync")){
+			return new Resync(username);
+		}
+		return null;
+	}
+	
+	/**
+	 * Add a chat record to the chat history. The record is appended to the history log on next save,
+	 * or as soon as more records are waiting to be saved than the history window can hold. That flush
+	 * runs on the blocking I/O dispatcher, the chat room actor never waits for the disk; records which
+	 * have left the window meanwhile are read from the queue of unpersisted records.
+	 * @param timestamp Time of the record in milliseconds.
+	 * @param username Chat member's email address.
+	 * @param text Chat message.
+	 */
+	private void addChatRecordToHistory(long timestamp, String username, String text){
+		ChatRecord record = new ChatRecord(nextSeq ++, timestamp, username, text);
+		chatHistory.add(record);
+		historyIndex.add(record);
+		GlobalSearchIndex.getInstance().add(chatRoomId, record);
+		boolean windowFull;
+		synchronized(unpersistedRecords){
+			unpersistedRecords.add(record);
+			windowFull = ++ unpersistedCount > chatHistory.capacity();
+		}
+		// Records leaving the window must be on disk, otherwise they would be lost.
+		if(windowFull && !flushScheduled){
+			flushScheduled = true;
+			ChatDispatchers.blockingIo().execute(new Runnable() {
 				@Override
-				public void invoke(JsonNode event) throws Throwable {
-					String kind = event.get("kind").asText();
-					// A chat member sends a text message which needs to be broadcast to all other members.
-					if(kind.equals("text"))
-						chatRoomActorRef.tell(new Talk(username, event.get("text").asText()), chatRoomActorRef);
-					// A chat member send a request for viewing the chat history.
-					else if(kind.equals("viewhistory")){
-						// view history command is received.
-						chatRoomActorRef.tell(new History(username), chatRoomActorRef);
-						
-					}
-					// A chat member send a requst to search the chat history for certain text.
-					else if(kind.equals("searchchathistory")){
-						String searchTxt = event.get("text").asText().trim();
-						chatRoomActorRef.tell(new SearchHistory(username, searchTxt), chatRoomActorRef);
-					}
-					/* A chat member issue the chat save command.
-					 * A chat room would be saved when:
-					 * 	(1) updates(new messages have been sent by chat members) have been made.
-					 *  (2) this is the first time to be saved.
-					 */
-					else if(kind.equals("savechat")){
-						chatRoomActorRef.tell(new SaveChat(username, String.valueOf(chatRoomId)), chatRoomActorRef);
+				public void run() {
+					try{
+						flushHistory();
+					}catch(IOException e){
+						LOG.info("Flushing chat history of chat room(" + chatRoomId + ") FAILed: " + e.getMessage());
+					}finally{
+						// The next record added tries again if the flush has failed.
+						flushScheduled = false;
 					}
 				}
 			});
-			//When the socket is closed.
-			in.onClose(new Callback0(){
-				@Override
-				public void invoke() throws Throwable {
-					chatRoomActorRef.tell(new Quit(username, String.valueOf(chatRoomId)), chatRoomActorRef);
+		}
+	}
+	
+	/**
+	 * Append the chat records added since last flush to the history log.
+	 * Flushing runs on the blocking I/O dispatcher while the chat room actor keeps adding records,
+	 * so flushes are serialized and the queue is only locked briefly, not during the I/O.
+	 * Records are polled from the queue only once they are in the log.
+	 * @throws IOException
+	 */
+	private synchronized void flushHistory() throws IOException{
+		List<ChatRecord> newRecords;
+		synchronized(unpersistedRecords){
+			newRecords = new ArrayList<ChatRecord>(unpersistedRecords);
+		}
+		// A flush which failed half way has written some of the records already, they are not appended again.
+		long lastSeq = historyLog().getLastSeq();
+		int written = 0;
+		while(written < newRecords.size() && newRecords.get(written).getSeq() <= lastSeq){
+			written ++;
+		}
+		if(written < newRecords.size()){
+			checkWriter();
+		}
+		historyLog().append(newRecords.subList(written, newRecords.size()));
+		logPosition = historyLog().getPosition();
+		synchronized(unpersistedRecords){
+			for(int i = 0; i < newRecords.size(); i ++){
+				unpersistedRecords.poll();
+			}
+			unpersistedCount -= newRecords.size();
+		}
+	}
+	
+	/**
+	 * Make sure this node is the only writer of the chat room's folder before writing it:
+	 * take the chat room's writer lock ({@link RoomWriterLock}) if this chat room does not hold it yet.
+	 * A chat room whose history log has grown since it was read in has been written by another node
+	 * meanwhile; it is not written, its records would clash with the other node's.
+	 * @throws IOException The lock is held elsewhere, or the chat room is out of date.
+	 */
+	private synchronized void checkWriter() throws IOException{
+		if(writerLock != null){
+			return;
+		}
+		String node = RoomShards.getSelfAddress();
+		RoomWriterLock lock = RoomWriterLock.tryAcquire(new File(String.valueOf(chatRoomId)), node == null ? "local" : node);
+		if(lock == null){
+			throw new IOException("Chat room(" + chatRoomId + ") is being written by another node.");
+		}
+		if(isOutOfDate()){
+			lock.release();
+			throw new IOException("Chat room(" + chatRoomId + ") has been written by another node since it was read in.");
+		}
+		writerLock = lock;
+	}
+	
+	/**
+	 * The history log on disk is only listed, not read: its end is compared with where it ended
+	 * when this chat room last read or wrote it.
+	 * @return true if the history log on disk has been written since this chat room last saw it.
+	 */
+	private boolean isOutOfDate(){
+		ChatHistoryLog.Position seen = logPosition == null ? ChatHistoryLog.Position.EMPTY : logPosition;
+		return !ChatHistoryLog.probe(new File(chatRoomId + System.getProperty("file.separator") + "history")).equals(seen);
+	}
+	
+	/**
+	 * Release the chat room's writer lock once the chat room is closed, so another node may write it.
+	 * It is taken again if the chat room is written again.
+	 */
+	public synchronized void releaseWriterLock(){
+		if(writerLock != null){
+			writerLock.release();
+			writerLock = null;
+		}
+	}
+	
+	/**
+	 * Get the chat history starting from a sequence number. Records older than the history
+	 * window are paged in from the history log.
+	 * @param fromSeq The smallest sequence number to be returned.
+	 * @return chat records, oldest first.
+	 * @throws IOException
+	 */
+	public List<ChatRecord> getChatHistory(long fromSeq) throws IOException{
+		List<ChatRecord> recent = chatHistory.snapshot();
+		if(recent.isEmpty() || fromSeq >= recent.get(0).getSeq()){
+			return chatHistory.from(fromSeq);
+		}
+		List<ChatRecord> records = readLogRange(fromSeq, recent.get(0).getSeq());
+		records.addAll(recent);
+		return records;
+	}
+	
+	/**
+	 * Get the chat records with the given sequence numbers, from the history window or from the history log.
+	 * @param seqs Sequence numbers.
+	 * @return chat records, oldest first.
+	 * @throws IOException
+	 */
+	public List<ChatRecord> getChatRecords(long[] seqs) throws IOException{
+		long windowStart = chatHistory.firstSeq();
+		long[] olderSeqs = new long[seqs.length];
+		Set<Long> recentSeqs = new HashSet<Long>();
+		int older = 0;
+		for(long seq: seqs){
+			if(windowStart < 0 || seq < windowStart){
+				olderSeqs[older ++] = seq;
+			}else{
+				recentSeqs.add(seq);
+			}
+		}
+		List<ChatRecord> records = readLogSeqs(Arrays.copyOf(olderSeqs, older));
+		if(!recentSeqs.isEmpty()){
+			for(ChatRecord record: chatHistory.snapshot()){
+				if(recentSeqs.contains(record.getSeq())){
+					records.add(record);
 				}
-			});
-			return "You have successfully joined the chat room. Enjoy!";
+			}
 		}
-		return null;
+		return records;
 	}
 	
 	/**
-	 * 
-	 * @param timeTag
-	 * @param username
-	 * @param text
+	 * Read chat records from the history log, and those not flushed to it yet from the queue.
+	 * The queue is copied before the log is read: a record is polled only after it has been appended,
+	 * so it is found in one of them.
+	 * @param fromSeq The smallest sequence number to be returned.
+	 * @param toSeq Records before this sequence number are returned.
+	 * @return chat records, oldest first.
+	 * @throws IOException
 	 */
-	private void addChatRecordToHistory(String timeTag, String username, String text){
-		chatHistory.add(new ChatRecord(timeTag, username, text));
+	private List<ChatRecord> readLogRange(long fromSeq, long toSeq) throws IOException{
+		List<ChatRecord> unlogged = unloggedRecords();
+		List<ChatRecord> records = historyLog().readRange(fromSeq, toSeq);
+		long lastSeq = records.isEmpty() ? fromSeq - 1 : records.get(records.size() - 1).getSeq();
+		for(ChatRecord record: unlogged){
+			if(record.getSeq() > lastSeq && record.getSeq() < toSeq){
+				records.add(record);
+			}
+		}
+		return records;
 	}
+	
 	/**
-	 * 
+	 * Read the chat records with the given sequence numbers like {@link #readLogRange(long, long)}.
+	 * @param seqs Sequence numbers.
+	 * @return chat records, oldest first.
+	 * @throws IOException
+	 */
+	private List<ChatRecord> readLogSeqs(long[] seqs) throws IOException{
+		List<ChatRecord> unlogged = unloggedRecords();
+		List<ChatRecord> records = historyLog().readSeqs(seqs);
+		Set<Long> missing = new HashSet<Long>();
+		for(long seq: seqs){
+			missing.add(seq);
+		}
+		for(ChatRecord record: records){
+			missing.remove(record.getSeq());
+		}
+		for(ChatRecord record: unlogged){
+			if(missing.contains(record.getSeq())){
+				records.add(record);
+			}
+		}
+		return records;
+	}
+	
+	private List<ChatRecord> unloggedRecords(){
+		synchronized(unpersistedRecords){
+			return new ArrayList<ChatRecord>(unpersistedRecords);
+		}
+	}
+	
+	/**
+	 * Get one page of the chat history.
+	 * Only the records of the page are read, from the history window or from the history log.
+	 * @param before Cursor: records older than this sequence number are returned; -1 for the most recent records.
+	 * @param pageSize Number of records per page. (At most MAX_HISTORY_PAGE_SIZE)
+	 * @return chat records of the page, oldest first.
+	 * @throws IOException
+	 */
+	public List<ChatRecord> getChatHistoryPage(long before, int pageSize) throws IOException{
+		int size = Math.max(1, Math.min(pageSize, MAX_HISTORY_PAGE_SIZE));
+		long end = (before < 0 || before > nextSeq) ? nextSeq : before;
+		long start = Math.max(0, end - size);
+		long windowStart = chatHistory.firstSeq();
+		// The whole page is in memory.
+		if(windowStart >= 0 && start >= windowStart){
+			return chatHistory.range(start, end);
+		}
+		List<ChatRecord> page = readLogRange(start, windowStart >= 0 ? Math.min(end, windowStart) : end);
+		if(windowStart >= 0 && end > windowStart){
+			page.addAll(chatHistory.range(windowStart, end));
+		}
+		return page;
+	}
+	
+	/**
+	 * Render the most recent chat records, those in the history window; nothing is read from disk.
+	 * Older records are read one page at a time, see {@link #getChatHistoryPage(long, int)}.
 	 * @return
 	 */
 	public String getChatHistoryStr(){
 		StringBuilder sb = new StringBuilder();
-		Iterator<ChatRecord> iter = chatHistory.iterator();
+		Iterator<ChatRecord> iter = chatHistory.snapshot().iterator();
 		while(iter.hasNext()){
 			ChatRecord cr = iter.next();
 			sb.append("<span>" + cr.getUsername() + "		</span><span>" + cr.getTimeTag() + "</span><p>" + cr.getText() + "</p>");
@@ -190,64 +589,168 @@ public class ChatRoom implements Serializable{
 	 * 	<li>[roomId]                     - chat room folder with chat room id as its name.</li>
 	 * 	<ul><li>	[file]                   - file folder to store all uploaded files.</li>
 	 * 	<li>	[img]                    - img folder to store all uploaded images.</li>
-	 * 	<li>	chatHistory.data         - a file to store persisted chat room(chat room name, chat member list and chat history).</li></ul>
+	 * 	<li>	[history]                - history log folder to store the chat history, see {@link ChatHistoryLog}.</li>
+	 * 	<li>	[index]                  - search index folder of the chat history, see {@link SegmentedHistoryIndex}.</li>
+	 * 	<li>	room.snap                - a file to store persisted chat room(chat room name, chat member list, sequence number
+	 * 	and the most recent chat records), see {@link ChatRoomSnapshot}.</li></ul>
 	 * </ul>
+	 * Only the chat records added since last save are appended to the history log, so the cost of
+	 * saving does not grow with the length of the chat history. Saves of one chat room are serialized.
 	 * @param roomId
 	 * @return File object pointing to the chat_history file to extract chat room name, member list and chat history.
 	 * @throws IOException 
 	 */
-	public boolean persistChatRoom(String roomId) throws IOException{
+	public synchronized boolean persistChatRoom(String roomId) throws IOException{
+		long start = System.nanoTime();
+		try{
+			return doPersistChatRoom(roomId);
+		}finally{
+			PERSIST_TIME.observeSince(start);
+		}
+	}
+	
+	private boolean doPersistChatRoom(String roomId) throws IOException{
+		checkWriter();
 		String fileSeparator = System.getProperty("file.separator");
 		File f1 = new File(roomId + fileSeparator + fileSeparator + "file");
 		File f2 = new File(chatRoomId + fileSeparator + fileSeparator + "img");
 		f1.mkdirs();
 		f2.mkdirs();
 		
-		FileOutputStream fos = new FileOutputStream(roomId + fileSeparator + fileSeparator + "chatRoom.data");
-		ObjectOutputStream oos = new ObjectOutputStream(fos);
-		oos.writeObject(this);
-		oos.flush();
-		oos.close();
+		// Append new chat records to the history log, then save the search index covering them.
+		flushHistory();
+		historyIndex.save();
+		GlobalSearchIndex.getInstance().catchUp(chatRoomId, historyLog());
+		
+		FileUtil.write(new File(roomId + fileSeparator + ChatRoomSnapshot.FILE_NAME), ChatRoomSnapshot.encode(
+				chatRoomId, chatRoomName, membersList, nextSeq, timeTagVal, isSaved, isUpdated, batching, chatHistory.snapshot()));
 		return true;
 	}
 	
+	/**
+	 * Read the name of a persisted chat room, without reading in the chat room.
+	 * @param chatRoomId Chat room id.
+	 * @return chat room name; null if the chat room has never been saved.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static String readPersistedRoomName(String chatRoomId) throws IOException, ClassNotFoundException{
+		File snapshotFile = new File(chatRoomId, ChatRoomSnapshot.FILE_NAME);
+		FileUtil.restore(snapshotFile);
+		if(snapshotFile.exists()){
+			return ChatRoomSnapshot.open(snapshotFile).getRoomName();
+		}
+		File f = new File(chatRoomId, "chatRoom.data");
+		if(f.exists()){
+			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f));
+			try{
+				return ((ChatRoom) ois.readObject()).getRoomName();
+			}finally{
+				ois.close();
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Read in the persisted chat room from disk.
+	 * The chat room metadata and the most recent chat records are read from the snapshot file, older
+	 * chat history from the history log. A chat room saved as chatRoom.data is migrated to a snapshot.
 	 * @return the chat room instance.
 	 * @throws IOException 
 	 * @throws ClassNotFoundException 
 	 */
 	public static ChatRoom readPersistedChatRoom(String chatRoomId) throws IOException, ClassNotFoundException{
+		long start = System.nanoTime();
+		try{
+			return doReadPersistedChatRoom(chatRoomId);
+		}finally{
+			READ_TIME.observeSince(start);
+		}
+	}
+	
+	private static ChatRoom doReadPersistedChatRoom(String chatRoomId) throws IOException, ClassNotFoundException{
 		String fileSeparator = System.getProperty("file.separator");
+		File snapshotFile = new File(chatRoomId + fileSeparator + ChatRoomSnapshot.FILE_NAME);
+		FileUtil.restore(snapshotFile);
 		File f = new File(chatRoomId + fileSeparator + fileSeparator + "chatRoom.data");
 		// File exists and read in the persisted chat room.
-		if(f.exists()){
-			FileInputStream fis = new FileInputStream(f);
-			ObjectInputStream ois = new ObjectInputStream(fis);
-			ChatRoom chatRoom = (ChatRoom) ois.readObject();
+		if(snapshotFile.exists() || f.exists()){
+			ChatRoom chatRoom;
+			ChatRoomSnapshot snapshot = null;
+			if(snapshotFile.exists()){
+				snapshot = ChatRoomSnapshot.open(snapshotFile);
+				chatRoom = new ChatRoom(snapshot.getRoomId());
+				chatRoom.chatRoomName = snapshot.getRoomName();
+				chatRoom.membersList = snapshot.getMembers();
+				chatRoom.nextSeq = snapshot.getNextSeq();
+				chatRoom.timeTagVal = snapshot.getTimeTag();
+				chatRoom.isSaved = snapshot.isSaved();
+				chatRoom.isUpdated = snapshot.isUpdated();
+				chatRoom.batching = snapshot.isBatching();
+				chatRoom.unpersistedRecords = new ConcurrentLinkedQueue<ChatRecord>();
+			}else{
+				FileInputStream fis = new FileInputStream(f);
+				ObjectInputStream ois = new ObjectInputStream(fis);
+				try{
+					chatRoom = (ChatRoom) ois.readObject();
+				}finally{
+					ois.close();
+				}
+				// Chat room persisted before the history log was introduced: move its chat history to the log.
+				if(!chatRoom.unpersistedRecords.isEmpty()){
+					chatRoom.flushHistory();
+					Logger.of(ChatRoom.class).info("persisted chat room(" + chatRoomId + ") history is migrated to the history log.");
+				}
+			}
 			
-			StringBuilder sb = new StringBuilder();
-			sb.append("persisted chat room id: " + chatRoom.getRoomId() + "\n");
-			sb.append("persisted chat room name: " + chatRoom.getRoomName() + "\n");
-			sb.append("persisted chat room isSaved: " + chatRoom.isSaved + "\n");
-			sb.append("persisted chat room isUpdated: " + chatRoom.isUpdated + "\n");
-			sb.append("persisted chat room member list size: " + chatRoom.membersList+ "\n");
-			sb.append("persisted chat history queue size: " + chatRoom.getChatHistoryMap() + "\n");
-			sb.append("persisted chat actor ref: " + chatRoom.getRoomActorRef());
-			Logger.of(ChatRoom.class).info(sb.toString());
+			// Rebuild the most recent chat history: from the snapshot if it is up to date with the log,
+			// from the tail of the history log otherwise.
+			ChatHistoryLog log = chatRoom.historyLog();
+			chatRoom.chatHistory = new HistoryWindow(historyWindowSize());
+			int capacity = chatRoom.chatHistory.capacity();
+			long logLastSeq = log.getLastSeq();
+			chatRoom.logPosition = log.getPosition();
+			if(snapshot != null && snapshot.getLastSeq() == logLastSeq && snapshot.getRecordCount() >= Math.min(capacity, logLastSeq + 1)){
+				chatRoom.chatHistory.addAll(snapshot.getRecords(snapshot.getRecordCount() - capacity));
+			}else{
+				chatRoom.chatHistory.addAll(log.readTail(capacity));
+			}
+			chatRoom.nextSeq = Math.max(chatRoom.nextSeq, logLastSeq + 1);
+			// Read in the search index and index the records logged after it was saved.
+			chatRoom.historyIndex = SegmentedHistoryIndex.open(indexDir(chatRoom.getRoomId()),
+					SegmentedHistoryIndex.DEFAULT_SEGMENT_RECORDS, logLastSeq);
+			for(ChatRecord record: log.readFrom(chatRoom.historyIndex.getLastSeq() + 1)){
+				chatRoom.historyIndex.add(record);
+			}
+			if(chatRoom.historyIndex.hasUnsaved()){
+				chatRoom.historyIndex.save();
+			}
+			// Search index saved as a whole before it was split into segments.
+			new File(chatRoomId + fileSeparator + "index.data").delete();
+			GlobalSearchIndex.getInstance().catchUp(chatRoom.getRoomId(), log);
 			
-			chatRoom.setRoomActorRef(Akka.system().actorOf(new Props().withCreator(chatRoom.new UntypedActorCreator())));
+			// Chat room saved as chatRoom.data: save it as a snapshot and keep the old file aside.
+			if(snapshot == null){
+				chatRoom.persistChatRoom(chatRoomId);
+				if(!f.renameTo(new File(f.getPath() + ".migrated"))){
+					f.delete();
+				}
+				Logger.of(ChatRoom.class).info("persisted chat room(" + chatRoomId + ") is migrated to " + ChatRoomSnapshot.FILE_NAME + ".");
+			}
 			
-			sb = new StringBuilder();
+			StringBuilder sb = new StringBuilder();
 			sb.append("persisted chat room id: " + chatRoom.getRoomId() + "\n");
 			sb.append("persisted chat room name: " + chatRoom.getRoomName() + "\n");
 			sb.append("persisted chat room isSaved: " + chatRoom.isSaved + "\n");
 			sb.append("persisted chat room isUpdated: " + chatRoom.isUpdated + "\n");
-			sb.append("persisted chat room member list size: " + chatRoom.membersList+ "\n");
-			sb.append("persisted chat history queue size: " + chatRoom.getChatHistoryMap() + "\n");
+			sb.append("persisted chat room member list size: " + chatRoom.membersList.length + "\n");
+			sb.append("persisted chat history queue size: " + chatRoom.getChatHistoryMap().size() + "\n");
 			sb.append("persisted chat actor ref: " + chatRoom.getRoomActorRef());
 			Logger.of(ChatRoom.class).info(sb.toString());
 			
+			chatRoom.setRoomActorRef(Akka.system().actorOf(ChatDispatchers.roomProps(chatRoom.new UntypedActorCreator())));
+			
 			return chatRoom;
 		}
 		// File does not exist.
@@ -256,17 +759,129 @@ public class ChatRoom implements Serializable{
 		}
 	}
 	
+	/**
+	 * Take a recently closed chat room out of the closed chat room cache ({@link ClosedRoomCache})
+	 * and bring it back to life. The history log is only listed, see {@link #isOutOfDate()}.
+	 * @param chatRoomId Chat room's id.
+	 * @return the chat room instance; null if the chat room is not cached or has been written by another node since.
+	 */
+	public static ChatRoom reopenClosedChatRoom(long chatRoomId){
+		ChatRoom chatRoom = ClosedRoomCache.getInstance().take(chatRoomId);
+		// Another node has had the chat room open since it was closed here: read it in from disk.
+		if(chatRoom != null && chatRoom.isOutOfDate()){
+			Logger.of(ChatRoom.class).info("Closed chat room(" + chatRoomId + ") is out of date, it is read in from disk.");
+			return null;
+		}
+		if(chatRoom != null){
+			chatRoom.setRoomActorRef(Akka.system().actorOf(ChatDispatchers.roomProps(chatRoom.new UntypedActorCreator())));
+		}
+		return chatRoom;
+	}
+	
+	/**
+	 * @return rough estimate of the heap used by this chat room: metadata, history window and search index. (bytes)
+	 */
+	public long estimateBytes(){
+		long bytes = 128 + 2L * (chatRoomName == null ? 0 : chatRoomName.length());
+		if(membersList != null){
+			for(String member: membersList){
+				bytes += 48 + 2L * member.length();
+			}
+		}
+		return bytes + chatHistory.estimateBytes() + historyIndex.estimateBytes();
+	}
+	
+	/**
+	 * @param roomId Chat room's id.
+	 * @return folder of the chat history search index, see {@link SegmentedHistoryIndex}.
+	 */
+	private static File indexDir(long roomId){
+		return new File(String.valueOf(roomId), "index");
+	}
+	
+	/**
+	 * Read chat records of a chat room which is not live from its history log.
+	 * @param roomId Chat room's id.
+	 * @param seqs Sequence numbers.
+	 * @return chat records, oldest first.
+	 * @throws IOException
+	 */
+	public static List<ChatRecord> readPersistedChatRecords(long roomId, long[] seqs) throws IOException{
+		String fileSeparator = System.getProperty("file.separator");
+		return ChatHistoryLog.openReadOnly(new File(roomId + fileSeparator + "history")).readSeqs(seqs);
+	}
+	
+	/**
+	 * @return number of chat records kept in memory per chat room.
+	 */
+	private static int historyWindowSize(){
+		Integer size = Play.application().configuration().getInt("chat.history.window");
+		return size == null ? DEFAULT_HISTORY_WINDOW : size;
+	}
+	
+	private ChatHistoryLog historyLog(){
+		if(historyLog == null){
+			String fileSeparator = System.getProperty("file.separator");
+			historyLog = new ChatHistoryLog(new File(chatRoomId + fileSeparator + "history"));
+		}
+		return historyLog;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException{
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("chatRoomName", chatRoomName);
+		fields.put("chatRoomId", chatRoomId);
+		fields.put("membersList", membersList);
+		fields.put("chatHistory", null);
+		fields.put("isSaved", isSaved);
+		fields.put("isUpdated", isUpdated);
+		fields.put("timeTagVal", timeTagVal);
+		fields.put("nextSeq", nextSeq);
+		out.writeFields();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+		ObjectInputStream.GetField fields = in.readFields();
+		chatRoomName = (String) fields.get("chatRoomName", null);
+		chatRoomId = fields.get("chatRoomId", 0L);
+		membersList = (String[]) fields.get("membersList", null);
+		isSaved = fields.get("isSaved", false);
+		isUpdated = fields.get("isUpdated", false);
+		timeTagVal = fields.get("timeTagVal", 0L);
+		nextSeq = fields.get("nextSeq", 0L);
+		unpersistedRecords = new ConcurrentLinkedQueue<ChatRecord>();
+		// Chat history written by the old format: number the records so they can be logged.
+		Queue<ChatRecord> legacyHistory = (Queue<ChatRecord>) fields.get("chatHistory", null);
+		if(legacyHistory != null){
+			for(ChatRecord record: legacyHistory){
+				unpersistedRecords.add(new ChatRecord(nextSeq ++, record.getTimestamp(), record.getUsername(), record.getText()));
+				unpersistedCount ++;
+			}
+		}
+	}
+	
 	public class ChatRoomActor extends UntypedActor{
 		
-		// Store username (email address) and corresponding WebSocket out channel.
-		private Map<String, WebSocket.Out<JsonNode>> members = new HashMap<String, WebSocket.Out<JsonNode>>();;
+		// Store username (email address) and corresponding outbound buffer of the WebSocket out channel.
+		private Map<String, MemberOutbox> members = new HashMap<String, MemberOutbox>();
+		// Chat members connected to other nodes: username -> replica of this chat room on the member's node, see RoomShards.
+		private Map<String, ActorRef> remoteMembers = new HashMap<String, ActorRef>();
+		// Replica -> number of its chat members; every event is published once per replica.
+		private Map<ActorRef, Integer> replicas = new HashMap<ActorRef, Integer>();
+		// Incremented on every membership change, so that chat members can detect a missed change.
+		private long membershipVersion = 0;
+		// Broadcast events waiting to be sent as one frame, see BroadcastBatcher.
+		private final BroadcastBatcher batcher = BroadcastBatcher.create();
 
 		@SuppressWarnings("deprecation")
 		@Override
 		public void onReceive(Object msg) {
-			Date timeTag = new Date();
-			SimpleDateFormat sdf = new SimpleDateFormat("yyyy-mm-dd hh:mm:ss");
-			String timeTagStr = sdf.format(timeTag);
+			long now = System.currentTimeMillis();
+			// Waiting broadcast events go out before anything else is sent to the chat members.
+			if(!(msg instanceof Talk) && !(msg instanceof FlushBatch)){
+				flushBatch();
+			}
 			
 			// A person tries to join this chat room.
 			if(msg instanceof Join){
@@ -276,41 +891,41 @@ public class ChatRoom implements Serializable{
 				sb1.append("right after persisted in join chat room isSaved: " + isSaved + "\n");
 				sb1.append("right after persisted in join chat room isUpdated: " + isUpdated + "\n");
 				sb1.append("right after persisted in join chat room member list size: " + membersList + "\n");
-				sb1.append("right after persisted in join chat history queue size: " + chatHistory + "\n");
+				sb1.append("right after persisted in join chat history queue size: " + chatHistory.size() + "\n");
 				sb1.append("right after persisted in join chat actor ref: " + chatRoomActorRef);
 				Logger.of(ChatRoom.class).info(sb1.toString());
 				
 				
 				Join message = (Join) msg;
 				String username = message.getUsername();
-				
-				StringBuilder sb = new StringBuilder();
-				for(String str: membersList){
-					sb.append(str + " ");
+				String reason = admit(username);
+				if(reason != null){
+					message.reject(reason);
 				}
-				
-				Logger.of(ChatRoomActor.class).info("member list of this chat room: " + sb.toString() + " joining username: " + username);
-				// Insertion point of this username in the membersList list.
-				int index = Arrays.binarySearch(membersList, username);
-				// This username does not occur in the membersList and 
-				// should be BLOCKed from joining in this chat room.
-				if(index < 0){
-					getSender().tell("BLOCK");
+				// This member is on the invitation list and ALLOWed to join. This is the first time 
+				// for this member to join this room.
+				else{
+					members.put(username, message.getOutbox());
+					memberOutboxes = Collections.unmodifiableMap(new HashMap<String, MemberOutbox>(members));
+					joined(now, username);
+				}
+				timeTagVal = System.currentTimeMillis();
+				isUpdated = true;
+			}
+			// A person connected to another node tries to join this chat room.
+			else if(msg instanceof RemoteJoin){
+				String username = ((RemoteJoin) msg).getUsername();
+				ActorRef replica = getSender();
+				String reason = admit(username);
+				if(reason != null){
+					replica.tell(new RoomShards.Rejected(username, reason), getSelf());
 				}else{
-					// Check if this member has already connected to the chat room.
-					// This member has already joined the chat room and SHOULD NOT join again!
-					if(members.containsKey(username)){
-						getSender().tell("DISALLOW");
-					}
-					// This member is on the invitation list and ALLOWed to join. This is the first time 
-					// for this member to join this room.
-					else{
-						getSender().tell("OK");
-						members.put(username, message.out);
-						notifyAll("join", username, " has joined this room.");
-						// Add join chat record to chat history.
-						addChatRecordToHistory(timeTagStr, username, "has joined this room.");
-					}
+					remoteMembers.put(username, replica);
+					Integer count = replicas.get(replica);
+					replicas.put(replica, count == null ? 1 : count + 1);
+					// Frames to the member are only sent from now on.
+					replica.tell(new RoomShards.Joined(username), getSelf());
+					joined(now, username);
 				}
 				timeTagVal = System.currentTimeMillis();
 				isUpdated = true;
@@ -321,9 +936,14 @@ public class ChatRoom implements Serializable{
 				Talk message = (Talk) msg;
 				String username = message.getUserName();
 				String text = message.getMsg();
+				// Sent before the sender was refused, on this node or another one.
+				if(!isMember(username)){
+					return;
+				}
+				MESSAGES.inc();
 				notifyAll("talk", username, text);
 				// Add talk chat record to chat history.
-				addChatRecordToHistory(timeTagStr, username, text);
+				addChatRecordToHistory(now, username, text);
 				isUpdated = true;
 				timeTagVal = System.currentTimeMillis();
 			}
@@ -332,18 +952,32 @@ public class ChatRoom implements Serializable{
 				
 				Quit message = (Quit) msg;
 				String username = message.getUsername();
-				String roomId = message.getRoomId();
+				MemberOutbox channel = members.get(username);
+				// The closed socket never joined, e.g. a second socket of a member who is in the room.
+				if(channel == null || (message.getOutChannel() != null && message.getOutChannel() != channel.getOut())){
+					return;
+				}
 				members.remove(username);
-				notifyAll("quit", username, " has left this room.");
-				// Add quit chat record to chat history.
-				addChatRecordToHistory(timeTagStr, username, "has left this room.");
-				isUpdated = true;
-				Logger.of(ChatRoomActor.class).info("ChatRoomActor members size: " + members.size());
-				// All chat members have left the chat room.
-				if(members.size() == 0){
-					chatRoomActorRef.tell(new CloseRoom(roomId, chatRoomActorRef), chatRoomActorRef);
+				memberOutboxes = Collections.unmodifiableMap(new HashMap<String, MemberOutbox>(members));
+				left(now, username);
+			}
+			// A member connected to another node has quit from this chat room.
+			else if(msg instanceof Unsubscribe){
+				String username = ((Unsubscribe) msg).getUsername();
+				if(getSender().equals(remoteMembers.get(username))){
+					removeRemoteMember(username);
+					left(now, username);
+				}
+			}
+			// The nodes have changed: the members connected to nodes which are gone have quit.
+			else if(msg instanceof LiveNodes){
+				Set<String> nodes = ((LiveNodes) msg).getNodes();
+				for(String username: new ArrayList<String>(remoteMembers.keySet())){
+					if(!nodes.contains(remoteMembers.get(username).path().address().toString())){
+						removeRemoteMember(username);
+						left(now, username);
+					}
 				}
-				timeTagVal = System.currentTimeMillis();
 			}
 			// Close a chat room which is idle longer than ChatRoomManager.IDLE_MAX milliseconds.
 			else if(msg instanceof CloseRoom){
@@ -355,42 +989,74 @@ public class ChatRoom implements Serializable{
 						closeRoomActorRef.tell(new Quit(username, roomId));
 					}
 				}
+				// The replicas would keep talking to a closed chat room.
+				for(ActorRef replica: replicas.keySet()){
+					replica.tell(new RoomShards.Reconnect("This chat room has been closed. Please join it again."), getSelf());
+				}
+				remoteMembers.clear();
+				replicas.clear();
+				memberTotal = 0;
 				
 				// Close the ActorRef of this chat room.
 				if(closeRoomActorRef != null){
 					Akka.system().stop(message.getChatRoomActorRef());
 					chatRoomActorRef = null;
+					memberOutboxes = null;
 					Logger.of(ChatRoomActor.class).info("Chat room actor ref is set to NULL......" + chatRoomActorRef);
 				}
-				// Persist this chat room.
-				try{
-					persistChatRoom(roomId);
-					Logger.of(ChatRoomActor.class).info("Chat room persisted on CloseRoom command......");
-				}catch(Exception e){
-					Logger.of(ChatRoomActor.class).info("persistChatRoom FAILed in CloseRoom: " + e.getMessage());
-				}
-				// Remove this chat room(list unchanged if this chat room has been removed)
-				Iterator<ChatRoom> iter = Application.getChatRooms().iterator();
-				while(iter.hasNext()){
-					ChatRoom room = iter.next();
-					if(room.getRoomId() == chatRoomId){
-						iter.remove();
-						break;
+				// Before it may be reopened from the cache and watched again.
+				ChatRoomManager.unwatch(ChatRoom.this);
+				// The actor is stopped: the chat room is saved on the blocking I/O dispatcher, nothing else touches it meanwhile.
+				final String closedRoomId = roomId;
+				ChatDispatchers.blockingIo().execute(new Runnable() {
+					@Override
+					public void run() {
+						// Persist this chat room.
+						boolean persisted = false;
+						try{
+							persistChatRoom(closedRoomId);
+							Logger.of(ChatRoomActor.class).info("Chat room persisted on CloseRoom command......");
+							persisted = true;
+						}catch(Exception e){
+							Logger.of(ChatRoomActor.class).info("persistChatRoom FAILed in CloseRoom: " + e.getMessage());
+						}finally{
+							releaseWriterLock();
+						}
+						// Remove this chat room(list unchanged if this chat room has been removed)
+						Application.getChatRooms().remove(ChatRoom.this);
+						
+						Logger.of(ChatRoomActor.class).info("Chat room is removed from live chat room list......live chat room size: " + Application.getChatRooms().size());
+						// Once it is on disk and no longer live, keep it in memory for chat members coming back soon.
+						// A reopen from the cache registers it again, so it must not still be registered.
+						if(persisted){
+							ClosedRoomCache.getInstance().put(ChatRoom.this);
+						}
 					}
-				}
-				
-				Logger.of(ChatRoomActor.class).info("Chat room is removed from live chat room list......live chat room size: " + Application.getChatRooms().size());
+				});
 			}
 			// A chat member ask to see the chat history.
 			else if(msg instanceof History){
 				History message = (History) msg;
-				WebSocket.Out<JsonNode> channel = members.get(message.getUsername());
-				if(channel != null){
-					ObjectNode event = Json.newObject();
-					event.put("key", "history");
-					event.put("text", getChatHistoryStr());
-					channel.write(event);
-					
+				if(isMember(message.getUsername())){
+					try{
+						List<ChatRecord> page = getChatHistoryPage(message.getBefore(), message.getPageSize());
+						ObjectNode event = Json.newObject();
+						event.put("key", "history");
+						ArrayNode records = event.putArray("records");
+						for(ChatRecord record: page){
+							ObjectNode recordNode = records.addObject();
+							recordNode.put("seq", record.getSeq());
+							recordNode.put("username", record.getUsername());
+							recordNode.put("time", record.getTimeTag());
+							recordNode.put("text", record.getText());
+						}
+						// Cursor of the next (older) page; -1 when the oldest record has been returned.
+						long next = page.isEmpty() ? -1 : page.get(0).getSeq();
+						event.put("next", next > 0 ? next : -1);
+						sendTo(message.getUsername(), BroadcastFrame.encode(event), false);
+					}catch(IOException e){
+						Logger.of(ChatRoomActor.class).info("Reading chat history page FAILed: " + e.getMessage());
+					}
 				}
 				// The channel that belongs to this chat member is lost.
 				else{
@@ -401,93 +1067,325 @@ public class ChatRoom implements Serializable{
 			// Process a chat member's search chat history request.
 			else if(msg instanceof SearchHistory){
 				SearchHistory message = (SearchHistory) msg;
-				ArrayList<String> retList = SearchUtil.searchChatHistory(getChatHistoryStr(), message.getSearchTxt());
-				String historyMsg = retList.get(0);
-				String numOfMatches = retList.get(1);
-				
-				WebSocket.Out<JsonNode> channel = members.get(message.getUsername());
-				if(channel != null){
-					ObjectNode event = Json.newObject();
-					// key indicates the type of message.
-					event.put("key", "searchhistory");
-					// kind indicates the CSS class of message.
-					event.put("text", historyMsg);
-					event.put("numofmatch", numOfMatches);
-					channel.write(event);
+				// Sent by a person who has not joined, e.g. right before the join was rejected.
+				if(!isMember(message.getUsername())){
+					return;
+				}
+				long start = System.nanoTime();
+				HistoryIndex.Query query = HistoryIndex.Query.parse(message.getSearchTxt(), message.getMemberFilter(),
+						message.getFromTime(), message.getToTime());
+				long[] hits = new long[0];
+				StringBuilder sb = new StringBuilder();
+				try{
+					hits = historyIndex.search(query, MAX_SEARCH_RESULTS);
+					for(ChatRecord cr: getChatRecords(hits)){
+						sb.append("<span>" + cr.getUsername() + "		</span><span>" + cr.getTimeTag() + "</span><p>" + 
+								SearchUtil.highlight(cr.getText(), query.getTerms()) + "</p>");
+					}
+				}catch(IOException e){
+					Logger.of(ChatRoomActor.class).info("Reading search results FAILed: " + e.getMessage());
 				}
+				String historyMsg = sb.toString();
+				String numOfMatches = String.valueOf(hits.length);
+				SEARCH_TIME.observeSince(start);
+				
+				ObjectNode event = Json.newObject();
+				// key indicates the type of message.
+				event.put("key", "searchhistory");
+				// kind indicates the CSS class of message.
+				event.put("text", historyMsg);
+				event.put("numofmatch", numOfMatches);
+				sendTo(message.getUsername(), BroadcastFrame.encode(event), false);
 				timeTagVal = System.currentTimeMillis();
 			}else if(msg instanceof SaveChat){
 				SaveChat message = (SaveChat) msg;
-				String username = message.getUsername();
-				String roomId = message.getRoomId();
-				// This chat room history has been saved early in this chat session.
-				if(isSaved == true){
-					// New updates have been made since last save.
-					if(isUpdated == true){
-						try{
-							persistChatRoom(roomId);
-						}catch(Exception e){
-							Logger.of(ChatRoomActor.class).info("persistChatRoom FAILed in SaveChat(isSaved - isUpdated both true): " + e.getMessage());
-						}
-						// Command: chatsaved to indicate chat room has been saved.
-						notifyCertainUser("chatsaved", "text", username, "Chat has been saved successuflly!");
-						
-					}
-					// NO updates made since last save.
-					else{
-						notifyCertainUser("chatsaved", "text", username, "NO updates made since last save.");
-					}
+				final String username = message.getUsername();
+				final String roomId = message.getRoomId();
+				// Sent by a person who has not joined, e.g. right before the join was rejected.
+				if(!isMember(username)){
+					return;
+				}
+				// This chat room history has been saved early in this chat session and NO updates made since last save.
+				if(isSaved == true && isUpdated == false){
+					notifyCertainUser("chatsaved", "text", username, "NO updates made since last save.");
 				}
-				/* This is the first time to save this chat room history
-				 * in this chat session.
+				/* First save in this chat session or new updates have been made since last save.
+				 * The chat room is saved on the blocking I/O dispatcher, the actor goes on with the chat;
+				 * the result comes back to the actor, so it is sent in order with the other events.
 				 */
 				else{
-					boolean isSaveSuccessful = false;
-
-					try{
-						isSaveSuccessful = persistChatRoom(roomId);
-					}catch(Exception e){
-						Logger.of(ChatRoomActor.class).info("persistChatRoom FAILed(folder does not exist): " + e.getMessage());
-					}
-					
-					if(isSaveSuccessful == true){
-						notifyCertainUser("chatsaved", "text", username, "Chat has been saved successuflly!");
-					}else{
-						notifyCertainUser("chatsaved", "text", username, "NO updates made since last save.");
-					}
-					
+					final ActorRef self = getSelf();
+					// The chat room is up to date with the saved one if no chat record is added meanwhile.
+					final long savedSeq = nextSeq;
+					ChatDispatchers.blockingIo().execute(new Runnable() {
+						@Override
+						public void run() {
+							boolean isSaveSuccessful = false;
+							try{
+								isSaveSuccessful = persistChatRoom(roomId);
+							}catch(Exception e){
+								Logger.of(ChatRoomActor.class).info("persistChatRoom FAILed in SaveChat: " + e.getMessage());
+							}
+							// Command: chatsaved to indicate chat room has been saved.
+							if(isSaveSuccessful == true){
+								self.tell(new SaveResult(username, "Chat has been saved successuflly!", savedSeq), self);
+							}else{
+								self.tell(new SaveResult(username, "NO updates made since last save.", -1), self);
+							}
+						}
+					});
 				}
-				isUpdated = false;
 				timeTagVal = System.currentTimeMillis();
 				Logger.of(ChatRoomActor.class).info("isSaved: " + isSaved + " isUpdated: " + isUpdated);
+			}
+			// The chat room has been saved on a chat member's request.
+			else if(msg instanceof SaveResult){
+				SaveResult message = (SaveResult) msg;
+				// Only a successful save clears the flag, and only if nothing has happened since it started.
+				if(message.isSuccessful() && message.getSavedSeq() == nextSeq){
+					isUpdated = false;
+				}
+				notifyCertainUser("chatsaved", "text", message.getUsername(), message.getText());
+			}
+			// A chat member asks for the full member list.
+			else if(msg instanceof Resync){
+				Resync message = (Resync) msg;
+				if(isMember(message.getUsername())){
+					notifyMemberSnapshot(message.getUsername());
+				}
+			}
+			// This chat room now belongs to another node: the chat members rejoin there.
+			else if(msg instanceof HandOff){
+				for(MemberOutbox outbox: members.values()){
+					outbox.reconnect("This chat room is moving to another server. Please rejoin it.");
+				}
+				for(ActorRef replica: replicas.keySet()){
+					replica.tell(new RoomShards.Reconnect("This chat room is moving to another server. Please rejoin it."), getSelf());
+				}
+				members.clear();
+				remoteMembers.clear();
+				replicas.clear();
+				memberOutboxes = null;
+				memberTotal = 0;
+				onReceive(new CloseRoom(String.valueOf(chatRoomId), chatRoomActorRef));
+			}
+			// The batching window of a batch is over.
+			else if(msg instanceof FlushBatch){
+				FlushBatch message = (FlushBatch) msg;
+				// Ignored if the batch has been sent already, being full.
+				if(message.getGeneration() == batcher.getGeneration()){
+					flushBatch();
+				}
 			}else{
 				unhandled(msg);
 			}
 		}
 		
+		/**
+		 * @param username Email address of a person who wants to join.
+		 * @return why the person may not join; null if the person may join.
+		 */
+		private String admit(String username){
+			StringBuilder sb = new StringBuilder();
+			for(String str: membersList){
+				sb.append(str + " ");
+			}
+			Logger.of(ChatRoomActor.class).info("member list of this chat room: " + sb.toString() + " joining username: " + username);
+			// This username does not occur in the membersList and 
+			// should be BLOCKed from joining in this chat room.
+			if(Arrays.binarySearch(membersList, username) < 0){
+				return "Unfortunatelly you are not invited to join this chat room." + 
+						" But you are welcome to create a new chat room and invite your friends. Enjoy!";
+			}
+			// This member has already joined the chat room and SHOULD NOT join again!
+			if(isMember(username)){
+				return "You have already joinned this chat room and cannot join in without logout.";
+			}
+			return null;
+		}
+		
+		/**
+		 * Announce a new chat member.
+		 * @param now Time of the join.
+		 * @param username The new member's email address.
+		 */
+		private void joined(long now, String username){
+			membershipVersion ++;
+			memberTotal = memberCount();
+			// The new member gets the full member list, the others only the new member.
+			notifyMemberSnapshot(username);
+			notifyMembershipChange("member-added", username);
+			notifyAll("join", username, " has joined this room.");
+			// Add join chat record to chat history.
+			addChatRecordToHistory(now, username, "has joined this room.");
+		}
+		
+		/**
+		 * Announce a chat member who has left, and close the chat room once all chat members have left.
+		 * @param now Time of the quit.
+		 * @param username The leaving member's email address.
+		 */
+		private void left(long now, String username){
+			membershipVersion ++;
+			memberTotal = memberCount();
+			notifyMembershipChange("member-removed", username);
+			notifyAll("quit", username, " has left this room.");
+			// Add quit chat record to chat history.
+			addChatRecordToHistory(now, username, "has left this room.");
+			isUpdated = true;
+			Logger.of(ChatRoomActor.class).info("ChatRoomActor members size: " + memberCount());
+			// All chat members have left the chat room.
+			if(memberCount() == 0){
+				chatRoomActorRef.tell(new CloseRoom(String.valueOf(chatRoomId), chatRoomActorRef), chatRoomActorRef);
+			}
+			timeTagVal = System.currentTimeMillis();
+		}
+		
+		private void removeRemoteMember(String username){
+			ActorRef replica = remoteMembers.remove(username);
+			int count = replicas.get(replica);
+			if(count == 1){
+				replicas.remove(replica);
+			}else{
+				replicas.put(replica, count - 1);
+			}
+		}
+		
+		private boolean isMember(String username){
+			return members.containsKey(username) || remoteMembers.containsKey(username);
+		}
+		
+		private int memberCount(){
+			return members.size() + remoteMembers.size();
+		}
+		
+		/**
+		 * Send a frame to all alive chat members except <i>except</i>.
+		 * Chat members on other nodes get it through their node's replica, once per node.
+		 * @param frame Frame to be sent.
+		 * @param except Email address of the member who does not get the frame. (null for none)
+		 * @param presence true for a membership change, see {@link MemberOutbox#sendPresence(BroadcastFrame)}.
+		 */
+		private void publish(BroadcastFrame frame, String except, boolean presence){
+			for(Map.Entry<String, MemberOutbox> member: members.entrySet()){
+				if(except != null && member.getKey().equals(except)){
+					continue;
+				}
+				if(presence){
+					member.getValue().sendPresence(frame);
+				}else{
+					member.getValue().send(frame);
+				}
+			}
+			if(!replicas.isEmpty()){
+				RoomShards.Publish publish = new RoomShards.Publish(frame.getText(), except, presence);
+				for(ActorRef replica: replicas.keySet()){
+					replica.tell(publish, getSelf());
+				}
+			}
+		}
+		
+		/**
+		 * Send a frame to a certain chat member, wherever connected.
+		 * @param username Chat member's email address.
+		 * @param frame Frame to be sent.
+		 * @param presence true for a membership change.
+		 */
+		private void sendTo(String username, BroadcastFrame frame, boolean presence){
+			MemberOutbox outbox = members.get(username);
+			if(outbox != null){
+				if(presence){
+					outbox.sendPresence(frame);
+				}else{
+					outbox.send(frame);
+				}
+				return;
+			}
+			ActorRef replica = remoteMembers.get(username);
+			if(replica != null){
+				replica.tell(new RoomShards.Direct(username, frame.getText(), presence), getSelf());
+			}
+		}
+		
 		/**
 		 * Broadcast message to all alive chat members.
+		 * The event is built and serialized once and the same frame is written to every member.
+		 * The member list is not part of the event, see {@link #notifyMembershipChange(String, String)}.
+		 * In a busy chat room the event is sent in a batch with the following ones, see {@link BroadcastBatcher}.
 		 * @param kind Indicate the type of message(Join, Talk, Quit)
 		 * @param username A chat member's email address.
 		 * @param msg Message to be sent to all alive chat members.
 		 */
 		public void notifyAll(String kind, String username, String msg){
-			for(WebSocket.Out<JsonNode> out: members.values()){
-				ObjectNode event = Json.newObject();
-				// key indicates the type of message.
-				event.put("key", "text");
-				// kind indicates the CSS class of message.
-				event.put("kind", kind);
-				// Joining or talking member's email address.
-				event.put("username", username);
-				event.put("text", msg);
-				// members' email address list.
-				ArrayNode nameList = event.putArray("members");
-				for(String name: members.keySet()){
-					nameList.add(name);
+			ObjectNode event = Json.newObject();
+			// key indicates the type of message.
+			event.put("key", "text");
+			// kind indicates the CSS class of message.
+			event.put("kind", kind);
+			// Joining or talking member's email address.
+			event.put("username", username);
+			event.put("text", msg);
+			// A busy chat room which asked for it sends its events in batches.
+			if(batching && batcher.isActive(memberCount())){
+				if(batcher.add(event)){
+					Akka.system().scheduler().scheduleOnce(Duration.create(batcher.getWindow(), TimeUnit.MILLISECONDS),
+							getSelf(), new FlushBatch(batcher.getGeneration()), getContext().dispatcher());
 				}
-				out.write(event);
+				if(batcher.isFull()){
+					flushBatch();
+				}
+				return;
+			}
+			flushBatch();
+			long start = System.nanoTime();
+			publish(BroadcastFrame.encode(event), null, false);
+			BROADCAST_TIME.observeSince(start);
+		}
+		/**
+		 * Send the waiting broadcast events to all alive chat members, as one frame.
+		 */
+		private void flushBatch(){
+			BroadcastFrame frame = batcher.drain();
+			if(frame == null){
+				return;
 			}
+			long start = System.nanoTime();
+			publish(frame, null, false);
+			BROADCAST_TIME.observeSince(start);
+		}
+		/**
+		 * Tell all alive chat members except <i>username</i> that a member has joined or left.
+		 * A chat member which sees a gap in the version numbers sends a <i>resync</i> request.
+		 * @param key "member-added" or "member-removed".
+		 * @param username The joining or leaving member's email address.
+		 */
+		public void notifyMembershipChange(String key, String username){
+			ObjectNode event = Json.newObject();
+			event.put("key", key);
+			event.put("version", membershipVersion);
+			event.put("username", username);
+			publish(BroadcastFrame.encode(event), username, true);
+		}
+		/**
+		 * Send the full member list to a certain chat member.
+		 * @param username Chat member's email address.
+		 */
+		public void notifyMemberSnapshot(String username){
+			if(!isMember(username)){
+				return;
+			}
+			ObjectNode event = Json.newObject();
+			event.put("key", "members");
+			event.put("version", membershipVersion);
+			// members' email address list.
+			ArrayNode nameList = event.putArray("members");
+			for(String name: members.keySet()){
+				nameList.add(name);
+			}
+			for(String name: remoteMembers.keySet()){
+				nameList.add(name);
+			}
+			sendTo(username, BroadcastFrame.encode(event), true);
 		}
 		/**
 		 * Send a message to a certian chat member.
@@ -496,13 +1394,12 @@ public class ChatRoom implements Serializable{
 		 * @param msg Message.
 		 */
 		public void notifyCertainUser(String key, String kind, String username, String msg){
-			WebSocket.Out<JsonNode> out = members.get(username);
 			ObjectNode event = Json.newObject();
 			event.put("key", key);
 			event.put("kind", kind);
 			event.put("username", username);
 			event.put("text", msg);
-			out.write(event);
+			sendTo(username, BroadcastFrame.encode(event), false);
 		}
 	}// end ChatRoomActor
 	
@@ -524,24 +1421,45 @@ public class ChatRoom implements Serializable{
 	 * Each room member joins chat room by sending a <i>Join</i> message to 
 	 * the chat room on the server.
 	 */
-	public static class Join{
+	public static class Join implements ChatRoomMailbox.Control{
 		// Member's email address.
 		private final String username;
-		private final WebSocket.Out<JsonNode> out;
+		private final WebSocket.Out<String> out;
+		// Frames to the member go through it once the member has joined.
+		private final MemberOutbox outbox;
 		
-		public Join(String usrname, WebSocket.Out<JsonNode> outChannel){
+		// Set by the chat room actor when the member may not join.
+		private volatile boolean rejected = false;
+		
+		public Join(String usrname, WebSocket.Out<String> outChannel){
 			username = usrname;
 			out = outChannel;
+			outbox = MemberOutbox.create(outChannel);
 		}
 		public String getUsername(){return username;}
-		public WebSocket.Out<JsonNode> getOutChannel(){return out;}
+		public WebSocket.Out<String> getOutChannel(){return out;}
+		public MemberOutbox getOutbox(){return outbox;}
+		public boolean isRejected(){return rejected;}
+		
+		/**
+		 * Refuse the join: the member is told why and the socket is closed.
+		 * @param reason Message shown to the member.
+		 */
+		void reject(String reason){
+			rejected = true;
+			ObjectNode event = Json.newObject();
+			event.put("error", reason);
+			BroadcastFrame.encode(event).writeTo(out);
+			out.close();
+		}
 	}
 	
 	/**
 	 * Each event sent by client via WebSocket is a <i>Talk</i> message which
 	 * will be dispatched to all alive chat room members.
 	 */
-	public static class Talk{
+	public static class Talk implements Serializable{
+		private static final long serialVersionUID = 1L;
 		// Member's email address.
 		private final String username;
 		private final String msg;
@@ -554,22 +1472,73 @@ public class ChatRoom implements Serializable{
 		public String getMsg(){return msg;}
 	}
 	
+	/**
+	 * A <i>RemoteJoin</i> message is sent, through {@link RoomShards}, by the replica of this chat room
+	 * on another node when a chat member connected to that node joins. The replica is the sender.
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class RemoteJoin implements ChatRoomMailbox.Control, Serializable{
+		private static final long serialVersionUID = 1L;
+		private final String username;
+		public RemoteJoin(String name){
+			username = name;
+		}
+		public String getUsername(){return username;}
+	}
+	
+	/**
+	 * An <i>Unsubscribe</i> message is sent by the replica of this chat room on another node
+	 * when a chat member connected to that node leaves.
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class Unsubscribe implements ChatRoomMailbox.Control, Serializable{
+		private static final long serialVersionUID = 1L;
+		private final String username;
+		public Unsubscribe(String name){
+			username = name;
+		}
+		public String getUsername(){return username;}
+	}
+	
+	/**
+	 * A <i>LiveNodes</i> message is sent by {@link RoomShards} when the nodes have changed:
+	 * chat members connected to nodes which are gone have quit.
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class LiveNodes implements ChatRoomMailbox.Control{
+		private final Set<String> nodes;
+		public LiveNodes(Set<String> nodeAddresses){
+			nodes = nodeAddresses;
+		}
+		public Set<String> getNodes(){return nodes;}
+	}
+	
 	/**
 	 * A <i>Quit</i> message will be sent to the chat room 
 	 * when a chat member leaves either intentionally or accidentally
 	 */
-	public static class Quit{
+	public static class Quit implements ChatRoomMailbox.Control{
 		// Member's email address.
 		private final String username;
 		// room id
 		private String roomId;
+		// The closed socket's out channel. (null for whichever socket the member is on)
+		private final WebSocket.Out<String> out;
 		
 		public Quit(String usrname, String id){
+			this(usrname, id, null);
+		}
+		public Quit(String usrname, String id, WebSocket.Out<String> outChannel){
 			username = usrname;
 			roomId = id;
+			out = outChannel;
 		}
 		public String getUsername(){return username;}
 		public String getRoomId(){return roomId;}
+		public WebSocket.Out<String> getOutChannel(){return out;}
 	}
 	/**
 	 * An HeartBeat message is sent to the ChatRoomManager periodically by each 
@@ -588,7 +1557,7 @@ public class ChatRoom implements Serializable{
 		public ActorRef getChatRoomActorRef(){return chatRoomActorRef;}
 	}
 	
-	public static class CloseRoom{
+	public static class CloseRoom implements ChatRoomMailbox.Control{
 		private ActorRef chatRoomActorRef;
 		private String roomId;
 		
@@ -605,13 +1574,22 @@ public class ChatRoom implements Serializable{
 	 * @author shichaodong
 	 * @version 1.0
 	 */
-	public static class History{
+	public static class History implements Serializable{
+		private static final long serialVersionUID = 1L;
 		// Chat member who issues this view history command
 		private String username;
-		public History(String name){
+		// Cursor: records older than this sequence number are returned. (-1 for the most recent records)
+		private long before;
+		// Number of records per page.
+		private int pageSize;
+		public History(String name, long beforeSeq, int size){
 			username = name;
+			before = beforeSeq;
+			pageSize = size;
 		}
 		public String getUsername(){return username;}
+		public long getBefore(){return before;}
+		public int getPageSize(){return pageSize;}
 		
 	}
 	/**
@@ -620,13 +1598,28 @@ public class ChatRoom implements Serializable{
 	 * @author shichaodong
 	 * @version 1.0
 	 */
-	public static class SearchHistory{
+	public static class SearchHistory implements Serializable{
+		private static final long serialVersionUID = 1L;
 		private String username;
 		private String searchTxt;
+		// Only records of this chat member are searched. (null for all members)
+		private String memberFilter;
+		// Only records within [fromTime, toTime] are searched. (milliseconds)
+		private long fromTime = Long.MIN_VALUE;
+		private long toTime = Long.MAX_VALUE;
 		public SearchHistory(String name, String txt){
 			username = name;
 			searchTxt = txt;
 		}
+		public SearchHistory(String name, String txt, String member, long from, long to){
+			this(name, txt);
+			memberFilter = member;
+			fromTime = from;
+			toTime = to;
+		}
+		public String getMemberFilter(){return memberFilter;}
+		public long getFromTime(){return fromTime;}
+		public long getToTime(){return toTime;}
 		public String getUsername(){
 			return username;
 		}
@@ -635,13 +1628,48 @@ public class ChatRoom implements Serializable{
 			return searchTxt;
 		}
 	}
+	/**
+	 * A <i>Resync</i> message is sent by a chat member which has missed a
+	 * membership change to get the full member list again.
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class Resync implements Serializable{
+		private static final long serialVersionUID = 1L;
+		private String username;
+		public Resync(String name){
+			username = name;
+		}
+		public String getUsername(){return username;}
+	}
+	/**
+	 * A <i>HandOff</i> message is sent by {@link RoomShards} when this chat room is owned by
+	 * another node: the chat members are asked to rejoin and the chat room is saved and closed.
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class HandOff implements ChatRoomMailbox.Control{}
+	/**
+	 * A <i>FlushBatch</i> message is sent by the chat room actor to itself when the
+	 * batching window of the broadcast events ends. (see {@link BroadcastBatcher})
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class FlushBatch implements ChatRoomMailbox.Control{
+		private final long generation;
+		public FlushBatch(long batchGeneration){
+			generation = batchGeneration;
+		}
+		public long getGeneration(){return generation;}
+	}
 	/**
 	 * A <i>SaveChat</i> message is sent by a chat member to save
 	 * by a current chat history. 
 	 * @author shichaodong
 	 * @version 1.0
 	 */
-	public static class SaveChat{
+	public static class SaveChat implements Serializable{
+		private static final long serialVersionUID = 1L;
 		private String username;
 		private String roomId;
 		public SaveChat(String name, String id){
@@ -653,7 +1681,30 @@ public class ChatRoom implements Serializable{
 	}
 	
 	/**
-	 * One <i>ChatRecord</i> instance records one chat member's chat record 
+	 * A <i>SaveResult</i> message is sent to the chat room actor once a <i>SaveChat</i>
+	 * request has been carried out, to tell the chat member.
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class SaveResult{
+		private final String username;
+		private final String text;
+		// Next sequence number of the chat room when the save started; -1 if the save failed.
+		private final long savedSeq;
+		public SaveResult(String name, String message, long seq){
+			username = name;
+			text = message;
+			savedSeq = seq;
+		}
+		public String getUsername(){return username;}
+		public String getText(){return text;}
+		public long getSavedSeq(){return savedSeq;}
+		public boolean isSuccessful(){return savedSeq >= 0;}
+	}
+	
+	/**
+	 * One <i>ChatRecord</i> instance records one chat member's chat record.
+	 * The time is kept in milliseconds and only formatted when the record is rendered.
 	 * @author shichaodong
 	 * @version 1.0
 	 */
@@ -662,20 +1713,80 @@ public class ChatRoom implements Serializable{
 		 * 
 		 */
 		private static final long serialVersionUID = 8379865466312546408L;
-		//Time tag of this record
-		private String timeTag;
+		// Format of the rendered time of a record. SimpleDateFormat is not thread safe: one per thread.
+		private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>(){
+			@Override
+			protected SimpleDateFormat initialValue(){
+				return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			}
+		};
+		// Format of the time of records saved by the first versions, in their field "timeTag". It has the minutes where
+		// the month belongs and a 12 hour clock, so a time read back is in January and before noon.
+		private static final String LEGACY_TIME_FORMAT = "yyyy-mm-dd hh:mm:ss";
+		// Sequence number of this record in the chat room.
+		private long seq;
+		// Time of this record in milliseconds.
+		private long timestamp;
 		// Chat member's email address
 		private String username;
 		// Chat member's chat message.
 		private String text;
-		public ChatRecord(String time, String name, String msg){
-			timeTag = time;
+		public ChatRecord(long seqNo, long time, String name, String msg){
+			seq = seqNo;
+			timestamp = time;
 			username = name;
 			text = msg;
 		}
-		public String getTimeTag(){return timeTag;}
+		public long getSeq(){return seq;}
+		public long getTimestamp(){return timestamp;}
+		/**
+		 * @return time of this record formatted as <i>yyyy-MM-dd HH:mm:ss</i>.
+		 */
+		public String getTimeTag(){return formatTime(timestamp);}
 		public String getUsername(){return username;}
 		public String getText(){return text;}
+		
+		/**
+		 * @param time Time in milliseconds.
+		 * @return the time formatted as <i>yyyy-MM-dd HH:mm:ss</i>.
+		 */
+		public static String formatTime(long time){
+			return TIME_FORMAT.get().format(new Date(time));
+		}
+		
+		// Records saved by the first versions have the formatted time only: turn it back into milliseconds.
+		private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException{
+			ObjectInputStream.GetField fields = in.readFields();
+			seq = fields.get("seq", 0L);
+			timestamp = fields.get("timestamp", 0L);
+			username = (String) fields.get("username", null);
+			text = (String) fields.get("text", null);
+			if(fields.defaulted("timestamp") && fields.getObjectStreamClass().getField("timeTag") != null){
+				timestamp = parseLegacyTime((String) fields.get("timeTag", null));
+			}
+		}
+		
+		/**
+		 * @param timeTag Time of a record saved by the first versions.
+		 * @return the time in milliseconds; 0 if it cannot be parsed.
+		 */
+		static long parseLegacyTime(String timeTag){
+			if(timeTag == null){
+				return 0;
+			}
+			try{
+				return new SimpleDateFormat(LEGACY_TIME_FORMAT).parse(timeTag).getTime();
+			}catch(ParseException e){
+				return 0;
+			}
+		}
+		
+		/**
+		 * @return rough estimate of the heap used by this record. (bytes)
+		 */
+		public long estimateBytes(){
+			return 40 + 2 * 40 + 2L * ((username == null ? 0 : username.length()) + (text == null ? 0 : text.length()));
+		}
 	}
 	
 }
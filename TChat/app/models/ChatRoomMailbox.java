@@ -0,0 +1,136 @@
+package models;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import scala.Option;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.DeadLetter;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+
+import com.typesafe.config.Config;
+
+/**
+ * Bounded mailbox of the chat room actors, configured on their dispatcher (<i>chat.room-dispatcher</i>):
+ * <pre>
+ * mailbox-type = "models.ChatRoomMailbox"
+ * mailbox-capacity = 1000
+ * </pre>
+ * Overflow policy: once a chat room has <i>mailbox-capacity</i> messages waiting, new chat traffic
+ * (talk, history, search, save) is dropped to the dead letters instead of queuing up without bound or
+ * blocking the sender. {@link Control} messages (join, quit, close) are always accepted, so that the
+ * member list and the chat room's life cycle stay right however busy the chat room is.
+ * @author shichaodong
+ * @version 1.0
+ */
+public class ChatRoomMailbox implements MailboxType {
+
+	/**
+	 * Messages which are never dropped.
+	 */
+	public static interface Control{}
+
+	// Default number of messages a chat room may have waiting. (mailbox-capacity)
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	// Messages dropped by all chat room mailboxes.
+	private static final AtomicLong dropped = new AtomicLong();
+	// Messages waiting in all chat room mailboxes.
+	private static final AtomicInteger waiting = new AtomicInteger();
+
+	private final int capacity;
+
+	public ChatRoomMailbox(int mailboxCapacity){
+		capacity = mailboxCapacity;
+	}
+
+	/**
+	 * Created by Akka from the dispatcher configuration.
+	 * @param settings Actor system settings.
+	 * @param config Dispatcher configuration.
+	 */
+	public ChatRoomMailbox(ActorSystem.Settings settings, Config config){
+		this(config.hasPath("mailbox-capacity") && config.getInt("mailbox-capacity") > 0 ? config.getInt("mailbox-capacity") : DEFAULT_CAPACITY);
+	}
+
+	public int getCapacity(){return capacity;}
+
+	/**
+	 * @return number of messages dropped by all chat room mailboxes so far.
+	 */
+	public static long getDroppedMessages(){return dropped.get();}
+
+	/**
+	 * @return number of messages waiting in all chat room mailboxes.
+	 */
+	public static int getWaitingMessages(){return waiting.get();}
+
+	@Override
+	public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system){
+		return new BoundedQueue(capacity, system.isDefined() ? system.get().deadLetters() : null);
+	}
+
+	/**
+	 * Message queue of one chat room actor.
+	 */
+	static class BoundedQueue implements MessageQueue{
+		private final Queue<Envelope> queue = new ConcurrentLinkedQueue<Envelope>();
+		// Number of messages in the queue. (ConcurrentLinkedQueue.size() is O(n))
+		private final AtomicInteger count = new AtomicInteger();
+		private final int capacity;
+		private final ActorRef deadLetters;
+
+		BoundedQueue(int queueCapacity, ActorRef deadLetterRef){
+			capacity = queueCapacity;
+			deadLetters = deadLetterRef;
+		}
+
+		@Override
+		public void enqueue(ActorRef receiver, Envelope handle){
+			if(!(handle.message() instanceof Control) && count.get() >= capacity){
+				// Overflow: drop the message.
+				if(dropped.incrementAndGet() % 1000 == 1){
+					Logger.of(ChatRoomMailbox.class).info("Chat room mailbox full(" + capacity + "), " + handle.message().getClass().getSimpleName() +
+							" dropped. Dropped so far: " + dropped.get());
+				}
+				if(deadLetters != null){
+					deadLetters.tell(new DeadLetter(handle.message(), handle.sender(), receiver), handle.sender());
+				}
+				return;
+			}
+			count.incrementAndGet();
+			waiting.incrementAndGet();
+			queue.add(handle);
+		}
+
+		@Override
+		public Envelope dequeue(){
+			Envelope handle = queue.poll();
+			if(handle != null){
+				count.decrementAndGet();
+				waiting.decrementAndGet();
+			}
+			return handle;
+		}
+
+		@Override
+		public int numberOfMessages(){return count.get();}
+
+		@Override
+		public boolean hasMessages(){return !queue.isEmpty();}
+
+		@Override
+		public void cleanUp(ActorRef owner, MessageQueue deadLetterQueue){
+			Envelope handle;
+			while((handle = dequeue()) != null){
+				deadLetterQueue.enqueue(owner, handle);
+			}
+		}
+	}
+}
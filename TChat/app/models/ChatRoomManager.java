@@ -1,18 +1,11 @@
 package models;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
-
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import models.ChatRoom.ChatRoomActor;
 import models.ChatRoom.CloseRoom;
-import models.ChatRoom.HeartBeat;
 import play.Logger;
+import play.Play;
 import play.libs.Akka;
 import scala.concurrent.duration.Duration;
 import akka.actor.ActorRef;
@@ -23,6 +16,9 @@ import controllers.Application;
  * This ChatRoomManager Actor is created when the web site is started.
  * Only one such Actor instance exists during the whole web site life cycle.
  * It manages all the chat room actors {@link ChatRoomActor}.
+ * <p>Idle chat rooms are found with a timing wheel ({@link IdleTimingWheel}): a chat room is
+ * watched from the moment it is live, its actor only records the time of the last activity, and
+ * each tick looks at the chat rooms whose deadline has come only.</p>
  * 
  * @author shichaodong
  * @version 1.0
@@ -35,60 +31,121 @@ public class ChatRoomManager extends UntypedActor{
 	* and chat room instance is removed from the application. (by default 10 minutes)
 	*/
 	private static final long IDLE_MAX = 10 * 60000;
+	// Interval of the idle checks. (milliseconds, by default 1 second)
+	private static final long IDLE_TICK = 1000;
+	// Number of slots of the timing wheel.
+	private static final int WHEEL_SIZE = 512;
 	
 	private static ActorRef chatRoomManager = Akka.system().actorOf(new Props(ChatRoomManager.class), "ChatRoomManager");
 	
 	public static ActorRef getChatRoomManager(){return chatRoomManager;}
+	
+	private final IdleTimingWheel<ChatRoom> idleRooms = new IdleTimingWheel<ChatRoom>(idleTick(), WHEEL_SIZE, idleMax());
+	
 	/**
 	 * Start the periodic probe message sending process.
 	 */
 	public static void init(){
-		// Send probe message to ChatRoomManager every 60 seconds.
+		// Send probe message to ChatRoomManager every tick.
 		Akka.system().scheduler().schedule(
-	            Duration.create(60, SECONDS),
-	            Duration.create(60, SECONDS),
+	            Duration.create(idleTick(), MILLISECONDS),
+	            Duration.create(idleTick(), MILLISECONDS),
 	            chatRoomManager,
 	            new Probe(),
 	            Akka.system().dispatcher()
 	        );
 	}
+	
+	/**
+	 * Start watching a live chat room for idleness. Its idle time starts now.
+	 * @param chatRoom Chat room which has just been created or read in.
+	 */
+	public static void watch(ChatRoom chatRoom){
+		chatRoom.setTimeTag(System.currentTimeMillis());
+		chatRoomManager.tell(new Watch(chatRoom), null);
+	}
+	
+	/**
+	 * Stop watching a chat room which has been closed.
+	 * @param chatRoom Chat room.
+	 */
+	public static void unwatch(ChatRoom chatRoom){
+		chatRoomManager.tell(new Unwatch(chatRoom), null);
+	}
 
 	@SuppressWarnings("deprecation")
 	@Override
 	public void onReceive(Object msg) throws Exception {
 		if(msg instanceof Probe){
-			for(ChatRoom room: Application.getChatRooms()){
-				updateChatRoom(room);
+			for(ChatRoom room: idleRooms.advance(System.currentTimeMillis())){
+				closeChatRoom(room);
 			}
 		}
+		else if(msg instanceof Watch){
+			idleRooms.add(((Watch) msg).getChatRoom(), System.currentTimeMillis());
+		}
+		else if(msg instanceof Unwatch){
+			idleRooms.remove(((Unwatch) msg).getChatRoom());
+		}
 		else{
 			unhandled(msg);
 		}
 	}
 	/**
-	 * This method either updates the chat room unit instance's time tag (if this chat room is not due) or
-	 * close the chat room (if this chat room is due).
-	 * @param roomId Chat room id.
-	 * @param roomUnit Chat room unit instance.
+	 * Close a chat room which has been idle longer than IDLE_MAX.
+	 * @param chatRoom Chat room.
 	 */
 	@SuppressWarnings("deprecation")
-	private void updateChatRoom(ChatRoom chatRoom){
-		long curTimeTag = System.currentTimeMillis();
-		long lastTimeTag = chatRoom.getTimeTag();
-		
-		// chatRoom is still eligible to live
-		if(curTimeTag - lastTimeTag < IDLE_MAX){
-			Logger.of(ChatRoomManager.class).info("Chat Room Manager - chat room(" + chatRoom.getRoomId() + ") TIME updated.[" +
-					(IDLE_MAX - curTimeTag + lastTimeTag) / 1000.0 + " seconds left]");
-		}
-		// chatRoom needs to be removed.
-		else{
-			// Close this chat room first.
-			chatRoom.getRoomActorRef().tell(new CloseRoom(String.valueOf(chatRoom.getRoomId()), chatRoom.getRoomActorRef()));
-			Logger.of(ChatRoomManager.class).info("Chat Room Manager remove due chat room[probe]: " + chatRoom.getRoomId());
+	private void closeChatRoom(ChatRoom chatRoom){
+		// Closed already, e.g. all members have left.
+		if(Application.getChatRooms().get(chatRoom.getRoomId()) != chatRoom || chatRoom.getRoomActorRef() == null){
+			return;
 		}
+		chatRoom.getRoomActorRef().tell(new CloseRoom(String.valueOf(chatRoom.getRoomId()), chatRoom.getRoomActorRef()));
+		Logger.of(ChatRoomManager.class).info("Chat Room Manager remove due chat room[idle " +
+				(System.currentTimeMillis() - chatRoom.getTimeTag()) / 1000.0 + " seconds]: " + chatRoom.getRoomId());
+	}
+	
+	/**
+	 * @return the maximum idle time of a chat room, <i>chat.idle.max</i>. (milliseconds)
+	 */
+	private static long idleMax(){
+		Long idleMax = Play.application().configuration().getMilliseconds("chat.idle.max");
+		return idleMax == null ? IDLE_MAX : idleMax;
+	}
+	
+	/**
+	 * @return interval of the idle checks, <i>chat.idle.tick</i>. (milliseconds)
+	 */
+	private static long idleTick(){
+		Long tick = Play.application().configuration().getMilliseconds("chat.idle.tick");
+		return tick == null ? IDLE_TICK : tick;
 	}
 	
 	// -- messages
 	public static class Probe{}
+	
+	/**
+	 * Start watching a chat room.
+	 */
+	public static class Watch{
+		private final ChatRoom chatRoom;
+		
+		public Watch(ChatRoom room){
+			chatRoom = room;
+		}
+		public ChatRoom getChatRoom(){return chatRoom;}
+	}
+	
+	/**
+	 * Stop watching a chat room.
+	 */
+	public static class Unwatch{
+		private final ChatRoom chatRoom;
+		
+		public Unwatch(ChatRoom room){
+			chatRoom = room;
+		}
+		public ChatRoom getChatRoom(){return chatRoom;}
+	}
 }
@@ -0,0 +1,297 @@
+package models;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import models.ChatRoom.ChatRecord;
+
+/**
+ * Binary snapshot of a chat room: metadata and the most recent chat records, saved as <i>[roomId]/room.snap</i>.
+ * <ul>Layout (big-endian):
+ * 	<li>header (48 bytes)  - magic "TCRS", format version, reserved, room id, next sequence number, time tag,
+ * 	flags (isSaved, isUpdated, batching), number of strings, number of members, number of records.</li>
+ * 	<li>string table       - <i>[byte length][UTF-8 bytes]</i> per string: room name, members, then the
+ * 	usernames of the records not among the members. Records refer to their username by index.</li>
+ * 	<li>records            - <i>[payload length][payload]</i> per record, oldest first. Payload: sequence number,
+ * 	time, username index and text. (Version 1 also held the formatted time before the text; it is skipped.)</li>
+ * 	<li>trailer            - CRC32 of everything before it.</li>
+ * </ul>
+ * <p>A snapshot is read by mapping the file into memory. The header and the string table are decoded when it
+ * is opened, records only when they are asked for; the length prefixes let a reader find a record without
+ * decoding the ones before it. Readers refuse versions newer than their own.</p>
+ * <p>It replaces the Java serialized <i>chatRoom.data</i>, which is only read to migrate a chat room.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class ChatRoomSnapshot {
+
+	public static final String FILE_NAME = "room.snap";
+	// "TCRS"
+	public static final int MAGIC = 0x54435253;
+	public static final short VERSION = 2;
+	public static final int HEADER_BYTES = 48;
+
+	private static final int FLAG_SAVED = 1;
+	private static final int FLAG_UPDATED = 2;
+	// Added in version 2 without a version change: older snapshots have it cleared.
+	private static final int FLAG_BATCHING = 4;
+	// Record payload without the text: sequence number, time and username index.
+	private static final int RECORD_FIXED_BYTES = 20;
+
+	private final ByteBuffer buffer;
+	private final short version;
+	private final long roomId;
+	private final long nextSeq;
+	private final long timeTag;
+	private final int flags;
+	private final String[] strings;
+	private final int memberCount;
+	// Record number -> position of its payload in the buffer.
+	private final int[] recordOffsets;
+
+	private ChatRoomSnapshot(ByteBuffer snapshot) throws IOException{
+		buffer = snapshot;
+		if(buffer.remaining() < HEADER_BYTES + 4 || buffer.getInt(0) != MAGIC){
+			throw new IOException("Not a chat room snapshot.");
+		}
+		version = buffer.getShort(4);
+		if(version > VERSION){
+			throw new IOException("Chat room snapshot version " + version + " is newer than " + VERSION + ".");
+		}
+		int end = buffer.limit() - 4;
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[8192];
+		ByteBuffer content = buffer.duplicate();
+		content.position(0);
+		content.limit(end);
+		while(content.hasRemaining()){
+			int n = Math.min(chunk.length, content.remaining());
+			content.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		if((int)crc.getValue() != buffer.getInt(end)){
+			throw new IOException("Chat room snapshot is corrupted: checksum mismatch.");
+		}
+		roomId = buffer.getLong(8);
+		nextSeq = buffer.getLong(16);
+		timeTag = buffer.getLong(24);
+		flags = buffer.getInt(32);
+		int stringCount = buffer.getInt(36);
+		memberCount = buffer.getInt(40);
+		int recordCount = buffer.getInt(44);
+		if(stringCount < 1 || memberCount < 0 || memberCount >= stringCount || recordCount < 0){
+			throw new IOException("Chat room snapshot is corrupted: bad header.");
+		}
+
+		int position = HEADER_BYTES;
+		strings = new String[stringCount];
+		for(int i = 0; i < stringCount; i ++){
+			int length = buffer.getInt(position);
+			strings[i] = decodeString(position + 4, length);
+			position += 4 + length;
+		}
+		// Only the offsets are read here, records are decoded on demand.
+		recordOffsets = new int[recordCount];
+		for(int i = 0; i < recordCount; i ++){
+			int length = buffer.getInt(position);
+			if(length < RECORD_FIXED_BYTES + (version == 1 ? 8 : 4) || position + 4 + length > end){
+				throw new IOException("Chat room snapshot is corrupted: bad record " + i + ".");
+			}
+			recordOffsets[i] = position + 4;
+			position += 4 + length;
+		}
+	}
+
+	/**
+	 * Map a snapshot file into memory.
+	 * @param file Snapshot file.
+	 * @return the snapshot; its records are decoded when asked for.
+	 * @throws IOException if the file cannot be read, is corrupted or has a newer version.
+	 */
+	public static ChatRoomSnapshot open(File file) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			// The mapping stays valid after the file is closed.
+			return new ChatRoomSnapshot(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		}finally{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param bytes Encoded snapshot, see {@link #encode}.
+	 * @return the snapshot.
+	 * @throws IOException if the snapshot is corrupted or has a newer version.
+	 */
+	public static ChatRoomSnapshot decode(byte[] bytes) throws IOException{
+		return new ChatRoomSnapshot(ByteBuffer.wrap(bytes));
+	}
+
+	public short getVersion(){return version;}
+	public long getRoomId(){return roomId;}
+	public String getRoomName(){return strings[0];}
+	public String[] getMembers(){return Arrays.copyOfRange(strings, 1, 1 + memberCount);}
+	public long getNextSeq(){return nextSeq;}
+	public long getTimeTag(){return timeTag;}
+	public boolean isSaved(){return (flags & FLAG_SAVED) != 0;}
+	public boolean isUpdated(){return (flags & FLAG_UPDATED) != 0;}
+	public boolean isBatching(){return (flags & FLAG_BATCHING) != 0;}
+	public int getRecordCount(){return recordOffsets.length;}
+
+	/**
+	 * @return sequence number of the last record; -1 if there is none. Nothing is decoded but the number.
+	 */
+	public long getLastSeq(){
+		return recordOffsets.length == 0 ? -1 : buffer.getLong(recordOffsets[recordOffsets.length - 1]);
+	}
+
+	/**
+	 * Decode one record.
+	 * @param i Record number, 0 for the oldest record.
+	 * @return the chat record.
+	 * @throws IOException if the record is corrupted.
+	 */
+	public ChatRecord getRecord(int i) throws IOException{
+		int position = recordOffsets[i];
+		int end = position + buffer.getInt(position - 4);
+		long seq = buffer.getLong(position);
+		long timestamp = buffer.getLong(position + 8);
+		int userIndex = buffer.getInt(position + 16);
+		if(userIndex >= strings.length){
+			throw new IOException("Chat room snapshot is corrupted: bad username of record " + i + ".");
+		}
+		position += RECORD_FIXED_BYTES;
+		if(version == 1){
+			// Formatted time.
+			position += 4 + Math.max(0, buffer.getInt(position));
+		}
+		int textLength = buffer.getInt(position);
+		if(position + 4 + Math.max(0, textLength) > end){
+			throw new IOException("Chat room snapshot is corrupted: bad text of record " + i + ".");
+		}
+		String text = textLength < 0 ? null : decodeString(position + 4, textLength);
+		return new ChatRecord(seq, timestamp, userIndex < 0 ? null : strings[userIndex], text);
+	}
+
+	/**
+	 * Decode the records from a record number on.
+	 * @param from The first record number.
+	 * @return chat records, oldest first.
+	 * @throws IOException if a record is corrupted.
+	 */
+	public List<ChatRecord> getRecords(int from) throws IOException{
+		List<ChatRecord> records = new ArrayList<ChatRecord>(Math.max(0, recordOffsets.length - from));
+		for(int i = Math.max(0, from); i < recordOffsets.length; i ++){
+			records.add(getRecord(i));
+		}
+		return records;
+	}
+
+	private String decodeString(int position, int length) throws IOException{
+		if(length < 0 || position + length > buffer.limit()){
+			throw new IOException("Chat room snapshot is corrupted: bad string.");
+		}
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Encode a snapshot.
+	 * @param roomId Chat room's id.
+	 * @param roomName Chat room's name.
+	 * @param members Chat room's members.
+	 * @param nextSeq Sequence number of the next chat record.
+	 * @param timeTag Time of the chat room's last activity.
+	 * @param saved Whether the chat room has been saved.
+	 * @param updated Whether the chat room has been updated since last save.
+	 * @param batching Whether the chat room sends its broadcast events in batches.
+	 * @param records Most recent chat records, oldest first.
+	 * @return the encoded snapshot.
+	 * @throws IOException
+	 */
+	public static byte[] encode(long roomId, String roomName, String[] members, long nextSeq, long timeTag,
+			boolean saved, boolean updated, boolean batching, List<ChatRecord> records) throws IOException{
+		// String table: room name, members, then the other usernames.
+		if(members == null){
+			members = new String[0];
+		}
+		List<String> strings = new ArrayList<String>();
+		Map<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		strings.add(roomName == null ? "" : roomName);
+		for(String member: members){
+			stringIndexes.put(member, strings.size());
+			strings.add(member);
+		}
+		int[] userIndexes = new int[records.size()];
+		for(int i = 0; i < records.size(); i ++){
+			String username = records.get(i).getUsername();
+			if(username == null){
+				userIndexes[i] = -1;
+				continue;
+			}
+			Integer index = stringIndexes.get(username);
+			if(index == null){
+				index = strings.size();
+				stringIndexes.put(username, index);
+				strings.add(username);
+			}
+			userIndexes[i] = index;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + 64 * (strings.size() + records.size()));
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(0);
+		out.writeLong(roomId);
+		out.writeLong(nextSeq);
+		out.writeLong(timeTag);
+		out.writeInt((saved ? FLAG_SAVED : 0) | (updated ? FLAG_UPDATED : 0) | (batching ? FLAG_BATCHING : 0));
+		out.writeInt(strings.size());
+		out.writeInt(members.length);
+		out.writeInt(records.size());
+		for(String str: strings){
+			byte[] utf8 = str.getBytes("UTF-8");
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+		for(int i = 0; i < records.size(); i ++){
+			ChatRecord record = records.get(i);
+			byte[] textBytes = record.getText() == null ? null : record.getText().getBytes("UTF-8");
+			out.writeInt(RECORD_FIXED_BYTES + 4 + (textBytes == null ? 0 : textBytes.length));
+			out.writeLong(record.getSeq());
+			out.writeLong(record.getTimestamp());
+			out.writeInt(userIndexes[i]);
+			writeBytes(out, textBytes);
+		}
+		out.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray(), 0, bytes.size());
+		out.writeInt((int)crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] utf8) throws IOException{
+		if(utf8 == null){
+			out.writeInt(-1);
+		}else{
+			out.writeInt(utf8.length);
+			out.write(utf8);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package models;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * Cache of recently closed chat rooms, so that chat members coming back to a chat room
+ * shortly after it has been closed need not wait for it to be read in from disk.
+ * <p>A chat room is put in the cache once it has been saved on close, with its metadata, the
+ * most recent chat history and the search index, i.e. exactly as it was live. Rejoining takes
+ * it out of the cache again, so a chat room is never live and cached at the same time and the
+ * cached copy is never older than the copy on disk.</p>
+ * <p>The cache is bounded by the number of chat rooms and by their estimated heap size; the
+ * least recently closed chat rooms are evicted first. Evicted chat rooms are on disk already.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class ClosedRoomCache {
+
+	// Default maximum number of cached chat rooms. (chat.closedRooms.maxRooms)
+	public static final int DEFAULT_MAX_ROOMS = 128;
+	// Default maximum estimated heap size of the cached chat rooms. (chat.closedRooms.maxBytes)
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private static ClosedRoomCache instance;
+
+	private final int maxRooms;
+	private final long maxBytes;
+	// Chat room id -> cached chat room, least recently used first.
+	private final LinkedHashMap<Long, Entry> rooms = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param maxCachedRooms Maximum number of cached chat rooms.
+	 * @param maxCachedBytes Maximum estimated heap size of the cached chat rooms.
+	 */
+	public ClosedRoomCache(int maxCachedRooms, long maxCachedBytes){
+		maxRooms = maxCachedRooms;
+		maxBytes = maxCachedBytes;
+	}
+
+	/**
+	 * @return the cache of this web site, bounded by <i>chat.closedRooms.maxRooms</i> and <i>chat.closedRooms.maxBytes</i>.
+	 */
+	public static synchronized ClosedRoomCache getInstance(){
+		if(instance == null){
+			Integer maxCachedRooms = Play.application().configuration().getInt("chat.closedRooms.maxRooms");
+			Long maxCachedBytes = Play.application().configuration().getBytes("chat.closedRooms.maxBytes");
+			instance = new ClosedRoomCache(maxCachedRooms == null ? DEFAULT_MAX_ROOMS : maxCachedRooms,
+					maxCachedBytes == null ? DEFAULT_MAX_BYTES : maxCachedBytes);
+		}
+		return instance;
+	}
+
+	/**
+	 * Cache a chat room which has been closed and saved. Chat rooms larger than the whole cache are not cached.
+	 * @param chatRoom Closed chat room.
+	 */
+	public synchronized void put(ChatRoom chatRoom){
+		long roomBytes = chatRoom.estimateBytes();
+		Entry old = rooms.remove(chatRoom.getRoomId());
+		if(old != null){
+			bytes -= old.bytes;
+		}
+		if(maxRooms <= 0 || roomBytes > maxBytes){
+			return;
+		}
+		rooms.put(chatRoom.getRoomId(), new Entry(chatRoom, roomBytes));
+		bytes += roomBytes;
+		// Evict the least recently used chat rooms.
+		Iterator<Map.Entry<Long, Entry>> iter = rooms.entrySet().iterator();
+		while((rooms.size() > maxRooms || bytes > maxBytes) && iter.hasNext()){
+			Entry evicted = iter.next().getValue();
+			iter.remove();
+			bytes -= evicted.bytes;
+			evictions ++;
+			Logger.of(ClosedRoomCache.class).info("Closed chat room(" + evicted.chatRoom.getRoomId() + ") evicted from the cache.");
+		}
+	}
+
+	/**
+	 * Take a chat room out of the cache.
+	 * @param roomId Chat room's id.
+	 * @return the cached chat room; null if it is not cached.
+	 */
+	public synchronized ChatRoom take(long roomId){
+		Entry entry = rooms.remove(roomId);
+		if(entry == null){
+			misses ++;
+			return null;
+		}
+		bytes -= entry.bytes;
+		hits ++;
+		return entry.chatRoom;
+	}
+
+	/**
+	 * Drop a chat room from the cache.
+	 * @param roomId Chat room's id.
+	 */
+	public synchronized void invalidate(long roomId){
+		Entry entry = rooms.remove(roomId);
+		if(entry != null){
+			bytes -= entry.bytes;
+		}
+	}
+
+	public synchronized int size(){return rooms.size();}
+	public synchronized long getBytes(){return bytes;}
+	public synchronized long getHits(){return hits;}
+	public synchronized long getMisses(){return misses;}
+	public synchronized long getEvictions(){return evictions;}
+	public int getMaxRooms(){return maxRooms;}
+	public long getMaxBytes(){return maxBytes;}
+
+	private static class Entry{
+		final ChatRoom chatRoom;
+		// Estimated heap size of the chat room.
+		final long bytes;
+
+		Entry(ChatRoom room, long roomBytes){
+			chatRoom = room;
+			bytes = roomBytes;
+		}
+	}
+}
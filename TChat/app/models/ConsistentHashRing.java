@@ -0,0 +1,124 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent hash ring mapping chat room ids to nodes.
+ * <p>Every node is put on the ring <i>virtualNodes</i> times, at positions derived from its
+ * address only, so all nodes which know the same set of nodes agree on the owner of every chat
+ * room without talking to each other. When a node joins or leaves, only the chat rooms between
+ * its positions and their predecessors change owner, i.e. about 1/n of the chat rooms.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public final class ConsistentHashRing {
+
+	// Default number of positions of a node on the ring.
+	public static final int DEFAULT_VIRTUAL_NODES = 100;
+
+	private final SortedSet<String> nodes;
+	private final int virtualNodes;
+	// Ring position -> node.
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/**
+	 * @param ringNodes Node addresses.
+	 * @param nodeReplicas Number of positions of a node on the ring.
+	 */
+	public ConsistentHashRing(Collection<String> ringNodes, int nodeReplicas){
+		nodes = Collections.unmodifiableSortedSet(new TreeSet<String>(ringNodes));
+		virtualNodes = Math.max(1, nodeReplicas);
+		for(String node: nodes){
+			for(int i = 0; i < virtualNodes; i ++){
+				long position = mix(((long) node.hashCode() << 32) ^ i);
+				// Positions colliding with another node's are skipped, the first node (in address order) keeps them.
+				if(!ring.containsKey(position)){
+					ring.put(position, node);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param roomId Chat room id.
+	 * @return address of the node owning the chat room; null if there is no node.
+	 */
+	public String owner(long roomId){
+		if(ring.isEmpty()){
+			return null;
+		}
+		Map.Entry<Long, String> entry = ring.ceilingEntry(mix(roomId));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	/**
+	 * @param node Node address.
+	 * @return this ring with <i>node</i> added.
+	 */
+	public ConsistentHashRing withNode(String node){
+		if(nodes.contains(node)){
+			return this;
+		}
+		List<String> ringNodes = new ArrayList<String>(nodes);
+		ringNodes.add(node);
+		return new ConsistentHashRing(ringNodes, virtualNodes);
+	}
+
+	/**
+	 * @param node Node address.
+	 * @return this ring with <i>node</i> removed.
+	 */
+	public ConsistentHashRing withoutNode(String node){
+		if(!nodes.contains(node)){
+			return this;
+		}
+		List<String> ringNodes = new ArrayList<String>(nodes);
+		ringNodes.remove(node);
+		return new ConsistentHashRing(ringNodes, virtualNodes);
+	}
+
+	/**
+	 * @return node addresses, sorted.
+	 */
+	public SortedSet<String> getNodes(){return nodes;}
+	public int getVirtualNodes(){return virtualNodes;}
+	public boolean isEmpty(){return nodes.isEmpty();}
+
+	@Override
+	public boolean equals(Object obj){
+		if(!(obj instanceof ConsistentHashRing)){
+			return false;
+		}
+		ConsistentHashRing other = (ConsistentHashRing) obj;
+		return virtualNodes == other.virtualNodes && nodes.equals(other.nodes);
+	}
+
+	@Override
+	public int hashCode(){
+		return 31 * nodes.hashCode() + virtualNodes;
+	}
+
+	@Override
+	public String toString(){
+		return "ConsistentHashRing" + nodes;
+	}
+
+	/**
+	 * Spread a key over the ring. (finalizer of MurmurHash3)
+	 */
+	private static long mix(long key){
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
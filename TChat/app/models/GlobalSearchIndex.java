@@ -0,0 +1,360 @@
+package models;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import models.ChatRoom.ChatRecord;
+import models.HistoryIndex.Query;
+import play.Logger;
+import play.Play;
+import utils.Metrics;
+
+/**
+ * Node wide search index over the chat history of all chat rooms, live and persisted.
+ * Every chat record gets a document number; the terms are kept in {@link HistoryIndex}es keyed by
+ * that number, and the document tables map it back to the chat room, the sequence number
+ * within the chat room and the time of the record.
+ * <p>A query only walks the posting lists of its terms, so its latency depends on the number of
+ * matches, not on the number of chat rooms. Matches are ranked most recent first and only the
+ * <i>(page + 1) * pageSize</i> best ones are kept while ranking.</p>
+ * <p>The index is fed when a chat record is added to a chat room, caught up from the history log
+ * when a chat room is saved or read in, and built for all persisted chat rooms on start.</p>
+ * <ul>
+ * 	<li>Adding a record only queues it: the chat room actors never wait for the index. The queue is
+ * 	drained on the blocking I/O dispatcher, by one writer at a time.</li>
+ * 	<li>Records are indexed in segments; once the index holds <i>chat.search.maxRecords</i> records
+ * 	(by default 1M) the oldest segment is dropped, so the heap used by the index is bounded and
+ * 	searches cover the most recent records.</li>
+ * 	<li>A search takes no index wide lock; it only waits for the writer of the segment it is searching.</li>
+ * </ul>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class GlobalSearchIndex {
+
+	// Default number of chat records kept in the index. (chat.search.maxRecords)
+	public static final int DEFAULT_MAX_RECORDS = 1 << 20;
+	// The records kept are split into this many segments.
+	private static final int SEGMENTS = 16;
+	// Chat records read from a history log at a time while catching up.
+	private static final int CATCH_UP_CHUNK = 1024;
+
+	private static final Metrics.Histogram SEARCH_TIME = Metrics.histogram("chat_global_search_seconds", "Time to search the chat history of all chat rooms.");
+
+	// Created when first used, with the application's configuration.
+	private static class Holder{
+		static final GlobalSearchIndex INSTANCE = create();
+	}
+
+	public static GlobalSearchIndex getInstance(){return Holder.INSTANCE;}
+
+	private static GlobalSearchIndex create(){
+		Integer maxRecords = Play.application().configuration().getInt("chat.search.maxRecords");
+		int max = maxRecords == null || maxRecords <= 0 ? DEFAULT_MAX_RECORDS : maxRecords;
+		return new GlobalSearchIndex(Math.max(1, max / SEGMENTS), SEGMENTS, new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				ChatDispatchers.blockingIo().execute(task);
+			}
+		});
+	}
+
+	private final int segmentRecords;
+	private final int maxSegments;
+	private final Executor indexer;
+	// Records waiting to be indexed.
+	private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<Pending>();
+	// true while a drain of the queue is scheduled or running.
+	private final AtomicBoolean draining = new AtomicBoolean();
+	// Held by the writer: draining the queue or catching up from a history log.
+	private final Object writeLock = new Object();
+	// Segments, oldest first; replaced as a whole when a segment is started or dropped.
+	private volatile List<Segment> segments = Collections.emptyList();
+	// Document number of the next chat record. (Written by the writer only)
+	private long nextDoc = 0;
+	// Chat room id -> sequence number of the chat room's last indexed chat record.
+	private final ConcurrentMap<Long, Long> roomLastSeqs = new ConcurrentHashMap<Long, Long>();
+
+	/**
+	 * @param recordsPerSegment Chat records per segment.
+	 * @param segmentCount Segments kept; the oldest one is dropped when another one is started.
+	 * @param executor Runs the indexing of queued records.
+	 */
+	public GlobalSearchIndex(int recordsPerSegment, int segmentCount, Executor executor){
+		segmentRecords = Math.max(1, recordsPerSegment);
+		maxSegments = Math.max(1, segmentCount);
+		indexer = executor;
+	}
+
+	/**
+	 * Queue a chat record of a chat room to be indexed. Records already indexed are ignored.
+	 * Nothing is locked: the record is indexed on the index's executor.
+	 * @param roomId Chat room's id.
+	 * @param record Chat record.
+	 */
+	public void add(long roomId, ChatRecord record){
+		pending.add(new Pending(roomId, record));
+		if(draining.compareAndSet(false, true)){
+			indexer.execute(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+		}
+	}
+
+	// Index the queued records until the queue is empty.
+	private void drain(){
+		do{
+			synchronized(writeLock){
+				Pending next;
+				while((next = pending.poll()) != null){
+					index(next.roomId, next.record);
+				}
+			}
+			draining.set(false);
+			// A record queued after the last poll, whose drain was not scheduled since this one was running.
+		}while(!pending.isEmpty() && draining.compareAndSet(false, true));
+	}
+
+	// Index one record. Called with writeLock held.
+	private void index(long roomId, ChatRecord record){
+		if(record.getSeq() <= getLastSeq(roomId)){
+			return;
+		}
+		List<Segment> current = segments;
+		Segment segment = current.isEmpty() ? null : current.get(current.size() - 1);
+		if(segment == null || segment.isFull()){
+			segment = new Segment(nextDoc, segmentRecords);
+			List<Segment> next = new ArrayList<Segment>(current);
+			next.add(segment);
+			if(next.size() > maxSegments){
+				next.remove(0);
+			}
+			segments = Collections.unmodifiableList(next);
+		}
+		segment.add(roomId, record);
+		nextDoc ++;
+		roomLastSeqs.put(roomId, record.getSeq());
+	}
+
+	/**
+	 * Index chat records of a chat room, oldest first, on the caller's thread.
+	 * @param roomId Chat room's id.
+	 * @param records Chat records.
+	 */
+	public void addAll(long roomId, List<ChatRecord> records){
+		synchronized(writeLock){
+			for(ChatRecord record: records){
+				index(roomId, record);
+			}
+		}
+	}
+
+	/**
+	 * @param roomId Chat room's id.
+	 * @return sequence number of the chat room's last indexed chat record; -1 if none has been indexed.
+	 */
+	public long getLastSeq(long roomId){
+		Long lastSeq = roomLastSeqs.get(roomId);
+		return lastSeq == null ? -1 : lastSeq;
+	}
+
+	/**
+	 * @return number of chat records kept in the index.
+	 */
+	public int getDocCount(){
+		int count = 0;
+		for(Segment segment: segments){
+			count += segment.size();
+		}
+		return count;
+	}
+
+	public int getRoomCount(){return roomLastSeqs.size();}
+
+	/**
+	 * Index the chat records logged by a chat room which are not indexed yet.
+	 * Only the newest records the index can keep are read, <i>CATCH_UP_CHUNK</i> at a time,
+	 * and each chunk is read before the index is locked.
+	 * @param roomId Chat room's id.
+	 * @param log Chat room's history log.
+	 * @throws IOException
+	 */
+	public void catchUp(long roomId, ChatHistoryLog log) throws IOException{
+		long logLastSeq = log.getLastSeq();
+		long fromSeq = Math.max(getLastSeq(roomId) + 1, logLastSeq + 1 - (long) segmentRecords * maxSegments);
+		while(fromSeq <= logLastSeq){
+			long toSeq = Math.min(fromSeq + CATCH_UP_CHUNK, logLastSeq + 1);
+			addAll(roomId, log.readRange(fromSeq, toSeq));
+			fromSeq = toSeq;
+		}
+	}
+
+	/**
+	 * Index the history logs of all chat rooms persisted in a folder.
+	 * The logs are opened read-only: other nodes may be writing them.
+	 * @param baseDir Folder holding one folder per chat room, named after the chat room id.
+	 */
+	public void indexPersistedRooms(File baseDir){
+		File[] roomDirs = baseDir.listFiles();
+		if(roomDirs == null){
+			return;
+		}
+		int rooms = 0;
+		for(File roomDir: roomDirs){
+			File logDir = new File(roomDir, "history");
+			if(!roomDir.getName().matches("\\d+") || !logDir.isDirectory()){
+				continue;
+			}
+			try{
+				catchUp(Long.parseLong(roomDir.getName()), ChatHistoryLog.openReadOnly(logDir));
+				rooms ++;
+			}catch(Exception e){
+				Logger.of(GlobalSearchIndex.class).info("Indexing chat room(" + roomDir.getName() + ") FAILed: " + e.getMessage());
+			}
+		}
+		Logger.of(GlobalSearchIndex.class).info("Global search index: " + rooms + " persisted chat rooms indexed, " + getDocCount() + " chat records kept.");
+	}
+
+	/**
+	 * Search all chat rooms.
+	 * @param text Search text, see {@link Query#parse(String, String, long, long)}.
+	 * @param username Only records of this chat member are matched. (null for all members)
+	 * @param page Page number, starting from 0.
+	 * @param pageSize Number of hits per page.
+	 * @return hits of the page, most recent first.
+	 */
+	public Page search(String text, String username, int page, int pageSize){
+		long start = System.nanoTime();
+		Query query = Query.parse(text, username, Long.MIN_VALUE, Long.MAX_VALUE);
+		int topK = (int) Math.min((long) (page + 1) * pageSize, Integer.MAX_VALUE);
+		// Keep the topK most recent matches, the least recent one on top of the heap.
+		Comparator<Hit> byTime = new Comparator<Hit>() {
+			@Override
+			public int compare(Hit h1, Hit h2) {
+				return h1.timestamp != h2.timestamp ? (h1.timestamp < h2.timestamp ? -1 : 1)
+					: (h1.doc < h2.doc ? -1 : (h1.doc == h2.doc ? 0 : 1));
+			}
+		};
+		PriorityQueue<Hit> heap = new PriorityQueue<Hit>(Math.max(1, Math.min(topK, 1024)), byTime);
+		int total = 0;
+		for(Segment segment: segments){
+			total += segment.search(query, heap, topK);
+		}
+		List<Hit> hits = new ArrayList<Hit>(heap);
+		Collections.sort(hits, Collections.reverseOrder(byTime));
+		int from = (int) Math.min((long) page * pageSize, hits.size());
+		hits = new ArrayList<Hit>(hits.subList(from, hits.size()));
+		SEARCH_TIME.observeSince(start);
+		return new Page(hits, total);
+	}
+
+	/**
+	 * <i>segmentRecords</i> documents of the index: their terms and the document tables.
+	 * Changed by the writer and read by searches under the segment's lock.
+	 */
+	private static class Segment{
+		// Document number of the first document.
+		private final long base;
+		// Terms of the documents, document number - base used as sequence number.
+		private final HistoryIndex index = new HistoryIndex();
+		private final long[] docRooms;
+		private final long[] docSeqs;
+		private final long[] docTimes;
+		private int docCount = 0;
+
+		Segment(long firstDoc, int capacity){
+			base = firstDoc;
+			docRooms = new long[capacity];
+			docSeqs = new long[capacity];
+			docTimes = new long[capacity];
+		}
+
+		synchronized boolean isFull(){return docCount == docSeqs.length;}
+		synchronized int size(){return docCount;}
+
+		synchronized void add(long roomId, ChatRecord record){
+			int doc = docCount ++;
+			docRooms[doc] = roomId;
+			docSeqs[doc] = record.getSeq();
+			docTimes[doc] = record.getTimestamp();
+			index.add(new ChatRecord(doc, record.getTimestamp(), record.getUsername(), record.getText()));
+		}
+
+		/**
+		 * Offer the matches of this segment to the heap of the topK most recent matches.
+		 * @return number of matches in this segment.
+		 */
+		synchronized int search(Query query, PriorityQueue<Hit> heap, int topK){
+			long[] docs = index.search(query, Integer.MAX_VALUE);
+			for(long seq: docs){
+				int doc = (int) seq;
+				if(heap.size() < topK){
+					heap.add(new Hit(base + doc, docRooms[doc], docSeqs[doc], docTimes[doc]));
+				}else if(docTimes[doc] > heap.peek().timestamp){
+					heap.poll();
+					heap.add(new Hit(base + doc, docRooms[doc], docSeqs[doc], docTimes[doc]));
+				}
+			}
+			return docs.length;
+		}
+	}
+
+	// A chat record waiting to be indexed.
+	private static class Pending{
+		private final long roomId;
+		private final ChatRecord record;
+
+		Pending(long room, ChatRecord chatRecord){
+			roomId = room;
+			record = chatRecord;
+		}
+	}
+
+	/**
+	 * One page of search results.
+	 */
+	public static class Page{
+		private final List<Hit> hits;
+		private final int total;
+
+		public Page(List<Hit> pageHits, int totalHits){
+			hits = pageHits;
+			total = totalHits;
+		}
+		public List<Hit> getHits(){return hits;}
+		public int getTotal(){return total;}
+	}
+
+	/**
+	 * A matching chat record.
+	 */
+	public static class Hit{
+		private final long doc;
+		private final long roomId;
+		private final long seq;
+		private final long timestamp;
+
+		Hit(long docNo, long room, long seqNo, long time){
+			doc = docNo;
+			roomId = room;
+			seq = seqNo;
+			timestamp = time;
+		}
+		public long getRoomId(){return roomId;}
+		public long getSeq(){return seq;}
+		public long getTimestamp(){return timestamp;}
+	}
+}
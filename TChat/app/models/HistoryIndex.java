@@ -0,0 +1,400 @@
+package models;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import models.ChatRoom.ChatRecord;
+
+/**
+ * Inverted index over the chat history of one chat room.
+ * It is updated incrementally with every new chat record and answers
+ * <ul>
+ * 	<li>term queries: <i>backstreet boys</i> (all terms must occur),</li>
+ * 	<li>phrase queries: <i>"backstreet boys"</i> (terms must occur next to each other),</li>
+ * 	<li>prefix queries: <i>back*</i>,</li>
+ * </ul>
+ * optionally restricted to one chat member and to a time range. The work done by a query
+ * depends on the length of the posting lists involved, not on the length of the chat history.
+ * <p>Records are numbered in the order they are added (document number); the chat history is
+ * time ordered, so a time range is a range of document numbers.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class HistoryIndex implements Serializable{
+
+	private static final long serialVersionUID = 2786493183735291137L;
+
+	// Term -> documents and positions the term occurs at.
+	private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+	// Username -> user number, and user number -> documents written by the user.
+	private final Map<String, Integer> userIds = new HashMap<String, Integer>();
+	private final List<IntList> userDocs = new ArrayList<IntList>();
+	// Document number -> sequence number and time of the chat record.
+	private long[] docSeqs = new long[64];
+	private long[] docTimes = new long[64];
+	private int docCount = 0;
+	// Sequence number of the last indexed chat record.
+	private long lastSeq = -1;
+
+	/**
+	 * @return sequence number of the last indexed chat record; -1 if nothing has been indexed.
+	 */
+	public synchronized long getLastSeq(){return lastSeq;}
+	public synchronized int getDocCount(){return docCount;}
+
+	/**
+	 * @return sequence number of the first indexed chat record; -1 if nothing has been indexed.
+	 */
+	public synchronized long getFirstSeq(){return docCount == 0 ? -1 : docSeqs[0];}
+
+	/**
+	 * @return time of the first indexed chat record; 0 if nothing has been indexed. (milliseconds)
+	 */
+	public synchronized long getFirstTime(){return docCount == 0 ? 0 : docTimes[0];}
+
+	/**
+	 * @return time of the last indexed chat record; 0 if nothing has been indexed. (milliseconds)
+	 */
+	public synchronized long getLastTime(){return docCount == 0 ? 0 : docTimes[docCount - 1];}
+
+	/**
+	 * @return rough estimate of the heap used by the index. (bytes)
+	 */
+	public synchronized long estimateBytes(){
+		long bytes = 64 + 16L * docSeqs.length;
+		for(Map.Entry<String, Postings> term: terms.entrySet()){
+			// Tree map entry, term string and the three lists of the postings.
+			bytes += 40 + 40 + 2L * term.getKey().length() + term.getValue().estimateBytes();
+		}
+		for(IntList docs: userDocs){
+			bytes += 64 + docs.estimateBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Index a chat record. Records already indexed are ignored.
+	 * @param record Chat record.
+	 */
+	public synchronized void add(ChatRecord record){
+		if(record.getSeq() <= lastSeq){
+			return;
+		}
+		if(docCount == docSeqs.length){
+			docSeqs = Arrays.copyOf(docSeqs, docCount * 2);
+			docTimes = Arrays.copyOf(docTimes, docCount * 2);
+		}
+		int doc = docCount ++;
+		docSeqs[doc] = record.getSeq();
+		// Keep document times ordered even if the clock goes backwards.
+		docTimes[doc] = doc > 0 ? Math.max(docTimes[doc - 1], record.getTimestamp()) : record.getTimestamp();
+		lastSeq = record.getSeq();
+
+		String username = record.getUsername() == null ? "" : record.getUsername().toLowerCase();
+		Integer userId = userIds.get(username);
+		if(userId == null){
+			userId = userDocs.size();
+			userIds.put(username, userId);
+			userDocs.add(new IntList());
+		}
+		userDocs.get(userId).add(doc);
+
+		List<String> tokens = tokenize(record.getText());
+		for(int position = 0; position < tokens.size(); position ++){
+			Postings postings = terms.get(tokens.get(position));
+			if(postings == null){
+				postings = new Postings();
+				terms.put(tokens.get(position), postings);
+			}
+			postings.add(doc, position);
+		}
+	}
+
+	/**
+	 * Search the index.
+	 * @param query Search query.
+	 * @param limit Maximum number of results.
+	 * @return sequence numbers of matching chat records, most recent first.
+	 */
+	public synchronized long[] search(Query query, int limit){
+		// Document range covered by the time filter.
+		int lo = lowerBound(docTimes, docCount, query.fromTime);
+		int hi = query.toTime == Long.MAX_VALUE ? docCount : lowerBound(docTimes, docCount, query.toTime + 1);
+
+		List<int[]> lists = new ArrayList<int[]>();
+		if(query.username != null){
+			Integer userId = userIds.get(query.username.toLowerCase());
+			if(userId == null){
+				return new long[0];
+			}
+			lists.add(userDocs.get(userId).slice(lo, hi));
+		}
+		for(String term: query.terms){
+			Postings postings = terms.get(term);
+			if(postings == null){
+				return new long[0];
+			}
+			lists.add(postings.docs(lo, hi));
+		}
+		if(query.prefix != null){
+			lists.add(prefixDocs(query.prefix, lo, hi));
+		}
+		if(lists.isEmpty()){
+			return new long[0];
+		}
+
+		int[] docs = intersect(lists);
+		if(query.phrase){
+			docs = phraseFilter(docs, query.terms);
+		}
+		int count = Math.min(limit, docs.length);
+		long[] seqs = new long[count];
+		for(int i = 0; i < count; i ++){
+			seqs[i] = docSeqs[docs[docs.length - 1 - i]];
+		}
+		return seqs;
+	}
+
+	// Union of the documents of all terms starting with prefix.
+	private int[] prefixDocs(String prefix, int lo, int hi){
+		SortedMap<String, Postings> matching = terms.subMap(prefix, prefix + Character.MAX_VALUE);
+		if(matching.size() == 1){
+			return matching.values().iterator().next().docs(lo, hi);
+		}
+		IntList union = new IntList();
+		for(Postings postings: matching.values()){
+			for(int doc: postings.docs(lo, hi)){
+				union.add(doc);
+			}
+		}
+		int[] docs = union.toArray();
+		Arrays.sort(docs);
+		// Remove duplicates.
+		int n = 0;
+		for(int i = 0; i < docs.length; i ++){
+			if(n == 0 || docs[n - 1] != docs[i]){
+				docs[n ++] = docs[i];
+			}
+		}
+		return Arrays.copyOf(docs, n);
+	}
+
+	// Documents in which the terms occur one after another.
+	private int[] phraseFilter(int[] docs, List<String> phrase){
+		IntList ret = new IntList();
+		Postings first = terms.get(phrase.get(0));
+		for(int doc: docs){
+			for(int start: first.positions(doc)){
+				boolean match = true;
+				for(int i = 1; i < phrase.size() && match; i ++){
+					match = Arrays.binarySearch(terms.get(phrase.get(i)).positions(doc), start + i) >= 0;
+				}
+				if(match){
+					ret.add(doc);
+					break;
+				}
+			}
+		}
+		return ret.toArray();
+	}
+
+	// Intersection of sorted document lists, shortest list first.
+	private static int[] intersect(List<int[]> lists){
+		int[] ret = lists.get(0);
+		for(int[] list: lists){
+			if(list.length < ret.length){
+				ret = list;
+			}
+		}
+		for(int[] list: lists){
+			if(list == ret){
+				continue;
+			}
+			int n = 0;
+			for(int doc: ret){
+				if(Arrays.binarySearch(list, doc) >= 0){
+					ret[n ++] = doc;
+				}
+			}
+			ret = Arrays.copyOf(ret, n);
+		}
+		return ret;
+	}
+
+	// First index in values[0, length) whose value is not less than key.
+	private static int lowerBound(long[] values, int length, long key){
+		int lo = 0, hi = length;
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if(values[mid] < key){
+				lo = mid + 1;
+			}else{
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Split text into lower case terms made of letters and digits.
+	 * @param text Text to be split.
+	 * @return terms in text order.
+	 */
+	public static List<String> tokenize(String text){
+		List<String> tokens = new ArrayList<String>();
+		if(text == null){
+			return tokens;
+		}
+		int start = -1;
+		for(int i = 0; i <= text.length(); i ++){
+			boolean termChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if(termChar && start < 0){
+				start = i;
+			}else if(!termChar && start >= 0){
+				tokens.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * A parsed search query.
+	 */
+	public static class Query{
+		private final List<String> terms;
+		private final boolean phrase;
+		private final String prefix;
+		private final String username;
+		private final long fromTime;
+		private final long toTime;
+
+		private Query(List<String> queryTerms, boolean isPhrase, String queryPrefix, String name, long from, long to){
+			terms = queryTerms;
+			phrase = isPhrase && queryTerms.size() > 1;
+			prefix = queryPrefix;
+			username = name;
+			fromTime = from;
+			toTime = to;
+		}
+
+		/**
+		 * Parse a search text: <i>"some phrase"</i>, <i>prefix*</i> or plain terms.
+		 * @param text Search text.
+		 * @param username Only records of this chat member are matched. (null for all members)
+		 * @param fromTime Only records not older than this time are matched. (milliseconds)
+		 * @param toTime Only records not newer than this time are matched. (milliseconds)
+		 * @return the query.
+		 */
+		public static Query parse(String text, String username, long fromTime, long toTime){
+			String trimmed = text == null ? "" : text.trim();
+			boolean isPhrase = trimmed.length() > 1 && trimmed.startsWith("\"") && trimmed.endsWith("\"");
+			String prefix = null;
+			if(!isPhrase && trimmed.endsWith("*")){
+				List<String> tokens = tokenize(trimmed.substring(0, trimmed.length() - 1));
+				if(!tokens.isEmpty()){
+					// The last term is the prefix, the ones before it are plain terms.
+					prefix = tokens.remove(tokens.size() - 1);
+					return new Query(tokens, false, prefix, username, fromTime, toTime);
+				}
+			}
+			return new Query(tokenize(trimmed), isPhrase, prefix, username, fromTime, toTime);
+		}
+
+		public static Query parse(String text){
+			return parse(text, null, Long.MIN_VALUE, Long.MAX_VALUE);
+		}
+
+		public long getFromTime(){return fromTime;}
+		public long getToTime(){return toTime;}
+
+		/**
+		 * @return terms of the query, for highlighting.
+		 */
+		public List<String> getTerms(){
+			List<String> ret = new ArrayList<String>(terms);
+			if(prefix != null){
+				ret.add(prefix);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Documents and in-document positions of one term, ordered by document.
+	 */
+	private static class Postings implements Serializable{
+		private static final long serialVersionUID = -3092517542393830410L;
+		// Distinct documents containing the term.
+		private final IntList docs = new IntList();
+		// For docs[i], positions are positions[offsets[i], offsets[i + 1]).
+		private final IntList offsets = new IntList();
+		private final IntList positions = new IntList();
+
+		void add(int doc, int position){
+			if(docs.size() == 0 || docs.get(docs.size() - 1) != doc){
+				docs.add(doc);
+				offsets.add(positions.size());
+			}
+			positions.add(position);
+		}
+
+		long estimateBytes(){
+			return 16 + docs.estimateBytes() + offsets.estimateBytes() + positions.estimateBytes();
+		}
+
+		int[] docs(int lo, int hi){
+			return docs.slice(lo, hi);
+		}
+
+		int[] positions(int doc){
+			int i = docs.indexOf(doc);
+			if(i < 0){
+				return new int[0];
+			}
+			int end = i + 1 < offsets.size() ? offsets.get(i + 1) : positions.size();
+			return positions.range(offsets.get(i), end);
+		}
+	}
+
+	/**
+	 * Growable list of ints, values added in ascending order where slicing/searching is used.
+	 */
+	private static class IntList implements Serializable{
+		private static final long serialVersionUID = 5512098374215501021L;
+		private int[] values = new int[4];
+		private int size = 0;
+
+		void add(int value){
+			if(size == values.length){
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size ++] = value;
+		}
+		int get(int i){return values[i];}
+		int size(){return size;}
+		long estimateBytes(){return 32 + 4L * values.length;}
+		int[] toArray(){return Arrays.copyOf(values, size);}
+		int[] range(int from, int to){return Arrays.copyOfRange(values, from, to);}
+
+		int indexOf(int value){
+			int i = Arrays.binarySearch(values, 0, size, value);
+			return i >= 0 ? i : -1;
+		}
+
+		// Values v with lo <= v < hi.
+		int[] slice(int lo, int hi){
+			int from = Arrays.binarySearch(values, 0, size, lo);
+			from = from >= 0 ? from : -from - 1;
+			int to = Arrays.binarySearch(values, 0, size, hi);
+			to = to >= 0 ? to : -to - 1;
+			return Arrays.copyOfRange(values, from, Math.max(from, to));
+		}
+	}
+}
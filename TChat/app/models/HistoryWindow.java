@@ -0,0 +1,197 @@
+package models;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.ChatRoom.ChatRecord;
+
+/**
+ * Ring buffer holding the most recent chat records of a chat room.
+ * Once it is full, adding a record overwrites the oldest one, so the heap used by
+ * a chat room's history is bounded however long the chat room lives. Older records
+ * are read from the history log ({@link ChatHistoryLog}) when needed.
+ * <p>Records are kept column by column rather than as objects: sequence numbers and times
+ * in <i>long</i> arrays, the chat member as an <i>int</i> id into the chat room's username
+ * dictionary, and the texts back to back as UTF-8 in one byte arena. A record costs 28 bytes
+ * plus its UTF-8 text instead of a record object and three strings; {@link ChatRecord}s are
+ * only created when records are read.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class HistoryWindow {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Initial size of the text arena per record. (bytes)
+	private static final int INITIAL_BYTES_PER_RECORD = 32;
+
+	private final long[] seqs;
+	private final long[] timestamps;
+	private final int[] userIds;
+	private final int[] textStarts;
+	private final int[] textLengths;
+	// Username dictionary: user id -> username, username -> user id.
+	private final List<String> usernames = new ArrayList<String>();
+	private final Map<String, Integer> userIdsByName = new HashMap<String, Integer>();
+	// UTF-8 texts of the records; the space of overwritten records is reclaimed when the arena is full.
+	private byte[] arena;
+	private int arenaEnd = 0;
+	// Index of the oldest record.
+	private int head = 0;
+	// Number of records in the window.
+	private int size = 0;
+
+	/**
+	 * @param capacity Maximum number of records kept in memory.
+	 */
+	public HistoryWindow(int capacity){
+		if(capacity <= 0){
+			throw new IllegalArgumentException("History window capacity must be positive: " + capacity);
+		}
+		seqs = new long[capacity];
+		timestamps = new long[capacity];
+		userIds = new int[capacity];
+		textStarts = new int[capacity];
+		textLengths = new int[capacity];
+		arena = new byte[Math.min(capacity, 64) * INITIAL_BYTES_PER_RECORD];
+	}
+
+	/**
+	 * Add a record as the most recent one.
+	 * @param record Chat record.
+	 * @return sequence number of the oldest record which has been dropped from the window; -1 if nothing was dropped.
+	 */
+	public synchronized long add(ChatRecord record){
+		int tail = (head + size) % seqs.length;
+		long evicted = -1;
+		if(size == seqs.length){
+			evicted = seqs[head];
+			head = (head + 1) % seqs.length;
+		}else{
+			size ++;
+		}
+		byte[] text = record.getText() == null ? new byte[0] : record.getText().getBytes(UTF8);
+		// The new record is not live yet: the slot it overwrites is not kept by a compaction.
+		textLengths[tail] = 0;
+		if(arenaEnd + text.length > arena.length){
+			compact(text.length);
+		}
+		System.arraycopy(text, 0, arena, arenaEnd, text.length);
+		seqs[tail] = record.getSeq();
+		timestamps[tail] = record.getTimestamp();
+		userIds[tail] = userId(record.getUsername());
+		textStarts[tail] = arenaEnd;
+		textLengths[tail] = text.length;
+		arenaEnd += text.length;
+		return evicted;
+	}
+
+	/**
+	 * Add records, oldest first.
+	 * @param newRecords Chat records.
+	 */
+	public synchronized void addAll(List<ChatRecord> newRecords){
+		for(ChatRecord record: newRecords){
+			add(record);
+		}
+	}
+
+	public synchronized int size(){return size;}
+	public int capacity(){return seqs.length;}
+
+	/**
+	 * @return sequence number of the oldest record in the window; -1 if the window is empty.
+	 */
+	public synchronized long firstSeq(){
+		return size == 0 ? -1 : seqs[head];
+	}
+
+	/**
+	 * @return rough estimate of the heap used by the window. (bytes)
+	 */
+	public synchronized long estimateBytes(){
+		long bytes = 128 + 28L * seqs.length + arena.length;
+		for(String username: usernames){
+			bytes += 80 + 2L * username.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return records of the window, oldest first.
+	 */
+	public synchronized List<ChatRecord> snapshot(){
+		return from(Long.MIN_VALUE);
+	}
+
+	/**
+	 * @param fromSeq The smallest sequence number to be returned.
+	 * @return records of the window whose sequence number is not less than <i>fromSeq</i>, oldest first.
+	 */
+	public synchronized List<ChatRecord> from(long fromSeq){
+		return range(fromSeq, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Records of the window have consecutive sequence numbers, so a range is located without scanning.
+	 * @param fromSeq The smallest sequence number to be returned.
+	 * @param toSeq The sequence number following the last one to be returned.
+	 * @return records of the window whose sequence number lies in [<i>fromSeq</i>, <i>toSeq</i>), oldest first.
+	 */
+	public synchronized List<ChatRecord> range(long fromSeq, long toSeq){
+		List<ChatRecord> ret = new ArrayList<ChatRecord>();
+		if(size == 0){
+			return ret;
+		}
+		long first = seqs[head];
+		int start = fromSeq <= first ? 0 : (int) Math.min(size, fromSeq - first);
+		int end = toSeq <= first ? 0 : (int) Math.min(size, toSeq - first);
+		for(int i = start; i < end; i ++){
+			int slot = (head + i) % seqs.length;
+			ret.add(new ChatRecord(seqs[slot], timestamps[slot], usernames.get(userIds[slot]),
+					new String(arena, textStarts[slot], textLengths[slot], UTF8)));
+		}
+		return ret;
+	}
+
+	private int userId(String username){
+		String name = username == null ? "" : username;
+		Integer id = userIdsByName.get(name);
+		if(id == null){
+			id = usernames.size();
+			usernames.add(name);
+			userIdsByName.put(name, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Move the texts of the records in the window to the front of the arena, leaving room for <i>extra</i> more bytes.
+	 * Texts lie in the arena in the order of the records, so they can be moved down in place; the arena is only
+	 * replaced if the live texts take more than half of it.
+	 * @param extra Length of the text to be added.
+	 */
+	private void compact(int extra){
+		int live = 0;
+		for(int i = 0; i < size; i ++){
+			live += textLengths[(head + i) % seqs.length];
+		}
+		byte[] compacted = 2 * (live + extra) <= arena.length ? arena : new byte[2 * (live + extra)];
+		int end = 0;
+		for(int i = 0; i < size; i ++){
+			int slot = (head + i) % seqs.length;
+			System.arraycopy(arena, textStarts[slot], compacted, end, textLengths[slot]);
+			textStarts[slot] = end;
+			end += textLengths[slot];
+		}
+		arena = compacted;
+		arenaEnd = end;
+	}
+
+	/**
+	 * @return number of distinct chat members of the records added so far.
+	 */
+	synchronized int dictionarySize(){return usernames.size();}
+}
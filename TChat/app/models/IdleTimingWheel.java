@@ -0,0 +1,173 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel finding the items which have been idle for <i>idleMax</i> milliseconds.
+ * <p>The wheel has <i>wheelSize</i> slots of <i>tickMillis</i> each. An item sits in the slot of its
+ * deadline (last activity + idleMax), with the number of whole wheel turns left. Activity does not
+ * touch the wheel at all: the item only updates its last activity time. When the item's slot comes
+ * round, its deadline is computed again from the last activity and it either moves on to the slot
+ * of the new deadline or is due. So a tick only looks at the items of one slot, and recording
+ * activity is a single field write.</p>
+ * <p>Note: Not thread safe; it is used by the chat room manager actor only. The last activity
+ * time is read from other threads, so it should be volatile.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class IdleTimingWheel<T extends IdleTimingWheel.Tracked> {
+
+	/**
+	 * An item whose idle time is tracked.
+	 */
+	public static interface Tracked{
+		/**
+		 * @return time of the last activity. (milliseconds)
+		 */
+		long getLastActiveTime();
+	}
+
+	private final long tickMillis;
+	private final long idleMax;
+	private final List<Node<T>>[] slots;
+	// Item -> its node in the wheel.
+	private final Map<T, Node<T>> nodes = new IdentityHashMap<T, Node<T>>();
+	// Tick of the next slot to be expired.
+	private long currentTick = -1;
+
+	/**
+	 * @param tick Length of one slot. (milliseconds)
+	 * @param wheelSize Number of slots.
+	 * @param idleMaxMillis Items idle this long are due. (milliseconds)
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public IdleTimingWheel(long tick, int wheelSize, long idleMaxMillis){
+		if(tick <= 0 || wheelSize <= 0){
+			throw new IllegalArgumentException("Timing wheel tick and size must be positive: " + tick + ", " + wheelSize);
+		}
+		tickMillis = tick;
+		idleMax = idleMaxMillis;
+		slots = new List[wheelSize];
+		for(int i = 0; i < wheelSize; i ++){
+			slots[i] = new ArrayList<Node<T>>();
+		}
+	}
+
+	public long getIdleMax(){return idleMax;}
+	public int size(){return nodes.size();}
+	public boolean contains(T item){return nodes.containsKey(item);}
+
+	/**
+	 * Start tracking an item. Tracking an item twice does nothing.
+	 * @param item Item to be tracked.
+	 * @param now Current time. (milliseconds)
+	 */
+	public void add(T item, long now){
+		if(nodes.containsKey(item)){
+			return;
+		}
+		if(currentTick < 0){
+			currentTick = now / tickMillis;
+		}
+		Node<T> node = new Node<T>(item);
+		nodes.put(item, node);
+		place(node, item.getLastActiveTime() + idleMax, currentTick);
+	}
+
+	/**
+	 * Stop tracking an item.
+	 * @param item Item to be dropped.
+	 */
+	public void remove(T item){
+		Node<T> node = nodes.remove(item);
+		if(node != null){
+			// Dropped from its slot when the slot is expired next.
+			node.removed = true;
+		}
+	}
+
+	/**
+	 * Expire all slots up to <i>now</i>.
+	 * @param now Current time. (milliseconds)
+	 * @return items idle for idleMax or longer; they are no longer tracked.
+	 */
+	public List<T> advance(long now){
+		List<T> due = new ArrayList<T>();
+		if(currentTick < 0){
+			currentTick = now / tickMillis;
+			return due;
+		}
+		long nowTick = now / tickMillis;
+		// Paused longer than one turn of the wheel: every slot is due, check all items at once.
+		if(nowTick - currentTick >= slots.length){
+			List<Node<T>> all = new ArrayList<Node<T>>(nodes.values());
+			for(List<Node<T>> slot: slots){
+				slot.clear();
+			}
+			currentTick = nowTick;
+			for(Node<T> node: all){
+				expire(node, now, due);
+			}
+			currentTick = nowTick + 1;
+			return due;
+		}
+		for(; currentTick <= nowTick; currentTick ++){
+			List<Node<T>> slot = slots[(int) (currentTick % slots.length)];
+			if(slot.isEmpty()){
+				continue;
+			}
+			List<Node<T>> nodesOfSlot = new ArrayList<Node<T>>(slot);
+			slot.clear();
+			for(Node<T> node: nodesOfSlot){
+				if(node.removed){
+					continue;
+				}
+				// Deadline lies in a later turn of the wheel.
+				if(node.rounds > 0){
+					node.rounds --;
+					slot.add(node);
+				}else{
+					expire(node, now, due);
+				}
+			}
+		}
+		return due;
+	}
+
+	// The node's slot has come round: it is due, or it moves on to the slot of its new deadline.
+	private void expire(Node<T> node, long now, List<T> due){
+		long deadline = node.item.getLastActiveTime() + idleMax;
+		if(deadline <= now){
+			nodes.remove(node.item);
+			due.add(node.item);
+		}else{
+			// Slots up to the current one are being expired: place it into a later slot.
+			place(node, deadline, currentTick + 1);
+		}
+	}
+
+	/**
+	 * @param node Node to be placed.
+	 * @param deadline Deadline of the node. (milliseconds)
+	 * @param nextTick Tick of the next slot to be expired.
+	 */
+	private void place(Node<T> node, long deadline, long nextTick){
+		long tick = Math.max(deadline / tickMillis, nextTick);
+		node.rounds = (tick - nextTick) / slots.length;
+		slots[(int) (tick % slots.length)].add(node);
+	}
+
+	private static class Node<T>{
+		final T item;
+		// Whole turns of the wheel left before the deadline.
+		long rounds;
+		boolean removed = false;
+
+		Node(T trackedItem){
+			item = trackedItem;
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package models;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+import play.Logger;
+import play.Play;
+import play.libs.Json;
+import play.mvc.WebSocket;
+
+/**
+ * Outbound buffer of one chat member's WebSocket.
+ * <p>Play's <i>WebSocket.Out</i> accepts every frame at once and buffers whatever the client has not
+ * read yet, so one chat member on a slow link could make the server hold an unbounded amount of
+ * data. Chat members therefore acknowledge the frames they have received (an <i>ack</i> message
+ * with the number of frames received so far, sent every few frames), and at most <i>window</i>
+ * frames are handed to the socket without having been acknowledged. Frames beyond the window wait
+ * here, up to <i>highWater</i> frames; once that many are waiting the overflow {@link Policy} applies.</p>
+ * <p>Frames are written by the chat room actor and acknowledgements arrive on the socket's thread,
+ * so the methods are synchronized.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class MemberOutbox {
+
+	/**
+	 * What to do with a new frame once <i>highWater</i> frames are waiting.
+	 */
+	public static enum Policy{
+		// Drop the oldest waiting frame.
+		DROP_OLDEST,
+		/* Replace the waiting membership changes by one hint to ask for the full member list;
+		 * the oldest frame is dropped if there is no membership change to replace.
+		 */
+		COALESCE_PRESENCE,
+		// Tell the chat member to reconnect and close the socket.
+		DISCONNECT;
+
+		/**
+		 * @param name Policy name as configured, e.g. "drop-oldest".
+		 * @return the policy; DROP_OLDEST if the name is unknown.
+		 */
+		public static Policy parse(String name){
+			if(name != null){
+				for(Policy policy: values()){
+					if(policy.name().replace('_', '-').equalsIgnoreCase(name.trim())){
+						return policy;
+					}
+				}
+			}
+			return DROP_OLDEST;
+		}
+	}
+
+	// Default number of frames written but not acknowledged yet. (chat.outbound.window)
+	public static final int DEFAULT_WINDOW = 256;
+	/* Frames a chat member receives between two acknowledgements (ackEvery in chatRoom.scala.html,
+	 * ACK_EVERY of the load client). A smaller window would stall every outbox: it is raised to this.
+	 */
+	public static final int CLIENT_ACK_INTERVAL = 16;
+	// Default number of frames waiting before the overflow policy applies. (chat.outbound.highWater)
+	public static final int DEFAULT_HIGH_WATER = 1000;
+
+	// Frames dropped or coalesced by all outboxes.
+	private static final AtomicLong droppedFrames = new AtomicLong();
+	// Chat members disconnected by all outboxes.
+	private static final AtomicLong disconnects = new AtomicLong();
+
+	private static Settings settings;
+
+	private final WebSocket.Out<String> out;
+	private final int window;
+	private final int highWater;
+	private final Policy policy;
+	private final ArrayDeque<Pending> waiting = new ArrayDeque<Pending>();
+	// Number of membership changes waiting.
+	private int waitingPresence = 0;
+	// Number of frames handed to the socket.
+	private long written = 0;
+	// Number of frames the chat member has acknowledged.
+	private long acked = 0;
+	private long dropped = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param outChannel Chat member's out channel.
+	 * @param windowFrames Maximum number of frames written but not acknowledged yet.
+	 * @param highWaterFrames Maximum number of frames waiting.
+	 * @param overflowPolicy What to do when <i>highWaterFrames</i> frames are waiting.
+	 */
+	public MemberOutbox(WebSocket.Out<String> outChannel, int windowFrames, int highWaterFrames, Policy overflowPolicy){
+		out = outChannel;
+		window = Math.max(1, windowFrames);
+		highWater = Math.max(1, highWaterFrames);
+		policy = overflowPolicy;
+	}
+
+	/**
+	 * @param outChannel Chat member's out channel.
+	 * @return an outbox configured by <i>chat.outbound.window</i>, <i>chat.outbound.highWater</i> and <i>chat.outbound.overflow</i>.
+	 */
+	public static MemberOutbox create(WebSocket.Out<String> outChannel){
+		Settings current = settings();
+		return new MemberOutbox(outChannel, current.window, current.highWater, current.policy);
+	}
+
+	private static synchronized Settings settings(){
+		if(settings == null){
+			Integer window = Play.application().configuration().getInt("chat.outbound.window");
+			Integer highWater = Play.application().configuration().getInt("chat.outbound.highWater");
+			String policy = Play.application().configuration().getString("chat.outbound.overflow");
+			settings = new Settings(window == null ? DEFAULT_WINDOW : window,
+					highWater == null ? DEFAULT_HIGH_WATER : highWater, Policy.parse(policy));
+			if(window != null && window < settings.window){
+				Logger.of(MemberOutbox.class).info("chat.outbound.window " + window + " is below the client acknowledgement interval, "
+						+ settings.window + " is used.");
+			}
+		}
+		return settings;
+	}
+
+	// -- Sending
+
+	/**
+	 * Send a frame, or keep it until the chat member has caught up.
+	 * @param frame Frame to be sent.
+	 */
+	public synchronized void send(BroadcastFrame frame){
+		offer(frame, false);
+	}
+
+	/**
+	 * Send a membership change. Waiting membership changes may be coalesced, see {@link Policy#COALESCE_PRESENCE}.
+	 * @param frame Frame to be sent.
+	 */
+	public synchronized void sendPresence(BroadcastFrame frame){
+		offer(frame, true);
+	}
+
+	/**
+	 * The chat member has received <i>count</i> frames so far. Waiting frames are sent as the window allows.
+	 * @param count Number of frames received by the chat member; stale and impossible counts are ignored.
+	 */
+	public synchronized void ack(long count){
+		if(count <= acked || count > written){
+			return;
+		}
+		acked = count;
+		drain();
+	}
+
+	private void offer(BroadcastFrame frame, boolean presence){
+		if(closed){
+			return;
+		}
+		if(waiting.isEmpty() && written - acked < window){
+			write(frame);
+			return;
+		}
+		if(waiting.size() >= highWater){
+			switch(policy){
+			case DISCONNECT:
+				disconnect();
+				return;
+			case COALESCE_PRESENCE:
+				if(coalescePresence()){
+					break;
+				}
+				dropOldest();
+				break;
+			default:
+				dropOldest();
+			}
+		}
+		waiting.add(new Pending(frame, presence));
+		if(presence){
+			waitingPresence ++;
+		}
+	}
+
+	private void drain(){
+		while(!waiting.isEmpty() && written - acked < window){
+			Pending next = waiting.poll();
+			if(next == HINT){
+				write(staleMembersHint());
+				continue;
+			}
+			if(next.presence){
+				waitingPresence --;
+			}
+			write(next.frame);
+		}
+	}
+
+	private void write(BroadcastFrame frame){
+		written ++;
+		frame.writeTo(out);
+	}
+
+	private void dropOldest(){
+		Pending oldest = waiting.poll();
+		if(oldest.presence){
+			waitingPresence --;
+		}
+		dropped(1);
+	}
+
+	/**
+	 * Replace the waiting membership changes by one hint, in place of the first of them.
+	 * @return true if room has been made for a new frame.
+	 */
+	private boolean coalescePresence(){
+		if(waitingPresence == 0){
+			return false;
+		}
+		ArrayDeque<Pending> kept = new ArrayDeque<Pending>(waiting.size());
+		boolean hinted = false;
+		for(Pending pending: waiting){
+			if(pending.presence || pending == HINT){
+				if(!hinted){
+					kept.add(HINT);
+					hinted = true;
+				}
+				continue;
+			}
+			kept.add(pending);
+		}
+		waiting.clear();
+		waiting.addAll(kept);
+		dropped(waitingPresence);
+		waitingPresence = 0;
+		return waiting.size() < highWater;
+	}
+
+	private void disconnect(){
+		disconnects.incrementAndGet();
+		Logger.of(MemberOutbox.class).info("Chat member too slow, " + highWater + " frames waiting: disconnected.");
+		reconnect("You have fallen behind this chat room. Please rejoin it to catch up.");
+	}
+
+	/**
+	 * Tell the chat member to rejoin and close the socket. Waiting frames are dropped.
+	 * @param text Message shown to the chat member.
+	 */
+	public synchronized void reconnect(String text){
+		if(closed){
+			return;
+		}
+		closed = true;
+		dropped(waiting.size());
+		waiting.clear();
+		waitingPresence = 0;
+		ObjectNode event = Json.newObject();
+		event.put("key", "resync");
+		event.put("reconnect", true);
+		event.put("text", text);
+		BroadcastFrame.encode(event).writeTo(out);
+		out.close();
+	}
+
+	private void dropped(int frames){
+		dropped += frames;
+		droppedFrames.addAndGet(frames);
+	}
+
+	private static BroadcastFrame staleMembersHint(){
+		ObjectNode event = Json.newObject();
+		event.put("key", "members-stale");
+		return BroadcastFrame.encode(event);
+	}
+
+	// -- Queries
+
+	public WebSocket.Out<String> getOut(){return out;}
+
+	/**
+	 * @return number of frames waiting to be written.
+	 */
+	public synchronized int getDepth(){return waiting.size();}
+
+	/**
+	 * @return number of frames written but not acknowledged yet.
+	 */
+	public synchronized long getInFlight(){return written - acked;}
+
+	public synchronized long getWritten(){return written;}
+	public synchronized long getDropped(){return dropped;}
+	public synchronized boolean isClosed(){return closed;}
+	public int getWindow(){return window;}
+	public int getHighWater(){return highWater;}
+	public Policy getPolicy(){return policy;}
+
+	public static long getDroppedFrames(){return droppedFrames.get();}
+	public static long getDisconnects(){return disconnects.get();}
+
+	// Stands for the "members-stale" hint, encoded when it is written.
+	private static final Pending HINT = new Pending(null, false);
+
+	/**
+	 * A waiting frame.
+	 */
+	private static class Pending{
+		final BroadcastFrame frame;
+		final boolean presence;
+
+		Pending(BroadcastFrame pendingFrame, boolean isPresence){
+			frame = pendingFrame;
+			presence = isPresence;
+		}
+	}
+
+	// Configured outbox settings; the window is at least CLIENT_ACK_INTERVAL frames.
+	static class Settings{
+		final int window;
+		final int highWater;
+		final Policy policy;
+
+		Settings(int windowFrames, int highWaterFrames, Policy overflowPolicy){
+			window = Math.max(CLIENT_ACK_INTERVAL, windowFrames);
+			highWater = highWaterFrames;
+			policy = overflowPolicy;
+		}
+	}
+}
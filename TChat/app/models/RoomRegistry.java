@@ -0,0 +1,132 @@
+package models;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The registry of all alive chat rooms on this node, keyed by chat room id.
+ * <ul>
+ * 	<li>Look-ups by room id never block.</li>
+ * 	<li>{@link #getOrCreate(long, RoomFactory)} makes sure at most one chat room instance
+ * 	is created (read from disk) for one room id.</li>
+ * 	<li>Removing a chat room costs O(1).</li>
+ * 	<li>{@link #rooms()} is weakly consistent: it never throws ConcurrentModificationException
+ * 	and reflects the rooms alive at some point during the iteration.</li>
+ * </ul>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class RoomRegistry {
+
+	// Number of locks guarding chat room creation. (Power of two)
+	private static final int CREATION_LOCKS = 64;
+
+	// Room id -> alive chat room.
+	private final ConcurrentMap<Long, ChatRoom> rooms = new ConcurrentHashMap<Long, ChatRoom>();
+	// Striped locks so that creating a chat room only serializes with creations of the same stripe.
+	private final Object[] creationLocks = new Object[CREATION_LOCKS];
+
+	public RoomRegistry(){
+		for(int i = 0; i < creationLocks.length; i ++){
+			creationLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Get an alive chat room.
+	 * @param roomId Chat room id.
+	 * @return the chat room; null if no such chat room is alive.
+	 */
+	public ChatRoom get(long roomId){
+		return rooms.get(roomId);
+	}
+
+	/**
+	 * Check if a chat room id is used by an alive chat room.
+	 * @param roomId Chat room id.
+	 * @return true if the chat room is alive; false otherwise.
+	 */
+	public boolean contains(long roomId){
+		return rooms.containsKey(roomId);
+	}
+
+	/**
+	 * Register a chat room unless another chat room with the same id is already alive.
+	 * @param room Chat room to be registered.
+	 * @return the chat room already registered under the same id; null if <i>room</i> has been registered.
+	 */
+	public ChatRoom putIfAbsent(ChatRoom room){
+		return rooms.putIfAbsent(room.getRoomId(), room);
+	}
+
+	/**
+	 * Get an alive chat room, or create one with <i>factory</i> and register it.
+	 * The factory is called at most once at a time for a given room id, so that a
+	 * persisted chat room is never read in twice by concurrent joining members.
+	 * @param roomId Chat room id.
+	 * @param factory Creates the chat room when it is not alive. May return null.
+	 * @return the alive chat room; null if it is not alive and the factory returns null.
+	 * @throws Exception Exception thrown by the factory.
+	 */
+	public ChatRoom getOrCreate(long roomId, RoomFactory factory) throws Exception{
+		ChatRoom room = rooms.get(roomId);
+		if(room != null){
+			return room;
+		}
+		synchronized(creationLocks[stripe(roomId)]){
+			// Check again, someone else might have created it while we were waiting.
+			room = rooms.get(roomId);
+			if(room == null){
+				room = factory.create(roomId);
+				if(room != null){
+					rooms.put(roomId, room);
+				}
+			}
+			return room;
+		}
+	}
+
+	/**
+	 * Remove a chat room. Nothing happens if another chat room instance has
+	 * been registered under the same id in the meantime.
+	 * @param room Chat room to be removed.
+	 * @return true if the chat room has been removed; false otherwise.
+	 */
+	public boolean remove(ChatRoom room){
+		return rooms.remove(room.getRoomId(), room);
+	}
+
+	/**
+	 * @return number of alive chat rooms.
+	 */
+	public int size(){
+		return rooms.size();
+	}
+
+	/**
+	 * @return weakly consistent, read-only view of all alive chat rooms.
+	 */
+	public Collection<ChatRoom> rooms(){
+		return Collections.unmodifiableCollection(rooms.values());
+	}
+
+	private static int stripe(long roomId){
+		int h = (int)(roomId ^ (roomId >>> 32));
+		h ^= (h >>> 16);
+		return h & (CREATION_LOCKS - 1);
+	}
+
+	/**
+	 * Creates a chat room which is not alive yet, e.g. by reading in the persisted chat room.
+	 */
+	public static interface RoomFactory{
+		/**
+		 * @param roomId Chat room id.
+		 * @return new chat room instance; null if it cannot be created.
+		 * @throws Exception
+		 */
+		ChatRoom create(long roomId) throws Exception;
+	}
+}
@@ -0,0 +1,744 @@
+package models;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+import play.Logger;
+import play.Play;
+import play.libs.Akka;
+import play.libs.F.Callback;
+import play.libs.F.Callback0;
+import play.libs.Json;
+import play.mvc.WebSocket;
+import scala.concurrent.duration.Duration;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.actor.UntypedActorFactory;
+import controllers.Application;
+
+/**
+ * Shards the chat rooms over a set of nodes by chat room id.
+ * <p>Every node runs one <i>RoomShards</i> actor (/user/RoomShards). The actors heartbeat each other
+ * (starting from the seed nodes of <i>chat.cluster.seeds</i>, then every node they hear of) and put
+ * the nodes they have heard from within <i>chat.cluster.failureTimeout</i> on a
+ * {@link ConsistentHashRing}; the owner of a chat room is its node on the ring. Nodes which see
+ * the same nodes agree on the owners, nothing else has to be agreed on.</p>
+ * <p>Any node accepts a chat member's WebSocket. If the chat room lives on another node, the member
+ * joins the <i>RoomReplica</i> of the chat room on this node, which holds the sockets (and their
+ * outbound buffers) of all members of the chat room connected to this node, and subscribes them to
+ * the chat room on the owner. The chat room actor publishes every event once per replica, not once
+ * per member, and the replica writes it to its members. Events from the sockets go to the chat room
+ * through the owner's <i>RoomShards</i>. All events of a chat room come from its single actor and
+ * Akka keeps the order of the messages between two actors, so every member sees the events of a
+ * chat room in the same order, on whichever node.</p>
+ * <p>When a node joins or leaves, every node hands off the chat rooms it no longer owns (the chat room is
+ * saved and closed, its members are asked to rejoin and get to the new owner), replicas whose chat room
+ * changed owner ask their members to rejoin the same way, and chat rooms drop the members of nodes which
+ * are gone. Chat rooms are read in from disk by the new owner, so the nodes have to share the chat room folders.
+ * Only the node holding a chat room's {@link RoomWriterLock} writes its folder, even while two nodes see
+ * different rings and both have the chat room open.</p>
+ * <p>Sharding is off unless <i>chat.cluster.enabled</i> is set; then every chat room is local.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class RoomShards extends UntypedActor {
+
+	public static final String NAME = "RoomShards";
+	// Default heartbeat interval. (chat.cluster.heartbeat, ms)
+	public static final long DEFAULT_HEARTBEAT = 1000;
+	// Default time after which a silent node is taken off the ring. (chat.cluster.failureTimeout, ms)
+	public static final long DEFAULT_FAILURE_TIMEOUT = 5000;
+
+	// Number of events published to this node's replicas since start.
+	private static final AtomicLong publishedEvents = new AtomicLong();
+
+	// Ring of this node's RoomShards actor; null if sharding is off.
+	private static final AtomicReference<ConsistentHashRing> currentRing = new AtomicReference<ConsistentHashRing>();
+	private static ActorRef shards;
+	private static String selfAddress;
+
+	private final Settings settings;
+	private final AtomicReference<ConsistentHashRing> published;
+	// Node address -> time of its last heartbeat.
+	private final Map<String, Long> lastSeen = new HashMap<String, Long>();
+	// Nodes to heartbeat: the seed nodes and every node heard of.
+	private final Set<String> candidates = new HashSet<String>();
+	// Replicas of the chat rooms on other nodes which have members connected to this node.
+	private final Map<Long, Replica> replicas = new HashMap<Long, Replica>();
+	private ConsistentHashRing ring;
+	private Cancellable ticks;
+
+	/**
+	 * @param shardSettings Address of this node, seed nodes and timing.
+	 * @param publishedRing Where the current ring is published for other threads.
+	 */
+	public RoomShards(Settings shardSettings, AtomicReference<ConsistentHashRing> publishedRing){
+		settings = shardSettings;
+		published = publishedRing;
+		candidates.addAll(settings.seeds);
+		ring = new ConsistentHashRing(Collections.singleton(settings.self), settings.virtualNodes);
+		published.set(ring);
+	}
+
+	// -- Node API
+
+	/**
+	 * Start sharding if <i>chat.cluster.enabled</i> is set. Akka remoting has to be configured as well.
+	 */
+	public static void init(){
+		Boolean enabled = Play.application().configuration().getBoolean("chat.cluster.enabled");
+		if(enabled == null || !enabled){
+			return;
+		}
+		selfAddress = ((ExtendedActorSystem) Akka.system()).provider().getDefaultAddress().toString();
+		List<String> seeds = Play.application().configuration().getStringList("chat.cluster.seeds");
+		Integer virtualNodes = Play.application().configuration().getInt("chat.cluster.virtualNodes");
+		Long heartbeat = Play.application().configuration().getMilliseconds("chat.cluster.heartbeat");
+		Long failureTimeout = Play.application().configuration().getMilliseconds("chat.cluster.failureTimeout");
+		final Settings settings = new Settings(selfAddress, seeds == null ? new ArrayList<String>() : seeds,
+				virtualNodes == null ? ConsistentHashRing.DEFAULT_VIRTUAL_NODES : virtualNodes,
+				heartbeat == null ? DEFAULT_HEARTBEAT : heartbeat,
+				failureTimeout == null ? DEFAULT_FAILURE_TIMEOUT : failureTimeout);
+		shards = Akka.system().actorOf(props(settings, currentRing), NAME);
+		Logger.of(RoomShards.class).info("Room sharding started on " + selfAddress + ", seeds: " + settings.seeds);
+	}
+
+	/**
+	 * @param settings Address of the node, seed nodes and timing.
+	 * @param publishedRing Where the current ring is published for other threads.
+	 * @return props of a <i>RoomShards</i> actor, to be created as /user/RoomShards.
+	 */
+	public static Props props(final Settings settings, final AtomicReference<ConsistentHashRing> publishedRing){
+		return new Props(new UntypedActorFactory() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public UntypedActor create() {
+				return new RoomShards(settings, publishedRing);
+			}
+		});
+	}
+
+	public static boolean isEnabled(){return currentRing.get() != null;}
+
+	/**
+	 * @param roomId Chat room id.
+	 * @return true if the chat room lives on this node; always true if sharding is off.
+	 */
+	public static boolean isLocal(long roomId){
+		String owner = ownerOf(roomId);
+		return owner == null || owner.equals(selfAddress);
+	}
+
+	/**
+	 * @param roomId Chat room id.
+	 * @return address of the node owning the chat room; null if sharding is off.
+	 */
+	public static String ownerOf(long roomId){
+		ConsistentHashRing ring = currentRing.get();
+		return ring == null ? null : ring.owner(roomId);
+	}
+
+	/**
+	 * @return the ring as this node sees it; null if sharding is off.
+	 */
+	public static ConsistentHashRing getRing(){return currentRing.get();}
+	public static String getSelfAddress(){return selfAddress;}
+
+	/**
+	 * Join a chat member to a chat room living on another node.
+	 * @param roomId Chat room id.
+	 * @param username Chat member's email address.
+	 * @param in Chat member's in channel.
+	 * @param out Chat member's out channel.
+	 */
+	public static void join(final long roomId, final String username, WebSocket.In<String> in, final WebSocket.Out<String> out){
+		shards.tell(new LocalJoin(roomId, username, out), null);
+		in.onMessage(new Callback<String>(){
+			@Override
+			public void invoke(String frame) throws Throwable {
+				// Parsed here, so a malformed frame never reaches the replica.
+				JsonNode event;
+				try{
+					event = Json.parse(frame);
+				}catch(RuntimeException e){
+					Logger.of(RoomShards.class).info("Malformed frame from " + username + " dropped: " + e.getMessage());
+					return;
+				}
+				shards.tell(new LocalFrame(roomId, username, out, event), null);
+			}
+		});
+		in.onClose(new Callback0(){
+			@Override
+			public void invoke() throws Throwable {
+				shards.tell(new LocalClose(roomId, username, out), null);
+			}
+		});
+	}
+
+	/**
+	 * @return number of events published to this node's replicas of chat rooms on other nodes, since start.
+	 */
+	public static long getPublishedEvents(){return publishedEvents.get();}
+
+	// -- Actor
+
+	@Override
+	public void preStart(){
+		ticks = getContext().system().scheduler().schedule(Duration.Zero(), Duration.create(settings.heartbeat, MILLISECONDS),
+				getSelf(), new Tick(), getContext().dispatcher());
+	}
+
+	@Override
+	public void postStop(){
+		if(ticks != null){
+			ticks.cancel();
+		}
+	}
+
+	@Override
+	public void onReceive(Object msg){
+		long now = System.currentTimeMillis();
+		if(msg instanceof Tick){
+			Heartbeat heartbeat = new Heartbeat(settings.self, new ArrayList<String>(ring.getNodes()));
+			for(String node: candidates){
+				if(!node.equals(settings.self)){
+					getContext().actorFor(node + "/user/" + NAME).tell(heartbeat, getSelf());
+				}
+			}
+			// Nodes not heard of for a while are taken off the ring.
+			Iterator<Map.Entry<String, Long>> iter = lastSeen.entrySet().iterator();
+			while(iter.hasNext()){
+				Map.Entry<String, Long> entry = iter.next();
+				if(now - entry.getValue() > settings.failureTimeout){
+					Logger.of(RoomShards.class).info("Node " + entry.getKey() + " is gone.");
+					iter.remove();
+				}
+			}
+			updateRing();
+		}
+		// Another node is alive.
+		else if(msg instanceof Heartbeat){
+			Heartbeat heartbeat = (Heartbeat) msg;
+			if(!lastSeen.containsKey(heartbeat.node)){
+				Logger.of(RoomShards.class).info("Node " + heartbeat.node + " joined.");
+			}
+			lastSeen.put(heartbeat.node, now);
+			candidates.add(heartbeat.node);
+			candidates.addAll(heartbeat.nodes);
+			updateRing();
+		}
+		/* A chat member connected to another node joins a chat room of this node.
+		 * The chat room may have to be read in from disk: that is done on the blocking I/O dispatcher,
+		 * so heartbeats are not held up, and the chat room comes back to this actor.
+		 */
+		else if(msg instanceof Subscribe){
+			final Subscribe subscribe = (Subscribe) msg;
+			final ActorRef replica = getSender();
+			final ActorRef self = getSelf();
+			ChatDispatchers.blockingIo().execute(new Runnable() {
+				@Override
+				public void run() {
+					self.tell(new Opened(subscribe.username, Application.openChatRoom(subscribe.roomId)), replica);
+				}
+			});
+		}
+		// The chat room a chat member of another node subscribed to has been opened.
+		else if(msg instanceof Opened){
+			Opened opened = (Opened) msg;
+			ActorRef roomActorRef = opened.chatRoom == null ? null : opened.chatRoom.getRoomActorRef();
+			if(roomActorRef != null){
+				roomActorRef.tell(new ChatRoom.RemoteJoin(opened.username), getSender());
+			}else{
+				getSender().tell(new Rejected(opened.username, "The chat room you want to join does not exist. :("), getSelf());
+			}
+		}
+		// An event of a chat member connected to another node.
+		else if(msg instanceof ToRoom){
+			ToRoom toRoom = (ToRoom) msg;
+			ChatRoom chatRoom = Application.getChatRooms().get(toRoom.roomId);
+			ActorRef roomActorRef = chatRoom == null ? null : chatRoom.getRoomActorRef();
+			if(roomActorRef != null){
+				roomActorRef.tell(toRoom.message, getSender());
+			}
+		}
+		// A socket of this node joins a chat room on another node.
+		else if(msg instanceof LocalJoin){
+			LocalJoin join = (LocalJoin) msg;
+			Replica replica = replicas.get(join.roomId);
+			if(replica == null){
+				replica = new Replica(getContext().actorOf(RoomReplica.props(join.roomId, ring.owner(join.roomId))));
+				replicas.put(join.roomId, replica);
+			}
+			replica.joins ++;
+			replica.actor.tell(msg, getSelf());
+		}else if(msg instanceof LocalFrame){
+			forward(((LocalFrame) msg).roomId, msg);
+		}else if(msg instanceof LocalClose){
+			forward(((LocalClose) msg).roomId, msg);
+		}
+		// A replica has no member left: it is stopped unless a member has joined it meanwhile.
+		else if(msg instanceof Idle){
+			Idle idle = (Idle) msg;
+			Replica replica = replicas.get(idle.roomId);
+			if(replica != null && replica.actor.equals(getSender()) && replica.joins == idle.joins){
+				replicas.remove(idle.roomId);
+				getContext().stop(replica.actor);
+			}
+		}else if(msg instanceof GetRing){
+			getSender().tell(ring, getSelf());
+		}else{
+			unhandled(msg);
+		}
+	}
+
+	private void updateRing(){
+		Set<String> nodes = new HashSet<String>(lastSeen.keySet());
+		nodes.add(settings.self);
+		if(nodes.equals(ring.getNodes())){
+			return;
+		}
+		ring = new ConsistentHashRing(nodes, settings.virtualNodes);
+		published.set(ring);
+		Logger.of(RoomShards.class).info("Ring changed: " + ring);
+		// Hand off the chat rooms this node no longer owns.
+		for(ChatRoom chatRoom: Application.getChatRooms().rooms()){
+			ActorRef roomActorRef = chatRoom.getRoomActorRef();
+			if(!settings.self.equals(ring.owner(chatRoom.getRoomId())) && roomActorRef != null){
+				Logger.of(RoomShards.class).info("Chat room " + chatRoom.getRoomId() + " is handed off to " + ring.owner(chatRoom.getRoomId()));
+				roomActorRef.tell(new ChatRoom.HandOff(), getSelf());
+			}
+		}
+		// The chat rooms this node still owns drop the members of the nodes which are gone.
+		ChatRoom.LiveNodes liveNodes = new ChatRoom.LiveNodes(new HashSet<String>(ring.getNodes()));
+		for(ChatRoom chatRoom: Application.getChatRooms().rooms()){
+			ActorRef roomActorRef = chatRoom.getRoomActorRef();
+			if(settings.self.equals(ring.owner(chatRoom.getRoomId())) && roomActorRef != null){
+				roomActorRef.tell(liveNodes, getSelf());
+			}
+		}
+		RingChanged changed = new RingChanged(ring);
+		for(Replica replica: replicas.values()){
+			replica.actor.tell(changed, getSelf());
+		}
+	}
+
+	private void forward(long roomId, Object msg){
+		Replica replica = replicas.get(roomId);
+		if(replica != null){
+			replica.actor.tell(msg, getSelf());
+		}
+	}
+
+	/**
+	 * Replica, on this node, of a chat room living on another node: holds the sockets of the chat
+	 * room's members connected to this node and writes the events the chat room publishes to them.
+	 * A member's messages are held back until the chat room has let the member in (<i>Joined</i>),
+	 * so that they never reach the chat room before the member's <i>RemoteJoin</i>.
+	 */
+	public static class RoomReplica extends UntypedActor{
+		private final long roomId;
+		// The owner's RoomShards.
+		private ActorRef owner;
+		private String ownerNode;
+		// Members connected to this node, by email address.
+		private final Map<String, LocalMember> members = new HashMap<String, LocalMember>();
+		// Number of LocalJoin messages received, see Idle.
+		private long joins = 0;
+
+		public RoomReplica(long chatRoomId, String ownerAddress){
+			roomId = chatRoomId;
+			setOwner(ownerAddress);
+		}
+
+		static Props props(final long roomId, final String ownerNode){
+			return new Props(new UntypedActorFactory() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				public UntypedActor create() {
+					return new RoomReplica(roomId, ownerNode);
+				}
+			});
+		}
+
+		private void setOwner(String ownerAddress){
+			ownerNode = ownerAddress;
+			owner = getContext().actorFor(ownerAddress + "/user/" + NAME);
+		}
+
+		@Override
+		public void onReceive(Object msg){
+			// Sent by the chat room on the owner, once for all members on this node.
+			if(msg instanceof Publish){
+				Publish publish = (Publish) msg;
+				publishedEvents.incrementAndGet();
+				BroadcastFrame frame = BroadcastFrame.wrap(publish.text);
+				for(Map.Entry<String, LocalMember> member: members.entrySet()){
+					if(member.getValue().joined && !member.getKey().equals(publish.except)){
+						member.getValue().send(frame, publish.presence);
+					}
+				}
+			}else if(msg instanceof Direct){
+				Direct direct = (Direct) msg;
+				LocalMember member = members.get(direct.username);
+				if(member != null){
+					member.send(BroadcastFrame.wrap(direct.text), direct.presence);
+				}
+			}else if(msg instanceof LocalJoin){
+				LocalJoin join = (LocalJoin) msg;
+				joins ++;
+				// A second socket of a member who is in the room.
+				if(members.containsKey(join.username)){
+					reject(join.out, "You have already joinned this chat room and cannot join in without logout.");
+					return;
+				}
+				members.put(join.username, new LocalMember(join.out));
+				owner.tell(new Subscribe(roomId, join.username), getSelf());
+			}else if(msg instanceof Joined){
+				String username = ((Joined) msg).username;
+				LocalMember member = members.get(username);
+				if(member != null){
+					member.joined = true;
+					// The chat room has let the member in: the frames held back go to it in order.
+					for(Object message: member.held){
+						owner.tell(new ToRoom(roomId, message), getSelf());
+					}
+					member.held.clear();
+				}
+				// The socket has been closed meanwhile.
+				else{
+					owner.tell(new ToRoom(roomId, new ChatRoom.Unsubscribe(username)), getSelf());
+				}
+			}else if(msg instanceof Rejected){
+				Rejected rejected = (Rejected) msg;
+				LocalMember member = members.remove(rejected.username);
+				if(member != null){
+					reject(member.outbox.getOut(), rejected.reason);
+				}
+				idle();
+			}else if(msg instanceof LocalFrame){
+				LocalFrame frame = (LocalFrame) msg;
+				LocalMember member = members.get(frame.username);
+				if(member == null || member.outbox.getOut() != frame.out){
+					return;
+				}
+				JsonNode event = frame.event;
+				// Acknowledgements are handled here, where the member's outbound buffer is.
+				if(event.path("kind").asText().equals("ack")){
+					// A malformed ack without a count acknowledges nothing.
+					member.outbox.ack(event.path("count").asLong(0));
+					return;
+				}
+				Object message = ChatRoom.parseFrame(frame.username, roomId, event);
+				if(message == null){
+					return;
+				}
+				// Until the chat room has let the member in, its actor would drop the member's messages.
+				if(member.joined){
+					owner.tell(new ToRoom(roomId, message), getSelf());
+				}else{
+					member.held.add(message);
+				}
+			}else if(msg instanceof LocalClose){
+				LocalClose close = (LocalClose) msg;
+				LocalMember member = members.get(close.username);
+				if(member == null || member.outbox.getOut() != close.out){
+					return;
+				}
+				members.remove(close.username);
+				// Not joined yet: the member is unsubscribed once the chat room answers.
+				if(member.joined){
+					owner.tell(new ToRoom(roomId, new ChatRoom.Unsubscribe(close.username)), getSelf());
+				}
+				idle();
+			}else if(msg instanceof Reconnect){
+				reconnectAll(((Reconnect) msg).reason);
+			}
+			// The chat room is somewhere else now: rejoin.
+			else if(msg instanceof RingChanged){
+				String newOwner = ((RingChanged) msg).ring.owner(roomId);
+				if(!ownerNode.equals(newOwner)){
+					reconnectAll("This chat room is moving to another server. Please rejoin it.");
+					setOwner(newOwner);
+				}
+			}else{
+				unhandled(msg);
+			}
+		}
+
+		private void reconnectAll(String reason){
+			for(LocalMember member: members.values()){
+				member.outbox.reconnect(reason);
+			}
+			members.clear();
+			idle();
+		}
+
+		private void idle(){
+			if(members.isEmpty()){
+				getContext().parent().tell(new Idle(roomId, joins), getSelf());
+			}
+		}
+
+		private static void reject(WebSocket.Out<String> out, String reason){
+			ObjectNode event = Json.newObject();
+			event.put("error", reason);
+			out.write(Json.stringify(event));
+			out.close();
+		}
+	}
+
+	/**
+	 * A member of a replica: the member's outbound buffer, and whether the chat room has let the member in.
+	 */
+	private static class LocalMember{
+		final MemberOutbox outbox;
+		boolean joined = false;
+		// Messages of the member received before the chat room let the member in, oldest first.
+		final List<Object> held = new ArrayList<Object>();
+
+		LocalMember(WebSocket.Out<String> out){
+			outbox = MemberOutbox.create(out);
+		}
+
+		void send(BroadcastFrame frame, boolean presence){
+			if(presence){
+				outbox.sendPresence(frame);
+			}else{
+				outbox.send(frame);
+			}
+		}
+	}
+
+	/**
+	 * A replica and the number of LocalJoin messages sent to it.
+	 */
+	private static class Replica{
+		final ActorRef actor;
+		long joins = 0;
+
+		Replica(ActorRef replicaActor){
+			actor = replicaActor;
+		}
+	}
+
+	// -- Messages
+
+	public static class Settings{
+		final String self;
+		final Collection<String> seeds;
+		final int virtualNodes;
+		final long heartbeat;
+		final long failureTimeout;
+
+		/**
+		 * @param selfAddress Address of this node, e.g. akka://application@127.0.0.1:2552
+		 * @param seedNodes Addresses of the nodes to heartbeat first.
+		 * @param nodeReplicas Number of positions of a node on the ring.
+		 * @param heartbeatMillis Heartbeat interval.
+		 * @param failureTimeoutMillis Time after which a silent node is taken off the ring.
+		 */
+		public Settings(String selfAddress, Collection<String> seedNodes, int nodeReplicas, long heartbeatMillis, long failureTimeoutMillis){
+			self = selfAddress;
+			seeds = new ArrayList<String>(seedNodes);
+			virtualNodes = nodeReplicas;
+			heartbeat = heartbeatMillis;
+			failureTimeout = failureTimeoutMillis;
+		}
+	}
+
+	static class Tick{}
+
+	/**
+	 * Ask a <i>RoomShards</i> actor for its ring.
+	 */
+	public static class GetRing{}
+
+	static class Heartbeat implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final String node;
+		// Nodes on the sender's ring.
+		final ArrayList<String> nodes;
+
+		Heartbeat(String senderNode, ArrayList<String> ringNodes){
+			node = senderNode;
+			nodes = ringNodes;
+		}
+	}
+
+	static class Subscribe implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final long roomId;
+		final String username;
+
+		Subscribe(long chatRoomId, String name){
+			roomId = chatRoomId;
+			username = name;
+		}
+	}
+
+	/**
+	 * A message from a replica to its chat room actor, forwarded by the owner's <i>RoomShards</i>.
+	 */
+	static class ToRoom implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final long roomId;
+		final Object message;
+
+		ToRoom(long chatRoomId, Object roomMessage){
+			roomId = chatRoomId;
+			message = roomMessage;
+		}
+	}
+
+	/**
+	 * The chat room of a <i>Subscribe</i>, opened on the blocking I/O dispatcher; null if it does not exist.
+	 */
+	static class Opened{
+		final String username;
+		final ChatRoom chatRoom;
+
+		Opened(String name, ChatRoom room){
+			username = name;
+			chatRoom = room;
+		}
+	}
+
+	static class Joined implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final String username;
+
+		Joined(String name){
+			username = name;
+		}
+	}
+
+	static class Rejected implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final String username;
+		final String reason;
+
+		Rejected(String name, String why){
+			username = name;
+			reason = why;
+		}
+	}
+
+	/**
+	 * An event for all members of a replica except <i>except</i>.
+	 */
+	static class Publish implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final String text;
+		final String except;
+		final boolean presence;
+
+		Publish(String frame, String exceptUsername, boolean isPresence){
+			text = frame;
+			except = exceptUsername;
+			presence = isPresence;
+		}
+	}
+
+	/**
+	 * An event for one member of a replica.
+	 */
+	static class Direct implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final String username;
+		final String text;
+		final boolean presence;
+
+		Direct(String name, String frame, boolean isPresence){
+			username = name;
+			text = frame;
+			presence = isPresence;
+		}
+	}
+
+	/**
+	 * The chat room is closed or moving: all members of a replica have to rejoin.
+	 */
+	static class Reconnect implements Serializable{
+		private static final long serialVersionUID = 1L;
+		final String reason;
+
+		Reconnect(String why){
+			reason = why;
+		}
+	}
+
+	static class LocalJoin{
+		final long roomId;
+		final String username;
+		final WebSocket.Out<String> out;
+
+		LocalJoin(long chatRoomId, String name, WebSocket.Out<String> outChannel){
+			roomId = chatRoomId;
+			username = name;
+			out = outChannel;
+		}
+	}
+
+	static class LocalFrame{
+		final long roomId;
+		final String username;
+		final WebSocket.Out<String> out;
+		// The frame, parsed on the socket's thread.
+		final JsonNode event;
+
+		LocalFrame(long chatRoomId, String name, WebSocket.Out<String> outChannel, JsonNode frameEvent){
+			roomId = chatRoomId;
+			username = name;
+			out = outChannel;
+			event = frameEvent;
+		}
+	}
+
+	static class LocalClose{
+		final long roomId;
+		final String username;
+		final WebSocket.Out<String> out;
+
+		LocalClose(long chatRoomId, String name, WebSocket.Out<String> outChannel){
+			roomId = chatRoomId;
+			username = name;
+			out = outChannel;
+		}
+	}
+
+	static class Idle{
+		final long roomId;
+		final long joins;
+
+		Idle(long chatRoomId, long joinCount){
+			roomId = chatRoomId;
+			joins = joinCount;
+		}
+	}
+
+	static class RingChanged{
+		final ConsistentHashRing ring;
+
+		RingChanged(ConsistentHashRing newRing){
+			ring = newRing;
+		}
+	}
+}
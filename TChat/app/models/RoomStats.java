@@ -0,0 +1,346 @@
+package models;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import play.Logger;
+import play.Play;
+import play.libs.Akka;
+import scala.concurrent.duration.Duration;
+import controllers.Application;
+
+/**
+ * An immutable snapshot of the stats of the live chat rooms, for the admin console.
+ * <p>The snapshot is taken every <i>chat.admin.refresh</i> (by default 5 seconds) on the blocking
+ * I/O dispatcher: it reads the chat rooms' volatile counters and the sizes of their folders, and
+ * never sends anything to a chat room actor nor takes a lock of the request path. Readers get
+ * the current snapshot with one volatile read. Measuring a folder walks its tree, so folder sizes
+ * are kept and measured again only every <i>chat.admin.sizeRefresh</i> (by default 1 minute).</p>
+ * <p>The rooms are sorted once per sort key when the snapshot is taken. A page starts after a cursor,
+ * the sort key and room id of the last room of the previous page, found by binary search: reading a
+ * page costs O(log n + page size), and the following pages stay in order when the snapshot is refreshed
+ * in between.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public final class RoomStats {
+
+	// Default interval between two snapshots. (milliseconds, chat.admin.refresh)
+	private static final long REFRESH = 5000;
+	// Default interval between two measures of a room's folder size. (milliseconds, chat.admin.sizeRefresh)
+	private static final long SIZE_REFRESH = 60000;
+
+	private static volatile RoomStats current = new RoomStats(Collections.<Entry>emptyList(), 0);
+	// Room id -> last measured folder size, of the rooms of the latest snapshot.
+	private static volatile Map<Long, FolderSize> folderSizes = new HashMap<Long, FolderSize>();
+
+	/**
+	 * Order of the rooms, ties broken by room id.
+	 */
+	public static enum Sort{
+		ID, NAME, MEMBERS, MESSAGES, ACTIVITY, SIZE;
+
+		/**
+		 * @param name Sort name, e.g. "members".
+		 * @return the sort; null if the name is unknown.
+		 */
+		public static Sort parse(String name){
+			if(name != null){
+				for(Sort sort: values()){
+					if(sort.name().equalsIgnoreCase(name.trim())){
+						return sort;
+					}
+				}
+			}
+			return null;
+		}
+
+		// Sort key of a room, written into cursors.
+		String keyOf(Entry entry){
+			switch(this){
+			case NAME: return entry.name;
+			case MEMBERS: return String.valueOf(entry.members);
+			case MESSAGES: return String.valueOf(entry.messages);
+			case ACTIVITY: return String.valueOf(entry.lastActivity);
+			case SIZE: return String.valueOf(entry.persistedBytes);
+			default: return String.valueOf(entry.roomId);
+			}
+		}
+
+		// A room with the given sort key, to look a cursor up. (Only the sort key and the room id are set)
+		Entry probe(long roomId, String key){
+			switch(this){
+			case NAME: return new Entry(roomId, key, 0, 0, 0, 0);
+			case MEMBERS: return new Entry(roomId, "", Integer.parseInt(key), 0, 0, 0);
+			case MESSAGES: return new Entry(roomId, "", 0, Long.parseLong(key), 0, 0);
+			case ACTIVITY: return new Entry(roomId, "", 0, 0, Long.parseLong(key), 0);
+			case SIZE: return new Entry(roomId, "", 0, 0, 0, Long.parseLong(key));
+			default: return new Entry(roomId, "", 0, 0, 0, 0);
+			}
+		}
+
+		Comparator<Entry> comparator(){
+			final Sort sort = this;
+			return new Comparator<Entry>() {
+				@Override
+				public int compare(Entry e1, Entry e2) {
+					int c;
+					switch(sort){
+					case NAME: c = e1.name.compareTo(e2.name); break;
+					case MEMBERS: c = compare(e1.members, e2.members); break;
+					case MESSAGES: c = compare(e1.messages, e2.messages); break;
+					case ACTIVITY: c = compare(e1.lastActivity, e2.lastActivity); break;
+					case SIZE: c = compare(e1.persistedBytes, e2.persistedBytes); break;
+					default: c = 0;
+					}
+					return c != 0 ? c : compare(e1.roomId, e2.roomId);
+				}
+				private int compare(long l1, long l2){
+					return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+				}
+			};
+		}
+	}
+
+	// The rooms in ascending order, one array per sort.
+	private final Entry[][] sorted = new Entry[Sort.values().length][];
+	private final long takenAt;
+
+	/**
+	 * @param entries Stats of the rooms.
+	 * @param time Time the stats have been read. (milliseconds)
+	 */
+	public RoomStats(Collection<Entry> entries, long time){
+		Entry[] rooms = entries.toArray(new Entry[entries.size()]);
+		for(Sort sort: Sort.values()){
+			Entry[] copy = rooms.clone();
+			Arrays.sort(copy, sort.comparator());
+			sorted[sort.ordinal()] = copy;
+		}
+		takenAt = time;
+	}
+
+	// -- Snapshot
+
+	/**
+	 * Take the first snapshot and refresh it every <i>chat.admin.refresh</i>.
+	 */
+	public static void init(){
+		long refresh = refreshInterval();
+		Akka.system().scheduler().schedule(Duration.Zero(), Duration.create(refresh, MILLISECONDS), new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, ChatDispatchers.blockingIo());
+	}
+
+	/**
+	 * @return the latest snapshot.
+	 */
+	public static RoomStats getCurrent(){return current;}
+
+	/**
+	 * Take a snapshot of the live chat rooms.
+	 */
+	public static void refresh(){
+		try{
+			current = of(Application.getChatRooms().rooms(), System.currentTimeMillis(), sizeRefreshInterval());
+		}catch(RuntimeException e){
+			Logger.of(RoomStats.class).info("Taking the room stats FAILed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param rooms Live chat rooms.
+	 * @param time Current time. (milliseconds)
+	 * @param sizeMaxAge Folder sizes measured longer ago than this are measured again. (milliseconds)
+	 * @return the stats of the chat rooms, read from their volatile counters and their folders.
+	 */
+	static RoomStats of(Collection<ChatRoom> rooms, long time, long sizeMaxAge){
+		List<Entry> entries = new ArrayList<Entry>(rooms.size());
+		Map<Long, FolderSize> previous = folderSizes;
+		// Only the rooms still live are kept.
+		Map<Long, FolderSize> sizes = new HashMap<Long, FolderSize>();
+		for(ChatRoom room: rooms){
+			FolderSize size = previous.get(room.getRoomId());
+			if(size == null || time - size.measuredAt >= sizeMaxAge){
+				size = new FolderSize(sizeOf(new File(String.valueOf(room.getRoomId()))), time);
+			}
+			sizes.put(room.getRoomId(), size);
+			entries.add(new Entry(room.getRoomId(), room.getRoomName(), room.getMemberCount(), room.getMessageCount(),
+					room.getLastActiveTime(), size.bytes));
+		}
+		folderSizes = sizes;
+		return new RoomStats(entries, time);
+	}
+
+	// Bytes in a folder and its sub folders.
+	private static long sizeOf(File file){
+		File[] children = file.listFiles();
+		if(children == null){
+			return file.length();
+		}
+		long size = 0;
+		for(File child: children){
+			size += sizeOf(child);
+		}
+		return size;
+	}
+
+	private static long refreshInterval(){
+		Long refresh = Play.application().configuration().getMilliseconds("chat.admin.refresh");
+		return refresh == null || refresh <= 0 ? REFRESH : refresh;
+	}
+
+	private static long sizeRefreshInterval(){
+		Long refresh = Play.application().configuration().getMilliseconds("chat.admin.sizeRefresh");
+		return refresh == null || refresh < 0 ? SIZE_REFRESH : refresh;
+	}
+
+	/**
+	 * Size of a room's folder and the time it has been measured.
+	 */
+	private static class FolderSize{
+		final long bytes;
+		final long measuredAt;
+
+		FolderSize(long folderBytes, long time){
+			bytes = folderBytes;
+			measuredAt = time;
+		}
+	}
+
+	// -- Reading
+
+	/**
+	 * @return number of rooms.
+	 */
+	public int size(){return sorted[0].length;}
+
+	/**
+	 * @return time the snapshot has been taken. (milliseconds)
+	 */
+	public long getTakenAt(){return takenAt;}
+
+	/**
+	 * Read one page of rooms.
+	 * @param sort Order of the rooms.
+	 * @param descending true for the largest sort key first.
+	 * @param after Cursor of the previous page, see {@link Page#getNext()}; null for the first page.
+	 * @param pageSize Number of rooms per page.
+	 * @return the page.
+	 * @throws IllegalArgumentException The cursor is malformed.
+	 */
+	public Page page(Sort sort, boolean descending, String after, int pageSize){
+		Entry[] rooms = sorted[sort.ordinal()];
+		int from;
+		if(after == null || after.isEmpty()){
+			from = descending ? rooms.length - 1 : 0;
+		}else{
+			int i = Arrays.binarySearch(rooms, parseCursor(sort, after), sort.comparator());
+			if(i >= 0){
+				from = descending ? i - 1 : i + 1;
+			}else{
+				// Not in this snapshot: start at the next room after where it would be.
+				int insertion = -i - 1;
+				from = descending ? insertion - 1 : insertion;
+			}
+		}
+		int step = descending ? -1 : 1;
+		List<Entry> entries = new ArrayList<Entry>(Math.max(0, Math.min(pageSize, rooms.length)));
+		int i = from;
+		for(; i >= 0 && i < rooms.length && entries.size() < pageSize; i += step){
+			entries.add(rooms[i]);
+		}
+		boolean more = i >= 0 && i < rooms.length;
+		String next = more && !entries.isEmpty() ? cursorOf(sort, entries.get(entries.size() - 1)) : null;
+		return new Page(Collections.unmodifiableList(entries), next, rooms.length, takenAt);
+	}
+
+	private static String cursorOf(Sort sort, Entry entry){
+		return entry.roomId + ":" + sort.keyOf(entry);
+	}
+
+	private static Entry parseCursor(Sort sort, String cursor){
+		int colon = cursor.indexOf(':');
+		if(colon < 0){
+			throw new IllegalArgumentException("Malformed cursor: " + cursor);
+		}
+		try{
+			return sort.probe(Long.parseLong(cursor.substring(0, colon)), cursor.substring(colon + 1));
+		}catch(NumberFormatException e){
+			throw new IllegalArgumentException("Malformed cursor: " + cursor);
+		}
+	}
+
+	/**
+	 * The stats of one chat room.
+	 */
+	public static final class Entry{
+		private final long roomId;
+		private final String name;
+		private final int members;
+		private final long messages;
+		private final long lastActivity;
+		private final long persistedBytes;
+
+		/**
+		 * @param id Chat room id.
+		 * @param roomName Chat room name.
+		 * @param memberCount Members in the chat room.
+		 * @param messageCount Chat records ever written.
+		 * @param lastActiveTime Time of the last activity. (milliseconds)
+		 * @param bytes Size of the chat room folder.
+		 */
+		public Entry(long id, String roomName, int memberCount, long messageCount, long lastActiveTime, long bytes){
+			roomId = id;
+			name = roomName == null ? "" : roomName;
+			members = memberCount;
+			messages = messageCount;
+			lastActivity = lastActiveTime;
+			persistedBytes = bytes;
+		}
+
+		public long getRoomId(){return roomId;}
+		public String getName(){return name;}
+		public int getMembers(){return members;}
+		public long getMessages(){return messages;}
+		public long getLastActivity(){return lastActivity;}
+		public long getPersistedBytes(){return persistedBytes;}
+	}
+
+	/**
+	 * One page of rooms.
+	 */
+	public static final class Page{
+		private final List<Entry> entries;
+		private final String next;
+		private final int total;
+		private final long takenAt;
+
+		Page(List<Entry> pageEntries, String nextCursor, int totalRooms, long time){
+			entries = pageEntries;
+			next = nextCursor;
+			total = totalRooms;
+			takenAt = time;
+		}
+
+		public List<Entry> getEntries(){return entries;}
+		/**
+		 * @return cursor of the next page; null if this is the last page.
+		 */
+		public String getNext(){return next;}
+		public int getTotal(){return total;}
+		public long getTakenAt(){return takenAt;}
+	}
+}
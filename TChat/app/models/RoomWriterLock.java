@@ -0,0 +1,72 @@
+package models;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import play.Logger;
+
+/**
+ * Lock making one node the only writer of a chat room's folder (history log, search index and snapshot),
+ * held as an exclusive file lock on <i>[roomId]/writer.lock</i>.
+ * <p>With sharding ({@link RoomShards}) the nodes share the chat room folders, and two nodes which
+ * see different rings for a while may both have the same chat room open. The lock is taken before the
+ * chat room is first written and released once it is closed. The operating system drops the lock of a
+ * node which dies, so it works as a lease. The shared file system has to support file locks.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class RoomWriterLock {
+
+	public static final String FILE_NAME = "writer.lock";
+
+	private final RandomAccessFile file;
+	private final FileLock lock;
+
+	private RoomWriterLock(RandomAccessFile lockFile, FileLock fileLock){
+		file = lockFile;
+		lock = fileLock;
+	}
+
+	/**
+	 * Take the writer lock of a chat room without waiting.
+	 * @param roomDir Chat room folder.
+	 * @param holder Name of the node taking the lock, written to the lock file for the operator.
+	 * @return the lock; null if another node, or another chat room instance of this node, holds it.
+	 * @throws IOException
+	 */
+	public static RoomWriterLock tryAcquire(File roomDir, String holder) throws IOException{
+		roomDir.mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(new File(roomDir, FILE_NAME), "rw");
+		FileLock fileLock = null;
+		try{
+			fileLock = raf.getChannel().tryLock();
+		}catch(OverlappingFileLockException e){
+			// Held by this node already.
+		}finally{
+			if(fileLock == null){
+				raf.close();
+			}
+		}
+		if(fileLock == null){
+			return null;
+		}
+		raf.setLength(0);
+		raf.write((holder + "\n").getBytes("UTF-8"));
+		return new RoomWriterLock(raf, fileLock);
+	}
+
+	/**
+	 * Release the lock: another node may write the chat room from now on.
+	 */
+	public void release(){
+		try{
+			lock.release();
+			file.close();
+		}catch(IOException e){
+			Logger.of(RoomWriterLock.class).info("Releasing chat room writer lock FAILed: " + e.getMessage());
+		}
+	}
+}
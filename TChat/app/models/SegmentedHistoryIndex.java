@@ -0,0 +1,332 @@
+package models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import models.ChatRoom.ChatRecord;
+import play.Logger;
+import utils.FileUtil;
+
+/**
+ * Search index over the whole chat history of one chat room, split into segments of
+ * <i>segmentRecords</i> chat records, each segment a {@link HistoryIndex}.
+ * <p>Only the newest (active) segment and the sealed segments not saved yet are kept in memory,
+ * so the heap used by the index is bounded however long the chat room lives. Saved segments are
+ * read in when a search reaches them, the most recently read ones are kept.</p>
+ * <ul>Index folder structure:
+ * 	<li>[roomId]/index                                - index folder of the chat room.</li>
+ * 	<ul><li>[firstSeq]_[lastSeq]_[firstTime]_[lastTime].seg  - one sealed segment, never written again.</li>
+ * 	<li>active.idx                                    - the active segment, rewritten on every save.</li></ul>
+ * </ul>
+ * <p>The index is saved with the chat room ({@link ChatRoom#persistChatRoom(String)}); records
+ * logged after the last save are indexed again from the history log when the chat room is read in.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class SegmentedHistoryIndex {
+
+	// Default number of chat records per segment.
+	public static final int DEFAULT_SEGMENT_RECORDS = 4096;
+	// Number of saved segments kept in memory once read.
+	private static final int CACHED_SEGMENTS = 2;
+	private static final String ACTIVE_FILE = "active.idx";
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private final File dir;
+	private final int segmentRecords;
+	private HistoryIndex active = new HistoryIndex();
+	// Sealed segments not saved yet, oldest first.
+	private final List<HistoryIndex> unsaved = new ArrayList<HistoryIndex>();
+	// First sequence number -> saved segment.
+	private final TreeMap<Long, SavedSegment> saved = new TreeMap<Long, SavedSegment>();
+	// Saved segments read in, least recently used first.
+	private final Map<File, HistoryIndex> cache = new LinkedHashMap<File, HistoryIndex>(4, 0.75f, true){
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, HistoryIndex> eldest){
+			return size() > CACHED_SEGMENTS;
+		}
+	};
+	// Sequence number of the last indexed chat record.
+	private long lastSeq = -1;
+
+	/**
+	 * An empty index.
+	 * @param indexDir Index folder.
+	 * @param records Chat records per segment.
+	 */
+	public SegmentedHistoryIndex(File indexDir, int records){
+		dir = indexDir;
+		segmentRecords = Math.max(1, records);
+	}
+
+	/**
+	 * Read in the saved index. Segments holding records beyond <i>logLastSeq</i> have been saved
+	 * before these records were logged and are dropped; they are indexed again from the log.
+	 * @param indexDir Index folder.
+	 * @param records Chat records per segment.
+	 * @param logLastSeq Sequence number of the last record of the history log.
+	 * @return the index; only the active segment is read.
+	 */
+	public static SegmentedHistoryIndex open(File indexDir, int records, long logLastSeq){
+		SegmentedHistoryIndex index = new SegmentedHistoryIndex(indexDir, records);
+		File[] files = indexDir.listFiles();
+		if(files == null){
+			return index;
+		}
+		for(File file: files){
+			if(!file.getName().endsWith(SEGMENT_SUFFIX)){
+				continue;
+			}
+			SavedSegment segment = SavedSegment.parse(file);
+			if(segment == null || segment.lastSeq > logLastSeq){
+				file.delete();
+			}else{
+				index.saved.put(segment.firstSeq, segment);
+			}
+		}
+		// Keep the saved segments which follow each other from the first one.
+		long expected = -1;
+		for(SavedSegment segment: new ArrayList<SavedSegment>(index.saved.values())){
+			if(expected >= 0 && segment.firstSeq != expected){
+				index.saved.remove(segment.firstSeq);
+				segment.file.delete();
+				continue;
+			}
+			expected = segment.lastSeq + 1;
+			index.lastSeq = segment.lastSeq;
+		}
+		File activeFile = new File(indexDir, ACTIVE_FILE);
+		FileUtil.restore(activeFile);
+		if(activeFile.exists()){
+			try{
+				HistoryIndex activeIndex = read(activeFile);
+				if(activeIndex.getFirstSeq() == index.lastSeq + 1 && activeIndex.getLastSeq() <= logLastSeq){
+					index.active = activeIndex;
+					index.lastSeq = activeIndex.getLastSeq();
+				}
+			}catch(IOException e){
+				Logger.of(SegmentedHistoryIndex.class).info("Reading search index " + activeFile.getPath() + " FAILed, rebuilding it: " + e.getMessage());
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return sequence number of the last indexed chat record; -1 if nothing has been indexed.
+	 */
+	public synchronized long getLastSeq(){return lastSeq;}
+
+	/**
+	 * Index a chat record. Records already indexed are ignored.
+	 * Once the active segment is full it is sealed, and saved on next {@link #save()}.
+	 * @param record Chat record.
+	 */
+	public synchronized void add(ChatRecord record){
+		if(record.getSeq() <= lastSeq){
+			return;
+		}
+		active.add(record);
+		lastSeq = record.getSeq();
+		if(active.getDocCount() >= segmentRecords){
+			unsaved.add(active);
+			active = new HistoryIndex();
+		}
+	}
+
+	/**
+	 * @return true if sealed segments wait to be saved.
+	 */
+	public synchronized boolean hasUnsaved(){
+		return !unsaved.isEmpty();
+	}
+
+	/**
+	 * Search the index, newest segments first, until <i>limit</i> matches are found.
+	 * Nothing is locked while saved segments are read.
+	 * @param query Search query.
+	 * @param limit Maximum number of results.
+	 * @return sequence numbers of matching chat records, most recent first.
+	 * @throws IOException
+	 */
+	public long[] search(HistoryIndex.Query query, int limit) throws IOException{
+		List<HistoryIndex> inMemory = new ArrayList<HistoryIndex>();
+		List<SavedSegment> onDisk;
+		synchronized(this){
+			inMemory.add(active);
+			for(int i = unsaved.size() - 1; i >= 0; i --){
+				inMemory.add(unsaved.get(i));
+			}
+			onDisk = new ArrayList<SavedSegment>(saved.descendingMap().values());
+		}
+		long[] seqs = new long[0];
+		for(HistoryIndex segment: inMemory){
+			if(seqs.length >= limit){
+				return seqs;
+			}
+			if(segment.getDocCount() > 0 && overlaps(query, segment.getFirstTime(), segment.getLastTime())){
+				seqs = concat(seqs, segment.search(query, limit - seqs.length));
+			}
+		}
+		for(SavedSegment segment: onDisk){
+			if(seqs.length >= limit){
+				return seqs;
+			}
+			if(overlaps(query, segment.firstTime, segment.lastTime)){
+				seqs = concat(seqs, cached(segment).search(query, limit - seqs.length));
+			}
+		}
+		return seqs;
+	}
+
+	private static boolean overlaps(HistoryIndex.Query query, long firstTime, long lastTime){
+		return lastTime >= query.getFromTime() && firstTime <= query.getToTime();
+	}
+
+	private static long[] concat(long[] seqs, long[] more){
+		long[] ret = Arrays.copyOf(seqs, seqs.length + more.length);
+		System.arraycopy(more, 0, ret, seqs.length, more.length);
+		return ret;
+	}
+
+	private HistoryIndex cached(SavedSegment segment) throws IOException{
+		synchronized(cache){
+			HistoryIndex index = cache.get(segment.file);
+			if(index != null){
+				return index;
+			}
+		}
+		HistoryIndex index = read(segment.file);
+		synchronized(cache){
+			cache.put(segment.file, index);
+		}
+		return index;
+	}
+
+	/**
+	 * Save the sealed segments not saved yet and the active segment. Each file is written to a
+	 * temporary file first and renamed, so a failed save leaves the saved index intact.
+	 * Records keep being indexed meanwhile; the active segment is only locked while it is serialized.
+	 * @throws IOException
+	 */
+	public void save() throws IOException{
+		List<HistoryIndex> sealed;
+		byte[] activeBytes;
+		synchronized(this){
+			sealed = new ArrayList<HistoryIndex>(unsaved);
+			activeBytes = serialize(active);
+		}
+		dir.mkdirs();
+		for(HistoryIndex segment: sealed){
+			SavedSegment savedSegment = new SavedSegment(new File(dir, segmentName(segment)), segment.getFirstSeq(),
+					segment.getLastSeq(), segment.getFirstTime(), segment.getLastTime());
+			FileUtil.write(savedSegment.file, serialize(segment));
+			synchronized(this){
+				unsaved.remove(segment);
+				saved.put(savedSegment.firstSeq, savedSegment);
+			}
+		}
+		FileUtil.write(new File(dir, ACTIVE_FILE), activeBytes);
+	}
+
+	/**
+	 * @return rough estimate of the heap used by the segments in memory. (bytes)
+	 */
+	public long estimateBytes(){
+		List<HistoryIndex> inMemory = new ArrayList<HistoryIndex>();
+		synchronized(this){
+			inMemory.add(active);
+			inMemory.addAll(unsaved);
+		}
+		synchronized(cache){
+			inMemory.addAll(cache.values());
+		}
+		long bytes = 0;
+		for(HistoryIndex segment: inMemory){
+			bytes += segment.estimateBytes();
+		}
+		return bytes;
+	}
+
+	private static String segmentName(HistoryIndex segment){
+		return String.format("%020d_%020d_%d_%d", segment.getFirstSeq(), segment.getLastSeq(),
+				segment.getFirstTime(), segment.getLastTime()) + SEGMENT_SUFFIX;
+	}
+
+	private static byte[] serialize(HistoryIndex index) throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		// The segment may be the active one, which is only changed under its own lock.
+		synchronized(index){
+			oos.writeObject(index);
+		}
+		oos.close();
+		return bytes.toByteArray();
+	}
+
+	private static HistoryIndex read(File file) throws IOException{
+		FileInputStream fis = new FileInputStream(file);
+		try{
+			byte[] content = new byte[(int) file.length()];
+			int n = 0;
+			while(n < content.length){
+				int read = fis.read(content, n, content.length - n);
+				if(read < 0){
+					throw new IOException("Unexpected end of " + file.getPath());
+				}
+				n += read;
+			}
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(content));
+			return (HistoryIndex) ois.readObject();
+		}catch(ClassNotFoundException e){
+			throw new IOException("Unreadable search index " + file.getPath() + ": " + e.getMessage());
+		}finally{
+			fis.close();
+		}
+	}
+
+	/**
+	 * A sealed segment on disk, described by its file name.
+	 */
+	private static class SavedSegment{
+		private final File file;
+		private final long firstSeq;
+		private final long lastSeq;
+		private final long firstTime;
+		private final long lastTime;
+
+		SavedSegment(File segmentFile, long first, long last, long from, long to){
+			file = segmentFile;
+			firstSeq = first;
+			lastSeq = last;
+			firstTime = from;
+			lastTime = to;
+		}
+
+		// The segment named by the file; null if the name is not a segment name.
+		static SavedSegment parse(File file){
+			String name = file.getName();
+			String[] parts = name.substring(0, name.length() - SEGMENT_SUFFIX.length()).split("_");
+			if(parts.length != 4){
+				return null;
+			}
+			try{
+				return new SavedSegment(file, Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+						Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+			}catch(NumberFormatException e){
+				return null;
+			}
+		}
+	}
+}
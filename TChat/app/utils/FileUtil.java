@@ -0,0 +1,74 @@
+package utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * File utility functions.
+ * @author shichaodong
+ * @version 1.0
+ */
+public class FileUtil {
+
+	/**
+	 * Write a file as a whole: the content is written and synced to a temporary file which then
+	 * replaces <i>file</i> in one atomic rename, so <i>file</i> holds either the old or the new content.
+	 * @param file File to be written.
+	 * @param content File content.
+	 * @throws IOException
+	 */
+	public static void write(File file, byte[] content) throws IOException{
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try{
+			fos.write(content);
+			fos.getFD().sync();
+		}finally{
+			fos.close();
+		}
+		replace(tmp, file);
+	}
+
+	/**
+	 * Rename <i>source</i> onto <i>target</i>, replacing <i>target</i> if it exists.
+	 * <p>Where the platform renames onto an existing file this is one atomic step. Elsewhere
+	 * <i>target</i> is first renamed to <i>target.bak</i>, never deleted, so one of the two files
+	 * always holds the old content; {@link #restore(File)} brings it back if the node dies in between.</p>
+	 * @param source File to be renamed.
+	 * @param target New name, replaced if it exists.
+	 * @throws IOException Renaming failed; <i>target</i> keeps its old content.
+	 */
+	public static void replace(File source, File target) throws IOException{
+		if(source.renameTo(target)){
+			return;
+		}
+		// Some platforms do not rename onto an existing file.
+		File backup = backupOf(target);
+		backup.delete();
+		if(target.exists() && !target.renameTo(backup)){
+			throw new IOException("Renaming " + target.getPath() + " to " + backup.getPath() + " FAILed.");
+		}
+		if(!source.renameTo(target)){
+			backup.renameTo(target);
+			throw new IOException("Renaming " + source.getPath() + " to " + target.getPath() + " FAILed.");
+		}
+		backup.delete();
+	}
+
+	/**
+	 * Bring back a file whose {@link #replace(File, File)} was cut off after it was moved aside.
+	 * Call it before reading a file written by {@link #write(File, byte[])} or {@link #replace(File, File)}.
+	 * @param file File to be restored.
+	 */
+	public static void restore(File file){
+		File backup = backupOf(file);
+		if(!file.exists() && backup.exists()){
+			backup.renameTo(file);
+		}
+	}
+
+	private static File backupOf(File file){
+		return new File(file.getPath() + ".bak");
+	}
+}
@@ -0,0 +1,518 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.node.ObjectNode;
+
+import play.Logger;
+import play.Logger.ALogger;
+import play.Play;
+import play.libs.Json;
+
+import com.sun.jersey.api.client.ClientResponse;
+
+/**
+ * Outbox for chat invitation mails.
+ * Invitations are queued by the request thread and sent by a background sender thread of the
+ * outbox's own, so starting a chat room never waits for the mail server and a slow mail server
+ * never holds up chat requests.
+ * <ul>
+ * 	<li>Invitations with the same sender, subject and body are sent with one request, up to
+ * 	<i>batchSize</i> recipients each. The body refers to the recipient as {@link #RECIPIENT}.</li>
+ * 	<li>Requests are sent at most <i>requestsPerSecond</i> times per second.</li>
+ * 	<li>All requests go through the HTTP client shared by {@link MailUtil}.</li>
+ * 	<li>Each invitation is identified by an idempotency key <i>[roomId]:[recipient]</i>; queuing an
+ * 	invitation whose key is known already does nothing. Keys of sent invitations and dead letters
+ * 	are forgotten after <i>keyRetention</i>.</li>
+ * 	<li>Failed invitations are retried with exponential backoff. An invitation which failed
+ * 	<i>maxAttempts</i> times, or which the mail server rejected, goes to the dead letter list.</li>
+ * 	<li>With a journal ({@link MailOutboxJournal}) the outbox survives restarts: invitations are
+ * 	delivered at least once.</li>
+ * </ul>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class MailOutbox {
+	private static final ALogger LOG = Logger.of(MailOutbox.class);
+	private static final Metrics.Histogram SEND_TIME = Metrics.histogram("mail_send_seconds", "Time of an invitation mail request to the mail server.");
+
+	// Placeholder for the recipient's address in an invitation body.
+	public static final String RECIPIENT = "%recipient.email%";
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final double DEFAULT_REQUESTS_PER_SECOND = 5;
+	public static final int DEFAULT_MAX_ATTEMPTS = 8;
+	// Backoff after the first failure, doubled after each further failure. (milliseconds)
+	public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+	public static final long DEFAULT_MAX_BACKOFF = 10 * 60000;
+	// Keys of sent invitations and dead letters are kept this long. (milliseconds)
+	public static final long DEFAULT_KEY_RETENTION = 7 * 24 * 3600000L;
+
+	private static MailOutbox instance;
+
+	private final String url;
+	private final int batchSize;
+	// Minimum time between two requests. (nanoseconds)
+	private final long requestInterval;
+	private final MailOutboxJournal journal;
+	private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long maxBackoff = DEFAULT_MAX_BACKOFF;
+	private long keyRetention = DEFAULT_KEY_RETENTION;
+
+	// Invitations to be sent, ordered by the time they are due.
+	private final DelayQueue<Entry> queue = new DelayQueue<Entry>();
+	// Invitations not sent yet: queued or being sent.
+	private final Map<String, Entry> pendingEntries = new LinkedHashMap<String, Entry>();
+	// Key of a sent invitation -> time it was sent, oldest first. (milliseconds)
+	private final LinkedHashMap<String, Long> sentKeys = new LinkedHashMap<String, Long>();
+	private final Map<String, DeadLetter> deadLetters = new LinkedHashMap<String, DeadLetter>();
+
+	private final ExecutorService sender = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "mail-outbox");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private volatile boolean running = false;
+	private long lastRequestTime = 0;
+
+	// Statistics.
+	private final AtomicLong sentRequests = new AtomicLong();
+	private final AtomicLong sentMails = new AtomicLong();
+	private final AtomicLong failedMails = new AtomicLong();
+
+	/**
+	 * Create an outbox which is not kept on disk.
+	 * @param apiUrl Mail API endpoint.
+	 * @param maxBatchSize Maximum number of recipients per request.
+	 * @param requestsPerSecond Maximum number of requests per second.
+	 */
+	public MailOutbox(String apiUrl, int maxBatchSize, double requestsPerSecond){
+		url = apiUrl;
+		batchSize = Math.max(1, maxBatchSize);
+		requestInterval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		journal = null;
+	}
+
+	/**
+	 * Create an outbox kept in a journal file. Invitations left in the journal are queued again.
+	 * The keys of sent invitations and the dead letters in the journal are kept for <i>keyRetention</i> from now on.
+	 * @param apiUrl Mail API endpoint.
+	 * @param maxBatchSize Maximum number of recipients per request.
+	 * @param requestsPerSecond Maximum number of requests per second.
+	 * @param journalFile Journal file.
+	 * @throws IOException
+	 */
+	public MailOutbox(String apiUrl, int maxBatchSize, double requestsPerSecond, File journalFile) throws IOException{
+		url = apiUrl;
+		batchSize = Math.max(1, maxBatchSize);
+		requestInterval = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		journal = new MailOutboxJournal(journalFile);
+
+		MailOutboxJournal.Replay replay = journal.replay();
+		for(Entry entry: replay.getPending()){
+			pendingEntries.put(entry.getKey(), entry);
+			queue.add(entry);
+		}
+		long now = System.currentTimeMillis();
+		for(String key: replay.getSentKeys()){
+			sentKeys.put(key, now);
+		}
+		for(DeadLetter deadLetter: replay.getDeadLetters()){
+			deadLetters.put(deadLetter.getEntry().getKey(), deadLetter);
+		}
+		LOG.info("Mail outbox " + journalFile.getPath() + ": " + queue.size() + " invitations pending, " +
+				deadLetters.size() + " dead letters.");
+	}
+
+	/**
+	 * Get the application's outbox, configured by <i>mail.url</i>, <i>mail.batch.size</i>,
+	 * <i>mail.rate.perSecond</i>, <i>mail.outbox.journal</i>, <i>mail.outbox.keyRetention</i> and <i>mail.retry.*</i>.
+	 * @return the outbox.
+	 */
+	public static synchronized MailOutbox getInstance(){
+		if(instance == null){
+			String apiUrl = Play.application().configuration().getString("mail.url");
+			Integer size = Play.application().configuration().getInt("mail.batch.size");
+			String rate = Play.application().configuration().getString("mail.rate.perSecond");
+			String journalPath = Play.application().configuration().getString("mail.outbox.journal");
+			apiUrl = apiUrl == null ? MailUtil.MAILGUN_URL : apiUrl;
+			int batch = size == null ? DEFAULT_BATCH_SIZE : size;
+			double requestsPerSecond = rate == null ? DEFAULT_REQUESTS_PER_SECOND : Double.parseDouble(rate);
+			try{
+				instance = new MailOutbox(apiUrl, batch, requestsPerSecond, new File(journalPath == null ? "outbox/mail.journal" : journalPath));
+			}catch(IOException e){
+				LOG.info("Reading mail outbox journal FAILed, invitations are kept in memory only: " + e.getMessage());
+				instance = new MailOutbox(apiUrl, batch, requestsPerSecond);
+			}
+			Integer attempts = Play.application().configuration().getInt("mail.retry.maxAttempts");
+			Long initial = Play.application().configuration().getMilliseconds("mail.retry.initialBackoff");
+			Long max = Play.application().configuration().getMilliseconds("mail.retry.maxBackoff");
+			instance.setRetryPolicy(attempts == null ? DEFAULT_MAX_ATTEMPTS : attempts,
+					initial == null ? DEFAULT_INITIAL_BACKOFF : initial,
+					max == null ? DEFAULT_MAX_BACKOFF : max);
+			Long retention = Play.application().configuration().getMilliseconds("mail.outbox.keyRetention");
+			instance.setKeyRetention(retention == null ? DEFAULT_KEY_RETENTION : retention);
+		}
+		return instance;
+	}
+
+	/**
+	 * @param attempts Number of attempts before an invitation goes to the dead letter list.
+	 * @param initialBackoffMillis Wait after the first failure, doubled after each further one.
+	 * @param maxBackoffMillis The longest wait between two attempts.
+	 */
+	public synchronized void setRetryPolicy(int attempts, long initialBackoffMillis, long maxBackoffMillis){
+		maxAttempts = Math.max(1, attempts);
+		initialBackoff = initialBackoffMillis;
+		maxBackoff = maxBackoffMillis;
+	}
+
+	/**
+	 * @param retentionMillis How long the keys of sent invitations and the dead letters are kept.
+	 * An invitation whose key has been forgotten is sent again when queued again.
+	 */
+	public synchronized void setKeyRetention(long retentionMillis){
+		keyRetention = retentionMillis;
+	}
+
+	/**
+	 * Queue an invitation. It is sent in the background.
+	 * @param invitation Invitation mail.
+	 * @return false if an invitation with the same idempotency key is known already.
+	 */
+	public boolean enqueue(Invitation invitation){
+		return enqueueAll(Collections.singletonList(invitation)) == 1;
+	}
+
+	/**
+	 * Queue invitations. They are written to the journal with one sync, outside the outbox's lock,
+	 * and handed to the sender once written.
+	 * @param invitations Invitation mails.
+	 * @return number of invitations queued; invitations whose idempotency key is known already are skipped.
+	 */
+	public int enqueueAll(Collection<Invitation> invitations){
+		List<Entry> entries = new ArrayList<Entry>();
+		synchronized(this){
+			pruneKeys();
+			for(Invitation invitation: invitations){
+				String key = invitation.getIdempotencyKey();
+				if(!pendingEntries.containsKey(key) && !sentKeys.containsKey(key) && !deadLetters.containsKey(key)){
+					Entry entry = new Entry(key, invitation);
+					pendingEntries.put(key, entry);
+					entries.add(entry);
+				}
+			}
+		}
+		if(journal != null && !entries.isEmpty()){
+			try{
+				journal.enqueued(entries);
+			}catch(IOException e){
+				LOG.info("Writing mail outbox journal FAILed, " + entries.size() + " invitations are kept in memory only: " + e.getMessage());
+			}
+		}
+		queue.addAll(entries);
+		return entries.size();
+	}
+
+	/**
+	 * Start sending queued invitations.
+	 */
+	public synchronized void start(){
+		if(running){
+			return;
+		}
+		running = true;
+		sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				while(running){
+					try{
+						sendNext();
+					}catch(InterruptedException e){
+						break;
+					}catch(Exception e){
+						LOG.info("Mail outbox sender FAILed: " + e.getMessage());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop sending. Invitations still queued are sent on next start if the outbox has a journal.
+	 */
+	public synchronized void stop(){
+		running = false;
+		sender.shutdownNow();
+	}
+
+	public int getQueueSize(){return queue.size();}
+	public long getSentRequests(){return sentRequests.get();}
+	public long getSentMails(){return sentMails.get();}
+	public long getFailedMails(){return failedMails.get();}
+
+	/**
+	 * @return invitations given up, oldest first.
+	 */
+	public synchronized List<DeadLetter> getDeadLetters(){
+		return new ArrayList<DeadLetter>(deadLetters.values());
+	}
+
+	/**
+	 * Wait for invitations which are due, then send all due ones grouped into batches.
+	 * @throws InterruptedException
+	 */
+	private void sendNext() throws InterruptedException{
+		Entry first = queue.take();
+		List<Entry> pending = new ArrayList<Entry>();
+		pending.add(first);
+		queue.drainTo(pending);
+
+		// Group invitations with the same mail.
+		Map<String, List<Entry>> groups = new LinkedHashMap<String, List<Entry>>();
+		for(Entry entry: pending){
+			List<Entry> group = groups.get(entry.getInvitation().getMailKey());
+			if(group == null){
+				group = new ArrayList<Entry>();
+				groups.put(entry.getInvitation().getMailKey(), group);
+			}
+			group.add(entry);
+		}
+		for(List<Entry> group: groups.values()){
+			for(int i = 0; i < group.size(); i += batchSize){
+				send(group.subList(i, Math.min(group.size(), i + batchSize)));
+			}
+		}
+	}
+
+	/**
+	 * Send one mail to a batch of recipients.
+	 * @param batch Invitations with the same sender, subject and body.
+	 * @throws InterruptedException
+	 */
+	private void send(List<Entry> batch) throws InterruptedException{
+		// Rate limiting.
+		long wait = lastRequestTime + requestInterval - System.nanoTime();
+		if(wait > 0){
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		lastRequestTime = System.nanoTime();
+
+		Invitation mail = batch.get(0).getInvitation();
+		List<String> to = new ArrayList<String>();
+		ObjectNode recipientVars = Json.newObject();
+		for(Entry entry: batch){
+			to.add(entry.getInvitation().getTo());
+			recipientVars.putObject(entry.getInvitation().getTo()).put("email", entry.getInvitation().getTo());
+		}
+		try{
+			long start = System.nanoTime();
+			ClientResponse response;
+			try{
+				response = MailUtil.sendBatchMail(url, mail.getFrom(), to, mail.getSubject(), mail.getBody(), recipientVars);
+			}finally{
+				SEND_TIME.observeSince(start);
+			}
+			int status = response.getStatus();
+			response.close();
+			sentRequests.incrementAndGet();
+			if(status / 100 == 2){
+				sent(batch);
+				LOG.info("Invitation mail of chat room(" + mail.getRoomId() + ") sent to " + batch.size() + " recipients.");
+			}else if(status / 100 == 4 && status != 429){
+				// The mail server will never accept this mail.
+				failed(batch, "HTTP " + status, false);
+			}else{
+				failed(batch, "HTTP " + status, true);
+			}
+		}catch(Exception e){
+			failed(batch, String.valueOf(e.getMessage()), true);
+		}
+	}
+
+	/**
+	 * Forget the keys of invitations sent and given up longer than <i>keyRetention</i> ago.
+	 * They leave the journal on its next compaction.
+	 */
+	private synchronized void pruneKeys(){
+		long expiry = System.currentTimeMillis() - keyRetention;
+		Iterator<Long> sentTimes = sentKeys.values().iterator();
+		while(sentTimes.hasNext() && sentTimes.next() < expiry){
+			sentTimes.remove();
+		}
+		Iterator<DeadLetter> dead = deadLetters.values().iterator();
+		while(dead.hasNext() && dead.next().getTime() < expiry){
+			dead.remove();
+		}
+	}
+
+	private synchronized void sent(List<Entry> batch){
+		sentMails.addAndGet(batch.size());
+		long now = System.currentTimeMillis();
+		for(Entry entry: batch){
+			pendingEntries.remove(entry.getKey());
+			sentKeys.put(entry.getKey(), now);
+		}
+		pruneKeys();
+		if(journal != null){
+			try{
+				journal.sent(batch);
+				journal.compactIfNeeded(pendingEntries.values(), sentKeys.keySet(), deadLetters.values());
+			}catch(IOException e){
+				// The invitations may be sent once more after a restart.
+				LOG.info("Writing mail outbox journal FAILed: " + e.getMessage());
+			}
+		}
+	}
+
+	private synchronized void failed(List<Entry> batch, String reason, boolean retry){
+		failedMails.addAndGet(batch.size());
+		List<Entry> retries = new ArrayList<Entry>();
+		List<DeadLetter> dead = new ArrayList<DeadLetter>();
+		for(Entry entry: batch){
+			entry.setAttempts(entry.getAttempts() + 1);
+			if(retry && entry.getAttempts() < maxAttempts){
+				entry.setDueTime(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff(entry.getAttempts())));
+				retries.add(entry);
+			}else{
+				DeadLetter deadLetter = new DeadLetter(entry, reason);
+				pendingEntries.remove(entry.getKey());
+				deadLetters.put(entry.getKey(), deadLetter);
+				dead.add(deadLetter);
+			}
+		}
+		pruneKeys();
+		if(journal != null){
+			try{
+				journal.attempted(retries);
+				journal.dead(dead);
+			}catch(IOException e){
+				LOG.info("Writing mail outbox journal FAILed: " + e.getMessage());
+			}
+		}
+		queue.addAll(retries);
+		Invitation mail = batch.get(0).getInvitation();
+		LOG.info("Invitation mail of chat room(" + mail.getRoomId() + ") FAILed: " + reason + " [" +
+				retries.size() + " to be retried, " + dead.size() + " dead letters]");
+	}
+
+	/**
+	 * @param attempts Number of failed attempts.
+	 * @return wait before the next attempt. (milliseconds)
+	 */
+	long backoff(int attempts){
+		long wait = initialBackoff;
+		for(int i = 1; i < attempts && wait < maxBackoff; i ++){
+			wait *= 2;
+		}
+		return Math.min(wait, maxBackoff);
+	}
+
+	/**
+	 * A chat invitation mail to one recipient.
+	 */
+	public static class Invitation{
+		private final long roomId;
+		private final String from;
+		private final String to;
+		private final String subject;
+		private final String body;
+
+		/**
+		 * @param id Chat room's id.
+		 * @param sender E-mail sender.
+		 * @param recipient E-mail recipient.
+		 * @param mailSubject E-mail subject.
+		 * @param mailBody E-mail body, the recipient's address written as {@link MailOutbox#RECIPIENT}.
+		 */
+		public Invitation(long id, String sender, String recipient, String mailSubject, String mailBody){
+			roomId = id;
+			from = sender;
+			to = recipient;
+			subject = mailSubject;
+			body = mailBody;
+		}
+		public long getRoomId(){return roomId;}
+		public String getFrom(){return from;}
+		public String getTo(){return to;}
+		public String getSubject(){return subject;}
+		public String getBody(){return body;}
+
+		/**
+		 * @return key identifying the invitation: one invitation per chat room and recipient.
+		 */
+		public String getIdempotencyKey(){return roomId + ":" + to.trim().toLowerCase();}
+
+		// Invitations with the same key can be sent with one request.
+		String getMailKey(){return from + "\n" + subject + "\n" + body;}
+	}
+
+	/**
+	 * An invitation in the outbox, with its delivery state.
+	 */
+	public static class Entry implements Delayed{
+		private final String key;
+		private final Invitation invitation;
+		private int attempts = 0;
+		// System.nanoTime() at which the next attempt is due.
+		private long dueTime = System.nanoTime();
+
+		public Entry(String idempotencyKey, Invitation mail){
+			key = idempotencyKey;
+			invitation = mail;
+		}
+		public String getKey(){return key;}
+		public Invitation getInvitation(){return invitation;}
+		public int getAttempts(){return attempts;}
+		public void setAttempts(int n){attempts = n;}
+		void setDueTime(long time){dueTime = time;}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			long diff = dueTime - ((Entry) o).dueTime;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+
+	/**
+	 * An invitation given up.
+	 */
+	public static class DeadLetter{
+		private final Entry entry;
+		private final String reason;
+		// Time the dead letter was created or read from the journal. (milliseconds)
+		private final long time = System.currentTimeMillis();
+
+		public DeadLetter(Entry deadEntry, String failure){
+			entry = deadEntry;
+			reason = failure;
+		}
+		public Entry getEntry(){return entry;}
+		public String getReason(){return reason;}
+		public long getTime(){return time;}
+	}
+}
@@ -0,0 +1,352 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import play.Logger;
+import play.Logger.ALogger;
+import utils.MailOutbox.DeadLetter;
+import utils.MailOutbox.Entry;
+import utils.MailOutbox.Invitation;
+
+/**
+ * Append-only journal of the invitation mail outbox ({@link MailOutbox}).
+ * Every change of an invitation's state is appended and synced before it takes effect:
+ * <ul>
+ * 	<li>ENQUEUED  - invitation queued. (idempotency key and mail)</li>
+ * 	<li>ATTEMPTED - sending failed, number of attempts so far.</li>
+ * 	<li>SENT      - invitation sent.</li>
+ * 	<li>DEAD      - invitation given up, with the reason.</li>
+ * </ul>
+ * Replaying the journal on start gives back the invitations still to be sent, the keys already sent and
+ * the dead letters. Records are framed as <i>[payload length][CRC32 of payload][payload]</i> like the
+ * chat history log, so a record torn by a crash is cut off. Once the journal holds many more records than
+ * live entries it is rewritten with one record per entry.
+ * @author shichaodong
+ * @version 1.0
+ */
+public class MailOutboxJournal {
+	private static final ALogger LOG = Logger.of(MailOutboxJournal.class);
+
+	private static final byte ENQUEUED = 1;
+	private static final byte ATTEMPTED = 2;
+	private static final byte SENT = 3;
+	private static final byte DEAD = 4;
+
+	// Frames larger than this are considered corrupted.
+	private static final int MAX_RECORD_BYTES = 1024 * 1024;
+	// Frame header: payload length + CRC32.
+	private static final int FRAME_HEADER_BYTES = 8;
+	// The journal is compacted once it holds this many records more than live entries.
+	private static final int COMPACT_THRESHOLD = 10000;
+
+	private final File file;
+	// Number of records in the journal.
+	private int records = 0;
+
+	public MailOutboxJournal(File journalFile){
+		file = journalFile;
+	}
+
+	/**
+	 * Replay the journal. A record torn at the end of the journal is cut off.
+	 * @return state of the outbox when it was last running.
+	 * @throws IOException
+	 */
+	public synchronized Replay replay() throws IOException{
+		Replay replay = new Replay();
+		records = 0;
+		FileUtil.restore(file);
+		if(!file.exists()){
+			return replay;
+		}
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		long validBytes = 0;
+		CRC32 crc = new CRC32();
+		try{
+			while(true){
+				int length;
+				try{
+					length = dis.readInt();
+				}catch(EOFException e){
+					break;
+				}
+				if(length < 0 || length > MAX_RECORD_BYTES){
+					break;
+				}
+				byte[] payload = new byte[length];
+				int checksum;
+				try{
+					checksum = dis.readInt();
+					dis.readFully(payload);
+				}catch(EOFException e){
+					break;
+				}
+				crc.reset();
+				crc.update(payload, 0, length);
+				if((int)crc.getValue() != checksum){
+					break;
+				}
+				validBytes += FRAME_HEADER_BYTES + length;
+				records ++;
+				replay.apply(new DataInputStream(new ByteArrayInputStream(payload)));
+			}
+		}finally{
+			dis.close();
+		}
+		if(validBytes < file.length()){
+			LOG.info("Mail outbox journal " + file.getPath() + " has a torn tail, truncated to " + validBytes + " bytes.");
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try{
+				raf.setLength(validBytes);
+			}finally{
+				raf.close();
+			}
+		}
+		return replay;
+	}
+
+	/**
+	 * Record queued invitations.
+	 * @param entries Outbox entries.
+	 * @throws IOException
+	 */
+	public synchronized void enqueued(Collection<Entry> entries) throws IOException{
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		for(Entry entry: entries){
+			payloads.add(enqueuedRecord(entry));
+		}
+		append(payloads);
+	}
+
+	/**
+	 * Record failed attempts of invitations which will be retried.
+	 * @param entries Outbox entries.
+	 * @throws IOException
+	 */
+	public synchronized void attempted(Collection<Entry> entries) throws IOException{
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		for(Entry entry: entries){
+			payloads.add(attemptedRecord(entry));
+		}
+		append(payloads);
+	}
+
+	/**
+	 * Record sent invitations.
+	 * @param entries Outbox entries.
+	 * @throws IOException
+	 */
+	public synchronized void sent(Collection<Entry> entries) throws IOException{
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		for(Entry entry: entries){
+			payloads.add(sentRecord(entry.getKey()));
+		}
+		append(payloads);
+	}
+
+	/**
+	 * Record invitations given up.
+	 * @param deadLetters Dead letters.
+	 * @throws IOException
+	 */
+	public synchronized void dead(Collection<DeadLetter> deadLetters) throws IOException{
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		for(DeadLetter deadLetter: deadLetters){
+			payloads.add(deadRecord(deadLetter));
+		}
+		append(payloads);
+	}
+
+	/**
+	 * Rewrite the journal with one record per live entry if it has grown much larger than that.
+	 * @param pending Invitations still to be sent.
+	 * @param sentKeys Keys of the sent invitations.
+	 * @param deadLetters Dead letters.
+	 * @throws IOException
+	 */
+	public synchronized void compactIfNeeded(Collection<Entry> pending, Collection<String> sentKeys,
+			Collection<DeadLetter> deadLetters) throws IOException{
+		int live = 2 * pending.size() + sentKeys.size() + 2 * deadLetters.size();
+		if(records - live < COMPACT_THRESHOLD){
+			return;
+		}
+		List<byte[]> payloads = new ArrayList<byte[]>();
+		for(String key: sentKeys){
+			payloads.add(sentRecord(key));
+		}
+		for(Entry entry: pending){
+			payloads.add(enqueuedRecord(entry));
+			payloads.add(attemptedRecord(entry));
+		}
+		for(DeadLetter deadLetter: deadLetters){
+			payloads.add(enqueuedRecord(deadLetter.getEntry()));
+			payloads.add(deadRecord(deadLetter));
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		tmp.delete();
+		write(tmp, payloads);
+		// The old journal stays in place until the new one replaces it.
+		FileUtil.replace(tmp, file);
+		LOG.info("Mail outbox journal compacted from " + records + " to " + payloads.size() + " records.");
+		records = payloads.size();
+	}
+
+	private void append(List<byte[]> payloads) throws IOException{
+		if(payloads.isEmpty()){
+			return;
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		if(dir != null){
+			dir.mkdirs();
+		}
+		write(file, payloads);
+		records += payloads.size();
+	}
+
+	private static void write(File f, List<byte[]> payloads) throws IOException{
+		FileOutputStream fos = new FileOutputStream(f, true);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+		CRC32 crc = new CRC32();
+		try{
+			for(byte[] payload: payloads){
+				crc.reset();
+				crc.update(payload, 0, payload.length);
+				dos.writeInt(payload.length);
+				dos.writeInt((int)crc.getValue());
+				dos.write(payload);
+			}
+			dos.flush();
+			fos.getFD().sync();
+		}finally{
+			dos.close();
+		}
+	}
+
+	// -- record payload
+
+	private static byte[] enqueuedRecord(Entry entry) throws IOException{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(payload);
+		Invitation invitation = entry.getInvitation();
+		out.writeByte(ENQUEUED);
+		writeString(out, entry.getKey());
+		out.writeLong(invitation.getRoomId());
+		writeString(out, invitation.getFrom());
+		writeString(out, invitation.getTo());
+		writeString(out, invitation.getSubject());
+		writeString(out, invitation.getBody());
+		out.flush();
+		return payload.toByteArray();
+	}
+
+	private static byte[] attemptedRecord(Entry entry) throws IOException{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(ATTEMPTED);
+		writeString(out, entry.getKey());
+		out.writeInt(entry.getAttempts());
+		out.flush();
+		return payload.toByteArray();
+	}
+
+	private static byte[] sentRecord(String key) throws IOException{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(SENT);
+		writeString(out, key);
+		out.flush();
+		return payload.toByteArray();
+	}
+
+	private static byte[] deadRecord(DeadLetter deadLetter) throws IOException{
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(payload);
+		out.writeByte(DEAD);
+		writeString(out, deadLetter.getEntry().getKey());
+		out.writeInt(deadLetter.getEntry().getAttempts());
+		writeString(out, deadLetter.getReason());
+		out.flush();
+		return payload.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException{
+		if(str == null){
+			out.writeInt(-1);
+		}else{
+			byte[] bytes = str.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException{
+		int length = in.readInt();
+		if(length < 0){
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * State of the outbox rebuilt from the journal.
+	 */
+	public static class Replay{
+		// Key -> invitation still to be sent, in queuing order.
+		private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+		private final Set<String> sentKeys = new LinkedHashSet<String>();
+		private final Map<String, DeadLetter> deadLetters = new LinkedHashMap<String, DeadLetter>();
+
+		public Collection<Entry> getPending(){return pending.values();}
+		public Set<String> getSentKeys(){return sentKeys;}
+		public Collection<DeadLetter> getDeadLetters(){return deadLetters.values();}
+
+		private void apply(DataInputStream in) throws IOException{
+			byte type = in.readByte();
+			String key = readString(in);
+			if(type == ENQUEUED){
+				long roomId = in.readLong();
+				Invitation invitation = new Invitation(roomId, readString(in), readString(in), readString(in), readString(in));
+				if(!sentKeys.contains(key) && !deadLetters.containsKey(key)){
+					pending.put(key, new Entry(key, invitation));
+				}
+			}else if(type == ATTEMPTED){
+				Entry entry = pending.get(key);
+				if(entry != null){
+					entry.setAttempts(in.readInt());
+				}
+			}else if(type == SENT){
+				pending.remove(key);
+				sentKeys.add(key);
+			}else if(type == DEAD){
+				Entry entry = pending.remove(key);
+				int attempts = in.readInt();
+				String reason = readString(in);
+				if(entry != null){
+					entry.setAttempts(attempts);
+					deadLetters.put(key, new DeadLetter(entry, reason));
+				}
+			}
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package utils;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
 import javax.mail.Address;
@@ -13,6 +15,8 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 import javax.ws.rs.core.MediaType;
 
+import org.codehaus.jackson.JsonNode;
+
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
@@ -21,10 +25,19 @@ import com.sun.jersey.core.util.MultivaluedMapImpl;
 
 import play.Logger;
 import play.Logger.ALogger;
+import play.libs.Json;
 
 public class MailUtil {
 	private static final ALogger LOG = Logger.of(MailUtil.class);
 	
+	public static final String MAILGUN_URL = "https://api.mailgun.net/v2/tchat.mailgun.org/messages";
+	// Timeouts (milliseconds) of mail requests.
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 30000;
+	
+	// One client for all mail requests. (creating a client per request is expensive)
+	private static final Client client = createClient();
+	
 	/**
 	 * This method sends simple mail via HTTP.
 	 *  <p>Note: This method uses MailGun(Jersey)</p>
@@ -35,26 +48,42 @@ public class MailUtil {
 	 * @return Response from mail server (MailGun)
 	 */
 	public static ClientResponse sendSimpleMail(String from, String[] to, String subject, String body) throws Exception{
+		return sendBatchMail(MAILGUN_URL, from, to == null ? null : Arrays.asList(to), subject, body, null);
+	}
+	
+	/**
+	 * This method sends one mail to a group of recipients with one HTTP request.
+	 * <p>Note: With recipient variables every recipient receives their own copy of the mail
+	 * and %recipient.[name]% in the body is replaced with the recipient's variable [name].</p>
+	 * @param url Mail API endpoint.
+	 * @param from E-mail sender.
+	 * @param to   E-mail recipients.
+	 * @param subject E-mail subject.
+	 * @param body E-mail body.
+	 * @param recipientVars Recipient address -> variables. (null for none)
+	 * @return Response from mail server (MailGun)
+	 */
+	public static ClientResponse sendBatchMail(String url, String from, List<String> to, String subject, String body,
+			JsonNode recipientVars) throws Exception{
 		
 	   if(from == null || from == ""){
 		   throw new Exception("Please set email sender properly.");
 	   }
 	   
-	   if(to == null || to.length == 0){
+	   if(to == null || to.size() == 0){
 		   throw new Exception("Please set email recipients properly.");
 	   }
 	   
-       Client client = Client.create();
-       client.addFilter(new HTTPBasicAuthFilter("api",
-                       "key-1xigy8-dpzbuy6euywdr2se-6yiu88d3"));
-       WebResource webResource =
-               client.resource("https://api.mailgun.net/v2/tchat.mailgun.org/messages");
+       WebResource webResource = client.resource(url);
        MultivaluedMapImpl formData = new MultivaluedMapImpl();
        // Set email sender
        formData.add("from", from);
        // Set email recipients.
-       for(int i = 0; i < to.length; i ++){
-    	   formData.add("to", to[i]);
+       for(String recipient: to){
+    	   formData.add("to", recipient);
+       }
+       if(recipientVars != null){
+    	   formData.add("recipient-variables", Json.stringify(recipientVars));
        }
        // Set email subject
        formData.add("subject", subject);
@@ -63,6 +92,19 @@ public class MailUtil {
        return webResource.type(MediaType.APPLICATION_FORM_URLENCODED).post(ClientResponse.class, formData);
 	}
 	
+	/**
+	 * Create the HTTP client shared by all mail requests.
+	 * The client is thread safe and keeps its connections alive between requests.
+	 */
+	private static Client createClient(){
+		Client c = Client.create();
+		c.setConnectTimeout(CONNECT_TIMEOUT);
+		c.setReadTimeout(READ_TIMEOUT);
+		c.addFilter(new HTTPBasicAuthFilter("api",
+                "key-1xigy8-dpzbuy6euywdr2se-6yiu88d3"));
+		return c;
+	}
+	
 	/**
 	 * Sending email utility function via normal port 25.
 	 * <p>Note: This method uses JavaMail</p>
@@ -0,0 +1,270 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of the application's metrics, written out in the Prometheus text format by {@link #scrape()}.
+ * <p>Counters and histograms are updated on the hot path (the chat room actors, the mail outbox) and
+ * only touch preallocated atomic fields there: recording allocates nothing and takes no lock.
+ * Gauges are read when the metrics are scraped.</p>
+ * <p>Metrics are registered once by name; registering a name again returns the metric registered first.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public final class Metrics {
+
+	/**
+	 * Upper bounds of the histogram buckets, in nanoseconds: 100us to 10s.
+	 */
+	private static final long[] BUCKETS = {
+		100000L, 250000L, 500000L,
+		1000000L, 2500000L, 5000000L,
+		10000000L, 25000000L, 50000000L,
+		100000000L, 250000000L, 500000000L,
+		1000000000L, 2500000000L, 5000000000L, 10000000000L
+	};
+	// The bucket bounds as written out, in seconds.
+	private static final String[] BUCKET_LABELS = new String[BUCKETS.length];
+	static{
+		for(int i = 0; i < BUCKETS.length; i ++){
+			BUCKET_LABELS[i] = seconds(BUCKETS[i]);
+		}
+	}
+
+	// Metric name -> metric, written out in name order.
+	private static final ConcurrentSkipListMap<String, Metric> registry = new ConcurrentSkipListMap<String, Metric>();
+
+	private Metrics(){}
+
+	// -- Registration
+
+	/**
+	 * @param name Metric name, e.g. chat_messages_total.
+	 * @param help One line description.
+	 * @return the counter registered under <i>name</i>.
+	 */
+	public static Counter counter(String name, String help){
+		return register(new Counter(name, help));
+	}
+
+	/**
+	 * @param name Metric name, e.g. chat_persist_seconds.
+	 * @param help One line description.
+	 * @return the latency histogram registered under <i>name</i>.
+	 */
+	public static Histogram histogram(String name, String help){
+		return register(new Histogram(name, help));
+	}
+
+	/**
+	 * Register a gauge, read on every scrape. A gauge registered again under the same name replaces the old one,
+	 * so that it does not keep reading the state of a stopped application.
+	 * @param name Metric name.
+	 * @param help One line description.
+	 * @param gauge Reads the value.
+	 */
+	public static void gauge(String name, String help, Gauge gauge){
+		registry.put(name, new GaugeMetric(name, help, null, gauge, null));
+	}
+
+	/**
+	 * Register a gauge with one value per label value, e.g. the number of members per chat room.
+	 * @param name Metric name.
+	 * @param help One line description.
+	 * @param label Label name, e.g. room.
+	 * @param family Reads the values, by label value.
+	 */
+	public static void gauges(String name, String help, String label, GaugeFamily family){
+		registry.put(name, new GaugeMetric(name, help, label, null, family));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Metric> T register(T metric){
+		Metric registered = registry.putIfAbsent(metric.name, metric);
+		if(registered == null){
+			return metric;
+		}
+		if(registered.getClass() != metric.getClass()){
+			throw new IllegalArgumentException("Metric " + metric.name + " is already registered as another type.");
+		}
+		return (T) registered;
+	}
+
+	// -- Exposition
+
+	/**
+	 * @return all metrics in the Prometheus text format (version 0.0.4).
+	 */
+	public static String scrape(){
+		StringBuilder sb = new StringBuilder(4096);
+		for(Metric metric: registry.values()){
+			sb.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+			sb.append("# TYPE ").append(metric.name).append(' ').append(metric.type()).append('\n');
+			metric.write(sb);
+		}
+		return sb.toString();
+	}
+
+	private static String seconds(long nanos){
+		return Double.toString(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+	}
+
+	private static String escape(String labelValue){
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String number(double value){
+		if(value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15){
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	// -- Metrics
+
+	/**
+	 * Reads the value of a gauge.
+	 */
+	public static interface Gauge{
+		double value();
+	}
+
+	/**
+	 * Reads the values of a gauge with a label, by label value.
+	 */
+	public static interface GaugeFamily{
+		Map<String, ? extends Number> values();
+	}
+
+	private static abstract class Metric{
+		final String name;
+		final String help;
+
+		Metric(String metricName, String metricHelp){
+			name = metricName;
+			help = metricHelp;
+		}
+
+		abstract String type();
+		abstract void write(StringBuilder sb);
+	}
+
+	/**
+	 * A count which only goes up, e.g. the number of chat messages since start.
+	 */
+	public static final class Counter extends Metric{
+		private final AtomicLong count = new AtomicLong();
+
+		Counter(String metricName, String metricHelp){
+			super(metricName, metricHelp);
+		}
+
+		public void inc(){count.incrementAndGet();}
+		public void add(long n){count.addAndGet(n);}
+		public long get(){return count.get();}
+
+		@Override
+		String type(){return "counter";}
+
+		@Override
+		void write(StringBuilder sb){
+			sb.append(name).append(' ').append(count.get()).append('\n');
+		}
+	}
+
+	/**
+	 * Distribution of durations over fixed buckets, from 100us to 10s.
+	 * <pre>
+	 * long start = System.nanoTime();
+	 * ...
+	 * histogram.observeSince(start);
+	 * </pre>
+	 */
+	public static final class Histogram extends Metric{
+		// Observations per bucket; the last bucket is +Inf.
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong sum = new AtomicLong();
+
+		Histogram(String metricName, String metricHelp){
+			super(metricName, metricHelp);
+		}
+
+		/**
+		 * @param nanos Duration in nanoseconds.
+		 */
+		public void observeNanos(long nanos){
+			int bucket = Arrays.binarySearch(BUCKETS, nanos);
+			counts.incrementAndGet(bucket < 0 ? -bucket - 1 : bucket);
+			sum.addAndGet(nanos);
+		}
+
+		/**
+		 * @param startNanos Start time, from System.nanoTime().
+		 */
+		public void observeSince(long startNanos){
+			observeNanos(System.nanoTime() - startNanos);
+		}
+
+		public long getCount(){
+			long count = 0;
+			for(int i = 0; i < counts.length(); i ++){
+				count += counts.get(i);
+			}
+			return count;
+		}
+
+		/**
+		 * @return sum of the durations. (nanoseconds)
+		 */
+		public long getSum(){return sum.get();}
+
+		@Override
+		String type(){return "histogram";}
+
+		@Override
+		void write(StringBuilder sb){
+			long cumulative = 0;
+			for(int i = 0; i < BUCKETS.length; i ++){
+				cumulative += counts.get(i);
+				sb.append(name).append("_bucket{le=\"").append(BUCKET_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += counts.get(BUCKETS.length);
+			sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+			sb.append(name).append("_sum ").append(seconds(sum.get())).append('\n');
+			sb.append(name).append("_count ").append(cumulative).append('\n');
+		}
+	}
+
+	private static final class GaugeMetric extends Metric{
+		private final String label;
+		private final Gauge gauge;
+		private final GaugeFamily family;
+
+		GaugeMetric(String metricName, String metricHelp, String labelName, Gauge metricGauge, GaugeFamily gaugeFamily){
+			super(metricName, metricHelp);
+			label = labelName;
+			gauge = metricGauge;
+			family = gaugeFamily;
+		}
+
+		@Override
+		String type(){return "gauge";}
+
+		@Override
+		void write(StringBuilder sb){
+			if(gauge != null){
+				sb.append(name).append(' ').append(number(gauge.value())).append('\n');
+				return;
+			}
+			for(Map.Entry<String, ? extends Number> value: family.values().entrySet()){
+				sb.append(name).append('{').append(label).append("=\"").append(escape(value.getKey())).append("\"} ")
+					.append(number(value.getValue().doubleValue())).append('\n');
+			}
+		}
+	}
+}
@@ -1,8 +1,44 @@
 package utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import models.ChatRoom.ChatRecord;
 
 public class SearchUtil {
+	
+	// Number of compiled patterns kept for reuse.
+	private static final int PATTERN_CACHE_SIZE = 64;
+	
+	// Recently used compiled patterns. (LRU, access ordered)
+	private static final Map<String, CompiledPattern> patternCache = Collections.synchronizedMap(
+		new LinkedHashMap<String, CompiledPattern>(PATTERN_CACHE_SIZE * 2, 0.75f, true){
+			private static final long serialVersionUID = -1825403307563947162L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CompiledPattern> eldest){
+				return size() > PATTERN_CACHE_SIZE;
+			}
+		});
+	
+	/**
+	 * Get the compiled form of a pattern. Compiled patterns are cached, so repeated
+	 * searches for the same text skip the preprocessing.
+	 * @param pattern Pattern to be searched. (case insensitive)
+	 * @return the compiled pattern.
+	 */
+	public static CompiledPattern compile(String pattern){
+		CompiledPattern compiled = patternCache.get(pattern);
+		if(compiled == null){
+			compiled = new CompiledPattern(pattern);
+			patternCache.put(pattern, compiled);
+		}
+		return compiled;
+	}
+	
 	/**
 	 * Search pattern string in the target string.
 	 * @param target The chat room history.
@@ -11,173 +47,301 @@ public class SearchUtil {
 	 */
 	public static ArrayList<String> searchChatHistory(String target, String pattern){
 		
-		ArrayList<Integer> indexList = searchByBM(target, pattern);
+		int[] matches = compile(pattern).findAll(target);
 		
 		ArrayList<String> retList = new ArrayList<String>();
-		// If only one element in indexList, no match.
-		if(indexList.size() == 1){
-			// Final processed chat history.
-			retList.add(target);
-			// Number of found matches.
-			retList.add("0");
-			return retList;
-		}else{
-			String leftTag = "<span style='background-color:yellow;'>";
-			String rightTag = "</span>";
-			StringBuilder sb = new StringBuilder(target);
-			// 39 7
-			int leftLen = leftTag.length(), rightLen = rightTag.length();
-			// 0 1 2 3 4 5
-			for(int i = 0; i < indexList.size() - 1; i ++){
-				// Add left span tag.
-				if(i % 2 == 0){
-					int realLeftIndex = indexList.get(i) + (i / 2) * (leftLen + rightLen);
-					sb.insert(realLeftIndex, leftTag);
-				}
-				// Add right span tag.
-				else{
-					int realRightIndex = indexList.get(i) +  (i / 2 ) * (leftLen + rightLen) + leftLen + 1;
-					sb.insert(realRightIndex, rightTag);
+		// Final processed chat history.
+		retList.add(highlight(target, matches, pattern.length()));
+		// Number of found matches.
+		retList.add(String.valueOf(matches.length));
+		return retList;
+	}
+	
+	/**
+	 * Search chat records one at a time, without concatenating the chat history.
+	 * @param records Chat records to be searched.
+	 * @param pattern The sub-string to be searched in the chat records' text.
+	 * @param listener Called for every chat record with at least one match.
+	 * @return number of found matches.
+	 */
+	public static int searchChatRecords(Iterable<ChatRecord> records, String pattern, MatchListener listener){
+		CompiledPattern compiled = compile(pattern);
+		int cnt = 0;
+		for(ChatRecord record: records){
+			if(record.getText() == null){
+				continue;
+			}
+			int[] matches = compiled.findAll(record.getText());
+			if(matches.length > 0){
+				cnt += matches.length;
+				listener.onMatch(record, matches);
+			}
+		}
+		return cnt;
+	}
+	
+	/**
+	 * Highlight all occurrences of the terms in a text (case insensitive).
+	 * Overlapping occurrences are merged into one highlighted span.
+	 * @param text Text to be highlighted.
+	 * @param terms Terms to be highlighted.
+	 * @return text with matches highlighted.
+	 */
+	public static String highlight(String text, List<String> terms){
+		boolean[] matched = new boolean[text.length()];
+		boolean found = false;
+		for(String term: terms){
+			if(term.length() == 0){
+				continue;
+			}
+			for(int start: compile(term).findAll(text)){
+				for(int j = start; j < start + term.length(); j ++){
+					matched[j] = true;
 				}
+				found = true;
 			}
-			// Final processed chat history.
-			retList.add(sb.toString());
-			// Number of found matches.
-			retList.add(indexList.get(indexList.size() - 1).toString());
-			return retList;
 		}
+		if(!found){
+			return text;
+		}
+		return highlight(text, matched);
 	}
 	
-//	public static void main(String[] args){
-//		String target = "hello, backstreet boys comback again! backstreet";
-//		String pattern = "backstreet";
-////		target = "xxxbacdvvvbacdbb";
-////		pattern = "bacd";
-//		ArrayList<String> retList = searchChatHistory(target, pattern);
-//		BoyerMoore bm = new BoyerMoore(target, pattern);
-//		ArrayList<Integer>  retIList = new ArrayList<Integer> ();
-//		retIList = bm.bm();
-//		for(int i = 0; i < retList.size(); i ++)
-//			System.out.print(retList.get(i) + " ");
-//		System.out.println();
-//		for(int i = 0; i < retIList.size(); i ++)
-//			System.out.print(retIList.get(i) + " ");
-//		System.out.println();
-//	}
+	private static String highlight(String text, int[] matches, int length){
+		if(matches.length == 0){
+			return text;
+		}
+		boolean[] matched = new boolean[text.length()];
+		for(int start: matches){
+			for(int j = start; j < start + length; j ++){
+				matched[j] = true;
+			}
+		}
+		return highlight(text, matched);
+	}
 	
-	private static ArrayList<Integer> searchByBM(String target, String pattern){
-		String target1 = target.toLowerCase();
-		String pattern1 = pattern.toLowerCase();
-		
-		BoyerMoore bm = new BoyerMoore(target1, pattern1);
-		return bm.bm();
+	private static String highlight(String text, boolean[] matched){
+		String leftTag = "<span style='background-color:yellow;'>";
+		String rightTag = "</span>";
+		StringBuilder sb = new StringBuilder(text.length() + 64);
+		for(int i = 0; i < text.length(); i ++){
+			if(matched[i] && (i == 0 || !matched[i - 1])){
+				sb.append(leftTag);
+			}
+			sb.append(text.charAt(i));
+			if(matched[i] && (i == text.length() - 1 || !matched[i + 1])){
+				sb.append(rightTag);
+			}
+		}
+		return sb.toString();
 	}
 	
 	/**
-	 * Boyer Moore String Searching algorithm similar to KMP. But it is more efficient than KMP.
-	 * 
+	 * Receives the matches of {@link SearchUtil#searchChatRecords(Iterable, String, MatchListener)}.
+	 */
+	public static interface MatchListener{
+		/**
+		 * @param record Chat record with matches.
+		 * @param starts Start index of each match in the record's text.
+		 */
+		void onMatch(ChatRecord record, int[] starts);
+	}
+	
+	/**
+	 * A pattern preprocessed for Boyer Moore searching (case insensitive).
+	 * <ul>
+	 * 	<li>The bad character table holds one shift per distinct pattern character: a plain array
+	 * 	for ASCII characters and a small open addressing table for all others, so any Unicode text
+	 * 	can be searched.</li>
+	 * 	<li>The good suffix table is built in linear time.</li>
+	 * </ul>
+	 * Instances are immutable and can be shared between threads.
 	 * @author shichaodong
 	 * @version 1.0
 	 */
-	public static class BoyerMoore {
-
-		private String pattern;
-		private String target;
+	public static final class CompiledPattern {
 		
-		private int[][] badCharOffset;
-		private int[] goodSuffixOffset;
+		private final char[] pattern;
+		// Bad character shifts for ASCII characters.
+		private final int[] asciiShift = new int[128];
+		// Bad character shifts for other characters. (open addressing, 0 marks an empty slot)
+		private final char[] otherChars;
+		private final int[] otherShift;
+		// Good suffix shifts.
+		private final int[] goodSuffixShift;
 		
-		public BoyerMoore(){}
-		public BoyerMoore(String tar, String pat){
-			pattern = pat;
-			target = tar;
+		CompiledPattern(String pat){
+			int m = pat.length();
+			pattern = new char[m];
+			for(int i = 0; i < m; i ++){
+				pattern[i] = Character.toLowerCase(pat.charAt(i));
+			}
 			
 			// Initialize the bad charater table.
-			badCharOffset = new int[128][pattern.length()];
-			for(int i = pattern.length() - 1; i >= 0; i --){
-				for(int j = 0; j < 128; j ++){
-					if(j != pattern.charAt(i)){
-						int lastIndex = pattern.lastIndexOf(j, i - 1);
-						badCharOffset[j][i] = i - lastIndex;
-					}else{
-						badCharOffset[j][i] = 0;
+			Arrays.fill(asciiShift, m);
+			int others = 0;
+			for(int i = 0; i < m - 1; i ++){
+				if(pattern[i] >= 128){
+					others ++;
+				}
+			}
+			int capacity = Integer.highestOneBit(Math.max(others, 1) * 2) * 2;
+			otherChars = new char[others == 0 ? 0 : capacity];
+			otherShift = new int[otherChars.length];
+			for(int i = 0; i < m - 1; i ++){
+				char c = pattern[i];
+				int shift = m - 1 - i;
+				if(c < 128){
+					asciiShift[c] = shift;
+				}else{
+					int slot = c & (otherChars.length - 1);
+					while(otherChars[slot] != 0 && otherChars[slot] != c){
+						slot = (slot + 1) & (otherChars.length - 1);
 					}
+					otherChars[slot] = c;
+					otherShift[slot] = shift;
 				}
 			}
+			
 			// Initialize the good suffix table.
-			goodSuffixOffset = new int[pattern.length()];
-			for(int index = pattern.length() - 1; index > 0; index --){
-				int offset = 0;
-				String goodSuffix = pattern.substring(index + 1);
-				if(goodSuffix != ""){
-					int tmpOffset = pattern.lastIndexOf(goodSuffix, pattern.length() - 1);
-					// NO good suffix in the pattern.
-					if(tmpOffset == -1){
-						for(int i = index + 2; i < pattern.length(); i ++){
-							String tmpSubGoodSuffix = pattern.substring(i);
-							int tmpSubGoodSuffixOffset = pattern.indexOf(tmpSubGoodSuffix);
-							if(tmpSubGoodSuffixOffset == 0){
-								offset = i;
-								break;
+			goodSuffixShift = new int[m];
+			if(m > 0){
+				int[] suffix = suffixes(pattern);
+				Arrays.fill(goodSuffixShift, m);
+				for(int i = m - 1, j = 0; i >= 0; i --){
+					if(suffix[i] == i + 1){
+						for(; j < m - 1 - i; j ++){
+							if(goodSuffixShift[j] == m){
+								goodSuffixShift[j] = m - 1 - i;
 							}
 						}
-						if(offset == 0)
-							offset = pattern.length();
-					}else{
-						offset = index + 1 - tmpOffset;
 					}
 				}
-				goodSuffixOffset[index] = offset;
+				for(int i = 0; i <= m - 2; i ++){
+					goodSuffixShift[m - 1 - suffix[i]] = m - 1 - i;
+				}
 			}
-		}// end constructor
+		}
 		
-		// Bad character shifts.
-		// Character at index is the character which has not a match.
-		private int getBadCharOffsetByArray(char c, int index){
-			return badCharOffset[c][index];
+		// suffix[i]: length of the longest suffix of pattern ending at i.
+		private static int[] suffixes(char[] x){
+			int m = x.length;
+			int[] suffix = new int[m];
+			suffix[m - 1] = m;
+			int g = m - 1, f = m - 1;
+			for(int i = m - 2; i >= 0; i --){
+				if(i > g && suffix[i + m - 1 - f] < i - g){
+					suffix[i] = suffix[i + m - 1 - f];
+				}else{
+					if(i < g){
+						g = i;
+					}
+					f = i;
+					while(g >= 0 && x[g] == x[g + m - 1 - f]){
+						g --;
+					}
+					suffix[i] = f - g;
+				}
+			}
+			return suffix;
+		}
+		
+		private int badCharShift(char c){
+			if(c < 128){
+				return asciiShift[c];
+			}
+			if(otherChars.length > 0){
+				int slot = c & (otherChars.length - 1);
+				while(otherChars[slot] != 0){
+					if(otherChars[slot] == c){
+						return otherShift[slot];
+					}
+					slot = (slot + 1) & (otherChars.length - 1);
+				}
+			}
+			return pattern.length;
 		}
-		// Good suffix shifts
-		private int getGoodSuffixOffsetByArray(int index){
-			return goodSuffixOffset[index];
+		
+		public int length(){return pattern.length;}
+		
+		/**
+		 * Find the first match at or after <i>from</i>.
+		 * @param text Text to be searched.
+		 * @param from Index to start from.
+		 * @return start index of the match; -1 if there is none.
+		 */
+		public int indexOf(CharSequence text, int from){
+			int m = pattern.length, n = text.length();
+			if(m == 0){
+				return -1;
+			}
+			int j = Math.max(from, 0);
+			while(j <= n - m){
+				int i = m - 1;
+				char c = 0;
+				while(i >= 0 && (c = Character.toLowerCase(text.charAt(i + j))) == pattern[i]){
+					i --;
+				}
+				if(i < 0){
+					return j;
+				}
+				j += Math.max(goodSuffixShift[i], badCharShift(c) - m + 1 + i);
+			}
+			return -1;
 		}
+		
+		/**
+		 * Find all non-overlapping matches.
+		 * @param text Text to be searched.
+		 * @return start index of each match.
+		 */
+		public int[] findAll(CharSequence text){
+			int[] starts = new int[4];
+			int cnt = 0;
+			int j = indexOf(text, 0);
+			while(j >= 0){
+				if(cnt == starts.length){
+					starts = Arrays.copyOf(starts, cnt * 2);
+				}
+				starts[cnt ++] = j;
+				j = indexOf(text, j + pattern.length);
+			}
+			return Arrays.copyOf(starts, cnt);
+		}
+	}
+	
+	/**
+	 * Boyer Moore String Searching algorithm similar to KMP. But it is more efficient than KMP.
+	 * <p>Note: Kept for compatibility, see {@link CompiledPattern}.</p>
+	 * 
+	 * @author shichaodong
+	 * @version 1.0
+	 */
+	public static class BoyerMoore {
+
+		private String pattern;
+		private String target;
+		
+		public BoyerMoore(){}
+		public BoyerMoore(String tar, String pat){
+			pattern = pat;
+			target = tar;
+		}// end constructor
+		
 		/**
 		 * Boyer Moore algorithm to search pattern from target.
-		 * @return
+		 * @return start and end index of each match; the last element is the number of matches found.
 		 */
 		public ArrayList<Integer> bm(){
-			int it = pattern.length() - 1, ip = pattern.length() - 1, offset = 0;
-			// The number of matches found.
-			int cnt = 0;
-			// Used to store found start and end of each match.
 			ArrayList<Integer> indexList = new ArrayList<Integer>();
-			int end = 0, start = 0;
-			while(true){
-				it += offset;
-				end = it;
-				if(it >= target.length())
-					break;
-				for(; it >= 0 && ip >= 0 && target.charAt(it) == pattern.charAt(ip); it --, ip --);
-				
-				// One match is found.
-				if(ip == -1){
-					ip = pattern.length() - 1;
-					offset = 2 * pattern.length();
-					cnt ++;
-					start = it + 1;
-					// Add start and end of one match.
-					indexList.add(start);
-					indexList.add(end);
-				}
-				// One character mismatch occurs.
-				else{
-					
-					offset = Math.max(getBadCharOffsetByArray(target.charAt(it), ip), getGoodSuffixOffsetByArray(ip));
-					it += pattern.length() - 1 - ip;
-					ip = pattern.length() - 1;
-				}
+			int[] starts = compile(pattern).findAll(target);
+			for(int start: starts){
+				// Add start and end of one match.
+				indexList.add(start);
+				indexList.add(start + pattern.length() - 1);
 			}
 			// The last element stores the number of matches found.
-			indexList.add(cnt);
+			indexList.add(starts.length);
 			return indexList;
 		}
 	}// end Boyer Moore algorithm
@@ -0,0 +1,395 @@
+package load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketVersion;
+
+import play.test.Helpers;
+import play.test.TestServer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * WebSocket load generator: runs the application in test mode on localhost, creates chat rooms
+ * through /startchat, connects <i>rooms</i> x <i>members</i> WebSocket clients to /chat and sends
+ * <i>rate</i> requests per second, open loop, in a configurable mix of text, viewhistory and searchchathistory.
+ * <p>Invitation mails go to a mail API stub on localhost which accepts everything.
+ * Requests sent during the warm up are not measured; at the end the send-to-receive latency
+ * of chat messages (per receiving member) and of history and search replies is reported
+ * with the throughput.</p>
+ * <pre>
+ * play "bench:run-main load.ChatLoadGenerator rooms=100 members=10 rate=1000 duration=60 warmup=10"
+ * play "bench:run-main load.ChatLoadGenerator mix=text:50,viewhistory:25,searchchathistory:25"
+ * </pre>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class ChatLoadGenerator {
+
+	private static final String[] WORDS = {"hello", "backstreet", "boys", "chat", "room", "history", "search", "mail"};
+	private static final String[] KINDS = {"text", "viewhistory", "searchchathistory"};
+	// Room id in the page served by /startchat.
+	private static final Pattern ROOM_ID = Pattern.compile("roomId=(\\d+)");
+	// Wait for the replies to the last requests. (ms)
+	private static final long DRAIN = 2000;
+	private static final int HISTORY_PAGE_SIZE = 50;
+
+	// -- Settings
+	private final int rooms;
+	private final int members;
+	private final int rate;
+	private final long duration;
+	private final long warmup;
+	private final int port;
+	// Weight of each of KINDS.
+	private final int[] mix = new int[KINDS.length];
+
+	// -- Results
+	private final LatencyHistogram talkLatency = new LatencyHistogram();
+	private final LatencyHistogram historyLatency = new LatencyHistogram();
+	private final LatencyHistogram searchLatency = new LatencyHistogram();
+	// Measured requests sent, by kind.
+	private final long[] sent = new long[KINDS.length];
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicInteger closedClients = new AtomicInteger();
+	// Requests sent in [measureStart, measureEnd) are measured. (System.nanoTime())
+	private volatile long measureStart = Long.MAX_VALUE;
+	private volatile long measureEnd = Long.MAX_VALUE;
+
+	private final List<Long> roomIds = new ArrayList<Long>();
+	private final List<LoadClient> clients = new ArrayList<LoadClient>();
+
+	/**
+	 * @param settings rooms, members, rate (requests per second), duration and warmup (seconds), port and mix.
+	 */
+	ChatLoadGenerator(Map<String, String> settings){
+		rooms = Integer.parseInt(setting(settings, "rooms", "100"));
+		members = Math.max(2, Integer.parseInt(setting(settings, "members", "10")));
+		rate = Integer.parseInt(setting(settings, "rate", "1000"));
+		duration = TimeUnit.SECONDS.toNanos(Long.parseLong(setting(settings, "duration", "60")));
+		warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(setting(settings, "warmup", "10")));
+		port = Integer.parseInt(setting(settings, "port", "19001"));
+		for(String part: setting(settings, "mix", "text:90,viewhistory:5,searchchathistory:5").split(",")){
+			String[] kindWeight = part.split(":");
+			int kind = indexOfKind(kindWeight[0].trim());
+			if(kind < 0 || kindWeight.length != 2){
+				throw new IllegalArgumentException("Unknown request mix: " + part + ", e.g. text:90,viewhistory:5,searchchathistory:5");
+			}
+			mix[kind] = Integer.parseInt(kindWeight[1].trim());
+		}
+	}
+
+	public static void main(String[] args) throws Exception{
+		Map<String, String> settings = new LinkedHashMap<String, String>();
+		for(String arg: args){
+			int eq = arg.indexOf('=');
+			if(eq < 0){
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			}
+			settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		new ChatLoadGenerator(settings).run();
+		// The test server leaves non daemon threads behind.
+		System.exit(0);
+	}
+
+	private static String setting(Map<String, String> settings, String key, String defaultValue){
+		String value = settings.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	private static int indexOfKind(String kind){
+		for(int i = 0; i < KINDS.length; i ++){
+			if(KINDS[i].equals(kind)){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	void run() throws Exception{
+		HttpServer mailStub = startMailStub();
+		File journal = File.createTempFile("tchat-load", ".journal");
+		Map<String, Object> config = new HashMap<String, Object>();
+		config.put("mail.url", "http://localhost:" + mailStub.getAddress().getPort() + "/messages");
+		config.put("mail.outbox.journal", journal.getPath());
+		config.put("mail.rate.perSecond", "1000");
+		TestServer server = Helpers.testServer(port, Helpers.fakeApplication(config));
+		Helpers.start(server);
+		NioClientSocketChannelFactory factory = new NioClientSocketChannelFactory(
+				Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+		try{
+			createRooms();
+			connect(factory);
+			drive();
+			Thread.sleep(DRAIN);
+			report();
+		}finally{
+			for(LoadClient client: clients){
+				client.close();
+			}
+			factory.releaseExternalResources();
+			Helpers.stop(server);
+			mailStub.stop(0);
+			journal.delete();
+			for(Long roomId: roomIds){
+				delete(new File(String.valueOf(roomId)));
+			}
+		}
+	}
+
+	// -- Setup
+
+	/**
+	 * @return a mail API stub on a free port, accepting every request.
+	 */
+	private static HttpServer startMailStub() throws IOException{
+		HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		stub.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				byte[] buffer = new byte[4096];
+				while(in.read(buffer) >= 0){
+					// Discard the mail.
+				}
+				byte[] body = "{}".getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "application/json");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		stub.setExecutor(Executors.newCachedThreadPool());
+		stub.start();
+		return stub;
+	}
+
+	private void createRooms() throws IOException{
+		long start = System.nanoTime();
+		for(int r = 0; r < rooms; r ++){
+			StringBuilder invited = new StringBuilder();
+			for(int m = 1; m < members; m ++){
+				invited.append(m > 1 ? "," : "").append(memberName(r, m));
+			}
+			String form = "chatRoomName=" + URLEncoder.encode("load room " + r, "UTF-8")
+					+ "&userName=" + URLEncoder.encode("load " + r, "UTF-8")
+					+ "&userItem=" + URLEncoder.encode(memberName(r, 0), "UTF-8")
+					+ "&chatTextList=" + URLEncoder.encode(invited.toString(), "UTF-8");
+			Matcher matcher = ROOM_ID.matcher(post("http://localhost:" + port + "/startchat", form));
+			if(!matcher.find()){
+				throw new IOException("No room id in the page served by /startchat for room " + r);
+			}
+			roomIds.add(Long.parseLong(matcher.group(1)));
+		}
+		System.out.println(String.format("Created %d rooms in %dms", rooms, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+	}
+
+	private static String memberName(int room, int member){
+		return "member" + member + "-" + room + "@load.tchat.org";
+	}
+
+	private static String post(String url, String form) throws IOException{
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		OutputStream out = connection.getOutputStream();
+		out.write(form.getBytes("UTF-8"));
+		out.close();
+		if(connection.getResponseCode() != HttpURLConnection.HTTP_OK){
+			throw new IOException("POST " + url + " answered " + connection.getResponseCode());
+		}
+		InputStream in = connection.getInputStream();
+		ByteArrayOutputStream page = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while((n = in.read(buffer)) >= 0){
+			page.write(buffer, 0, n);
+		}
+		in.close();
+		return page.toString("UTF-8");
+	}
+
+	/**
+	 * Connect every member of every room and wait until all of them have joined.
+	 */
+	private void connect(NioClientSocketChannelFactory factory) throws Exception{
+		long start = System.nanoTime();
+		CountDownLatch joined = new CountDownLatch(rooms * members);
+		WebSocketClientHandshakerFactory handshakers = new WebSocketClientHandshakerFactory();
+		InetSocketAddress address = new InetSocketAddress("localhost", port);
+		for(int r = 0; r < rooms; r ++){
+			for(int m = 0; m < members; m ++){
+				String username = memberName(r, m);
+				URI uri = new URI("ws://localhost:" + port + "/chat?username=" + URLEncoder.encode(username, "UTF-8")
+						+ "&roomId=" + roomIds.get(r));
+				LoadClient client = new LoadClient(this,
+						handshakers.newHandshaker(uri, WebSocketVersion.V13, null, false, null, 1 << 20), username, joined);
+				ChannelPipeline pipeline = Channels.pipeline();
+				pipeline.addLast("decoder", new HttpResponseDecoder());
+				pipeline.addLast("encoder", new HttpRequestEncoder());
+				pipeline.addLast("client", client);
+				Channel channel = factory.newChannel(pipeline);
+				channel.getConfig().setOption("tcpNoDelay", true);
+				ChannelFuture connected = channel.connect(address).awaitUninterruptibly();
+				if(!connected.isSuccess()){
+					throw new IOException("Connecting " + username + " FAILed", connected.getCause());
+				}
+				client.handshake(channel);
+				clients.add(client);
+			}
+		}
+		if(!joined.await(60 + clients.size() / 100, TimeUnit.SECONDS)){
+			throw new IOException((joined.getCount()) + " of " + clients.size() + " members have not joined.");
+		}
+		System.out.println(String.format("Connected %d members in %dms", clients.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+	}
+
+	// -- Load
+
+	/**
+	 * Send <i>rate</i> requests per second, round robin over the members, for <i>warmup</i> + <i>duration</i>.
+	 * The schedule is fixed in advance: a slow server does not slow down the requests (open loop),
+	 * requests falling behind are sent as soon as the generator catches up.
+	 */
+	private void drive(){
+		Random random = new Random(42);
+		int totalWeight = 0;
+		for(int weight: mix){
+			totalWeight += weight;
+		}
+		long start = System.nanoTime();
+		measureStart = start + warmup;
+		measureEnd = measureStart + duration;
+		System.out.println(String.format("Sending %d requests/s: %ds warm up, %ds measured",
+				rate, TimeUnit.NANOSECONDS.toSeconds(warmup), TimeUnit.NANOSECONDS.toSeconds(duration)));
+		long scheduled = 0;
+		int next = 0;
+		long now;
+		while((now = System.nanoTime()) < measureEnd){
+			long due = (now - start) * rate / TimeUnit.SECONDS.toNanos(1);
+			for(; scheduled < due; scheduled ++){
+				LoadClient client = clients.get(next);
+				next = (next + 1) % clients.size();
+				if(!client.isOpen()){
+					continue;
+				}
+				int kind = pick(random.nextInt(totalWeight));
+				if(kind == 0){
+					client.talk(WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]);
+				}else if(kind == 1){
+					client.viewHistory(HISTORY_PAGE_SIZE);
+				}else{
+					client.searchHistory(WORDS[random.nextInt(WORDS.length)]);
+				}
+				if(now >= measureStart){
+					sent[kind] ++;
+				}
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	private int pick(int weight){
+		for(int kind = 0; kind < mix.length; kind ++){
+			weight -= mix[kind];
+			if(weight < 0){
+				return kind;
+			}
+		}
+		return mix.length - 1;
+	}
+
+	// -- Called by the clients, on Netty's threads
+
+	boolean isMeasured(long sentNanos){
+		return sentNanos >= measureStart && sentNanos < measureEnd;
+	}
+
+	void delivered(long sentNanos, long receivedNanos){
+		if(isMeasured(sentNanos)){
+			talkLatency.recordNanos(receivedNanos - sentNanos);
+		}
+	}
+
+	LatencyHistogram getHistoryLatency(){return historyLatency;}
+	LatencyHistogram getSearchLatency(){return searchLatency;}
+
+	void error(String message){
+		if(errors.incrementAndGet() <= 10){
+			System.err.println(message);
+		}
+	}
+
+	void closed(LoadClient client){
+		closedClients.incrementAndGet();
+	}
+
+	// -- Report
+
+	private void report(){
+		double seconds = duration / (double) TimeUnit.SECONDS.toNanos(1);
+		int unanswered = 0;
+		for(LoadClient client: clients){
+			unanswered += client.getUnanswered();
+		}
+		long expected = sent[0] * members;
+		System.out.println();
+		System.out.println(String.format("Rooms: %d, members per room: %d, measured: %.0fs", rooms, members, seconds));
+		System.out.println(String.format("Sent: %.1f requests/s (text %d, viewhistory %d, searchchathistory %d)",
+				(sent[0] + sent[1] + sent[2]) / seconds, sent[0], sent[1], sent[2]));
+		System.out.println(String.format("Delivered: %.1f messages/s, %d of %d expected",
+				talkLatency.getCount() / seconds, talkLatency.getCount(), expected));
+		System.out.println("text              " + talkLatency.summary());
+		System.out.println("viewhistory       " + historyLatency.summary());
+		System.out.println("searchchathistory " + searchLatency.summary());
+		System.out.println(String.format("Unanswered requests: %d, closed connections: %d, errors: %d",
+				unanswered, closedClients.get(), errors.get()));
+	}
+
+	private static void delete(File file){
+		File[] children = file.listFiles();
+		if(children != null){
+			for(File child: children){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,107 @@
+package load;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram of the load generator, recorded in microseconds from many threads.
+ * <p>Values below 256 get a bucket each; above, every power of two is split into 128 buckets,
+ * so a percentile is off by less than 1% at any scale. Recording takes no lock and allocates nothing.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR = 256;
+	private static final int SUB_BUCKETS = 128;
+	// Values up to 2^63 - 1: LINEAR buckets, then SUB_BUCKETS per further bit.
+	private static final int BUCKETS = LINEAR + (63 - 8) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	/**
+	 * @param nanos Latency in nanoseconds, recorded in microseconds.
+	 */
+	public void recordNanos(long nanos){
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		counts.incrementAndGet(indexOf(micros));
+		sum.addAndGet(micros);
+		long current = max.get();
+		while(micros > current && !max.compareAndSet(current, micros)){
+			current = max.get();
+		}
+	}
+
+	static int indexOf(long value){
+		if(value < LINEAR){
+			return (int) value;
+		}
+		// value >> shift falls into [128, 256).
+		int shift = 64 - Long.numberOfLeadingZeros(value) - 8;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	// Highest value counted in a bucket.
+	static long highestOf(int index){
+		if(index < LINEAR){
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public long getCount(){
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i ++){
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the largest latency. (microseconds)
+	 */
+	public long getMax(){return max.get();}
+
+	/**
+	 * @return the mean latency; 0 if nothing has been recorded. (microseconds)
+	 */
+	public double getMean(){
+		long count = getCount();
+		return count == 0 ? 0 : sum.get() / (double) count;
+	}
+
+	/**
+	 * @param percentile e.g. 99.9
+	 * @return the latency which <i>percentile</i>% of the recorded latencies do not exceed;
+	 * 0 if nothing has been recorded. (microseconds)
+	 */
+	public long getPercentile(double percentile){
+		long count = getCount();
+		if(count == 0){
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i ++){
+			seen += counts.get(i);
+			if(seen >= rank){
+				return Math.min(highestOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return one line: count, mean, p50, p90, p99, p99.9 and max, in milliseconds.
+	 */
+	public String summary(){
+		return String.format("n=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+				getCount(), getMean() / 1000, getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+				getPercentile(99) / 1000.0, getPercentile(99.9) / 1000.0, getMax() / 1000.0);
+	}
+}
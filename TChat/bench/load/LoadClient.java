@@ -0,0 +1,195 @@
+package load;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+
+/**
+ * One chat member of the load generator: a WebSocket connection to /chat, speaking
+ * the same protocol as the chat room page.
+ * <p>Chat messages carry their send time, "load &lt;nanoTime&gt; ...", so every member receiving
+ * one records the send-to-receive latency. History and search replies are matched to
+ * their requests in order, as the chat room answers a member's requests in order.
+ * Like the page, the client acknowledges every {@link #ACK_EVERY} frames.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+class LoadClient extends SimpleChannelUpstreamHandler {
+
+	// Chat message prefix, followed by the send time.
+	static final String PREFIX = "load ";
+	// Frames received between two acknowledgements, as in chatRoom.scala.html.
+	static final int ACK_EVERY = 16;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final ChatLoadGenerator generator;
+	private final WebSocketClientHandshaker handshaker;
+	private final String username;
+	// Counted down when the member list has arrived, i.e. the member has joined.
+	private final CountDownLatch joined;
+	// Send times of the history and search requests not yet answered.
+	private final Queue<Long> historySent = new ConcurrentLinkedQueue<Long>();
+	private final Queue<Long> searchSent = new ConcurrentLinkedQueue<Long>();
+	private final AtomicLong framesReceived = new AtomicLong();
+	private volatile Channel channel;
+	private volatile boolean hasJoined;
+
+	LoadClient(ChatLoadGenerator loadGenerator, WebSocketClientHandshaker clientHandshaker, String memberName,
+			CountDownLatch joinLatch){
+		generator = loadGenerator;
+		handshaker = clientHandshaker;
+		username = memberName;
+		joined = joinLatch;
+	}
+
+	String getUsername(){return username;}
+
+	/**
+	 * Start the WebSocket handshake on a connected channel.
+	 * @param connected Channel connected to the server.
+	 */
+	void handshake(Channel connected) throws Exception{
+		channel = connected;
+		handshaker.handshake(connected);
+	}
+
+	boolean isOpen(){
+		return hasJoined && channel != null && channel.isConnected();
+	}
+
+	// -- Requests
+
+	void talk(String words){
+		send("text", PREFIX + System.nanoTime() + " " + words);
+	}
+
+	void viewHistory(int pageSize){
+		historySent.add(System.nanoTime());
+		ObjectNode event = MAPPER.createObjectNode();
+		event.put("kind", "viewhistory");
+		event.put("text", "");
+		event.put("before", -1);
+		event.put("size", pageSize);
+		write(event);
+	}
+
+	void searchHistory(String text){
+		searchSent.add(System.nanoTime());
+		send("searchchathistory", text);
+	}
+
+	/**
+	 * @return history and search requests which have not been answered.
+	 */
+	int getUnanswered(){
+		return historySent.size() + searchSent.size();
+	}
+
+	void close(){
+		if(channel != null){
+			channel.write(new CloseWebSocketFrame());
+			channel.close();
+		}
+	}
+
+	private void send(String kind, String text){
+		ObjectNode event = MAPPER.createObjectNode();
+		event.put("kind", kind);
+		event.put("text", text);
+		write(event);
+	}
+
+	private void write(ObjectNode event){
+		Channel c = channel;
+		if(c != null){
+			c.write(new TextWebSocketFrame(event.toString()));
+		}
+	}
+
+	// -- Events
+
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception{
+		if(!handshaker.isHandshakeComplete()){
+			handshaker.finishHandshake(ctx.getChannel(), (HttpResponse) e.getMessage());
+			return;
+		}
+		if(e.getMessage() instanceof CloseWebSocketFrame){
+			ctx.getChannel().close();
+			return;
+		}
+		if(!(e.getMessage() instanceof TextWebSocketFrame)){
+			return;
+		}
+		long now = System.nanoTime();
+		received(MAPPER.readTree(((TextWebSocketFrame) e.getMessage()).getText()), now);
+		long frames = framesReceived.incrementAndGet();
+		if(frames % ACK_EVERY == 0){
+			ObjectNode ack = MAPPER.createObjectNode();
+			ack.put("kind", "ack");
+			ack.put("count", frames);
+			write(ack);
+		}
+	}
+
+	private void received(JsonNode event, long now) throws IOException{
+		if(event.has("error")){
+			generator.error(username + ": " + event.get("error").asText());
+			return;
+		}
+		String key = event.path("key").asText();
+		if(key.equals("batch")){
+			for(JsonNode batched: event.path("events")){
+				received(batched, now);
+			}
+		}else if(key.equals("text")){
+			String text = event.path("text").asText();
+			if(text.startsWith(PREFIX)){
+				int end = text.indexOf(' ', PREFIX.length());
+				generator.delivered(Long.parseLong(text.substring(PREFIX.length(), end < 0 ? text.length() : end)), now);
+			}
+		}else if(key.equals("history")){
+			answered(historySent, generator.getHistoryLatency(), now);
+		}else if(key.equals("searchhistory")){
+			answered(searchSent, generator.getSearchLatency(), now);
+		}else if(key.equals("members") && !hasJoined){
+			hasJoined = true;
+			joined.countDown();
+		}
+	}
+
+	private void answered(Queue<Long> sent, LatencyHistogram latency, long now){
+		Long sentAt = sent.poll();
+		if(sentAt != null && generator.isMeasured(sentAt)){
+			latency.recordNanos(now - sentAt);
+		}
+	}
+
+	@Override
+	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception{
+		generator.closed(this);
+	}
+
+	@Override
+	public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception{
+		generator.error(username + ": " + e.getCause());
+		e.getChannel().close();
+	}
+}
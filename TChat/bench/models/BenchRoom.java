@@ -0,0 +1,138 @@
+package models;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import models.ChatRoom.Connection;
+
+import play.mvc.WebSocket;
+import play.test.FakeApplication;
+import play.test.Helpers;
+
+/**
+ * A chat room of the benchmarks: a fake application running one chat room whose
+ * <i>memberCount</i> members are connected to sockets counting the frames they get.
+ * <p>The members never acknowledge frames, so the outbound window is unbounded, and
+ * broadcast events are not batched, so that every event is fanned out at once.</p>
+ * @author shichaodong
+ * @version 1.0
+ */
+class BenchRoom {
+
+	// Chat room id, far from the ids the application hands out; its folder is deleted on close.
+	static final long ROOM_ID = 9000000000001L;
+
+	private final FakeApplication app;
+	private final ChatRoom chatRoom;
+	private final String[] members;
+	private final Connection[] connections;
+	// Frames written to all members.
+	private final AtomicLong delivered = new AtomicLong();
+
+	BenchRoom(int memberCount) throws InterruptedException{
+		deleteRoomFolder();
+		Map<String, Object> config = new HashMap<String, Object>();
+		config.put("chat.outbound.window", Integer.MAX_VALUE);
+		config.put("chat.batch.window", 0);
+		app = Helpers.fakeApplication(config);
+		Helpers.start(app);
+		members = new String[memberCount];
+		for(int i = 0; i < memberCount; i ++){
+			members[i] = "member" + i + "@tchat.org";
+		}
+		chatRoom = new ChatRoom("bench", ROOM_ID, members.clone());
+		connections = new Connection[memberCount];
+		for(int i = 0; i < memberCount; i ++){
+			connections[i] = chatRoom.connect(members[i], new CountingOut(null));
+		}
+		while(chatRoom.getMemberCount() < memberCount){
+			Thread.sleep(10);
+		}
+		awaitQuiet();
+	}
+
+	ChatRoom getChatRoom(){return chatRoom;}
+
+	/**
+	 * Send <i>count</i> chat messages and wait until every member has got them.
+	 * At most one message is waiting in the chat room's mailbox at a time.
+	 * @param count Number of messages.
+	 */
+	void talk(int count){
+		long expected = delivered.get();
+		for(int i = 0; i < count; i ++){
+			expected += members.length;
+			chatRoom.getRoomActorRef().tell(new ChatRoom.Talk(members[0], "hello backstreet boys " + i), null);
+			while(delivered.get() < expected){
+				// Spin: the fan-out is what is measured.
+			}
+		}
+	}
+
+	/**
+	 * Close a member's socket and join the chat room again on a new one, waiting until the
+	 * chat room has answered the join. The other members get the leave and join events.
+	 * @param member Index of the member.
+	 */
+	void reconnect(int member){
+		AtomicBoolean answered = new AtomicBoolean();
+		connections[member].close();
+		connections[member] = chatRoom.connect(members[member], new CountingOut(answered));
+		while(!answered.get()){
+			// Spin: the join is what is measured.
+		}
+	}
+
+	void close(){
+		Helpers.stop(app);
+		chatRoom.releaseWriterLock();
+		deleteRoomFolder();
+	}
+
+	// Wait until the join events have been delivered.
+	private void awaitQuiet() throws InterruptedException{
+		long last;
+		do{
+			last = delivered.get();
+			Thread.sleep(200);
+		}while(delivered.get() != last);
+	}
+
+	// Socket counting the frames written to it; the first frame answers the join.
+	private class CountingOut implements WebSocket.Out<String>{
+		private final AtomicBoolean answered;
+
+		CountingOut(AtomicBoolean joinAnswered){
+			answered = joinAnswered;
+		}
+
+		@Override
+		public void write(String frame) {
+			delivered.incrementAndGet();
+			if(answered != null){
+				answered.set(true);
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	static void deleteRoomFolder(){
+		delete(new File(String.valueOf(ROOM_ID)));
+	}
+
+	private static void delete(File file){
+		File[] children = file.listFiles();
+		if(children != null){
+			for(File child: children){
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,107 @@
+package models;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import play.libs.Json;
+import play.mvc.WebSocket;
+
+/**
+ * Broadcasting one message to a room, building one event per member (as before) versus
+ * encoding one {@link BroadcastFrame} for all members, and versus sending a batch of
+ * {@value #BATCH_SIZE} messages as one frame per member ({@link BroadcastBatcher}, cost per message).
+ * <p>Run with the GC profiler to see the allocation per message:
+ * <code>play "bench:run BroadcastBenchmark -prof gc"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int memberCount;
+
+	// Messages per batch. @OperationsPerInvocation needs a constant, so it is not a parameter.
+	private static final int BATCH_SIZE = 16;
+
+	private Map<String, WebSocket.Out<String>> members;
+	private Blackhole sink;
+
+	@Setup
+	public void setUp(final Blackhole blackhole){
+		sink = blackhole;
+		members = new HashMap<String, WebSocket.Out<String>>();
+		for(int i = 0; i < memberCount; i ++){
+			members.put("member" + i + "@tchat.org", new WebSocket.Out<String>() {
+				@Override
+				public void write(String frame) {
+					sink.consume(frame);
+				}
+				@Override
+				public void close() {
+				}
+			});
+		}
+	}
+
+	@Benchmark
+	public void eventPerMember(){
+		for(WebSocket.Out<String> out: members.values()){
+			ObjectNode event = Json.newObject();
+			event.put("key", "text");
+			event.put("kind", "talk");
+			event.put("username", "member0@tchat.org");
+			event.put("text", "hello, backstreet boys comeback again!");
+			ArrayNode nameList = event.putArray("members");
+			for(String name: members.keySet()){
+				nameList.add(name);
+			}
+			out.write(Json.stringify(event));
+		}
+	}
+
+	@Benchmark
+	public void frameOnce(){
+		ObjectNode event = Json.newObject();
+		event.put("key", "text");
+		event.put("kind", "talk");
+		event.put("username", "member0@tchat.org");
+		event.put("text", "hello, backstreet boys comeback again!");
+		ArrayNode nameList = event.putArray("members");
+		for(String name: members.keySet()){
+			nameList.add(name);
+		}
+		BroadcastFrame.encode(event).writeTo(members.values());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void batchedFrame(){
+		BroadcastBatcher batcher = new BroadcastBatcher(15, BATCH_SIZE, 0);
+		for(int i = 0; i < BATCH_SIZE; i ++){
+			ObjectNode event = Json.newObject();
+			event.put("key", "text");
+			event.put("kind", "talk");
+			event.put("username", "member0@tchat.org");
+			event.put("text", "hello, backstreet boys comeback again!");
+			batcher.add(event);
+		}
+		batcher.drain().writeTo(members.values());
+	}
+}
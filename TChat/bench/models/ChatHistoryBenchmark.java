@@ -0,0 +1,64 @@
+package models;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import play.libs.Akka;
+
+/**
+ * Rendering the chat history of a chat room with <i>recordCount</i> chat records
+ * ({@link ChatRoom#getChatHistoryStr()}), saving it and reading it back in.
+ * <p>Run with: <code>play "bench:run ChatHistoryBenchmark"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatHistoryBenchmark {
+
+	@Param({"200", "2000", "20000"})
+	public int recordCount;
+
+	private BenchRoom room;
+
+	@Setup
+	public void setUp() throws Exception{
+		room = new BenchRoom(1);
+		room.talk(recordCount);
+		room.getChatRoom().persistChatRoom(String.valueOf(BenchRoom.ROOM_ID));
+	}
+
+	@TearDown
+	public void tearDown(){
+		room.close();
+	}
+
+	@Benchmark
+	public String getChatHistoryStr(){
+		return room.getChatRoom().getChatHistoryStr();
+	}
+
+	@Benchmark
+	public boolean persistChatRoom() throws IOException{
+		return room.getChatRoom().persistChatRoom(String.valueOf(BenchRoom.ROOM_ID));
+	}
+
+	@Benchmark
+	public ChatRoom readPersistedChatRoom() throws Exception{
+		ChatRoom chatRoom = ChatRoom.readPersistedChatRoom(String.valueOf(BenchRoom.ROOM_ID));
+		// Every chat room read in gets an actor.
+		Akka.system().stop(chatRoom.getRoomActorRef());
+		return chatRoom;
+	}
+}
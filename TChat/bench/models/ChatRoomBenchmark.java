@@ -0,0 +1,47 @@
+package models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A chat message through a live chat room actor: from the <i>Talk</i> message until every one of
+ * <i>memberCount</i> members has got the frame (ChatRoomActor.notifyAll fan-out, including recording
+ * the message in the chat history).
+ * <p>Run with: <code>play "bench:run ChatRoomBenchmark"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChatRoomBenchmark {
+
+	@Param({"1", "10", "100", "1000"})
+	public int memberCount;
+
+	private BenchRoom room;
+
+	@Setup
+	public void setUp() throws InterruptedException{
+		room = new BenchRoom(memberCount);
+	}
+
+	@TearDown
+	public void tearDown(){
+		room.close();
+	}
+
+	@Benchmark
+	public void notifyAllMembers(){
+		room.talk(1);
+	}
+}
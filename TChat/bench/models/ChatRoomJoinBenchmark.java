@@ -0,0 +1,49 @@
+package models;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Joins per second of a live chat room actor: a member's socket is closed and the member joins
+ * again on a new one, until the chat room has answered the join (member snapshot written, leave and
+ * join events fanned out to the other <i>memberCount - 1</i> members).
+ * <p>Run with: <code>play "bench:run ChatRoomJoinBenchmark"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChatRoomJoinBenchmark {
+
+	@Param({"10", "100", "1000"})
+	public int memberCount;
+
+	private BenchRoom room;
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws InterruptedException{
+		room = new BenchRoom(memberCount);
+	}
+
+	@TearDown
+	public void tearDown(){
+		room.close();
+	}
+
+	@Benchmark
+	public void reconnect(){
+		room.reconnect(next);
+		next = (next + 1) % memberCount;
+	}
+}
@@ -0,0 +1,108 @@
+package models;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import models.ChatRoom.ChatRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Saving and reading a chat room of <i>recordCount</i> recent chat records, as a binary snapshot
+ * ({@link ChatRoomSnapshot}) and with Java serialization of the metadata and the record list, as chatRoom.data
+ * used to hold them. <i>snapshotOpenLastRecord</i> only decodes the header, the string table and one record.
+ * The encoded sizes are printed on setup.
+ * <p>Run with: <code>play "bench:run ChatRoomSnapshotBenchmark"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ChatRoomSnapshotBenchmark {
+
+	@Param({"200", "2000"})
+	public int recordCount;
+
+	private String[] members;
+	private List<ChatRecord> records;
+	private byte[] snapshot;
+	private byte[] serialized;
+
+	@Setup
+	public void setUp() throws IOException{
+		Random random = new Random(42);
+		members = new String[20];
+		for(int i = 0; i < members.length; i ++){
+			members[i] = "member" + i + "@tchat.org";
+		}
+		records = new ArrayList<ChatRecord>();
+		for(int i = 0; i < recordCount; i ++){
+			long timestamp = 1367400000000L + i * 1000L;
+			StringBuilder text = new StringBuilder();
+			for(int w = 0, words = 3 + random.nextInt(15); w < words; w ++){
+				text.append("word").append(random.nextInt(500)).append(' ');
+			}
+			records.add(new ChatRecord(i, timestamp, members[random.nextInt(members.length)], text.toString()));
+		}
+		snapshot = snapshotEncode();
+		serialized = javaSerialize();
+		System.out.println("\n" + recordCount + " records: snapshot " + snapshot.length + " bytes, java serialization " + serialized.length + " bytes");
+	}
+
+	@Benchmark
+	public byte[] snapshotEncode() throws IOException{
+		return ChatRoomSnapshot.encode(1, "benchmark", members, recordCount, 0, true, false, false, records);
+	}
+
+	@Benchmark
+	public List<ChatRecord> snapshotDecodeAll() throws IOException{
+		return ChatRoomSnapshot.decode(snapshot).getRecords(0);
+	}
+
+	@Benchmark
+	public ChatRecord snapshotOpenLastRecord() throws IOException{
+		ChatRoomSnapshot decoded = ChatRoomSnapshot.decode(snapshot);
+		return decoded.getRecord(decoded.getRecordCount() - 1);
+	}
+
+	@Benchmark
+	public byte[] javaSerialize() throws IOException{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject("benchmark");
+		out.writeLong(1);
+		out.writeObject(members);
+		out.writeObject(new ArrayList<ChatRecord>(records));
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public List<ChatRecord> javaDeserialize() throws IOException, ClassNotFoundException{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+		try{
+			in.readObject();
+			in.readLong();
+			in.readObject();
+			return (List<ChatRecord>) in.readObject();
+		}finally{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package models;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import scala.concurrent.Await;
+import scala.concurrent.ExecutionContext;
+import scala.concurrent.duration.Duration;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Round trip of a healthy chat room actor while <i>busyRooms</i> chat room actors keep saving to a slow disk
+ * (simulated by sleeping), with the dispatchers of conf/application.conf.
+ * <ul>
+ * 	<li><i>shared</i>   - the busy chat rooms save on the chat room dispatcher, as they used to,
+ * 	and take its threads away from the healthy one.</li>
+ * 	<li><i>isolated</i> - the busy chat rooms hand saving over to the blocking I/O dispatcher.</li>
+ * </ul>
+ * <p>Run with: <code>play "bench:run DispatcherIsolationBenchmark"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatcherIsolationBenchmark {
+
+	// Time a save takes. (ms)
+	private static final long SAVE_MILLIS = 20;
+
+	@Param({"shared", "isolated"})
+	public String mode;
+
+	@Param({"64"})
+	public int busyRooms;
+
+	private ActorSystem system;
+	private ActorRef healthyRoom;
+	private ActorRef[] busy;
+	private volatile boolean running;
+	private Thread load;
+	private final Timeout timeout = new Timeout(Duration.create(10, TimeUnit.SECONDS));
+
+	/**
+	 * Chat room replying to every message.
+	 */
+	public static class HealthyRoom extends UntypedActor{
+		@Override
+		public void onReceive(Object msg){
+			getSender().tell(msg, getSelf());
+		}
+	}
+
+	/**
+	 * Chat room saving on every message.
+	 */
+	public static class BusyRoom extends UntypedActor{
+		private final boolean isolated;
+		private final ExecutionContext blockingIo;
+
+		public BusyRoom(boolean isolatedIo){
+			isolated = isolatedIo;
+			blockingIo = getContext().system().dispatchers().lookup(ChatDispatchers.BLOCKING_IO);
+		}
+
+		@Override
+		public void onReceive(Object msg){
+			if(isolated){
+				blockingIo.execute(new Runnable() {
+					@Override
+					public void run() {
+						save();
+					}
+				});
+			}else{
+				save();
+			}
+		}
+	}
+
+	private static void save(){
+		try{
+			Thread.sleep(SAVE_MILLIS);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Setup
+	public void setUp(){
+		system = ActorSystem.create("bench", ConfigFactory.parseFile(new File("conf/application.conf")).withFallback(ConfigFactory.load()));
+		healthyRoom = system.actorOf(new Props(HealthyRoom.class).withDispatcher(ChatDispatchers.ROOM));
+		busy = new ActorRef[busyRooms];
+		final boolean isolated = "isolated".equals(mode);
+		for(int i = 0; i < busyRooms; i ++){
+			busy[i] = system.actorOf(new Props(new akka.actor.UntypedActorFactory() {
+				private static final long serialVersionUID = 1L;
+				@Override
+				public UntypedActor create() {
+					return new BusyRoom(isolated);
+				}
+			}).withDispatcher(ChatDispatchers.ROOM));
+		}
+		running = true;
+		load = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(running){
+					for(ActorRef room: busy){
+						room.tell("save", null);
+					}
+					save();
+				}
+			}
+		});
+		load.setDaemon(true);
+		load.start();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException{
+		running = false;
+		load.join();
+		system.shutdown();
+		system.awaitTermination();
+	}
+
+	@Benchmark
+	public Object healthyRoundTrip() throws Exception{
+		return Await.result(Patterns.ask(healthyRoom, "ping", timeout), timeout.duration());
+	}
+}
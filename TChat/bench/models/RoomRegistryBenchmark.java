@@ -0,0 +1,92 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Chat room look-up done by every WebSocket handshake ({@link controllers.Application#chat(String, String)}),
+ * with the registry and with the former synchronized room list, as the number of alive rooms grows.
+ * <p>Run with: <code>play "bench:run RoomRegistryBenchmark"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RoomRegistryBenchmark {
+
+	@Param({"10", "1000", "10000", "50000"})
+	public int roomCount;
+
+	private RoomRegistry registry;
+	private List<ChatRoom> roomList;
+	private long[] roomIds;
+
+	@Setup
+	public void setUp(){
+		registry = new RoomRegistry();
+		roomList = Collections.synchronizedList(new ArrayList<ChatRoom>());
+		roomIds = new long[roomCount];
+		Random random = new Random(42);
+		for(int i = 0; i < roomCount; i ++){
+			long id = random.nextLong() & Long.MAX_VALUE;
+			ChatRoom room = new ChatRoom(id);
+			roomIds[i] = id;
+			registry.putIfAbsent(room);
+			roomList.add(room);
+		}
+	}
+
+	/**
+	 * Position of one benchmark thread in the room ids, starting at a random room so that
+	 * the threads do not look up the same rooms at the same time.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor{
+		private int next;
+
+		@Setup
+		public void setUp(RoomRegistryBenchmark benchmark){
+			next = new Random().nextInt(benchmark.roomCount);
+		}
+
+		long nextId(long[] roomIds){
+			long id = roomIds[next];
+			next = next + 1 == roomIds.length ? 0 : next + 1;
+			return id;
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public ChatRoom registryLookup(Cursor cursor){
+		return registry.get(cursor.nextId(roomIds));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public ChatRoom synchronizedListScan(Cursor cursor){
+		long id = cursor.nextId(roomIds);
+		synchronized(roomList){
+			for(int i = 0; i < roomList.size(); i ++){
+				if(roomList.get(i).getRoomId() == id){
+					return roomList.get(i);
+				}
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,34 @@
+package utils;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of <code>play bench:run</code>: runs the benchmarks with the JMH command line
+ * (e.g. <code>play "bench:run BoyerMooreBenchmark -f 1"</code>) and, unless <i>-rf</i>/<i>-rff</i>
+ * say otherwise, writes the results as JSON to target/jmh/results.json, to be kept per build and compared.
+ * @author shichaodong
+ * @version 1.0
+ */
+public class BenchmarkRunner {
+
+	public static final String RESULT_FILE = "target/jmh/results.json";
+
+	public static void main(String[] args) throws Exception{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if(!commandLine.getResultFormat().hasValue()){
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if(!commandLine.getResult().hasValue()){
+			new File(RESULT_FILE).getParentFile().mkdirs();
+			options.result(RESULT_FILE);
+		}
+		new Runner(options.build()).run();
+	}
+}
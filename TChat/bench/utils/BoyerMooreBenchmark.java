@@ -0,0 +1,104 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import models.ChatRoom.ChatRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Searching the chat history with the old Boyer Moore implementation ({@link LegacyBoyerMoore},
+ * tables rebuilt for every search, whole history as one string) versus a cached
+ * {@link SearchUtil.CompiledPattern} over the concatenated history and over the chat records,
+ * and through the entry points the application calls ({@link SearchUtil#searchChatHistory(String, String)},
+ * {@link SearchUtil.BoyerMoore}).
+ * <p>The old implementation cannot search non-ASCII text, so it is only measured on ASCII history:
+ * <code>play "bench:run BoyerMooreBenchmark"</code></p>
+ * @author shichaodong
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoyerMooreBenchmark {
+
+	private static final String[] WORDS = {"hello", "backstreet", "boys", "comeback", "again", "tonight",
+		"concert", "ticket", "see", "you", "there", "maybe", "next", "week"};
+	private static final String[] NON_ASCII_WORDS = {"gr\u00fc\u00dfe", "caf\u00e9", "\u4f60\u597d", "\u670b\u53cb",
+		"\u043f\u0440\u0438\u0432\u0435\u0442"};
+
+	@Param({"100", "1000", "10000"})
+	public int recordCount;
+
+	@Param({"boys", "backstreet boys", "no such text"})
+	public String pattern;
+
+	private String history;
+	private String nonAsciiHistory;
+	private List<ChatRecord> records;
+
+	@Setup
+	public void setUp(){
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder();
+		StringBuilder nonAscii = new StringBuilder();
+		records = new ArrayList<ChatRecord>(recordCount);
+		for(int i = 0; i < recordCount; i ++){
+			StringBuilder text = new StringBuilder();
+			for(int j = 0; j < 8; j ++){
+				text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+			}
+			records.add(new ChatRecord(i, i * 1000L, "member" + (i % 10), text.toString()));
+			sb.append("member").append(i % 10).append(' ').append(text).append("\r\n");
+			nonAscii.append(NON_ASCII_WORDS[random.nextInt(NON_ASCII_WORDS.length)]).append(' ').append(text).append("\r\n");
+		}
+		history = sb.toString();
+		nonAsciiHistory = nonAscii.toString();
+	}
+
+	@Benchmark
+	public ArrayList<Integer> legacy(){
+		return new LegacyBoyerMoore(history.toLowerCase(), pattern.toLowerCase()).bm();
+	}
+
+	@Benchmark
+	public ArrayList<String> searchChatHistory(){
+		return SearchUtil.searchChatHistory(history, pattern);
+	}
+
+	@Benchmark
+	public ArrayList<Integer> boyerMoore(){
+		return new SearchUtil.BoyerMoore(history, pattern).bm();
+	}
+
+	@Benchmark
+	public int[] compiled(){
+		return SearchUtil.compile(pattern).findAll(history);
+	}
+
+	@Benchmark
+	public int[] compiledNonAscii(){
+		return SearchUtil.compile(pattern).findAll(nonAsciiHistory);
+	}
+
+	@Benchmark
+	public int streamingRecords(final Blackhole blackhole){
+		return SearchUtil.searchChatRecords(records, pattern, new SearchUtil.MatchListener() {
+			@Override
+			public void onMatch(ChatRecord record, int[] starts) {
+				blackhole.consume(starts);
+			}
+		});
+	}
+}
@@ -11,11 +11,30 @@ object ApplicationBuild extends Build {
     // Add your project dependencies here,
     javaCore,
     javaJdbc,
-    javaEbean
+    javaEbean,
+    // Room sharding over several nodes (models.RoomShards)
+    "com.typesafe.akka" %% "akka-remote" % "2.1.2",
+    // Micro benchmarks (bench/)
+    "org.openjdk.jmh" % "jmh-core" % "1.0" % "test",
+    "org.openjdk.jmh" % "jmh-generator-annprocess" % "1.0" % "test"
   )
 
-  val main = play.Project(appName, appVersion, appDependencies).settings(
+  // Micro benchmarks (bench/), a source set of their own on top of the tests' classpath:
+  //   play bench:run                          all benchmarks, JSON results in target/jmh/results.json
+  //   play "bench:run BoyerMooreBenchmark"    benchmarks matching a pattern, with any JMH option
+  //   play "bench:run-main load.ChatLoadGenerator rooms=100 members=10 rate=1000"
+  //                                           WebSocket load against the application in test mode on localhost
+  lazy val Bench = config("bench") extend(Test)
+
+  val main = play.Project(appName, appVersion, appDependencies)
+    .configs(Bench)
+    .settings(inConfig(Bench)(Defaults.configSettings): _*)
+    .settings(
     // Add your own project settings here      
+    unmanagedSourceDirectories in Bench <<= baseDirectory(base => Seq(base / "bench")),
+    mainClass in (Bench, run) := Some("utils.BenchmarkRunner"),
+    // The runner gets a JVM of its own (started in the project folder), JMH forks the measured JVMs from it.
+    fork in (Bench, run) := true
   )
 
 }
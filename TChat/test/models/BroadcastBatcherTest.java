@@ -0,0 +1,65 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Test;
+
+import play.libs.Json;
+
+public class BroadcastBatcherTest {
+
+	private static ObjectNode talk(String text){
+		ObjectNode event = Json.newObject();
+		event.put("key", "text");
+		event.put("text", text);
+		return event;
+	}
+
+	@Test
+	public void eventsAreSentAsOneArrayFrameInOrder() {
+		BroadcastBatcher batcher = new BroadcastBatcher(15, 10, 2);
+		assertThat(batcher.add(talk("m0"))).isTrue();
+		assertThat(batcher.add(talk("m1"))).isFalse();
+		assertThat(batcher.add(talk("m2"))).isFalse();
+		long generation = batcher.getGeneration();
+
+		JsonNode frame = Json.parse(batcher.drain().getText());
+		assertThat(frame.get("key").asText()).isEqualTo("batch");
+		assertThat(frame.get("events").size()).isEqualTo(3);
+		for(int i = 0; i < 3; i ++){
+			assertThat(frame.get("events").get(i).get("text").asText()).isEqualTo("m" + i);
+		}
+		assertThat(batcher.isEmpty()).isTrue();
+		// The timer of the batch just sent is stale now.
+		assertThat(batcher.getGeneration()).isNotEqualTo(generation);
+		assertThat(batcher.drain()).isNull();
+	}
+
+	@Test
+	public void singleEventIsSentAsItIs() {
+		BroadcastBatcher batcher = new BroadcastBatcher(15, 10, 2);
+		batcher.add(talk("alone"));
+		JsonNode frame = Json.parse(batcher.drain().getText());
+		assertThat(frame.get("key").asText()).isEqualTo("text");
+		assertThat(frame.get("text").asText()).isEqualTo("alone");
+	}
+
+	@Test
+	public void batchIsFullAtMaxEvents() {
+		BroadcastBatcher batcher = new BroadcastBatcher(15, 2, 2);
+		batcher.add(talk("m0"));
+		assertThat(batcher.isFull()).isFalse();
+		batcher.add(talk("m1"));
+		assertThat(batcher.isFull()).isTrue();
+	}
+
+	@Test
+	public void onlyBusyRoomsBatch() {
+		assertThat(new BroadcastBatcher(15, 10, 5).isActive(4)).isFalse();
+		assertThat(new BroadcastBatcher(15, 10, 5).isActive(5)).isTrue();
+		// No window, no batching.
+		assertThat(new BroadcastBatcher(0, 10, 0).isActive(100)).isFalse();
+	}
+}
@@ -0,0 +1,49 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Test;
+
+import play.libs.Json;
+import play.mvc.WebSocket;
+
+public class BroadcastFrameTest {
+
+	private static class RecordingOut implements WebSocket.Out<String> {
+		final List<String> frames = new ArrayList<String>();
+		@Override
+		public void write(String frame) {
+			frames.add(frame);
+		}
+		@Override
+		public void close() {
+		}
+	}
+
+	@Test
+	public void oneEncodingIsSharedByAllMembers() {
+		List<WebSocket.Out<String>> outs = new ArrayList<WebSocket.Out<String>>();
+		for(int i = 0; i < 50; i ++){
+			outs.add(new RecordingOut());
+		}
+		ObjectNode event = Json.newObject();
+		event.put("key", "text");
+		event.put("text", "hello");
+
+		long encoded = BroadcastFrame.getEncodedFrames();
+		long delivered = BroadcastFrame.getDeliveredFrames();
+		BroadcastFrame frame = BroadcastFrame.encode(event);
+		frame.writeTo(outs);
+
+		assertThat(BroadcastFrame.getEncodedFrames() - encoded).isEqualTo(1);
+		assertThat(BroadcastFrame.getDeliveredFrames() - delivered).isEqualTo(50);
+		for(WebSocket.Out<String> out: outs){
+			assertThat(((RecordingOut) out).frames.get(0)).isSameAs(frame.getText());
+		}
+		assertThat(Json.parse(frame.getText()).get("text").asText()).isEqualTo("hello");
+	}
+}
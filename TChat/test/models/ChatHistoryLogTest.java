@@ -0,0 +1,126 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import models.ChatRoom.ChatRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChatHistoryLogTest {
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("history", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void deleteDir() {
+		File[] files = dir.listFiles();
+		if(files != null){
+			for(File f: files){
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static List<ChatRecord> records(long fromSeq, int count) {
+		List<ChatRecord> records = new ArrayList<ChatRecord>();
+		for(int i = 0; i < count; i ++){
+			long seq = fromSeq + i;
+			records.add(new ChatRecord(seq, 1000L + seq, "user@tchat.org", "message " + seq));
+		}
+		return records;
+	}
+
+	@Test
+	public void appendedRecordsAreReadBackAcrossSegments() throws IOException {
+		ChatHistoryLog log = new ChatHistoryLog(dir, 200);
+		log.append(records(0, 10));
+		log.append(records(10, 10));
+		assertThat(dir.listFiles().length).isGreaterThan(1);
+
+		ChatHistoryLog reopened = new ChatHistoryLog(dir, 200);
+		List<ChatRecord> all = reopened.readAll();
+		assertThat(all.size()).isEqualTo(20);
+		assertThat(all.get(19).getText()).isEqualTo("message 19");
+		assertThat(reopened.getLastSeq()).isEqualTo(19);
+		assertThat(reopened.readFrom(15).size()).isEqualTo(5);
+		assertThat(reopened.readFrom(15).get(0).getSeq()).isEqualTo(15);
+		assertThat(reopened.readTail(4).size()).isEqualTo(4);
+		assertThat(reopened.readTail(4).get(0).getSeq()).isEqualTo(16);
+		assertThat(reopened.readRange(5, 8).size()).isEqualTo(3);
+	}
+
+	@Test
+	public void tornTailIsCutOff() throws IOException {
+		ChatHistoryLog log = new ChatHistoryLog(dir);
+		log.append(records(0, 3));
+		File segment = dir.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(segment.length() - 3);
+		raf.close();
+
+		ChatHistoryLog reopened = new ChatHistoryLog(dir);
+		assertThat(reopened.getLastSeq()).isEqualTo(1);
+		reopened.append(records(2, 1));
+		assertThat(new ChatHistoryLog(dir).readAll().size()).isEqualTo(3);
+	}
+
+	@Test
+	public void readOnlyLogLeavesTornTail() throws IOException {
+		new ChatHistoryLog(dir).append(records(0, 3));
+		File segment = dir.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		raf.setLength(segment.length() - 3);
+		raf.close();
+		long tornLength = segment.length();
+
+		ChatHistoryLog readOnly = ChatHistoryLog.openReadOnly(dir);
+		assertThat(readOnly.getLastSeq()).isEqualTo(1);
+		assertThat(readOnly.readAll().size()).isEqualTo(2);
+		assertThat(segment.length()).isEqualTo(tornLength);
+	}
+
+	@Test(expected = IOException.class)
+	public void readOnlyLogCannotBeAppended() throws IOException {
+		new ChatHistoryLog(dir).append(records(0, 1));
+		ChatHistoryLog.openReadOnly(dir).append(records(1, 1));
+	}
+
+	@Test
+	public void probeSeesAppendsOfOtherInstancesWithoutChangingTheLog() throws IOException {
+		assertThat(ChatHistoryLog.probe(dir)).isEqualTo(ChatHistoryLog.Position.EMPTY);
+		ChatHistoryLog log = new ChatHistoryLog(dir, 200);
+		log.append(records(0, 3));
+		ChatHistoryLog.Position seen = log.getPosition();
+		assertThat(ChatHistoryLog.probe(dir)).isEqualTo(seen);
+
+		// Another node appends to the log.
+		new ChatHistoryLog(dir, 200).append(records(3, 1));
+		assertThat(ChatHistoryLog.probe(dir)).isNotEqualTo(seen);
+
+		File[] segments = dir.listFiles();
+		Arrays.sort(segments);
+		File last = segments[segments.length - 1];
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		raf.setLength(last.length() - 3);
+		raf.close();
+		long tornLength = last.length();
+		ChatHistoryLog.probe(dir);
+		assertThat(last.length()).isEqualTo(tornLength);
+	}
+}
@@ -0,0 +1,213 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.running;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import play.libs.F.Callback;
+import play.libs.F.Callback0;
+import play.mvc.WebSocket;
+
+public class ChatRoomJoinTest {
+
+	/**
+	 * Out channel recording the frames written to it.
+	 */
+	private static class RecordingOut implements WebSocket.Out<String> {
+		final List<String> frames = new ArrayList<String>();
+		final CountDownLatch closed = new CountDownLatch(1);
+		private final CountDownLatch answered;
+
+		RecordingOut(CountDownLatch latch) {
+			answered = latch;
+		}
+
+		@Override
+		public synchronized void write(String frame) {
+			// The first frame answers the join: member list or error.
+			if(frames.isEmpty()){
+				answered.countDown();
+			}
+			frames.add(frame);
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+
+		boolean isClosed() throws InterruptedException {
+			return closed.await(10, TimeUnit.SECONDS);
+		}
+
+		synchronized String first() {
+			return frames.isEmpty() ? null : frames.get(0);
+		}
+
+		synchronized boolean received(String text) {
+			for(String frame: frames){
+				if(frame.contains(text)){
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static void close(WebSocket.In<String> in) throws Throwable {
+		for(Callback0 callback: in.closeCallbacks){
+			callback.invoke();
+		}
+	}
+
+	private static void send(WebSocket.In<String> in, String frame) throws Throwable {
+		for(Callback<String> callback: in.callbacks){
+			callback.invoke(frame);
+		}
+	}
+
+	@Test
+	public void joinResultIsWrittenToTheSocket() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				try{
+					ChatRoom room = new ChatRoom("join", 1001, new String[]{"alice@tchat.org", "bob@tchat.org"});
+					CountDownLatch latch = new CountDownLatch(3);
+
+					WebSocket.In<String> aliceIn = new WebSocket.In<String>();
+					RecordingOut alice = new RecordingOut(latch);
+					room.join("alice@tchat.org", aliceIn, alice);
+
+					WebSocket.In<String> strangerIn = new WebSocket.In<String>();
+					RecordingOut stranger = new RecordingOut(latch);
+					room.join("eve@tchat.org", strangerIn, stranger);
+
+					WebSocket.In<String> secondIn = new WebSocket.In<String>();
+					RecordingOut second = new RecordingOut(latch);
+					room.join("alice@tchat.org", secondIn, second);
+
+					assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+					assertThat(alice.first()).contains("\"key\":\"members\"");
+					assertThat(alice.closed.getCount()).isEqualTo(1);
+					assertThat(stranger.first()).contains("\"error\"");
+					assertThat(stranger.isClosed()).isTrue();
+					assertThat(second.first()).contains("\"error\"");
+					assertThat(second.isClosed()).isTrue();
+
+					// A rejected socket can neither talk nor make the member leave.
+					send(secondIn, "{\"kind\":\"text\",\"text\":\"from the second socket\"}");
+					close(secondIn);
+					send(aliceIn, "{\"kind\":\"text\",\"text\":\"from alice\"}");
+					long deadline = System.currentTimeMillis() + 10000;
+					while(!alice.received("from alice") && System.currentTimeMillis() < deadline){
+						Thread.sleep(10);
+					}
+					assertThat(alice.received("from alice")).isTrue();
+					assertThat(alice.received("from the second socket")).isFalse();
+					assertThat(alice.received("has left this room")).isFalse();
+				}catch(Throwable e){
+					throw new AssertionError(e);
+				}
+			}
+		});
+	}
+
+	@Test
+	public void framesSentBeforeTheRejectionLandsAreDropped() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				try{
+					ChatRoom room = new ChatRoom("early", 1002, new String[]{"alice@tchat.org"});
+					CountDownLatch latch = new CountDownLatch(1);
+					WebSocket.In<String> aliceIn = new WebSocket.In<String>();
+					RecordingOut alice = new RecordingOut(latch);
+					room.join("alice@tchat.org", aliceIn, alice);
+					assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+
+					// The stranger's frames reach the chat room right behind the join, before it is rejected.
+					WebSocket.In<String> strangerIn = new WebSocket.In<String>();
+					RecordingOut stranger = new RecordingOut(new CountDownLatch(1));
+					room.join("eve@tchat.org", strangerIn, stranger);
+					send(strangerIn, "{\"kind\":\"text\",\"text\":\"from the stranger\"}");
+					send(strangerIn, "{\"kind\":\"searchchathistory\",\"text\":\"joined\"}");
+					send(strangerIn, "{\"kind\":\"savechat\"}");
+
+					send(aliceIn, "{\"kind\":\"text\",\"text\":\"from alice\"}");
+					long deadline = System.currentTimeMillis() + 10000;
+					while(!alice.received("from alice") && System.currentTimeMillis() < deadline){
+						Thread.sleep(10);
+					}
+					assertThat(alice.received("from alice")).isTrue();
+					assertThat(alice.received("from the stranger")).isFalse();
+					assertThat(room.getChatHistoryStr()).excludes("from the stranger");
+					assertThat(stranger.isClosed()).isTrue();
+					assertThat(stranger.received("searchhistory")).isFalse();
+					assertThat(stranger.received("chatsaved")).isFalse();
+				}catch(Throwable e){
+					throw new AssertionError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * A burst of 10k reconnects (100 chat rooms of 100 members) issued from a small thread pool.
+	 * join() only sends a message, so the issuing threads never wait for the chat rooms.
+	 */
+	@Test
+	public void burstOfReconnects() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				try{
+					final int rooms = 100, membersPerRoom = 100;
+					final CountDownLatch answered = new CountDownLatch(rooms * membersPerRoom);
+					List<ChatRoom> chatRooms = new ArrayList<ChatRoom>();
+					for(int r = 0; r < rooms; r ++){
+						String[] members = new String[membersPerRoom];
+						for(int m = 0; m < membersPerRoom; m ++){
+							members[m] = "member" + m + "@tchat.org";
+						}
+						chatRooms.add(new ChatRoom("burst" + r, 2000 + r, members));
+					}
+
+					ExecutorService pool = Executors.newFixedThreadPool(8);
+					final List<RecordingOut> outs = new ArrayList<RecordingOut>();
+					for(int m = 0; m < membersPerRoom; m ++){
+						for(final ChatRoom room: chatRooms){
+							final String username = "member" + m + "@tchat.org";
+							final RecordingOut out = new RecordingOut(answered);
+							outs.add(out);
+							pool.execute(new Runnable() {
+								@Override
+								public void run() {
+									room.join(username, new WebSocket.In<String>(), out);
+								}
+							});
+						}
+					}
+					pool.shutdown();
+					assertThat(pool.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+					assertThat(answered.await(60, TimeUnit.SECONDS)).isTrue();
+
+					for(RecordingOut out: outs){
+						assertThat(out.first()).contains("\"key\":\"members\"");
+					}
+				}catch(InterruptedException e){
+					throw new AssertionError(e);
+				}
+			}
+		});
+	}
+}
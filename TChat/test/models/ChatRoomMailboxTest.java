@@ -0,0 +1,66 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import scala.Option;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MessageQueue;
+
+public class ChatRoomMailboxTest {
+
+	private ActorSystem system;
+
+	@Before
+	public void setUp(){
+		system = ActorSystem.create("ChatRoomMailboxTest");
+	}
+
+	@After
+	public void tearDown(){
+		system.shutdown();
+	}
+
+	private MessageQueue queue(int capacity){
+		return new ChatRoomMailbox(capacity).create(Option.<ActorRef>empty(), Option.apply(system));
+	}
+
+	private Envelope envelope(Object message){
+		return Envelope.apply(message, system.deadLetters(), system);
+	}
+
+	@Test
+	public void chatTrafficIsDroppedAtCapacity(){
+		MessageQueue queue = queue(2);
+		long droppedBefore = ChatRoomMailbox.getDroppedMessages();
+		queue.enqueue(system.deadLetters(), envelope(new ChatRoom.Talk("alice@tchat.org", "1")));
+		queue.enqueue(system.deadLetters(), envelope(new ChatRoom.Talk("alice@tchat.org", "2")));
+		queue.enqueue(system.deadLetters(), envelope(new ChatRoom.Talk("alice@tchat.org", "3")));
+		assertThat(queue.numberOfMessages()).isEqualTo(2);
+		assertThat(ChatRoomMailbox.getDroppedMessages() - droppedBefore).isEqualTo(1);
+		// Messages come out in order, and room is made again.
+		assertThat(((ChatRoom.Talk) queue.dequeue().message()).getMsg()).isEqualTo("1");
+		queue.enqueue(system.deadLetters(), envelope(new ChatRoom.Talk("alice@tchat.org", "4")));
+		assertThat(queue.numberOfMessages()).isEqualTo(2);
+		assertThat(((ChatRoom.Talk) queue.dequeue().message()).getMsg()).isEqualTo("2");
+		assertThat(((ChatRoom.Talk) queue.dequeue().message()).getMsg()).isEqualTo("4");
+		assertThat(queue.hasMessages()).isFalse();
+		assertThat(queue.dequeue()).isNull();
+	}
+
+	@Test
+	public void controlMessagesAreNeverDropped(){
+		MessageQueue queue = queue(1);
+		long droppedBefore = ChatRoomMailbox.getDroppedMessages();
+		queue.enqueue(system.deadLetters(), envelope(new ChatRoom.Talk("alice@tchat.org", "hi")));
+		queue.enqueue(system.deadLetters(), envelope(new ChatRoom.Quit("alice@tchat.org", "1")));
+		queue.enqueue(system.deadLetters(), envelope(new ChatRoom.CloseRoom("1", null)));
+		assertThat(queue.numberOfMessages()).isEqualTo(3);
+		assertThat(ChatRoomMailbox.getDroppedMessages()).isEqualTo(droppedBefore);
+	}
+}
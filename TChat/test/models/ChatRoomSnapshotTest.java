@@ -0,0 +1,188 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.running;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import models.ChatRoom.ChatRecord;
+
+import org.junit.Test;
+
+import utils.FileUtil;
+
+public class ChatRoomSnapshotTest {
+
+	private static final String[] MEMBERS = new String[]{"alice@tchat.org", "bob@tchat.org"};
+
+	// A chat room as saved to chatRoom.data by the first version (ChatRoom and ChatRecord of the initial commit),
+	// with three chat records stamped 2013-05-08 09:15:30, 09:16:02 and 09:20:45.
+	private static final String LEGACY_CHAT_ROOM_DATA =
+		"aced00057372000f6d6f64656c732e43686174526f6f6da5b9f3d0299afb340200074a000a63686174526f6f6d49645a" +
+		"0007697353617665645a00096973557064617465644a000a74696d6554616756616c4c000b63686174486973746f7279" +
+		"7400114c6a6176612f7574696c2f51756575653b4c000c63686174526f6f6d4e616d657400124c6a6176612f6c616e67" +
+		"2f537472696e673b5b000b6d656d626572734c6973747400135b4c6a6176612f6c616e672f537472696e673b78700000" +
+		"0000007c5bff01000000013e836c8f507372002a6a6176612e7574696c2e636f6e63757272656e742e436f6e63757272" +
+		"656e744c696e6b6564517565756502bafb2a664c708c03000078707372001a6d6f64656c732e43686174526f6f6d2443" +
+		"6861745265636f7264744b433e411f58680200034c00047465787471007e00024c000774696d6554616771007e00024c" +
+		"0008757365726e616d6571007e00027870740015686173206a6f696e6564207468697320726f6f6d2e74001332303133" +
+		"2d31352d30382030393a31353a333074000f616c6963654074636861742e6f72677371007e000774001748656c6c6f2c" +
+		"206261636b73747265657420626f797321740013323031332d31362d30382030393a31363a303271007e000b7371007e" +
+		"000774000773656520796f75740013323031332d32302d30382030393a32303a343574000d626f624074636861742e6f" +
+		"726770787400066c6567616379757200135b4c6a6176612e6c616e672e537472696e673badd256e7e91d7b4702000078" +
+		"700000000271007e000b71007e0012";
+
+	private static List<ChatRecord> records(int count){
+		List<ChatRecord> records = new ArrayList<ChatRecord>();
+		for(int i = 0; i < count; i ++){
+			records.add(new ChatRecord(100 + i, 1000L * i, MEMBERS[i % 2], "message " + i));
+		}
+		return records;
+	}
+
+	private static void assertSameRecord(ChatRecord actual, ChatRecord expected){
+		assertThat(actual.getSeq()).isEqualTo(expected.getSeq());
+		assertThat(actual.getTimestamp()).isEqualTo(expected.getTimestamp());
+		assertThat(actual.getTimeTag()).isEqualTo(expected.getTimeTag());
+		assertThat(actual.getUsername()).isEqualTo(expected.getUsername());
+		assertThat(actual.getText()).isEqualTo(expected.getText());
+	}
+
+	private static void deleteRecursively(File file){
+		File[] children = file.listFiles();
+		if(children != null){
+			for(File child: children){
+				deleteRecursively(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void snapshotRoundTripsThroughAMappedFile() throws IOException {
+		List<ChatRecord> records = records(5);
+		// A user who is no longer a member and text beyond ASCII.
+		records.add(new ChatRecord(105, 5000, "carol@tchat.org", "caf\u00e9 \u4f60\u597d"));
+		byte[] encoded = ChatRoomSnapshot.encode(42, "Room \u00e9", MEMBERS, 106, 777, true, false, true, records);
+
+		File file = File.createTempFile("room", ".snap");
+		try{
+			FileUtil.write(file, encoded);
+			ChatRoomSnapshot snapshot = ChatRoomSnapshot.open(file);
+			assertThat(snapshot.getVersion()).isEqualTo(ChatRoomSnapshot.VERSION);
+			assertThat(snapshot.getRoomId()).isEqualTo(42);
+			assertThat(snapshot.getRoomName()).isEqualTo("Room \u00e9");
+			assertThat(snapshot.getMembers()).isEqualTo(MEMBERS);
+			assertThat(snapshot.getNextSeq()).isEqualTo(106);
+			assertThat(snapshot.getTimeTag()).isEqualTo(777);
+			assertThat(snapshot.isSaved()).isTrue();
+			assertThat(snapshot.isUpdated()).isFalse();
+			assertThat(snapshot.isBatching()).isTrue();
+			assertThat(snapshot.getRecordCount()).isEqualTo(6);
+			List<ChatRecord> decoded = snapshot.getRecords(0);
+			for(int i = 0; i < records.size(); i ++){
+				assertSameRecord(decoded.get(i), records.get(i));
+			}
+		}finally{
+			file.delete();
+		}
+	}
+
+	@Test
+	public void recordsAreDecodedOnDemand() throws IOException {
+		List<ChatRecord> records = records(50);
+		ChatRoomSnapshot snapshot = ChatRoomSnapshot.decode(ChatRoomSnapshot.encode(1, "lazy", MEMBERS, 150, 0, false, true, false, records));
+		assertThat(snapshot.getLastSeq()).isEqualTo(149);
+		assertSameRecord(snapshot.getRecord(37), records.get(37));
+		List<ChatRecord> tail = snapshot.getRecords(45);
+		assertThat(tail.size()).isEqualTo(5);
+		assertSameRecord(tail.get(0), records.get(45));
+		// Usernames are stored once in the string table.
+		byte[] encoded = ChatRoomSnapshot.encode(1, "lazy", MEMBERS, 150, 0, false, true, false, records);
+		assertThat(new String(encoded, "UTF-8").split("alice@tchat.org", -1).length - 1).isEqualTo(1);
+	}
+
+	@Test
+	public void newerVersionAndCorruptionAreRejected() throws IOException {
+		byte[] encoded = ChatRoomSnapshot.encode(1, "room", MEMBERS, 3, 0, false, false, false, records(3));
+
+		byte[] newer = Arrays.copyOf(encoded, encoded.length);
+		newer[5] = ChatRoomSnapshot.VERSION + 1;
+		try{
+			ChatRoomSnapshot.decode(newer);
+			throw new AssertionError("newer version accepted");
+		}catch(IOException e){
+			assertThat(e.getMessage()).contains("newer");
+		}
+
+		byte[] corrupted = Arrays.copyOf(encoded, encoded.length);
+		corrupted[encoded.length - 10] ^= 0x20;
+		try{
+			ChatRoomSnapshot.decode(corrupted);
+			throw new AssertionError("corrupted snapshot accepted");
+		}catch(IOException e){
+			assertThat(e.getMessage()).contains("checksum");
+		}
+	}
+
+	@Test
+	public void legacyChatRoomDataIsMigrated() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				String roomId = "8150015";
+				File roomDir = new File(roomId);
+				deleteRecursively(roomDir);
+				try{
+					roomDir.mkdirs();
+					FileOutputStream fos = new FileOutputStream(new File(roomDir, "chatRoom.data"));
+					fos.write(hexToBytes(LEGACY_CHAT_ROOM_DATA));
+					fos.close();
+
+					ChatRoom migrated = ChatRoom.readPersistedChatRoom(roomId);
+					assertThat(migrated.getRoomName()).isEqualTo("legacy");
+					assertThat(new File(roomDir, ChatRoomSnapshot.FILE_NAME).exists()).isTrue();
+					assertThat(new File(roomDir, "chatRoom.data").exists()).isFalse();
+					assertThat(new File(roomDir, "chatRoom.data.migrated").exists()).isTrue();
+
+					ChatRoomSnapshot snapshot = ChatRoomSnapshot.open(new File(roomDir, ChatRoomSnapshot.FILE_NAME));
+					assertThat(snapshot.getRoomName()).isEqualTo("legacy");
+					assertThat(snapshot.getMembers()).isEqualTo(MEMBERS);
+					// The old time format lost the month and AM/PM: the times come back in January, before noon.
+					SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+					List<ChatRecord> records = snapshot.getRecords(0);
+					assertThat(records).hasSize(3);
+					assertThat(records.get(0).getTimestamp()).isEqualTo(format.parse("2013-01-08 09:15:30").getTime());
+					assertThat(records.get(1).getTimestamp()).isEqualTo(format.parse("2013-01-08 09:16:02").getTime());
+					assertThat(records.get(2).getTimestamp()).isEqualTo(format.parse("2013-01-08 09:20:45").getTime());
+					assertThat(records.get(1).getText()).isEqualTo("Hello, backstreet boys!");
+					assertThat(records.get(2).getSeq()).isEqualTo(2);
+
+					// Read in again, from the snapshot this time.
+					ChatRoom reread = ChatRoom.readPersistedChatRoom(roomId);
+					assertThat(reread.getRoomName()).isEqualTo("legacy");
+					assertThat(reread.getRoomActorRef()).isNotNull();
+				}catch(Exception e){
+					throw new AssertionError(e);
+				}finally{
+					deleteRecursively(roomDir);
+				}
+			}
+		});
+	}
+
+	private static byte[] hexToBytes(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int i = 0; i < bytes.length; i ++){
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+}
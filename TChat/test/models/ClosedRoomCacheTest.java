@@ -0,0 +1,96 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static play.test.Helpers.fakeApplication;
+import static play.test.Helpers.running;
+
+import org.junit.Test;
+
+public class ClosedRoomCacheTest {
+
+	private static ChatRoom room(long id){
+		return new ChatRoom("room" + id, id, new String[]{"alice@tchat.org", "bob@tchat.org"});
+	}
+
+	@Test
+	public void takeRemovesTheRoomAndCountsHitsAndMisses() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				ClosedRoomCache cache = new ClosedRoomCache(10, 1024 * 1024);
+				ChatRoom chatRoom = room(1);
+				cache.put(chatRoom);
+				assertThat(cache.size()).isEqualTo(1);
+				assertThat(cache.getBytes()).isEqualTo(chatRoom.estimateBytes());
+
+				assertThat(cache.take(1)).isSameAs(chatRoom);
+				assertThat(cache.take(1)).isNull();
+				assertThat(cache.take(2)).isNull();
+				assertThat(cache.getHits()).isEqualTo(1);
+				assertThat(cache.getMisses()).isEqualTo(2);
+				assertThat(cache.size()).isEqualTo(0);
+				assertThat(cache.getBytes()).isEqualTo(0);
+			}
+		});
+	}
+
+	@Test
+	public void leastRecentlyUsedRoomIsEvictedBeyondMaxRooms() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				ClosedRoomCache cache = new ClosedRoomCache(2, 1024 * 1024);
+				cache.put(room(1));
+				cache.put(room(2));
+				// Room 1 is taken and closed again, so room 2 is now the least recently used.
+				cache.put(cache.take(1));
+				cache.put(room(3));
+				assertThat(cache.size()).isEqualTo(2);
+				assertThat(cache.getEvictions()).isEqualTo(1);
+				assertThat(cache.take(2)).isNull();
+				assertThat(cache.take(1)).isNotNull();
+				assertThat(cache.take(3)).isNotNull();
+			}
+		});
+	}
+
+	@Test
+	public void roomsAreEvictedBeyondMaxBytes() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				long roomBytes = room(0).estimateBytes();
+				ClosedRoomCache cache = new ClosedRoomCache(100, roomBytes * 3);
+				for(long id = 1; id <= 5; id ++){
+					cache.put(room(id));
+				}
+				assertThat(cache.size()).isEqualTo(3);
+				assertThat(cache.getBytes()).isLessThanOrEqualTo(roomBytes * 3);
+				assertThat(cache.take(1)).isNull();
+				assertThat(cache.take(5)).isNotNull();
+
+				// A room larger than the whole cache is not cached.
+				ClosedRoomCache tiny = new ClosedRoomCache(100, roomBytes - 1);
+				tiny.put(room(6));
+				assertThat(tiny.size()).isEqualTo(0);
+			}
+		});
+	}
+
+	@Test
+	public void reopenedRoomGetsANewActor() {
+		running(fakeApplication(), new Runnable() {
+			@Override
+			public void run() {
+				ChatRoom chatRoom = room(7001);
+				chatRoom.setRoomActorRef(null);
+				ClosedRoomCache.getInstance().put(chatRoom);
+
+				ChatRoom reopened = ChatRoom.reopenClosedChatRoom(7001);
+				assertThat(reopened).isSameAs(chatRoom);
+				assertThat(reopened.getRoomActorRef()).isNotNull();
+				assertThat(ChatRoom.reopenClosedChatRoom(7001)).isNull();
+			}
+		});
+	}
+}
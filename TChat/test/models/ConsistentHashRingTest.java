@@ -0,0 +1,85 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+	private static List<String> nodes(int count){
+		List<String> nodes = new ArrayList<String>();
+		for(int i = 0; i < count; i ++){
+			nodes.add("akka://application@127.0.0.1:" + (2552 + i));
+		}
+		return nodes;
+	}
+
+	@Test
+	public void nodesAgreeWhateverTheOrder() {
+		List<String> nodes = nodes(3);
+		ConsistentHashRing ring = new ConsistentHashRing(nodes, 100);
+		List<String> reversed = new ArrayList<String>(nodes);
+		Collections.reverse(reversed);
+		ConsistentHashRing other = new ConsistentHashRing(reversed, 100);
+		assertThat(other).isEqualTo(ring);
+		for(long roomId = 0; roomId < 1000; roomId ++){
+			assertThat(other.owner(roomId)).isEqualTo(ring.owner(roomId));
+		}
+	}
+
+	@Test
+	public void roomsAreSpreadOverTheNodes() {
+		ConsistentHashRing ring = new ConsistentHashRing(nodes(4), 100);
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		int rooms = 40000;
+		for(long roomId = 0; roomId < rooms; roomId ++){
+			String owner = ring.owner(roomId * 7919);
+			counts.put(owner, counts.containsKey(owner) ? counts.get(owner) + 1 : 1);
+		}
+		assertThat(counts.size()).isEqualTo(4);
+		for(int count: counts.values()){
+			assertThat(count).isGreaterThan(rooms / 4 * 7 / 10).isLessThan(rooms / 4 * 13 / 10);
+		}
+	}
+
+	@Test
+	public void onlyTheRoomsOfTheNewNodeMove() {
+		ConsistentHashRing ring = new ConsistentHashRing(nodes(4), 100);
+		String newNode = "akka://application@127.0.0.1:2600";
+		ConsistentHashRing grown = ring.withNode(newNode);
+		int rooms = 20000;
+		int moved = 0;
+		for(long roomId = 0; roomId < rooms; roomId ++){
+			String before = ring.owner(roomId);
+			String after = grown.owner(roomId);
+			if(!before.equals(after)){
+				// A chat room only ever moves to the new node.
+				assertThat(after).isEqualTo(newNode);
+				moved ++;
+			}
+		}
+		assertThat(moved).isGreaterThan(rooms / 5 / 2).isLessThan(rooms / 5 * 2);
+		// And back when it leaves.
+		ConsistentHashRing shrunk = grown.withoutNode(newNode);
+		assertThat(shrunk).isEqualTo(ring);
+		for(long roomId = 0; roomId < 1000; roomId ++){
+			assertThat(shrunk.owner(roomId)).isEqualTo(ring.owner(roomId));
+		}
+	}
+
+	@Test
+	public void emptyRingHasNoOwner() {
+		ConsistentHashRing ring = new ConsistentHashRing(new ArrayList<String>(), 100);
+		assertThat(ring.isEmpty()).isTrue();
+		assertThat(ring.owner(42)).isNull();
+		assertThat(ring.withNode("a").owner(42)).isEqualTo("a");
+		assertThat(new ConsistentHashRing(Arrays.asList("a"), 1).withoutNode("b").getNodes()).containsOnly("a");
+	}
+}
@@ -0,0 +1,147 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import models.ChatRoom.ChatRecord;
+import models.GlobalSearchIndex.Hit;
+import models.GlobalSearchIndex.Page;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class GlobalSearchIndexTest {
+
+	// Indexes queued records on the caller's thread.
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable task) {
+			task.run();
+		}
+	};
+
+	private GlobalSearchIndex index;
+
+	@Before
+	public void buildIndex() {
+		index = new GlobalSearchIndex(100, 4, DIRECT);
+		index.add(1, new ChatRecord(0, 1000, "alice@tchat.org", "Hello, backstreet boys!"));
+		index.add(2, new ChatRecord(0, 500, "bob@tchat.org", "backstreet's back"));
+		index.add(1, new ChatRecord(1, 3000, "bob@tchat.org", "boys are back in town"));
+		index.add(3, new ChatRecord(0, 2000, "carol@tchat.org", "backstreet concert tonight"));
+	}
+
+	private static String ids(List<Hit> hits) {
+		StringBuilder sb = new StringBuilder();
+		for(Hit hit: hits){
+			sb.append(hit.getRoomId()).append(':').append(hit.getSeq()).append(' ');
+		}
+		return sb.toString().trim();
+	}
+
+	@Test
+	public void searchesAllRoomsMostRecentFirst() {
+		Page page = index.search("backstreet", null, 0, 10);
+		assertThat(page.getTotal()).isEqualTo(3);
+		assertThat(ids(page.getHits())).isEqualTo("3:0 1:0 2:0");
+		assertThat(ids(index.search("boys", "bob@tchat.org", 0, 10).getHits())).isEqualTo("1:1");
+	}
+
+	@Test
+	public void pagesThroughTopHits() {
+		assertThat(ids(index.search("back*", null, 0, 2).getHits())).isEqualTo("1:1 3:0");
+		assertThat(ids(index.search("back*", null, 1, 2).getHits())).isEqualTo("1:0 2:0");
+		assertThat(index.search("back*", null, 2, 2).getHits()).isEmpty();
+		assertThat(index.search("back*", null, 2, 2).getTotal()).isEqualTo(4);
+	}
+
+	@Test
+	public void ignoresRecordsAlreadyIndexed() {
+		index.add(1, new ChatRecord(1, 3000, "bob@tchat.org", "boys are back in town"));
+		assertThat(index.getDocCount()).isEqualTo(4);
+		assertThat(index.getLastSeq(1)).isEqualTo(1);
+		assertThat(index.getLastSeq(4)).isEqualTo(-1);
+	}
+
+	@Test
+	public void dropsTheOldestSegmentBeyondTheBound() {
+		GlobalSearchIndex bounded = new GlobalSearchIndex(2, 2, DIRECT);
+		for(int seq = 0; seq < 5; seq ++){
+			bounded.add(1, new ChatRecord(seq, 1000 + seq, "alice@tchat.org", "backstreet " + seq));
+		}
+		// Segments [2, 3] and [4] are kept.
+		assertThat(bounded.getDocCount()).isEqualTo(3);
+		assertThat(ids(bounded.search("backstreet", null, 0, 10).getHits())).isEqualTo("1:4 1:3 1:2");
+		assertThat(bounded.getLastSeq(1)).isEqualTo(4);
+	}
+
+	@Test
+	public void queuedRecordsAreIndexedOnTheExecutor() {
+		final List<Runnable> tasks = new ArrayList<Runnable>();
+		GlobalSearchIndex queued = new GlobalSearchIndex(100, 4, new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				tasks.add(task);
+			}
+		});
+		queued.add(1, new ChatRecord(0, 1000, "alice@tchat.org", "backstreet"));
+		queued.add(1, new ChatRecord(1, 2000, "alice@tchat.org", "boys"));
+		assertThat(tasks).hasSize(1);
+		assertThat(queued.getDocCount()).isEqualTo(0);
+		tasks.get(0).run();
+		assertThat(queued.getDocCount()).isEqualTo(2);
+		assertThat(ids(queued.search("boys", null, 0, 10).getHits())).isEqualTo("1:1");
+	}
+
+	@Test
+	public void catchesUpFromHistoryLog() throws IOException {
+		File dir = File.createTempFile("history", "");
+		dir.delete();
+		ChatHistoryLog log = new ChatHistoryLog(dir);
+		try{
+			log.append(Arrays.asList(
+				new ChatRecord(0, 100, "dave@tchat.org", "backstreet forever"),
+				new ChatRecord(1, 200, "dave@tchat.org", "see you")));
+			index.catchUp(4, log);
+			index.catchUp(4, log);
+			assertThat(index.getDocCount()).isEqualTo(6);
+			assertThat(index.getRoomCount()).isEqualTo(4);
+			assertThat(ids(index.search("backstreet", null, 0, 10).getHits())).isEqualTo("3:0 1:0 2:0 4:0");
+		}finally{
+			for(File f: dir.listFiles()){
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void catchUpReadsOnlyNewestRecords() throws IOException {
+		File dir = File.createTempFile("history", "");
+		dir.delete();
+		ChatHistoryLog log = new ChatHistoryLog(dir);
+		try{
+			List<ChatRecord> records = new ArrayList<ChatRecord>();
+			for(int seq = 0; seq < 3000; seq ++){
+				records.add(new ChatRecord(seq, seq, "dave@tchat.org", "message " + seq));
+			}
+			log.append(records);
+			GlobalSearchIndex small = new GlobalSearchIndex(500, 4, DIRECT);
+			small.catchUp(5, ChatHistoryLog.openReadOnly(dir));
+			assertThat(small.getDocCount()).isEqualTo(2000);
+			assertThat(small.getLastSeq(5)).isEqualTo(2999);
+			assertThat(small.search("message", null, 0, 1).getTotal()).isEqualTo(2000);
+		}finally{
+			for(File f: dir.listFiles()){
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import models.ChatRoom.ChatRecord;
+import models.HistoryIndex.Query;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HistoryIndexTest {
+
+	private HistoryIndex index;
+
+	@Before
+	public void buildIndex() {
+		index = new HistoryIndex();
+		index.add(new ChatRecord(0, 1000, "alice@tchat.org", "Hello, backstreet boys!"));
+		index.add(new ChatRecord(1, 2000, "bob@tchat.org", "boys are back in town"));
+		index.add(new ChatRecord(2, 3000, "alice@tchat.org", "backstreet's back, alright"));
+		index.add(new ChatRecord(3, 4000, "bob@tchat.org", "Gr\u00fc\u00dfe aus M\u00fcnchen"));
+	}
+
+	@Test
+	public void termQueryReturnsMostRecentFirst() {
+		assertThat(index.search(Query.parse("backstreet"), 10)).isEqualTo(new long[]{2, 0});
+		assertThat(index.search(Query.parse("boys backstreet"), 10)).isEqualTo(new long[]{0});
+		assertThat(index.search(Query.parse("backstreet"), 1)).isEqualTo(new long[]{2});
+		assertThat(index.search(Query.parse("m\u00fcnchen"), 10)).isEqualTo(new long[]{3});
+	}
+
+	@Test
+	public void phraseQueryRequiresAdjacentTerms() {
+		assertThat(index.search(Query.parse("\"backstreet boys\""), 10)).isEqualTo(new long[]{0});
+		assertThat(index.search(Query.parse("\"boys backstreet\""), 10)).isEqualTo(new long[0]);
+	}
+
+	@Test
+	public void prefixQueryMatchesAllTermsWithPrefix() {
+		assertThat(index.search(Query.parse("back*"), 10)).isEqualTo(new long[]{2, 1, 0});
+	}
+
+	@Test
+	public void filtersRestrictMemberAndTime() {
+		assertThat(index.search(Query.parse("back*", "bob@tchat.org", Long.MIN_VALUE, Long.MAX_VALUE), 10)).isEqualTo(new long[]{1});
+		assertThat(index.search(Query.parse("back*", null, 1500, 3000), 10)).isEqualTo(new long[]{2, 1});
+	}
+
+	@Test
+	public void recordsAreIndexedOnce() {
+		index.add(new ChatRecord(2, 3000, "alice@tchat.org", "backstreet again"));
+		assertThat(index.getDocCount()).isEqualTo(4);
+	}
+}
@@ -0,0 +1,67 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import models.ChatRoom.ChatRecord;
+
+import org.junit.Test;
+
+public class HistoryWindowTest {
+
+	private static ChatRecord record(long seq) {
+		return new ChatRecord(seq, seq, "user@tchat.org", "message " + seq);
+	}
+
+	@Test
+	public void keepsOnlyTheMostRecentRecords() {
+		HistoryWindow window = new HistoryWindow(3);
+		for(long seq = 0; seq < 3; seq ++){
+			assertThat(window.add(record(seq))).isEqualTo(-1);
+		}
+		assertThat(window.add(record(3))).isEqualTo(0);
+		assertThat(window.add(record(4))).isEqualTo(1);
+
+		List<ChatRecord> records = window.snapshot();
+		assertThat(records.size()).isEqualTo(3);
+		assertThat(records.get(0).getSeq()).isEqualTo(2);
+		assertThat(records.get(2).getSeq()).isEqualTo(4);
+		assertThat(window.firstSeq()).isEqualTo(2);
+		assertThat(window.from(4).size()).isEqualTo(1);
+		assertThat(window.range(3, 4).get(0).getSeq()).isEqualTo(3);
+		assertThat(window.range(0, 2).isEmpty()).isTrue();
+	}
+
+	@Test
+	public void textsSurviveArenaCompaction() {
+		HistoryWindow window = new HistoryWindow(4);
+		StringBuilder text = new StringBuilder();
+		for(long seq = 0; seq < 100; seq ++){
+			text.append(seq % 2 == 0 ? (char) ('a' + seq % 26) : '\u00fc');
+			window.add(new ChatRecord(seq, 1000 * seq, "user" + (seq % 3) + "@tchat.org", text.toString()));
+		}
+		List<ChatRecord> records = window.snapshot();
+		assertThat(records.size()).isEqualTo(4);
+		for(int i = 0; i < 4; i ++){
+			ChatRecord record = records.get(i);
+			assertThat(record.getSeq()).isEqualTo(96 + i);
+			assertThat(record.getTimestamp()).isEqualTo(1000 * (96 + i));
+			assertThat(record.getUsername()).isEqualTo("user" + ((96 + i) % 3) + "@tchat.org");
+			assertThat(record.getText()).isEqualTo(text.substring(0, 97 + i));
+		}
+		// Usernames are stored once per chat room.
+		assertThat(window.dictionarySize()).isEqualTo(3);
+	}
+
+	@Test
+	public void timeIsFormattedWhenRendered() {
+		ChatRecord record = new ChatRecord(0, 0, "user@tchat.org", "hi");
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		long time = 1367406245000L;
+		assertThat(ChatRecord.formatTime(time)).isEqualTo(format.format(new Date(time)));
+		assertThat(record.getTimeTag()).isEqualTo(format.format(new Date(0)));
+	}
+}
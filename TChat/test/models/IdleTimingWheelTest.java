@@ -0,0 +1,89 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class IdleTimingWheelTest {
+
+	private static class Room implements IdleTimingWheel.Tracked {
+		final String name;
+		long lastActive;
+
+		Room(String roomName, long time) {
+			name = roomName;
+			lastActive = time;
+		}
+
+		@Override
+		public long getLastActiveTime() {
+			return lastActive;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	@Test
+	public void idleItemIsDueOnlyAfterIdleMax() {
+		IdleTimingWheel<Room> wheel = new IdleTimingWheel<Room>(1000, 8, 5000);
+		Room room = new Room("a", 0);
+		wheel.add(room, 0);
+		assertThat(wheel.advance(4999)).isEmpty();
+		assertThat(wheel.advance(5000)).containsExactly(room);
+		assertThat(wheel.size()).isEqualTo(0);
+		assertThat(wheel.advance(20000)).isEmpty();
+	}
+
+	@Test
+	public void activityPostponesTheDeadline() {
+		IdleTimingWheel<Room> wheel = new IdleTimingWheel<Room>(1000, 8, 5000);
+		Room busy = new Room("busy", 0);
+		Room quiet = new Room("quiet", 0);
+		wheel.add(busy, 0);
+		wheel.add(quiet, 0);
+		busy.lastActive = 3000;
+		assertThat(wheel.advance(5000)).containsExactly(quiet);
+		assertThat(wheel.advance(7999)).isEmpty();
+		busy.lastActive = 7000;
+		assertThat(wheel.advance(11999)).isEmpty();
+		assertThat(wheel.advance(12000)).containsExactly(busy);
+	}
+
+	@Test
+	public void deadlineBeyondOneTurnWaitsForItsRound() {
+		// One turn is 4 seconds, items are due after 10 seconds.
+		IdleTimingWheel<Room> wheel = new IdleTimingWheel<Room>(1000, 4, 10000);
+		Room room = new Room("a", 0);
+		wheel.add(room, 0);
+		for(long t = 0; t < 10000; t += 500){
+			assertThat(wheel.advance(t)).isEmpty();
+		}
+		assertThat(wheel.advance(10000)).containsExactly(room);
+	}
+
+	@Test
+	public void removedItemIsNeverDue() {
+		IdleTimingWheel<Room> wheel = new IdleTimingWheel<Room>(1000, 8, 5000);
+		Room room = new Room("a", 0);
+		wheel.add(room, 0);
+		wheel.remove(room);
+		assertThat(wheel.contains(room)).isFalse();
+		assertThat(wheel.advance(6000)).isEmpty();
+	}
+
+	@Test
+	public void longPauseChecksAllItems() {
+		IdleTimingWheel<Room> wheel = new IdleTimingWheel<Room>(1000, 4, 3000);
+		Room idle = new Room("idle", 0);
+		Room active = new Room("active", 0);
+		wheel.add(idle, 0);
+		wheel.add(active, 0);
+		active.lastActive = 60000;
+		assertThat(wheel.advance(61000)).containsExactly(idle);
+		assertThat(wheel.advance(62999)).isEmpty();
+		assertThat(wheel.advance(63000)).containsExactly(active);
+	}
+}
@@ -0,0 +1,156 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.codehaus.jackson.node.ObjectNode;
+import org.junit.Test;
+
+import play.libs.Json;
+import play.mvc.WebSocket;
+
+public class MemberOutboxTest {
+
+	private static class RecordingOut implements WebSocket.Out<String> {
+		final List<String> frames = new ArrayList<String>();
+		boolean closed = false;
+		@Override
+		public void write(String frame) {
+			frames.add(frame);
+		}
+		@Override
+		public void close() {
+			closed = true;
+		}
+		String key(int i){
+			return Json.parse(frames.get(i)).get("key").asText();
+		}
+		String text(int i){
+			return Json.parse(frames.get(i)).get("text").asText();
+		}
+	}
+
+	private static BroadcastFrame text(String text){
+		ObjectNode event = Json.newObject();
+		event.put("key", "text");
+		event.put("text", text);
+		return BroadcastFrame.encode(event);
+	}
+
+	private static BroadcastFrame presence(String username){
+		ObjectNode event = Json.newObject();
+		event.put("key", "member-added");
+		event.put("username", username);
+		return BroadcastFrame.encode(event);
+	}
+
+	@Test
+	public void configuredWindowCoversTheClientAckInterval() {
+		MemberOutbox.Settings settings = new MemberOutbox.Settings(4, 1000, MemberOutbox.Policy.DISCONNECT);
+		assertThat(settings.window).isEqualTo(MemberOutbox.CLIENT_ACK_INTERVAL);
+
+		// A client acknowledging every CLIENT_ACK_INTERVAL frames keeps receiving and is never disconnected.
+		RecordingOut out = new RecordingOut();
+		MemberOutbox outbox = new MemberOutbox(out, settings.window, 1, settings.policy);
+		for(int i = 0; i < 100; i ++){
+			outbox.send(text("m" + i));
+			if(out.frames.size() % MemberOutbox.CLIENT_ACK_INTERVAL == 0){
+				outbox.ack(out.frames.size());
+			}
+		}
+		assertThat(out.frames.size()).isEqualTo(100);
+		assertThat(outbox.isClosed()).isFalse();
+	}
+
+	@Test
+	public void framesBeyondTheWindowWaitForAcknowledgement() {
+		RecordingOut out = new RecordingOut();
+		MemberOutbox outbox = new MemberOutbox(out, 2, 10, MemberOutbox.Policy.DROP_OLDEST);
+		for(int i = 0; i < 5; i ++){
+			outbox.send(text("m" + i));
+		}
+		assertThat(out.frames.size()).isEqualTo(2);
+		assertThat(outbox.getInFlight()).isEqualTo(2);
+		assertThat(outbox.getDepth()).isEqualTo(3);
+
+		outbox.ack(1);
+		assertThat(out.frames.size()).isEqualTo(3);
+		// Stale and impossible acknowledgements are ignored.
+		outbox.ack(1);
+		outbox.ack(99);
+		assertThat(out.frames.size()).isEqualTo(3);
+
+		outbox.ack(3);
+		assertThat(out.frames.size()).isEqualTo(5);
+		assertThat(outbox.getDepth()).isEqualTo(0);
+		for(int i = 0; i < 5; i ++){
+			assertThat(out.text(i)).isEqualTo("m" + i);
+		}
+	}
+
+	@Test
+	public void dropOldestKeepsTheNewestFrames() {
+		RecordingOut out = new RecordingOut();
+		MemberOutbox outbox = new MemberOutbox(out, 1, 2, MemberOutbox.Policy.DROP_OLDEST);
+		for(int i = 0; i < 5; i ++){
+			outbox.send(text("m" + i));
+		}
+		assertThat(outbox.getDepth()).isEqualTo(2);
+		assertThat(outbox.getDropped()).isEqualTo(2);
+		outbox.ack(1);
+		outbox.ack(2);
+		assertThat(out.text(0)).isEqualTo("m0");
+		assertThat(out.text(1)).isEqualTo("m3");
+		assertThat(out.text(2)).isEqualTo("m4");
+	}
+
+	@Test
+	public void membershipChangesAreCoalescedIntoOneHint() {
+		RecordingOut out = new RecordingOut();
+		MemberOutbox outbox = new MemberOutbox(out, 1, 4, MemberOutbox.Policy.COALESCE_PRESENCE);
+		outbox.send(text("m0"));
+		outbox.sendPresence(presence("a"));
+		outbox.send(text("m1"));
+		outbox.sendPresence(presence("b"));
+		outbox.sendPresence(presence("c"));
+		// Full: the three membership changes become one hint.
+		outbox.send(text("m2"));
+		assertThat(outbox.getDepth()).isEqualTo(3);
+		assertThat(outbox.getDropped()).isEqualTo(3);
+		for(int i = 1; i <= 3; i ++){
+			outbox.ack(i);
+		}
+		assertThat(out.key(1)).isEqualTo("members-stale");
+		assertThat(out.text(2)).isEqualTo("m1");
+		assertThat(out.text(3)).isEqualTo("m2");
+		assertThat(out.closed).isFalse();
+	}
+
+	@Test
+	public void slowMemberIsDisconnectedWithAResyncHint() {
+		RecordingOut out = new RecordingOut();
+		MemberOutbox outbox = new MemberOutbox(out, 1, 2, MemberOutbox.Policy.DISCONNECT);
+		for(int i = 0; i < 4; i ++){
+			outbox.send(text("m" + i));
+		}
+		assertThat(outbox.isClosed()).isTrue();
+		assertThat(out.closed).isTrue();
+		assertThat(out.frames.size()).isEqualTo(2);
+		assertThat(out.key(1)).isEqualTo("resync");
+		assertThat(Json.parse(out.frames.get(1)).get("reconnect").asBoolean()).isTrue();
+		// Nothing is sent or kept any more.
+		outbox.send(text("m4"));
+		assertThat(outbox.getDepth()).isEqualTo(0);
+		assertThat(out.frames.size()).isEqualTo(2);
+	}
+
+	@Test
+	public void policyNamesAreParsed() {
+		assertThat(MemberOutbox.Policy.parse("coalesce-presence")).isEqualTo(MemberOutbox.Policy.COALESCE_PRESENCE);
+		assertThat(MemberOutbox.Policy.parse("DISCONNECT")).isEqualTo(MemberOutbox.Policy.DISCONNECT);
+		assertThat(MemberOutbox.Policy.parse("unknown")).isEqualTo(MemberOutbox.Policy.DROP_OLDEST);
+		assertThat(MemberOutbox.Policy.parse(null)).isEqualTo(MemberOutbox.Policy.DROP_OLDEST);
+	}
+}
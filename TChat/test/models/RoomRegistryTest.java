@@ -0,0 +1,52 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RoomRegistryTest {
+
+	@Test
+	public void getOrCreateCreatesOnlyOnce() throws Exception {
+		RoomRegistry registry = new RoomRegistry();
+		final AtomicInteger created = new AtomicInteger();
+		RoomRegistry.RoomFactory factory = new RoomRegistry.RoomFactory() {
+			@Override
+			public ChatRoom create(long roomId) {
+				created.incrementAndGet();
+				return new ChatRoom(roomId);
+			}
+		};
+		ChatRoom first = registry.getOrCreate(7L, factory);
+		ChatRoom second = registry.getOrCreate(7L, factory);
+		assertThat(second).isSameAs(first);
+		assertThat(created.get()).isEqualTo(1);
+		assertThat(registry.size()).isEqualTo(1);
+	}
+
+	@Test
+	public void factoryReturningNullRegistersNothing() throws Exception {
+		RoomRegistry registry = new RoomRegistry();
+		ChatRoom room = registry.getOrCreate(7L, new RoomRegistry.RoomFactory() {
+			@Override
+			public ChatRoom create(long roomId) {
+				return null;
+			}
+		});
+		assertThat(room).isNull();
+		assertThat(registry.contains(7L)).isFalse();
+	}
+
+	@Test
+	public void removeOnlyRemovesTheRegisteredInstance() {
+		RoomRegistry registry = new RoomRegistry();
+		ChatRoom room = new ChatRoom(7L);
+		assertThat(registry.putIfAbsent(room)).isNull();
+		assertThat(registry.putIfAbsent(new ChatRoom(7L))).isSameAs(room);
+		assertThat(registry.remove(new ChatRoom(7L))).isFalse();
+		assertThat(registry.remove(room)).isTrue();
+		assertThat(registry.get(7L)).isNull();
+	}
+}
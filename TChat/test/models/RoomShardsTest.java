@@ -0,0 +1,182 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.libs.Json;
+import play.mvc.WebSocket;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import controllers.Application;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Two nodes on localhost, talking over Akka remoting.
+ */
+public class RoomShardsTest {
+
+	private ActorSystem nodeA;
+	private ActorSystem nodeB;
+	private ActorRef shardsA;
+	private ActorRef shardsB;
+
+	private static class RecordingOut implements WebSocket.Out<String> {
+		final List<String> frames = new ArrayList<String>();
+		volatile boolean closed = false;
+		@Override
+		public synchronized void write(String frame) {
+			frames.add(frame);
+		}
+		@Override
+		public void close() {
+			closed = true;
+		}
+		synchronized boolean received(String text) {
+			for(String frame: frames){
+				if(frame.contains(text)){
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try{
+			return socket.getLocalPort();
+		}finally{
+			socket.close();
+		}
+	}
+
+	private static ActorSystem node(int port){
+		return ActorSystem.create("application", ConfigFactory.parseString(
+				"akka.actor.provider = \"akka.remote.RemoteActorRefProvider\"\n" +
+				"akka.remote.netty.hostname = \"127.0.0.1\"\n" +
+				"akka.remote.netty.port = " + port + "\n" +
+				"akka.remote.log-remote-lifecycle-events = off\n").withFallback(ConfigFactory.load()));
+	}
+
+	private static String address(ActorSystem system){
+		return ((ExtendedActorSystem) system).provider().getDefaultAddress().toString();
+	}
+
+	private static ConsistentHashRing ring(ActorRef shards) throws Exception {
+		Timeout timeout = new Timeout(Duration.create(5, TimeUnit.SECONDS));
+		return (ConsistentHashRing) Await.result(Patterns.ask(shards, new RoomShards.GetRing(), timeout), timeout.duration());
+	}
+
+	private static boolean await(ActorRef shards, int nodes) throws Exception {
+		for(int i = 0; i < 100; i ++){
+			if(ring(shards).getNodes().size() == nodes){
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+
+	private static boolean await(RecordingOut out, String text) throws InterruptedException {
+		for(int i = 0; i < 100 && !out.received(text); i ++){
+			Thread.sleep(100);
+		}
+		return out.received(text);
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		nodeA = node(freePort());
+		nodeB = node(freePort());
+		List<String> seeds = Arrays.asList(address(nodeA), address(nodeB));
+		shardsA = nodeA.actorOf(RoomShards.props(new RoomShards.Settings(address(nodeA), seeds, 100, 100, 1000),
+				new AtomicReference<ConsistentHashRing>()), RoomShards.NAME);
+		shardsB = nodeB.actorOf(RoomShards.props(new RoomShards.Settings(address(nodeB), seeds, 100, 100, 1000),
+				new AtomicReference<ConsistentHashRing>()), RoomShards.NAME);
+	}
+
+	@After
+	public void tearDown(){
+		nodeA.shutdown();
+		nodeB.shutdown();
+	}
+
+	@Test
+	public void nodesFindEachOtherAndDropSilentOnes() throws Exception {
+		assertThat(await(shardsA, 2)).isTrue();
+		assertThat(await(shardsB, 2)).isTrue();
+		assertThat(ring(shardsA)).isEqualTo(ring(shardsB));
+
+		nodeB.shutdown();
+		assertThat(await(shardsA, 1)).isTrue();
+		assertThat(ring(shardsA).getNodes()).containsOnly(address(nodeA));
+	}
+
+	@Test
+	public void membersOnOneNodeShareOneSubscriptionToAChatRoomOnTheOther() throws Exception {
+		assertThat(await(shardsA, 2)).isTrue();
+		long roomId = 8150020;
+		while(!ring(shardsA).owner(roomId).equals(address(nodeB))){
+			roomId ++;
+		}
+		// The chat room lives on node B; its members are on this JVM's chat room list.
+		ChatRoom chatRoom = new ChatRoom("sharded", roomId, new String[]{"alice@tchat.org", "bob@tchat.org"});
+		Application.getChatRooms().putIfAbsent(chatRoom);
+		try{
+			RecordingOut aliceOut = new RecordingOut();
+			RecordingOut bobOut = new RecordingOut();
+			shardsA.tell(new RoomShards.LocalJoin(roomId, "alice@tchat.org", aliceOut), null);
+			// Sent before the chat room answered: still gets there after the join.
+			shardsA.tell(new RoomShards.LocalFrame(roomId, "alice@tchat.org", aliceOut, Json.parse("{\"kind\":\"text\",\"text\":\"hello from node A\"}")), null);
+			shardsA.tell(new RoomShards.LocalJoin(roomId, "bob@tchat.org", bobOut), null);
+
+			assertThat(await(aliceOut, "hello from node A")).isTrue();
+			assertThat(await(bobOut, "\"members\"")).isTrue();
+			assertThat(await(aliceOut, "member-added")).isTrue();
+			Thread.sleep(300);
+
+			// One event for both members of node A crosses the wire once.
+			long published = RoomShards.getPublishedEvents();
+			shardsA.tell(new RoomShards.LocalFrame(roomId, "bob@tchat.org", bobOut, Json.parse("{\"kind\":\"text\",\"text\":\"hi from bob\"}")), null);
+			assertThat(await(aliceOut, "hi from bob")).isTrue();
+			assertThat(await(bobOut, "hi from bob")).isTrue();
+			Thread.sleep(300);
+			assertThat(RoomShards.getPublishedEvents() - published).isEqualTo(1);
+
+			// Node B is gone: the members are asked to rejoin and the sockets are closed.
+			nodeB.shutdown();
+			assertThat(await(aliceOut, "reconnect")).isTrue();
+			assertThat(await(bobOut, "reconnect")).isTrue();
+			assertThat(aliceOut.closed).isTrue();
+			assertThat(bobOut.closed).isTrue();
+		}finally{
+			Application.getChatRooms().remove(chatRoom);
+		}
+	}
+
+	@Test
+	public void framesWithMissingFieldsDoNotThrow() {
+		assertThat(ChatRoom.parseFrame("alice@tchat.org", 1, Json.parse("{}"))).isNull();
+		assertThat(ChatRoom.parseFrame("alice@tchat.org", 1, Json.parse("[1, 2]"))).isNull();
+		Object talk = ChatRoom.parseFrame("alice@tchat.org", 1, Json.parse("{\"kind\":\"text\"}"));
+		assertThat(((ChatRoom.Talk) talk).getMsg()).isEmpty();
+		assertThat(ChatRoom.parseFrame("alice@tchat.org", 1, Json.parse("{\"kind\":\"searchchathistory\"}"))).isNotNull();
+	}
+}
@@ -0,0 +1,76 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RoomStatsTest {
+
+	private static RoomStats stats(RoomStats.Entry... entries){
+		return new RoomStats(Arrays.asList(entries), 1000L);
+	}
+
+	private static List<Long> ids(RoomStats.Page page){
+		List<Long> ids = new ArrayList<Long>();
+		for(RoomStats.Entry entry: page.getEntries()){
+			ids.add(entry.getRoomId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void pagesFollowTheCursorInEitherOrder(){
+		RoomStats stats = stats(
+				new RoomStats.Entry(1, "a", 3, 10, 100, 0),
+				new RoomStats.Entry(2, "b", 5, 20, 300, 0),
+				new RoomStats.Entry(3, "c", 3, 30, 200, 0),
+				new RoomStats.Entry(4, "d", 1, 40, 400, 0),
+				new RoomStats.Entry(5, "e", 5, 50, 500, 0));
+
+		RoomStats.Page first = stats.page(RoomStats.Sort.MEMBERS, true, null, 2);
+		assertThat(ids(first)).containsExactly(5L, 2L);
+		assertThat(first.getTotal()).isEqualTo(5);
+		RoomStats.Page second = stats.page(RoomStats.Sort.MEMBERS, true, first.getNext(), 2);
+		assertThat(ids(second)).containsExactly(3L, 1L);
+		RoomStats.Page last = stats.page(RoomStats.Sort.MEMBERS, true, second.getNext(), 2);
+		assertThat(ids(last)).containsExactly(4L);
+		assertThat(last.getNext()).isNull();
+
+		RoomStats.Page ascending = stats.page(RoomStats.Sort.ACTIVITY, false, null, 3);
+		assertThat(ids(ascending)).containsExactly(1L, 3L, 2L);
+		assertThat(ids(stats.page(RoomStats.Sort.ACTIVITY, false, ascending.getNext(), 3))).containsExactly(4L, 5L);
+	}
+
+	@Test
+	public void cursorOfARoomGoneFromTheSnapshotStillOrdersTheNextPage(){
+		RoomStats before = stats(
+				new RoomStats.Entry(1, "alpha", 1, 0, 0, 0),
+				new RoomStats.Entry(2, "beta", 1, 0, 0, 0),
+				new RoomStats.Entry(3, "gamma: the third", 1, 0, 0, 0));
+		String cursor = before.page(RoomStats.Sort.NAME, false, null, 2).getNext();
+
+		// Refreshed in between: "beta" has been closed and "delta" opened.
+		RoomStats after = stats(
+				new RoomStats.Entry(1, "alpha", 1, 0, 0, 0),
+				new RoomStats.Entry(3, "gamma: the third", 1, 0, 0, 0),
+				new RoomStats.Entry(4, "delta", 1, 0, 0, 0));
+		assertThat(ids(after.page(RoomStats.Sort.NAME, false, cursor, 2))).containsExactly(4L, 3L);
+		assertThat(ids(after.page(RoomStats.Sort.NAME, true, cursor, 2))).containsExactly(1L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void malformedCursorIsRejected(){
+		stats(new RoomStats.Entry(1, "a", 1, 0, 0, 0)).page(RoomStats.Sort.SIZE, false, "1:many", 10);
+	}
+
+	@Test
+	public void sortNamesAreParsed(){
+		assertThat(RoomStats.Sort.parse("Members")).isEqualTo(RoomStats.Sort.MEMBERS);
+		assertThat(RoomStats.Sort.parse("unknown")).isNull();
+		assertThat(RoomStats.Sort.parse(null)).isNull();
+	}
+}
@@ -0,0 +1,39 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RoomWriterLockTest {
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("room", "");
+		dir.delete();
+	}
+
+	@After
+	public void deleteDir() {
+		new File(dir, RoomWriterLock.FILE_NAME).delete();
+		dir.delete();
+	}
+
+	@Test
+	public void onlyOneWriterHoldsTheLock() throws IOException {
+		RoomWriterLock first = RoomWriterLock.tryAcquire(dir, "node1");
+		assertThat(first).isNotNull();
+		assertThat(RoomWriterLock.tryAcquire(dir, "node2")).isNull();
+
+		first.release();
+		RoomWriterLock second = RoomWriterLock.tryAcquire(dir, "node2");
+		assertThat(second).isNotNull();
+		second.release();
+	}
+}
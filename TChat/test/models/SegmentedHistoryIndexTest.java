@@ -0,0 +1,82 @@
+package models;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+
+import models.ChatRoom.ChatRecord;
+import models.HistoryIndex.Query;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedHistoryIndexTest {
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("index", "");
+		dir.delete();
+	}
+
+	@After
+	public void deleteDir() {
+		File[] files = dir.listFiles();
+		if(files != null){
+			for(File f: files){
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	// Records 0..count-1, "even" or "odd" and the sequence number in words.
+	private static void addRecords(SegmentedHistoryIndex index, int count) {
+		for(int seq = 0; seq < count; seq ++){
+			index.add(new ChatRecord(seq, 1000L * seq, "user@tchat.org", (seq % 2 == 0 ? "even " : "odd ") + "n" + seq));
+		}
+	}
+
+	@Test
+	public void searchesAllSegmentsNewestFirst() throws IOException {
+		SegmentedHistoryIndex index = new SegmentedHistoryIndex(dir, 4);
+		addRecords(index, 10);
+		assertThat(index.hasUnsaved()).isTrue();
+		assertThat(index.search(Query.parse("even"), 100)).isEqualTo(new long[]{8, 6, 4, 2, 0});
+		assertThat(index.search(Query.parse("even"), 3)).isEqualTo(new long[]{8, 6, 4});
+		assertThat(index.search(Query.parse("n1"), 100)).isEqualTo(new long[]{1});
+		// Only the segments of the time range are searched.
+		assertThat(index.search(Query.parse("odd", null, 2000, 5000), 100)).isEqualTo(new long[]{5, 3});
+	}
+
+	@Test
+	public void savedSegmentsLeaveTheHeapAndAreReadBack() throws IOException {
+		SegmentedHistoryIndex index = new SegmentedHistoryIndex(dir, 4);
+		addRecords(index, 10);
+		long before = index.estimateBytes();
+		index.save();
+		assertThat(index.hasUnsaved()).isFalse();
+		assertThat(index.estimateBytes()).isLessThan(before);
+		assertThat(index.search(Query.parse("odd"), 100)).isEqualTo(new long[]{9, 7, 5, 3, 1});
+
+		SegmentedHistoryIndex reopened = SegmentedHistoryIndex.open(dir, 4, 9);
+		assertThat(reopened.getLastSeq()).isEqualTo(9);
+		assertThat(reopened.search(Query.parse("odd"), 100)).isEqualTo(new long[]{9, 7, 5, 3, 1});
+	}
+
+	@Test
+	public void recordsSavedBeforeTheyWereLoggedAreIndexedAgain() throws IOException {
+		SegmentedHistoryIndex index = new SegmentedHistoryIndex(dir, 4);
+		addRecords(index, 10);
+		index.save();
+
+		// Only records up to 5 have made it to the history log: the segment 4..7 and the active segment are dropped.
+		SegmentedHistoryIndex reopened = SegmentedHistoryIndex.open(dir, 4, 5);
+		assertThat(reopened.getLastSeq()).isEqualTo(3);
+		reopened.add(new ChatRecord(4, 4000, "user@tchat.org", "even again"));
+		assertThat(reopened.search(Query.parse("even"), 100)).isEqualTo(new long[]{4, 2, 0});
+	}
+}
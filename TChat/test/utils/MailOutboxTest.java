@@ -0,0 +1,220 @@
+package utils;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import utils.MailOutbox.Invitation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class MailOutboxTest {
+
+	private HttpServer server;
+	private String url;
+	// Decoded form parameters of every request received by the stub mail API.
+	private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<List<String>>());
+	// The stub answers the next failures requests with failStatus, then 200.
+	private final AtomicInteger failures = new AtomicInteger();
+	private volatile int failStatus = 500;
+	private File journalFile;
+
+	@Before
+	public void startStub() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/messages", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				byte[] buf = new byte[4096];
+				for(int n = in.read(buf); n > 0; n = in.read(buf)){
+					body.write(buf, 0, n);
+				}
+				List<String> params = new ArrayList<String>();
+				for(String param: body.toString("UTF-8").split("&")){
+					params.add(URLDecoder.decode(param, "UTF-8"));
+				}
+				requests.add(params);
+				exchange.sendResponseHeaders(failures.getAndDecrement() > 0 ? failStatus : 200, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/messages";
+		journalFile = File.createTempFile("mail", ".journal");
+		journalFile.delete();
+	}
+
+	@After
+	public void stopStub() {
+		server.stop(0);
+		journalFile.delete();
+	}
+
+	private static void awaitSent(MailOutbox outbox, int mails) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(outbox.getSentMails() + outbox.getFailedMails() < mails && System.currentTimeMillis() < deadline){
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void sendsInvitationsInBatches() throws InterruptedException {
+		MailOutbox outbox = new MailOutbox(url, 3, 1000);
+		for(int i = 0; i < 7; i ++){
+			outbox.enqueue(new Invitation(1, "alice <alice@tchat.org>", "member" + i + "@tchat.org", "[TChat]room", "join " + MailOutbox.RECIPIENT));
+		}
+		outbox.enqueue(new Invitation(2, "bob <bob@tchat.org>", "carol@tchat.org", "[TChat]other", "join " + MailOutbox.RECIPIENT));
+		outbox.start();
+		awaitSent(outbox, 8);
+		outbox.stop();
+
+		assertThat(outbox.getSentMails()).isEqualTo(8);
+		assertThat(outbox.getSentRequests()).isEqualTo(4);
+		assertThat(requests).hasSize(4);
+		assertThat(requests.get(0)).contains("to=member0@tchat.org", "to=member1@tchat.org", "to=member2@tchat.org",
+				"text=join %recipient.email%");
+		assertThat(requests.get(2)).contains("to=member6@tchat.org");
+		assertThat(requests.get(3)).contains("to=carol@tchat.org", "subject=[TChat]other");
+	}
+
+	@Test
+	public void limitsRequestRate() throws InterruptedException {
+		MailOutbox outbox = new MailOutbox(url, 1, 20);
+		for(int i = 0; i < 5; i ++){
+			outbox.enqueue(new Invitation(1, "alice@tchat.org", "member" + i + "@tchat.org", "[TChat]room", "join"));
+		}
+		long start = System.nanoTime();
+		outbox.start();
+		awaitSent(outbox, 5);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		outbox.stop();
+
+		assertThat(outbox.getSentRequests()).isEqualTo(5);
+		// 5 requests, at least 50 ms apart.
+		assertThat(elapsed).isGreaterThanOrEqualTo(200);
+	}
+
+	@Test
+	public void countsFailedMails() throws InterruptedException {
+		failures.set(Integer.MAX_VALUE);
+		MailOutbox outbox = new MailOutbox(url, 10, 1000);
+		outbox.setRetryPolicy(1, 10, 10);
+		outbox.enqueue(new Invitation(1, "alice@tchat.org", "bob@tchat.org", "[TChat]room", "join"));
+		outbox.start();
+		awaitSent(outbox, 1);
+		outbox.stop();
+
+		assertThat(outbox.getFailedMails()).isEqualTo(1);
+		assertThat(outbox.getSentMails()).isEqualTo(0);
+	}
+
+	@Test
+	public void retriesWithBackoff() throws InterruptedException {
+		failures.set(2);
+		MailOutbox outbox = new MailOutbox(url, 10, 1000);
+		outbox.setRetryPolicy(5, 20, 1000);
+		outbox.enqueue(new Invitation(1, "alice@tchat.org", "bob@tchat.org", "[TChat]room", "join"));
+		long start = System.nanoTime();
+		outbox.start();
+		awaitSent(outbox, 3);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		outbox.stop();
+
+		assertThat(outbox.getSentMails()).isEqualTo(1);
+		assertThat(requests).hasSize(3);
+		// Waited 20 ms, then 40 ms.
+		assertThat(elapsed).isGreaterThanOrEqualTo(60);
+		assertThat(outbox.getDeadLetters()).isEmpty();
+		assertThat(outbox.backoff(1)).isEqualTo(20);
+		assertThat(outbox.backoff(3)).isEqualTo(80);
+		assertThat(outbox.backoff(30)).isEqualTo(1000);
+	}
+
+	@Test
+	public void deadLettersAfterLastAttemptOrRejection() throws InterruptedException, IOException {
+		failures.set(Integer.MAX_VALUE);
+		MailOutbox outbox = new MailOutbox(url, 10, 1000, journalFile);
+		outbox.setRetryPolicy(3, 5, 5);
+		outbox.enqueue(new Invitation(1, "alice@tchat.org", "bob@tchat.org", "[TChat]room", "join"));
+		outbox.start();
+		awaitSent(outbox, 3);
+		outbox.stop();
+
+		assertThat(requests).hasSize(3);
+		assertThat(outbox.getDeadLetters()).hasSize(1);
+		assertThat(outbox.getDeadLetters().get(0).getEntry().getAttempts()).isEqualTo(3);
+		assertThat(outbox.getDeadLetters().get(0).getReason()).isEqualTo("HTTP 500");
+
+		// Rejected mails are not retried.
+		failStatus = 400;
+		outbox = new MailOutbox(url, 10, 1000, journalFile);
+		assertThat(outbox.getDeadLetters()).hasSize(1);
+		outbox.enqueue(new Invitation(2, "alice@tchat.org", "bob@tchat.org", "[TChat]room", "join"));
+		outbox.start();
+		awaitSent(outbox, 1);
+		outbox.stop();
+		assertThat(requests).hasSize(4);
+		assertThat(outbox.getDeadLetters()).hasSize(2);
+	}
+
+	@Test
+	public void keepsInvitationsAcrossRestarts() throws InterruptedException, IOException {
+		MailOutbox outbox = new MailOutbox(url, 10, 1000, journalFile);
+		List<Invitation> invitations = new ArrayList<Invitation>();
+		for(int i = 0; i < 3; i ++){
+			invitations.add(new Invitation(1, "alice@tchat.org", "member" + i + "@tchat.org", "[TChat]room", "join"));
+		}
+		assertThat(outbox.enqueueAll(invitations)).isEqualTo(3);
+		// Same chat room and recipient: queued once only.
+		assertThat(outbox.enqueue(new Invitation(1, "alice@tchat.org", "Member0@tchat.org", "[TChat]room", "join"))).isFalse();
+		outbox.stop();
+
+		// Restarted before anything was sent.
+		outbox = new MailOutbox(url, 10, 1000, journalFile);
+		assertThat(outbox.getQueueSize()).isEqualTo(3);
+		outbox.start();
+		awaitSent(outbox, 3);
+		outbox.stop();
+		assertThat(outbox.getSentMails()).isEqualTo(3);
+		assertThat(requests).hasSize(1);
+
+		// Restarted after sending: nothing is sent again.
+		outbox = new MailOutbox(url, 10, 1000, journalFile);
+		assertThat(outbox.getQueueSize()).isEqualTo(0);
+		assertThat(outbox.enqueueAll(invitations)).isEqualTo(0);
+		outbox.stop();
+	}
+
+	@Test
+	public void forgetsKeysAfterRetention() throws InterruptedException, IOException {
+		MailOutbox outbox = new MailOutbox(url, 10, 1000, journalFile);
+		outbox.setKeyRetention(0);
+		Invitation invitation = new Invitation(1, "alice@tchat.org", "bob@tchat.org", "[TChat]room", "join");
+		assertThat(outbox.enqueue(invitation)).isTrue();
+		outbox.start();
+		awaitSent(outbox, 1);
+		Thread.sleep(5);
+		// Sent longer ago than the retention: the key is forgotten and the invitation queued again.
+		assertThat(outbox.enqueue(invitation)).isTrue();
+		awaitSent(outbox, 2);
+		outbox.stop();
+		assertThat(requests).hasSize(2);
+	}
+}
@@ -0,0 +1,69 @@
+package utils;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	@Test
+	public void counterIsRegisteredOnceByName(){
+		Metrics.Counter counter = Metrics.counter("test_events_total", "Test events.");
+		counter.inc();
+		counter.add(2);
+		assertThat(Metrics.counter("test_events_total", "Test events.")).isSameAs(counter);
+		assertThat(Metrics.scrape()).contains("# TYPE test_events_total counter\ntest_events_total " + counter.get() + "\n");
+	}
+
+	@Test
+	public void histogramBucketsAreCumulative(){
+		Metrics.Histogram histogram = Metrics.histogram("test_latency_seconds", "Test latency.");
+		histogram.observeNanos(TimeUnit.MICROSECONDS.toNanos(50));
+		// On a bucket bound: counted in that bucket.
+		histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		histogram.observeNanos(TimeUnit.MILLISECONDS.toNanos(7));
+		histogram.observeNanos(TimeUnit.SECONDS.toNanos(30));
+
+		String text = Metrics.scrape();
+		assertThat(text).contains("# TYPE test_latency_seconds histogram\n");
+		assertThat(text).contains("test_latency_seconds_bucket{le=\"1.0E-4\"} 1\n");
+		assertThat(text).contains("test_latency_seconds_bucket{le=\"0.001\"} 2\n");
+		assertThat(text).contains("test_latency_seconds_bucket{le=\"0.005\"} 2\n");
+		assertThat(text).contains("test_latency_seconds_bucket{le=\"0.01\"} 3\n");
+		assertThat(text).contains("test_latency_seconds_bucket{le=\"10.0\"} 3\n");
+		assertThat(text).contains("test_latency_seconds_bucket{le=\"+Inf\"} 4\n");
+		assertThat(text).contains("test_latency_seconds_count 4\n");
+		assertThat(histogram.getCount()).isEqualTo(4);
+		assertThat(histogram.getSum()).isEqualTo(TimeUnit.MICROSECONDS.toNanos(8050) + TimeUnit.SECONDS.toNanos(30));
+	}
+
+	@Test
+	public void gaugesAreReadOnScrape(){
+		final int[] rooms = {3};
+		Metrics.gauge("test_rooms", "Test rooms.", new Metrics.Gauge() {
+			@Override
+			public double value() {
+				return rooms[0];
+			}
+		});
+		Metrics.gauges("test_members", "Test members.", "room", new Metrics.GaugeFamily() {
+			@Override
+			public Map<String, Integer> values() {
+				Map<String, Integer> members = new LinkedHashMap<String, Integer>();
+				members.put("1", 2);
+				members.put("say \"hi\"", 5);
+				return members;
+			}
+		});
+		assertThat(Metrics.scrape()).contains("test_rooms 3\n");
+		rooms[0] = 4;
+		String text = Metrics.scrape();
+		assertThat(text).contains("test_rooms 4\n");
+		assertThat(text).contains("test_members{room=\"1\"} 2\n");
+		assertThat(text).contains("test_members{room=\"say \\\"hi\\\"\"} 5\n");
+	}
+}
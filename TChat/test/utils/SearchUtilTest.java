@@ -0,0 +1,75 @@
+package utils;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import models.ChatRoom.ChatRecord;
+
+import org.junit.Test;
+
+public class SearchUtilTest {
+
+	@Test
+	public void findsAllMatchesIgnoringCase(){
+		int[] starts = SearchUtil.compile("Backstreet").findAll("hello, backstreet boys comback again! BACKSTREET");
+		assertThat(starts).isEqualTo(new int[]{7, 38});
+	}
+
+	@Test
+	public void matchesAgreeWithIndexOf(){
+		String text = "abaababaabaababaababaabaababaabaab";
+		for(String pattern: Arrays.asList("abaab", "aab", "ba", "baabab", "abaababaab", "b", "x")){
+			List<Integer> expected = new ArrayList<Integer>();
+			int i = text.indexOf(pattern);
+			while(i >= 0){
+				expected.add(i);
+				i = text.indexOf(pattern, i + pattern.length());
+			}
+			int[] starts = SearchUtil.compile(pattern).findAll(text);
+			assertThat(starts.length).as(pattern).isEqualTo(expected.size());
+			for(int j = 0; j < starts.length; j ++){
+				assertThat(starts[j]).as(pattern).isEqualTo(expected.get(j));
+			}
+		}
+	}
+
+	@Test
+	public void searchesNonAsciiText(){
+		String text = "Gr\u00fc\u00dfe aus M\u00fcnchen, \u4f60\u597d\u670b\u53cb, GR\u00dc\u00dfE";
+		assertThat(SearchUtil.compile("gr\u00fc\u00dfe").findAll(text)).isEqualTo(new int[]{0, 25});
+		assertThat(SearchUtil.compile("\u597d\u670b").findAll(text)).isEqualTo(new int[]{20});
+	}
+
+	@Test
+	public void legacyBoyerMooreFormatIsKept(){
+		ArrayList<Integer> indexList = new SearchUtil.BoyerMoore("xxxbacdvvvbacdbb", "bacd").bm();
+		assertThat(indexList).containsExactly(3, 6, 10, 13, 2);
+	}
+
+	@Test
+	public void highlightsChatHistory(){
+		ArrayList<String> ret = SearchUtil.searchChatHistory("boys and BOYS", "boys");
+		assertThat(ret.get(0)).isEqualTo("<span style='background-color:yellow;'>boys</span> and <span style='background-color:yellow;'>BOYS</span>");
+		assertThat(ret.get(1)).isEqualTo("2");
+	}
+
+	@Test
+	public void streamsMatchingRecords(){
+		List<ChatRecord> records = Arrays.asList(
+			new ChatRecord(0, 0, "alice", "see you at the concert"),
+			new ChatRecord(1, 0, "bob", "no ticket"),
+			new ChatRecord(2, 0, "alice", "Concert tickets, concert!"));
+		final List<Long> seqs = new ArrayList<Long>();
+		int cnt = SearchUtil.searchChatRecords(records, "concert", new SearchUtil.MatchListener() {
+			@Override
+			public void onMatch(ChatRecord record, int[] starts) {
+				seqs.add(record.getSeq());
+			}
+		});
+		assertThat(cnt).isEqualTo(3);
+		assertThat(seqs).containsExactly(0L, 2L);
+	}
+}